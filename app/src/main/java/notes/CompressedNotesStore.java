@@ -0,0 +1,440 @@
+package notes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block-compressed notes snapshot. Records in the usual format (length,
+ * payload, CRC) are grouped into blocks of about BLOCK_SIZE bytes and each
+ * block is deflated on its own. A block index at the end of the file says
+ * where every block starts and which note ids it holds, so one note can be
+ * read by inflating only its block, and a full load inflates the blocks in
+ * parallel.
+ *
+ * File:    header (as notes.dat, different magic) | blocks... | index | index offset (long) | "NIDX"
+ * Index:   block count (int), then per block:
+ *          offset (long) | compressed length (int) | length (int) | records (int) | min id (long) | max id (long)
+ */
+public class CompressedNotesStore {
+    private static final int MAGIC = 0x4E4F545A; // "NOTZ"
+    private static final int INDEX_MAGIC = 0x4E494458; // "NIDX"
+    private static final int INDEX_ENTRY_SIZE = 36;
+    private static final int TRAILER_SIZE = 12;
+    // A block is closed once its records reach this many bytes
+    private static final int BLOCK_SIZE = 64 * 1024;
+    // Blocks handed to one fork/join task while loading
+    private static final int MIN_BLOCKS_PER_TASK = 16;
+    
+    /**
+     * Where one block is stored and what it holds
+     */
+    public static class Block {
+        public final long offset;
+        public final int compressedLength;
+        public final int length;
+        public final int records;
+        // Number of records in the blocks before this one
+        public final int firstRecord;
+        public final long minId;
+        public final long maxId;
+        
+        Block(long offset, int compressedLength, int length, int records, int firstRecord, long minId, long maxId) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.length = length;
+            this.records = records;
+            this.firstRecord = firstRecord;
+            this.minId = minId;
+            this.maxId = maxId;
+        }
+    }
+    
+    private final File file;
+    private final NoteCodec.Header header;
+    private final List<Block> blocks;
+    
+    private CompressedNotesStore(File file, NoteCodec.Header header, List<Block> blocks) {
+        this.file = file;
+        this.header = header;
+        this.blocks = blocks;
+    }
+    
+    /**
+     * Whether file starts like a compressed snapshot
+     */
+    public static boolean isCompressed(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Write notes as a compressed snapshot to channel, using out as the
+     * write buffer
+     * @param level Deflater compression level
+     */
+    public static void write(FileChannel channel, ByteBuffer out, Collection<Note> notes,
+                             long seq, long nextId, int level) throws IOException {
+        out.clear();
+        NoteCodec.writeHeader(out, MAGIC, seq, nextId);
+        
+        BlockWriter writer = new BlockWriter(channel, out, NoteCodec.headerSize(NoteCodec.VERSION), level);
+        try {
+            NoteCodec codec = new NoteCodec().shareContents();
+            for (Note note : notes) {
+                writer.add(codec.begin().putNote(note), note.getId());
+            }
+            writer.finish();
+        } finally {
+            writer.deflater.end();
+        }
+        
+        ByteBuffer index = ByteBuffer.allocate(4 + writer.blocks.size() * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+        index.putInt(writer.blocks.size());
+        for (Block block : writer.blocks) {
+            index.putLong(block.offset).putInt(block.compressedLength).putInt(block.length)
+                 .putInt(block.records).putLong(block.minId).putLong(block.maxId);
+        }
+        index.putLong(writer.position).putInt(INDEX_MAGIC);
+        index.flip();
+        while (index.hasRemaining()) {
+            if (!out.hasRemaining()) {
+                NoteCodec.drain(channel, out);
+            }
+            int length = Math.min(out.remaining(), index.remaining());
+            out.put(index.slice().limit(length));
+            index.position(index.position() + length);
+        }
+        NoteCodec.drain(channel, out);
+    }
+    
+    /**
+     * Collects records into a block and deflates it into the write buffer
+     * once it is full
+     */
+    private static class BlockWriter {
+        final FileChannel channel;
+        final ByteBuffer out;
+        final Deflater deflater;
+        final RecordBuffer block = new RecordBuffer();
+        final List<Block> blocks = new ArrayList<>();
+        // File offset the next block starts at
+        long position;
+        int records;
+        int totalRecords;
+        long minId = Long.MAX_VALUE;
+        long maxId = Long.MIN_VALUE;
+        
+        BlockWriter(FileChannel channel, ByteBuffer out, long position, int level) {
+            this.channel = channel;
+            this.out = out;
+            this.position = position;
+            this.deflater = new Deflater(level);
+        }
+        
+        void add(NoteCodec record, long id) throws IOException {
+            record.writeTo(block);
+            records++;
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
+            if (block.size() >= BLOCK_SIZE) {
+                flush();
+                // Each block is read on its own, so shares nothing with the last
+                record.forgetSharedContents();
+            }
+        }
+        
+        void finish() throws IOException {
+            if (records > 0) {
+                flush();
+            }
+        }
+        
+        private void flush() throws IOException {
+            deflater.reset();
+            deflater.setInput(block.array(), 0, block.size());
+            deflater.finish();
+            int compressed = 0;
+            while (!deflater.finished()) {
+                if (!out.hasRemaining()) {
+                    NoteCodec.drain(channel, out);
+                }
+                int before = out.position();
+                deflater.deflate(out);
+                compressed += out.position() - before;
+            }
+            
+            blocks.add(new Block(position, compressed, block.size(), records, totalRecords, minId, maxId));
+            position += compressed;
+            totalRecords += records;
+            records = 0;
+            minId = Long.MAX_VALUE;
+            maxId = Long.MIN_VALUE;
+            block.reset();
+        }
+    }
+    
+    /**
+     * A ByteArrayOutputStream whose array can be read without copying it
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(BLOCK_SIZE + 8192);
+        }
+        
+        byte[] array() {
+            return buf;
+        }
+    }
+    
+    /**
+     * Read a compressed snapshot's header and block index. No block is
+     * inflated until it is needed.
+     */
+    public static CompressedNotesStore open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int headerSize = NoteCodec.headerSize(NoteCodec.VERSION);
+            if (size < headerSize + 4 + TRAILER_SIZE) {
+                throw new IOException(file.getName() + " is too short for a compressed notes file");
+            }
+            ByteBuffer headerBytes = readFully(channel, 0, headerSize);
+            NoteCodec.Header header = NoteCodec.readHeader(new DataInputStream(new ByteArrayInputStream(
+                    headerBytes.array())), MAGIC, file.getName());
+            
+            ByteBuffer trailer = readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+            long indexOffset = trailer.getLong();
+            if (trailer.getInt() != INDEX_MAGIC || indexOffset < header.size()
+                    || indexOffset > size - TRAILER_SIZE - 4) {
+                throw new IOException(file.getName() + " has no block index");
+            }
+            ByteBuffer index = readFully(channel, indexOffset, (int) (size - TRAILER_SIZE - indexOffset));
+            int count = index.getInt();
+            if (count < 0 || index.remaining() != (long) count * INDEX_ENTRY_SIZE) {
+                throw new IOException(file.getName() + " has a damaged block index");
+            }
+            
+            List<Block> blocks = new ArrayList<>(count);
+            int firstRecord = 0;
+            for (int i = 0; i < count; i++) {
+                Block block = new Block(index.getLong(), index.getInt(), index.getInt(), index.getInt(),
+                        firstRecord, index.getLong(), index.getLong());
+                if (block.offset < header.size() || block.offset + block.compressedLength > indexOffset
+                        || block.length < 0 || block.length > NoteCodec.MAX_RECORD_SIZE + 8 + BLOCK_SIZE) {
+                    throw new IOException(file.getName() + " has a damaged block index");
+                }
+                blocks.add(block);
+                firstRecord += block.records;
+            }
+            return new CompressedNotesStore(file, header, Collections.unmodifiableList(blocks));
+        }
+    }
+    
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    public long getSeq() {
+        return header.seq;
+    }
+    
+    public long getNextId() {
+        return header.nextId;
+    }
+    
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+    
+    /**
+     * Bytes of records before compression
+     */
+    public long getRawBytes() {
+        long total = 0;
+        for (Block block : blocks) {
+            total += block.length;
+        }
+        return total;
+    }
+    
+    /**
+     * Bytes the compressed blocks take in the file
+     */
+    public long getCompressedBytes() {
+        long total = 0;
+        for (Block block : blocks) {
+            total += block.compressedLength;
+        }
+        return total;
+    }
+    
+    /**
+     * Inflate every block on the fork/join pool and decode its notes.
+     * Damaged records and blocks are reported and skipped.
+     */
+    public List<Note> loadAll() throws IOException {
+        int records = blocks.isEmpty() ? 0 : blocks.get(blocks.size() - 1).firstRecord
+                + blocks.get(blocks.size() - 1).records;
+        Note[] decoded = new Note[records];
+        ConcurrentSkipListMap<Integer, String> errors = new ConcurrentSkipListMap<>();
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ForkJoinPool.commonPool().invoke(new InflateBlocks(channel, decoded, errors, 0, blocks.size()));
+        }
+        
+        for (Map.Entry<Integer, String> error : errors.entrySet()) {
+            System.err.println("✗ Error parsing record " + error.getKey() + ": " + error.getValue());
+        }
+        List<Note> notes = new ArrayList<>(decoded.length);
+        for (Note note : decoded) {
+            if (note != null) {
+                notes.add(note);
+            }
+        }
+        return notes;
+    }
+    
+    private class InflateBlocks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final FileChannel channel;
+        private final Note[] decoded;
+        private final Map<Integer, String> errors;
+        private final int from;
+        private final int to;
+        
+        InflateBlocks(FileChannel channel, Note[] decoded, Map<Integer, String> errors, int from, int to) {
+            this.channel = channel;
+            this.decoded = decoded;
+            this.errors = errors;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > MIN_BLOCKS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new InflateBlocks(channel, decoded, errors, from, middle),
+                          new InflateBlocks(channel, decoded, errors, middle, to));
+                return;
+            }
+            
+            Inflater inflater = new Inflater();
+            try {
+                for (int i = from; i < to; i++) {
+                    Block block = blocks.get(i);
+                    try {
+                        decodeBlock(inflate(channel, block, inflater), block, decoded, block.firstRecord, errors);
+                    } catch (IOException | DataFormatException e) {
+                        errors.put(block.firstRecord + 1, "Block of " + block.records
+                                + " records is unreadable: " + e.getMessage());
+                    }
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+    
+    /**
+     * Read one note by id, inflating only the block that holds it.
+     * Returns null if no block has it.
+     */
+    public Note readNote(long id) throws IOException {
+        Inflater inflater = new Inflater();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (Block block : blocks) {
+                if (id < block.minId || id > block.maxId) {
+                    continue;
+                }
+                Note[] notes = new Note[block.records];
+                decodeBlock(inflate(channel, block, inflater), block, notes, 0, new HashMap<>());
+                for (Note note : notes) {
+                    if (note != null && note.getId() == id) {
+                        return note;
+                    }
+                }
+            }
+            return null;
+        } catch (DataFormatException e) {
+            throw new IOException("Block is unreadable: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    private static ByteBuffer inflate(FileChannel channel, Block block, Inflater inflater)
+            throws IOException, DataFormatException {
+        ByteBuffer compressed = readFully(channel, block.offset, block.compressedLength);
+        byte[] raw = new byte[block.length];
+        inflater.reset();
+        inflater.setInput(compressed.array());
+        int length = 0;
+        while (length < raw.length && !inflater.finished()) {
+            int n = inflater.inflate(raw, length, raw.length - length);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            length += n;
+        }
+        if (length != raw.length || !inflater.finished()) {
+            throw new DataFormatException("inflated size does not match the index");
+        }
+        return ByteBuffer.wrap(raw);
+    }
+    
+    /**
+     * Decode the records of an inflated block into notes, starting at
+     * index at. A record with a bad CRC is reported and skipped.
+     */
+    private void decodeBlock(ByteBuffer raw, Block block, Note[] notes, int at, Map<Integer, String> errors) {
+        CRC32 crc = new CRC32();
+        Map<Long, Object> shared = new HashMap<>();
+        for (int i = 0; i < block.records; i++) {
+            int recordNumber = block.firstRecord + i + 1;
+            if (raw.remaining() < 8) {
+                errors.put(recordNumber, "Block ends early");
+                return;
+            }
+            int length = raw.getInt();
+            if (length < 0 || length + 4 > raw.remaining()) {
+                errors.put(recordNumber, "Invalid record length " + length);
+                return;
+            }
+            ByteBuffer payload = raw.slice().limit(length);
+            raw.position(raw.position() + length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            try {
+                if ((int) crc.getValue() != raw.getInt()) {
+                    NotesMetrics.CHECKSUM_ERRORS.increment();
+                    throw new IllegalStateException("Checksum mismatch");
+                }
+                notes[at + i] = NoteCodec.getNote(payload, header.version, shared);
+            } catch (NoteCodec.MissingContentException e) {
+                notes[at + i] = e.note;
+                errors.put(recordNumber, e.getMessage());
+            } catch (Exception e) {
+                errors.put(recordNumber, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package notes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only, memory-mapped view of a notes.dat snapshot. Opening it only
+ * records where each record starts; notes are handed out as lazy Note
+ * objects whose fields are decoded from the mapping when first read.
+ *
+ * The file is mapped in regions of at most REGION_SIZE bytes, each ending
+ * on a record boundary, so files larger than 2 GB work too.
+ *
+ * Every note whose record shares a content (see NoteCodec) gets the same
+ * Body over an intact copy in the file, so the content is decoded and
+ * cached once for all of them. The copies are checked when the file is
+ * opened; a note whose shared content has no intact copy is reported then
+ * and read with an empty content.
+ *
+ * NotesStore keeps this cheap open by building its category and time
+ * indexes, and statistics that were not saved, only when first used. The
+ * trade-off is that the first category listing, time range query or
+ * statistics view decodes every note's metadata and holds off writers
+ * while it does; the search index and statistics saved at close are read
+ * back without touching the notes.
+ */
+public class MappedNotesStore {
+    private static final long REGION_SIZE = 1L << 30;
+    
+    private final MappedByteBuffer[] regions;
+    // (region << 32) | offset of the payload within the region
+    private final long[] records;
+    private final int[] lengths;
+    // Note ids, read while indexing since the record's page is touched anyway
+    private final long[] ids;
+    private final NoteCodec.Header header;
+    // Where the note fields after the id start in a payload
+    private final int fieldsOffset;
+    // An intact record holding each SHARED content, by its hash
+    private final Map<Long, Integer> sharedRecords;
+    // Whether a record was dropped or a shared content has no intact copy,
+    // set by open
+    private boolean damaged;
+    // One Body per shared content, made when a note using it is first read
+    private final Map<Long, NotesContentCache.Body> sharedBodies = new ConcurrentHashMap<>();
+    
+    private MappedNotesStore(MappedByteBuffer[] regions, long[] records, int[] lengths,
+                             long[] ids, NoteCodec.Header header) {
+        this.regions = regions;
+        this.records = records;
+        this.lengths = lengths;
+        this.ids = ids;
+        this.header = header;
+        this.fieldsOffset = header.version >= 2 ? 8 : 0;
+        this.sharedRecords = new HashMap<>();
+    }
+    
+    /**
+     * Map a snapshot file and index its records
+     * @param verify check every record's CRC now (reads the whole file, but decodes nothing)
+     */
+    public static MappedNotesStore open(File file, int magic, boolean verify) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer headerBytes = ByteBuffer.allocate(NoteCodec.headerSize(NoteCodec.VERSION));
+            channel.read(headerBytes, 0);
+            NoteCodec.Header header;
+            try {
+                header = NoteCodec.readHeader(new DataInputStream(new ByteArrayInputStream(
+                        headerBytes.array(), 0, headerBytes.position())), magic, file.getName());
+            } catch (EOFException e) {
+                throw new IOException(file.getName() + " is not a notes data file");
+            }
+            boolean hasIds = header.version >= 2;
+            
+            List<MappedByteBuffer> regions = new ArrayList<>();
+            long[] records = new long[1024];
+            int[] lengths = new int[1024];
+            long[] ids = new long[hasIds ? 1024 : 0];
+            Map<Long, List<Integer>> sharedCopies = new HashMap<>();
+            boolean damaged = false;
+            int count = 0;
+            int recordNumber = 0;
+            CRC32 crc = verify ? new CRC32() : null;
+            
+            long regionStart = header.size();
+            MappedByteBuffer region = null;
+            long position = regionStart;
+            
+            while (position + 8 <= size) {
+                if (region == null || position + 8 > regionStart + region.capacity()) {
+                    regionStart = position;
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+                            Math.min(REGION_SIZE, size - regionStart));
+                    regions.add(region);
+                }
+                
+                int offset = (int) (position - regionStart);
+                int length = region.getInt(offset);
+                if (length < 0 || length > NoteCodec.MAX_RECORD_SIZE || position + 8 + length > size) {
+                    System.err.println("✗ " + file.getName() + " ends with an incomplete record");
+                    break;
+                }
+                if (offset + 8L + length > region.capacity()) {
+                    // Record crosses the end of this region; start the next one here
+                    region = null;
+                    continue;
+                }
+                recordNumber++;
+                
+                boolean intact = true;
+                if (verify) {
+                    ByteBuffer payload = region.duplicate();
+                    payload.limit(offset + 4 + length).position(offset + 4);
+                    crc.reset();
+                    crc.update(payload);
+                    intact = (int) crc.getValue() == region.getInt(offset + 4 + length);
+                }
+                
+                if (intact) {
+                    if (count == records.length) {
+                        records = Arrays.copyOf(records, count * 2);
+                        lengths = Arrays.copyOf(lengths, count * 2);
+                        if (hasIds) {
+                            ids = Arrays.copyOf(ids, count * 2);
+                        }
+                    }
+                    records[count] = ((long) (regions.size() - 1) << 32) | (offset + 4);
+                    lengths[count] = length;
+                    if (hasIds && length >= 8) {
+                        ids[count] = region.getLong(offset + 4);
+                    }
+                    if (header.version >= 3) {
+                        // The title's length is next to the id, so usually on the same page
+                        int content = NoteCodec.contentOffset(region, offset + 4, length, header.version);
+                        if (content >= 0 && length >= content + 12
+                                && region.getInt(offset + 4 + content) == NoteCodec.SHARED) {
+                            sharedCopies.computeIfAbsent(region.getLong(offset + 8 + content),
+                                    hash -> new ArrayList<>(2)).add(count);
+                        }
+                    }
+                    count++;
+                } else {
+                    NotesMetrics.CHECKSUM_ERRORS.increment();
+                    System.err.println("✗ Error parsing record " + recordNumber + ": Checksum mismatch");
+                    damaged = true;
+                }
+                position += 8L + length;
+            }
+            
+            MappedNotesStore store = new MappedNotesStore(regions.toArray(new MappedByteBuffer[0]),
+                    Arrays.copyOf(records, count), Arrays.copyOf(lengths, count),
+                    Arrays.copyOf(ids, hasIds ? count : 0), header);
+            store.damaged = !store.pickSharedCopies(sharedCopies, verify) || damaged;
+            return store;
+        }
+    }
+    
+    /**
+     * Keep the first intact copy of each shared content. Only these records
+     * are checked unless verify already checked them all. Returns false if
+     * some content has no intact copy.
+     */
+    private boolean pickSharedCopies(Map<Long, List<Integer>> sharedCopies, boolean verified) {
+        CRC32 crc = new CRC32();
+        for (Map.Entry<Long, List<Integer>> copies : sharedCopies.entrySet()) {
+            for (int record : copies.getValue()) {
+                if (verified || isIntact(record, crc)) {
+                    sharedRecords.put(copies.getKey(), record);
+                    break;
+                }
+            }
+        }
+        return sharedRecords.size() == sharedCopies.size();
+    }
+    
+    /**
+     * Number of intact records
+     */
+    public int size() {
+        return records.length;
+    }
+    
+    /**
+     * Journal sequence number stored in the snapshot header
+     */
+    public long getSeq() {
+        return header.seq;
+    }
+    
+    /**
+     * Next note id stored in the snapshot header (0 for version 1 files)
+     */
+    public long getNextId() {
+        return header.nextId;
+    }
+    
+    /**
+     * Format version of the mapped file
+     */
+    public int getVersion() {
+        return header.version;
+    }
+    
+    /**
+     * Id of the note in a record (0 for version 1 files)
+     */
+    long id(int record) {
+        return ids.length > 0 ? ids[record] : 0;
+    }
+    
+    /**
+     * One lazy Note per record, in file order
+     */
+    public List<Note> notes() {
+        if (damaged) {
+            reportMissingContents();
+        }
+        List<Note> notes = new ArrayList<>(records.length);
+        for (int i = 0; i < records.length; i++) {
+            notes.add(new Note(this, i));
+        }
+        return notes;
+    }
+    
+    /**
+     * Name the notes whose shared content has no intact copy. Reads the
+     * marker of every record, so only done when the file is damaged.
+     */
+    private void reportMissingContents() {
+        for (int i = 0; i < records.length; i++) {
+            if (isShared(i) && !sharedRecords.containsKey(sharedHash(i))) {
+                System.err.println("✗ Shared content of note " + id(i) + " not found; kept with an empty content");
+            }
+        }
+    }
+    
+    /**
+     * A read-only view of one record's payload, positioned at its start
+     */
+    public ByteBuffer payload(int record) {
+        long location = records[record];
+        int offset = (int) location;
+        ByteBuffer payload = regions[(int) (location >>> 32)].duplicate();
+        payload.limit(offset + lengths[record]).position(offset);
+        return payload.slice();
+    }
+    
+    /**
+     * Check a record's payload against the CRC stored after it
+     */
+    public boolean isIntact(int record, CRC32 crc) {
+        long location = records[record];
+        MappedByteBuffer region = regions[(int) (location >>> 32)];
+        int offset = (int) location;
+        crc.reset();
+        crc.update(payload(record));
+        return (int) crc.getValue() == region.getInt(offset + lengths[record]);
+    }
+    
+    /**
+     * Whether a record's content is SHARED or SAME
+     */
+    boolean isShared(int record) {
+        if (header.version < 3) {
+            return false;
+        }
+        ByteBuffer payload = payload(record);
+        int content = NoteCodec.contentOffset(payload, 0, payload.limit(), header.version);
+        int marker = content >= 0 ? payload.getInt(content) : 0;
+        return marker == NoteCodec.SHARED || marker == NoteCodec.SAME;
+    }
+    
+    /**
+     * Hash of the content of a record that isShared
+     */
+    private long sharedHash(int record) {
+        ByteBuffer payload = payload(record);
+        return payload.getLong(NoteCodec.contentOffset(payload, 0, payload.limit(), header.version) + 4);
+    }
+    
+    /**
+     * An intact record holding each SHARED content, by its hash
+     */
+    Map<Long, Integer> sharedRecords() {
+        return Collections.unmodifiableMap(sharedRecords);
+    }
+    
+    /**
+     * The SHARED content of a record as a length-prefixed string,
+     * positioned at its start
+     */
+    ByteBuffer sharedContent(int record) {
+        ByteBuffer payload = payload(record);
+        int content = NoteCodec.contentOffset(payload, 0, payload.limit(), header.version);
+        if (content < 0 || payload.getInt(content) != NoteCodec.SHARED) {
+            throw new IllegalArgumentException("Record " + (record + 1) + " has no shared content");
+        }
+        return payload.position(content + 12).slice();
+    }
+    
+    /**
+     * Decode timestamps, title and category. The content is left in the
+     * mapping, decoded through NotesContentCache when it is read.
+     */
+    void readMetadata(int record, Note into) {
+        ByteBuffer payload = payload(record);
+        payload.position(fieldsOffset);
+        long createdAt = payload.getLong();
+        long lastModified = payload.getLong();
+        String title = NoteCodec.getString(payload);
+        int marker = payload.getInt(payload.position());
+        NotesContentCache.Body body;
+        long hash = 0;
+        if (header.version >= 3 && (marker == NoteCodec.SHARED || marker == NoteCodec.SAME)) {
+            payload.position(payload.position() + 4);
+            hash = payload.getLong();
+            if (marker == NoteCodec.SHARED) {
+                skipString(payload);
+            }
+            Integer source = sharedRecords.get(hash);
+            if (source != null) {
+                body = sharedBodies.computeIfAbsent(hash, h -> mapShared(source));
+            } else {
+                // No intact copy; reported when the notes were listed
+                body = NotesContentCache.mapped(ByteBuffer.allocate(4));
+                hash = 0;
+            }
+        } else {
+            ByteBuffer content = payload.duplicate();
+            skipString(payload);
+            content.limit(payload.position());
+            body = NotesContentCache.mapped(content);
+        }
+        String category = NoteCodec.getString(payload);
+        into.setStoredMetadata(title, body, hash, category, createdAt, lastModified);
+    }
+    
+    private NotesContentCache.Body mapShared(int record) {
+        ByteBuffer content = sharedContent(record);
+        content.limit(4 + content.getInt(0));
+        return NotesContentCache.mapped(content);
+    }
+    
+    private static void skipString(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0 || length > payload.remaining()) {
+            throw new IllegalArgumentException("Invalid field length " + length);
+        }
+        payload.position(payload.position() + length);
+    }
+}
@@ -0,0 +1,415 @@
+package notes;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+
+/**
+ * Represents a single note with title, content, and timestamp
+ */
+public class Note {
+    // Stable identity, allocated by NotesFileManager; 0 until assigned
+    private long id;
+    // Set last when metadata is decoded from a mapped record, so a thread
+    // that sees it also sees the other fields
+    private volatile String title;
+    // Small contents are kept here; large ones off the heap in body
+    private String content;
+    private NotesContentCache.Body body;
+    // Hash of the content (see NotesChunkStore); 0 until first needed
+    private long contentHash;
+    // Counted as using its content in NotesChunkStore
+    private boolean counted;
+    // Epoch millis; see NoteTimestamps for how they are shown and parsed
+    private long createdAt;
+    private long lastModified;
+    private String category;
+    // Stamped by NotesStore each time the note is published; an edit makes
+    // a new copy with a new version
+    private long version;
+    
+    // Set while the note is an unchanged record of a memory-mapped store;
+    // fields are decoded from it on first use
+    private MappedNotesStore store;
+    private int record;
+    
+    // Constructor
+    public Note(String title, String content, String category) {
+        this.title = title;
+        this.content = content;
+        this.category = NotesCategoryIndex.canonical(category);
+        this.createdAt = NoteTimestamps.now();
+        this.lastModified = createdAt;
+    }
+    
+    // Constructor for loading from file
+    public Note(String title, String content, String category, 
+                LocalDateTime createdAt, LocalDateTime lastModified) {
+        this(0, title, content, category, createdAt, lastModified);
+    }
+    
+    // Constructor for loading a note that already has an id
+    public Note(long id, String title, String content, String category,
+                LocalDateTime createdAt, LocalDateTime lastModified) {
+        this(id, title, content, category,
+             NoteTimestamps.toEpochMillis(createdAt), NoteTimestamps.toEpochMillis(lastModified));
+    }
+    
+    // Constructor for a note with its times in epoch millis
+    public Note(long id, String title, String content, String category,
+                long createdAt, long lastModified) {
+        this.id = id;
+        this.title = title;
+        this.content = content;
+        this.category = NotesCategoryIndex.canonical(category);
+        this.createdAt = createdAt;
+        this.lastModified = lastModified;
+    }
+    
+    // Constructor for a note decoded with its content left off the heap
+    Note(long id, String title, NotesContentCache.Body body, String category,
+         long createdAt, long lastModified) {
+        this(id, title, (String) null, category, createdAt, lastModified);
+        this.body = body;
+    }
+    
+    // Constructor for a lazily decoded record of a memory-mapped store
+    Note(MappedNotesStore store, int record) {
+        this.store = store;
+        this.record = record;
+        this.id = store.id(record);
+    }
+    
+    // Getters
+    public long getId() {
+        return id;
+    }
+    
+    public String getTitle() {
+        loadMetadata();
+        return title;
+    }
+    
+    public String getContent() {
+        loadMetadata();
+        NotesContentCache.Body body = this.body;
+        return body != null ? body.get() : content;
+    }
+    
+    /**
+     * Content cut to maxLength characters, with "..." if it was longer.
+     * Only the start of an off-heap content is decoded.
+     */
+    public String getContentPreview(int maxLength) {
+        loadMetadata();
+        String start = body != null ? body.start(maxLength) : content;
+        return start.length() <= maxLength ? start : start.substring(0, maxLength) + "...";
+    }
+    
+    public String getCategory() {
+        loadMetadata();
+        return category;
+    }
+    
+    public LocalDateTime getCreatedAt() {
+        return NoteTimestamps.toLocalDateTime(getCreatedMillis());
+    }
+    
+    public LocalDateTime getLastModified() {
+        return NoteTimestamps.toLocalDateTime(getModifiedMillis());
+    }
+    
+    /**
+     * Creation time in epoch millis
+     */
+    public long getCreatedMillis() {
+        loadMetadata();
+        return createdAt;
+    }
+    
+    /**
+     * Last modification time in epoch millis
+     */
+    public long getModifiedMillis() {
+        loadMetadata();
+        return lastModified;
+    }
+    
+    /**
+     * Version of the note in its NotesStore, for optimistic edits; 0 if
+     * the note was never published there
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    void setVersion(long version) {
+        this.version = version;
+    }
+    
+    // Setters
+    public void setTitle(String title) {
+        detach();
+        this.title = title;
+        updateLastModified();
+    }
+    
+    public void setContent(String content) {
+        detach();
+        this.content = content;
+        this.body = null;
+        this.contentHash = 0;
+        updateLastModified();
+    }
+    
+    public void setCategory(String category) {
+        detach();
+        this.category = NotesCategoryIndex.canonical(category);
+        updateLastModified();
+    }
+    
+    // Independent copy of the note as it is now, safe to hand to another
+    // thread; an off-heap content is shared, since it never changes
+    Note copy() {
+        loadMetadata();
+        Note copy = new Note(id, title, content, category, createdAt, lastModified);
+        copy.body = body;
+        copy.contentHash = contentHash;
+        return copy;
+    }
+    
+    /**
+     * Move a large content off the heap. Only for notes no other thread
+     * can see yet.
+     */
+    void moveContentOffHeap() {
+        if (content != null && NotesContentCache.isLarge(content)) {
+            body = NotesContentCache.copyOf(content);
+            content = null;
+        }
+    }
+    
+    /**
+     * The content as it is held: a String, or a NotesContentCache.Body if
+     * it is off the heap
+     */
+    Object contentRef() {
+        loadMetadata();
+        NotesContentCache.Body body = this.body;
+        return body != null ? body : content;
+    }
+    
+    /**
+     * Hold shared, a String or Body with the same content, instead of this
+     * note's own copy. Only for notes no other thread can see yet.
+     */
+    void shareContent(Object shared) {
+        if (shared instanceof NotesContentCache.Body) {
+            body = (NotesContentCache.Body) shared;
+            content = null;
+        } else {
+            content = (String) shared;
+            body = null;
+        }
+    }
+    
+    long getContentHash() {
+        if (contentHash == 0) {
+            contentHash = NotesChunkStore.hash(contentRef());
+        }
+        return contentHash;
+    }
+    
+    // Set when decoding, from the stored bytes or the record's shared content
+    void setContentHash(long contentHash) {
+        this.contentHash = contentHash;
+    }
+    
+    boolean isCounted() {
+        return counted;
+    }
+    
+    void setCounted(boolean counted) {
+        this.counted = counted;
+    }
+    
+    // Still an unchanged record of a memory-mapped store
+    boolean isMapped() {
+        return store != null;
+    }
+    
+    // Whether the mapped record's content is one its file shares
+    boolean isStoredShared() {
+        return store != null && store.isShared(record);
+    }
+    
+    // Give a note loaded from an older file its id
+    void assignId(long id) {
+        this.id = id;
+    }
+    
+    private void loadMetadata() {
+        if (store != null && title == null) {
+            // Published notes are read by several threads; decode once
+            synchronized (this) {
+                if (title == null) {
+                    store.readMetadata(record, this);
+                }
+            }
+        }
+    }
+    
+    void setStoredMetadata(String title, NotesContentCache.Body body, long contentHash, String category,
+                           long createdAt, long lastModified) {
+        this.body = body;
+        this.contentHash = contentHash;
+        this.category = NotesCategoryIndex.canonical(category);
+        this.createdAt = createdAt;
+        this.lastModified = lastModified;
+        this.title = title;
+    }
+    
+    // Decode the metadata before the note is changed; the content stays
+    // in the mapping until it is replaced
+    private void detach() {
+        if (store != null) {
+            loadMetadata();
+            store = null;
+        }
+    }
+    
+    // Content as length-prefixed UTF-8 if it is off the heap, else null
+    ByteBuffer getStoredContent() {
+        loadMetadata();
+        NotesContentCache.Body body = this.body;
+        return body != null ? body.stored() : null;
+    }
+    
+    // Raw stored record of an unchanged mapped note in the current format,
+    // or null; a record sharing its content depends on the rest of its file
+    ByteBuffer getStoredPayload() {
+        return store != null && store.getVersion() == NoteCodec.VERSION && !store.isShared(record)
+                ? store.payload(record) : null;
+    }
+    
+    private void updateLastModified() {
+        this.lastModified = NoteTimestamps.now();
+    }
+    
+    // Convert note to pipe-delimited text (import/export format)
+    public String toFileString() {
+        return appendFileString(new StringBuilder(256)).toString();
+    }
+    
+    // Append the pipe-delimited form to line without building it separately
+    StringBuilder appendFileString(StringBuilder line) {
+        escape(getTitle(), line).append('|');
+        escape(getContent(), line).append('|');
+        escape(getCategory(), line).append('|');
+        NoteTimestamps.appendIso(getCreatedMillis(), line).append('|');
+        return NoteTimestamps.appendIso(getModifiedMillis(), line);
+    }
+    
+    private static StringBuilder escape(String field, StringBuilder into) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' || c == '|') {
+                into.append('\\').append(c);
+            } else if (c == '\n') {
+                into.append("\\n");
+            } else if (c == '\r') {
+                into.append("\\r");
+            } else {
+                into.append(c);
+            }
+        }
+        return into;
+    }
+    
+    // Create note from pipe-delimited text (import/export format)
+    public static Note fromFileString(String fileString) {
+        return fromFileString(fileString, false);
+    }
+    
+    /**
+     * Create a note from a line of the old notes.txt or text journal. Their
+     * writer only escaped pipes and line feeds, as \| and \n, and left
+     * backslashes alone, so any other backslash is part of the text.
+     */
+    static Note fromLegacyFileString(String fileString) {
+        return fromFileString(fileString, true);
+    }
+    
+    private static Note fromFileString(String fileString, boolean legacy) {
+        long start = NotesMetrics.start();
+        try {
+            Note note = parseFileString(fileString, legacy);
+            NotesMetrics.PARSE_TEXT.record(start);
+            return note;
+        } catch (RuntimeException e) {
+            NotesMetrics.TEXT_ERRORS.increment();
+            throw e;
+        }
+    }
+    
+    private static Note parseFileString(String fileString, boolean legacy) {
+        String[] parts = new String[5];
+        StringBuilder field = new StringBuilder();
+        int count = 0;
+        
+        for (int i = 0; i < fileString.length(); i++) {
+            char c = fileString.charAt(i);
+            if (c == '\\' && i + 1 < fileString.length()) {
+                char next = fileString.charAt(i + 1);
+                if (!legacy) {
+                    field.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+                    i++;
+                } else if (next == 'n' || next == '|') {
+                    field.append(next == 'n' ? '\n' : '|');
+                    i++;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '|') {
+                if (count == 4) {
+                    throw new IllegalArgumentException("Invalid file format");
+                }
+                parts[count++] = field.toString();
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (count != 4) {
+            throw new IllegalArgumentException("Invalid file format");
+        }
+        parts[4] = field.toString();
+        
+        long createdAt = NoteTimestamps.parseIso(parts[3]);
+        long lastModified = NoteTimestamps.parseIso(parts[4]);
+        
+        return new Note(0, parts[0], parts[1], parts[2], createdAt, lastModified);
+    }
+    
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder(256)).toString();
+    }
+    
+    // Append the console form shown by toString to out
+    StringBuilder appendTo(StringBuilder out) {
+        String category = getCategory();
+        out.append('[').append(category).append("] ").append(getTitle())
+           .append("\nCategory: ").append(category).append("\nCreated: ");
+        NoteTimestamps.appendDisplay(getCreatedMillis(), out).append(" | Modified: ");
+        NoteTimestamps.appendDisplay(getModifiedMillis(), out);
+        return out.append('\n').append(getContent());
+    }
+    
+    // Check if note matches search query
+    public boolean matches(String query) {
+        String lowerQuery = query.toLowerCase();
+        return getTitle().toLowerCase().contains(lowerQuery) ||
+               getContent().toLowerCase().contains(lowerQuery) ||
+               getCategory().toLowerCase().contains(lowerQuery);
+    }
+}
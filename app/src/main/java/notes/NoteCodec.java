@@ -0,0 +1,523 @@
+package notes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Binary record format shared by the notes snapshot and the journal.
+ *
+ * File:    magic (4 bytes) | version (int) | seq (long) | next id (long) | records...
+ * Record:  payload length (int) | payload | CRC32 of payload (int)
+ * Note:    id (long) | created (long, epoch millis) | modified (long, epoch millis)
+ *          | title | content | category
+ * String:  UTF-8 byte length (int) | UTF-8 bytes
+ * Content: a String, or in a snapshot one of
+ *          SHARED (int) | hash (long) | String   a content other records refer to
+ *          SAME (int) | hash (long)              the content of the SHARED records
+ *                                                before it with that hash
+ *
+ * The hash is NotesChunkStore.hash of the content's UTF-8 bytes. A shared
+ * content is stored in full by the first two records that have it, so one
+ * damaged record costs no other note; compressed snapshots do this per
+ * block, so every block can still be read on its own. The journal always
+ * writes contents in full.
+ *
+ * Version 1 files have no next id in the header and no id in notes; they
+ * are still read, and the notes get ids when loaded. Version 2 files have
+ * no shared contents.
+ *
+ * A codec instance reuses one buffer for every record it writes.
+ */
+public class NoteCodec {
+    public static final int VERSION = 3;
+    public static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+    // Content markers, in place of a string length
+    static final int SHARED = -2;
+    static final int SAME = -1;
+    
+    private byte[] buffer = new byte[8192];
+    private int position;
+    private final CRC32 crc = new CRC32();
+    // Shared contents already written, by hash; null unless sharing
+    private Map<Long, Object> shared;
+    // Hashes of the shared contents already written twice
+    private Set<Long> copied;
+    
+    /**
+     * A snapshot record whose shared content is in no intact record. The
+     * rest of the note was decoded, and it is kept with an empty content.
+     */
+    static class MissingContentException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+        
+        final transient Note note;
+        
+        MissingContentException(Note note) {
+            super("Shared content of note " + note.getId() + " not found; kept with an empty content");
+            this.note = note;
+        }
+    }
+    
+    /**
+     * Start a new record, discarding anything not yet written
+     */
+    public NoteCodec begin() {
+        position = 0;
+        return this;
+    }
+    
+    public NoteCodec putByte(int value) {
+        ensure(1);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+    
+    public NoteCodec putInt(int value) {
+        ensure(4);
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+    
+    public NoteCodec putLong(long value) {
+        putInt((int) (value >>> 32));
+        return putInt((int) value);
+    }
+    
+    /**
+     * Append raw bytes, e.g. a payload copied from another record
+     */
+    public NoteCodec putBytes(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        ensure(length);
+        bytes.duplicate().get(buffer, position, length);
+        position += length;
+        return this;
+    }
+    
+    /**
+     * Append a string as length-prefixed UTF-8, encoded straight into the buffer
+     */
+    public NoteCodec putString(String value) {
+        int lengthAt = position;
+        ensure(4 + value.length());
+        position += 4;
+        
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                ensure(1);
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4);
+                buffer[position++] = (byte) (0xF0 | (cp >> 18));
+                buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate: same replacement String.getBytes would use
+                ensure(1);
+                buffer[position++] = '?';
+            } else {
+                ensure(3);
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        
+        int length = position - lengthAt - 4;
+        buffer[lengthAt] = (byte) (length >>> 24);
+        buffer[lengthAt + 1] = (byte) (length >>> 16);
+        buffer[lengthAt + 2] = (byte) (length >>> 8);
+        buffer[lengthAt + 3] = (byte) length;
+        return this;
+    }
+    
+    /**
+     * Write contents other notes share once, and refer to them from the
+     * records after that (snapshots only)
+     */
+    public NoteCodec shareContents() {
+        shared = new HashMap<>();
+        copied = new HashSet<>();
+        return this;
+    }
+    
+    /**
+     * Forget the shared contents written so far, so no later record
+     * refers to them
+     */
+    public void forgetSharedContents() {
+        if (shared != null) {
+            shared.clear();
+            copied.clear();
+        }
+    }
+    
+    public NoteCodec putNote(Note note) {
+        // An untouched note from a mapped store is copied without decoding it
+        ByteBuffer stored = note.getStoredPayload();
+        if (stored != null) {
+            return putBytes(stored);
+        }
+        putLong(note.getId());
+        putLong(note.getCreatedMillis());
+        putLong(note.getModifiedMillis());
+        putString(note.getTitle());
+        if (shared != null && NotesChunkStore.isShared(note)) {
+            long hash = note.getContentHash();
+            Object content = note.contentRef();
+            Object first = shared.putIfAbsent(hash, content);
+            if (first == null) {
+                putInt(SHARED).putLong(hash);
+            } else if (NotesChunkStore.sameContent(first, content)) {
+                if (!copied.add(hash)) {
+                    putInt(SAME).putLong(hash);
+                    return putString(note.getCategory());
+                }
+                // A second copy, so one damaged record costs no other note
+                putInt(SHARED).putLong(hash);
+            }
+            // else a different content with the same hash, written in full
+        }
+        // Content kept off the heap is copied as it is, not decoded
+        ByteBuffer content = note.getStoredContent();
+        if (content != null) {
+            putBytes(content);
+        } else {
+            putString(note.getContent());
+        }
+        return putString(note.getCategory());
+    }
+    
+    /**
+     * Write the record built since begin() with its length prefix and CRC,
+     * returning the number of bytes written
+     */
+    public int writeTo(OutputStream out) throws IOException {
+        crc.reset();
+        crc.update(buffer, 0, position);
+        
+        writeInt(out, position);
+        out.write(buffer, 0, position);
+        writeInt(out, (int) crc.getValue());
+        return position + 8;
+    }
+    
+    /**
+     * Write the record built since begin() into buffer, draining the buffer
+     * to channel whenever it fills up. Call drain() once after the last record.
+     */
+    public int writeTo(WritableByteChannel channel, ByteBuffer out) throws IOException {
+        crc.reset();
+        crc.update(buffer, 0, position);
+        
+        if (out.remaining() < 4) {
+            drain(channel, out);
+        }
+        out.putInt(position);
+        for (int offset = 0; offset < position; ) {
+            if (!out.hasRemaining()) {
+                drain(channel, out);
+            }
+            int length = Math.min(out.remaining(), position - offset);
+            out.put(buffer, offset, length);
+            offset += length;
+        }
+        if (out.remaining() < 4) {
+            drain(channel, out);
+        }
+        out.putInt((int) crc.getValue());
+        return position + 8;
+    }
+    
+    /**
+     * Write everything put into buffer so far to channel and empty it
+     */
+    public static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+    
+    private void ensure(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+    
+    /**
+     * Contents of a file header
+     */
+    public static class Header {
+        public final int version;
+        // Last journal sequence number folded into a snapshot
+        public final long seq;
+        // Next note id to allocate (0 in version 1 files)
+        public final long nextId;
+        
+        Header(int version, long seq, long nextId) {
+            this.version = version;
+            this.seq = seq;
+            this.nextId = nextId;
+        }
+        
+        /**
+         * Bytes the header occupies in the file
+         */
+        public int size() {
+            return headerSize(version);
+        }
+    }
+    
+    public static int headerSize(int version) {
+        return version >= 2 ? 24 : 16;
+    }
+    
+    /**
+     * Write a current-version file header
+     */
+    public static void writeHeader(OutputStream out, int magic, long seq, long nextId) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(magic);
+        data.writeInt(VERSION);
+        data.writeLong(seq);
+        data.writeLong(nextId);
+        data.flush();
+    }
+    
+    /**
+     * Put a current-version file header into a buffer
+     */
+    public static void writeHeader(ByteBuffer out, int magic, long seq, long nextId) {
+        out.putInt(magic).putInt(VERSION).putLong(seq).putLong(nextId);
+    }
+    
+    /**
+     * Read a file header written by writeHeader, or by an older version
+     */
+    public static Header readHeader(DataInput in, int magic, String fileName) throws IOException {
+        if (in.readInt() != magic) {
+            throw new IOException(fileName + " is not a notes data file");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException(fileName + " has unsupported format version " + version);
+        }
+        long seq = in.readLong();
+        long nextId = version >= 2 ? in.readLong() : 0;
+        return new Header(version, seq, nextId);
+    }
+    
+    /**
+     * Decode a note written by putNote in a file of the given version. A
+     * large content is copied off the heap without being decoded.
+     */
+    public static Note getNote(ByteBuffer payload, int version) {
+        return getNote(payload, version, null);
+    }
+    
+    /**
+     * Decode a note from a snapshot, where a content may be shared
+     * @param shared contents of the file's SHARED records decoded so far,
+     *               by hash; a SHARED record not in it yet is added
+     */
+    public static Note getNote(ByteBuffer payload, int version, Map<Long, Object> shared) {
+        long start = NotesMetrics.start();
+        try {
+            Note note = decodeNote(payload, version, shared);
+            NotesMetrics.PARSE_RECORD.record(start);
+            return note;
+        } catch (RuntimeException e) {
+            NotesMetrics.RECORD_ERRORS.increment();
+            throw e;
+        }
+    }
+    
+    private static Note decodeNote(ByteBuffer payload, int version, Map<Long, Object> shared) {
+        long id = version >= 2 ? payload.getLong() : 0;
+        long createdAt = payload.getLong();
+        long lastModified = payload.getLong();
+        String title = getString(payload);
+        long hash = 0;
+        Object content;
+        int marker = payload.getInt(payload.position());
+        if (version >= 3 && (marker == SHARED || marker == SAME)) {
+            if (shared == null) {
+                throw new IllegalArgumentException("Shared content outside a snapshot");
+            }
+            payload.position(payload.position() + 4);
+            hash = payload.getLong();
+            content = shared.get(hash);
+            if (marker == SHARED) {
+                if (content == null) {
+                    content = getContent(payload);
+                    shared.put(hash, content);
+                } else {
+                    skipString(payload);
+                }
+            } else if (content == null) {
+                Note note = new Note(id, title, "", getString(payload), createdAt, lastModified);
+                throw new MissingContentException(note);
+            }
+        } else {
+            if (NotesChunkStore.isCandidate(marker)) {
+                // Hashed while the bytes are at hand, for NotesChunkStore
+                hash = NotesChunkStore.hash(payload, payload.position() + 4, Math.min(marker,
+                        payload.remaining() - 4));
+            }
+            content = getContent(payload);
+        }
+        String category = getString(payload);
+        Note note = content instanceof NotesContentCache.Body
+                ? new Note(id, title, (NotesContentCache.Body) content, category, createdAt, lastModified)
+                : new Note(id, title, (String) content, category, createdAt, lastModified);
+        note.setContentHash(hash);
+        return note;
+    }
+    
+    /**
+     * Decode a content string: a String, or a Body copied off the heap if
+     * it is large
+     */
+    static Object getContent(ByteBuffer payload) {
+        if (NotesContentCache.isLarge(payload.getInt(payload.position()))) {
+            return NotesContentCache.copyOf(payload);
+        }
+        return getString(payload);
+    }
+    
+    private static void skipString(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0 || length > payload.remaining()) {
+            throw new IllegalArgumentException("Invalid field length " + length);
+        }
+        payload.position(payload.position() + length);
+    }
+    
+    /**
+     * Where the content field starts in the payload of length bytes at
+     * start of buffer, relative to start; -1 if the title runs past it
+     */
+    static int contentOffset(ByteBuffer buffer, int start, int length, int version) {
+        int titleAt = (version >= 2 ? 8 : 0) + 16;
+        if (length < titleAt + 8) {
+            return -1;
+        }
+        int titleLength = buffer.getInt(start + titleAt);
+        if (titleLength < 0 || titleLength > length - titleAt - 8) {
+            return -1;
+        }
+        return titleAt + 4 + titleLength;
+    }
+    
+    public static String getString(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0 || length > payload.remaining()) {
+            throw new IllegalArgumentException("Invalid field length " + length);
+        }
+        String value;
+        if (payload.hasArray()) {
+            value = new String(payload.array(), payload.arrayOffset() + payload.position(),
+                    length, StandardCharsets.UTF_8);
+            payload.position(payload.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            payload.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+    
+    /**
+     * Reads length-prefixed records back, checking each one's CRC
+     */
+    public static class RecordReader {
+        private final DataInputStream in;
+        private final CRC32 crc = new CRC32();
+        private byte[] buffer = new byte[8192];
+        private long validBytes;
+        private int recordNumber;
+        
+        /**
+         * @param headerBytes bytes of header already consumed from in
+         */
+        public RecordReader(DataInputStream in, long headerBytes) {
+            this.in = in;
+            this.validBytes = headerBytes;
+        }
+        
+        /**
+         * Return the next record's payload, or null at the end of the file.
+         * A record whose CRC does not match throws IllegalStateException and
+         * is skipped; a record cut short by a crash ends the file.
+         */
+        public ByteBuffer next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            recordNumber++;
+            
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                throw new EOFException("Record " + recordNumber + " has invalid length " + length);
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            int storedCrc = in.readInt();
+            validBytes += length + 8;
+            
+            crc.reset();
+            crc.update(buffer, 0, length);
+            if ((int) crc.getValue() != storedCrc) {
+                NotesMetrics.CHECKSUM_ERRORS.increment();
+                throw new IllegalStateException("Checksum mismatch");
+            }
+            return ByteBuffer.wrap(buffer, 0, length);
+        }
+        
+        /**
+         * 1-based number of the record last returned or rejected by next()
+         */
+        public int getRecordNumber() {
+            return recordNumber;
+        }
+        
+        /**
+         * Bytes up to the end of the last complete record
+         */
+        public long getValidBytes() {
+            return validBytes;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package notes;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Note timestamps are kept as epoch milliseconds and shown as local
+ * date-times in the system time zone. This converts between the two
+ * straight from and to digits, without building LocalDateTime objects or
+ * running a DateTimeFormatter, for the forms notes are written in:
+ *
+ *   ISO        2024-01-31T09:30:05.25 (as DateTimeFormatter.ISO_LOCAL_DATE_TIME)
+ *   display    2024-01-31 09:30
+ *
+ * The zone's transitions from 1900 to 2100 are read into a table once;
+ * the offset at an instant is a binary search in it. Times outside it,
+ * local times within a day of a transition, and years outside 1-9999
+ * take the java.time path, so results always match it.
+ */
+public final class NoteTimestamps {
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static final ZoneRules RULES = ZONE.getRules();
+    private static final DateTimeFormatter ISO = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    private static final DateTimeFormatter DISPLAY = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    
+    private static final long DAY = 86_400_000L;
+    // Days from 0000-03-01 to 1970-01-01
+    private static final long EPOCH_SHIFT = 719_468;
+    // 0001-01-01 and 10000-01-01 in epoch millis (local)
+    private static final long MIN_LOCAL = -62_135_596_800_000L;
+    private static final long MAX_LOCAL = 253_402_300_800_000L;
+    
+    // Zone offset transitions: offsets[i] applies from starts[i] to
+    // starts[i + 1], the last one up to tableEnd
+    private static final long[] starts;
+    private static final long[] offsets;
+    private static final long tableEnd;
+    
+    static {
+        Instant from = Instant.parse("1900-01-01T00:00:00Z");
+        Instant to = Instant.parse("2100-01-01T00:00:00Z");
+        List<ZoneOffsetTransition> transitions = new ArrayList<>();
+        for (ZoneOffsetTransition next = RULES.nextTransition(from);
+                next != null && next.getInstant().isBefore(to);
+                next = RULES.nextTransition(next.getInstant())) {
+            transitions.add(next);
+        }
+        starts = new long[transitions.size() + 1];
+        offsets = new long[transitions.size() + 1];
+        // A zone with no transitions before or after the table has the
+        // same offset all the way
+        starts[0] = RULES.previousTransition(from) == null ? Long.MIN_VALUE : from.toEpochMilli();
+        offsets[0] = RULES.getOffset(from).getTotalSeconds() * 1000L;
+        for (int i = 0; i < transitions.size(); i++) {
+            Instant start = transitions.get(i).getInstant();
+            starts[i + 1] = start.toEpochMilli();
+            offsets[i + 1] = RULES.getOffset(start).getTotalSeconds() * 1000L;
+        }
+        Instant last = transitions.isEmpty() ? from : transitions.get(transitions.size() - 1).getInstant();
+        tableEnd = RULES.nextTransition(last) == null ? Long.MAX_VALUE : to.toEpochMilli();
+    }
+    
+    private NoteTimestamps() {
+    }
+    
+    public static long now() {
+        return System.currentTimeMillis();
+    }
+    
+    public static long toEpochMillis(LocalDateTime time) {
+        return time.atZone(ZONE).toInstant().toEpochMilli();
+    }
+    
+    public static LocalDateTime toLocalDateTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZONE);
+    }
+    
+    /**
+     * Append millis as an ISO local date-time, exactly as
+     * ISO_LOCAL_DATE_TIME formats it
+     */
+    public static StringBuilder appendIso(long millis, StringBuilder out) {
+        long local = millis + offset(millis);
+        if (local < MIN_LOCAL || local >= MAX_LOCAL) {
+            ISO.formatTo(toLocalDateTime(millis), out);
+            return out;
+        }
+        appendDate(local, out).append('T');
+        long ofDay = Math.floorMod(local, DAY);
+        appendTime(ofDay, out).append(':');
+        appendTwo((int) (ofDay / 1000 % 60), out);
+        int fraction = (int) (ofDay % 1000);
+        if (fraction != 0) {
+            // Trailing zeros are left off, as the formatter does
+            out.append('.').append((char) ('0' + fraction / 100));
+            if (fraction % 100 != 0) {
+                out.append((char) ('0' + fraction / 10 % 10));
+                if (fraction % 10 != 0) {
+                    out.append((char) ('0' + fraction % 10));
+                }
+            }
+        }
+        return out;
+    }
+    
+    public static String toIso(long millis) {
+        return appendIso(millis, new StringBuilder(23)).toString();
+    }
+    
+    /**
+     * Append millis in the "yyyy-MM-dd HH:mm" form shown on the console
+     */
+    public static StringBuilder appendDisplay(long millis, StringBuilder out) {
+        long local = millis + offset(millis);
+        if (local < MIN_LOCAL || local >= MAX_LOCAL) {
+            DISPLAY.formatTo(toLocalDateTime(millis), out);
+            return out;
+        }
+        appendDate(local, out).append(' ');
+        return appendTime(Math.floorMod(local, DAY), out);
+    }
+    
+    /**
+     * Parse an ISO local date-time as ISO_LOCAL_DATE_TIME does (seconds
+     * and fraction optional; digits past milliseconds are dropped), with
+     * the same exception for text it rejects
+     */
+    public static long parseIso(CharSequence text) {
+        long local = parseLocal(text);
+        if (local != Long.MIN_VALUE) {
+            // Offsets are under a day: a time a day or more from either end
+            // of its stretch maps to exactly one instant
+            int guess = find(local);
+            if (guess >= 0) {
+                long millis = local - offsets[guess];
+                int i = find(millis);
+                if (i >= 0 && offsets[i] == offsets[guess]
+                        && (i == 0 && starts[0] == Long.MIN_VALUE || millis - starts[i] >= DAY)
+                        && end(i) - millis > DAY) {
+                    return millis;
+                }
+            }
+        }
+        return toEpochMillis(LocalDateTime.parse(text, ISO));
+    }
+    
+    /**
+     * Epoch millis of a local date-time in the common forms, read as if it
+     * were UTC; Long.MIN_VALUE for anything else, which the caller hands
+     * to the formatter to parse or reject
+     */
+    private static long parseLocal(CharSequence text) {
+        int length = text.length();
+        if (length < 16 || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T'
+                || text.charAt(13) != ':') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = 0;
+        int millis = 0;
+        if (length > 16) {
+            if (length < 19 || text.charAt(16) != ':') {
+                return Long.MIN_VALUE;
+            }
+            second = digits(text, 17, 2);
+            if (length > 19) {
+                if (length == 20 || length > 29 || text.charAt(19) != '.') {
+                    return Long.MIN_VALUE;
+                }
+                for (int i = 20; i < 23; i++) {
+                    millis = millis * 10 + (i < length ? digit(text.charAt(i)) : 0);
+                }
+                for (int i = 23; i < length; i++) {
+                    if (digit(text.charAt(i)) < 0) {
+                        return Long.MIN_VALUE;
+                    }
+                }
+            }
+        }
+        if ((year | month | day | hour | minute | second | millis) < 0
+                || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+                || hour > 23 || minute > 59 || second > 59 || millis > 999) {
+            return Long.MIN_VALUE;
+        }
+        return daysFromCivil(year, month, day) * DAY
+                + ((hour * 60L + minute) * 60 + second) * 1000 + millis;
+    }
+    
+    // Value of count digits at start, or negative if any is not a digit
+    private static int digits(CharSequence text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = digit(text.charAt(i));
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+    
+    private static int digit(char c) {
+        return c >= '0' && c <= '9' ? c - '0' : -1_000_000;
+    }
+    
+    private static int lengthOfMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+    
+    // Civil calendar from a day count and back, proleptic Gregorian as in
+    // java.time, counting years from March so February comes last
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153L * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097 + dayOfEra - EPOCH_SHIFT;
+    }
+    
+    private static StringBuilder appendDate(long local, StringBuilder out) {
+        long days = Math.floorDiv(local, DAY) + EPOCH_SHIFT;
+        long era = Math.floorDiv(days, 146_097);
+        long dayOfEra = days - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        
+        appendTwo(year / 100, out);
+        appendTwo(year % 100, out).append('-');
+        appendTwo(month, out).append('-');
+        return appendTwo(day, out);
+    }
+    
+    // HH:mm of a time of day in millis
+    private static StringBuilder appendTime(long ofDay, StringBuilder out) {
+        appendTwo((int) (ofDay / 3_600_000), out).append(':');
+        return appendTwo((int) (ofDay / 60_000 % 60), out);
+    }
+    
+    private static StringBuilder appendTwo(int value, StringBuilder out) {
+        return out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+    
+    /**
+     * Offset of the zone at an instant, in millis
+     */
+    private static long offset(long millis) {
+        int i = find(millis);
+        return i >= 0 ? offsets[i] : RULES.getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds() * 1000L;
+    }
+    
+    // Index of the table entry an instant falls in, or -1 outside the table
+    private static int find(long millis) {
+        if (millis < starts[0] || millis >= tableEnd) {
+            return -1;
+        }
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= millis) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+    
+    private static long end(int i) {
+        return i + 1 < starts.length ? starts[i + 1] : tableEnd;
+    }
+}
@@ -1,3 +1,6 @@
+package notes;
+
+import java.io.IOException;
 import java.util.Scanner;
 
 /**
@@ -26,6 +29,7 @@ public class NotesApp {
             handleUserChoice();
         }
         
+        notesManager.close();
         showGoodbyeMessage();
         scanner.close();
     }
@@ -61,9 +65,13 @@ public class NotesApp {
         System.out.println("8.  📊 Show statistics");
         System.out.println("9.  💾 Backup operations");
         System.out.println("10. ❓ Help");
+        System.out.println("11. 🕒 View notes by date");
+        System.out.println("12. 📈 Metrics");
+        System.out.println("13. 👯 Find duplicate notes");
+        System.out.println("14. 🕘 Note history");
         System.out.println("0.  🚪 Exit");
         System.out.println("=".repeat(40));
-        System.out.print("Choose an option (0-10): ");
+        System.out.print("Choose an option (0-14): ");
     }
     
     /**
@@ -114,16 +122,32 @@ public class NotesApp {
                     showHelp();
                     break;
                     
+                case 11:
+                    notesManager.displayNotesByDate();
+                    break;
+                    
+                case 12:
+                    notesManager.showMetrics();
+                    break;
+                    
+                case 13:
+                    notesManager.displayDuplicates();
+                    break;
+                    
+                case 14:
+                    notesManager.showHistory();
+                    break;
+                    
                 case 0:
                     confirmExit();
                     break;
                     
                 default:
-                    System.out.println("✗ Invalid option! Please choose 0-10.");
+                    System.out.println("✗ Invalid option! Please choose 0-14.");
             }
             
         } catch (NumberFormatException e) {
-            System.out.println("✗ Invalid input! Please enter a number between 0-10.");
+            System.out.println("✗ Invalid input! Please enter a number between 0-14.");
         }
         
         if (running) {
@@ -146,18 +170,44 @@ public class NotesApp {
         System.out.println("   • Content: Type your note content, end with 'END' on new line");
         System.out.println();
         System.out.println("🔹 SEARCH: Find notes by searching in title, content, or category");
+        System.out.println("   • Words are matched whole: 'java streams' needs both words");
+        System.out.println("   • Use OR for either word, and a trailing * for prefixes (stre*)");
+        System.out.println("   • Quote phrases (\"java streams\"), limit a word to a field (category:work)");
+        System.out.println("   • Best matches come first; small typos are forgiven (strems)");
+        System.out.println();
+        System.out.println("🔹 VIEW: Notes are shown a page at a time");
+        System.out.println("   • Enter for the next page, p for the previous one, #ID to jump to a note");
         System.out.println();
         System.out.println("🔹 CATEGORIES: View notes organized by their categories");
         System.out.println();
+        System.out.println("🔹 BY DATE: Notes created or modified in a range of dates, newest first");
+        System.out.println("   • Dates are yyyy-MM-dd, or yyyy-MM-ddTHH:mm for a time of day");
+        System.out.println();
         System.out.println("🔹 EDIT: Modify existing notes (title, content, or category)");
+        System.out.println("   • Notes are picked by the #ID shown in every listing");
+        System.out.println();
+        System.out.println("🔹 HISTORY: Every edit is kept as a revision of the note");
+        System.out.println("   • Compare two revisions line by line, or restore an old one");
         System.out.println();
         System.out.println("🔹 EXPORT: Save notes to a readable text file");
+        System.out.println("   • Or as pipe-delimited text, CSV or JSON Lines, which Backup operations can import");
         System.out.println();
         System.out.println("🔹 BACKUP: Create/restore backups of your notes");
+        System.out.println("   • Each backup is a new generation; restore can pick any of them");
+        System.out.println("   • Import takes a folder of .txt/.md files, CSV, JSON Lines or pipe-delimited text");
+        System.out.println("   • An interrupted import resumes where it stopped; bad records go to notes_import_rejected.jsonl");
+        System.out.println();
+        System.out.println("🔹 DUPLICATES: Notes with the same content as other notes, grouped");
+        System.out.println("   • Notes with the same content share one copy of it, in memory and on disk");
+        System.out.println();
+        System.out.println("🔹 METRICS: How long loads, saves, searches and parsing take, and bytes read and written");
+        System.out.println("   • Can be written to a file in the Prometheus text format");
         System.out.println();
         System.out.println("📁 FILE STORAGE:");
-        System.out.println("   • notes.txt: Main notes storage file");
-        System.out.println("   • notes_backup.txt: Backup file");
+        System.out.println("   • notes.dat: Main notes storage file (binary)");
+        System.out.println("   • shards/: Notes split across several files, if set up under Backup operations");
+        System.out.println("   • notes_backups/: Backup generations");
+        System.out.println("   • notes.history: Earlier versions of edited notes");
         System.out.println("   • All changes are automatically saved!");
         System.out.println();
         System.out.println("💡 TIPS:");
@@ -194,10 +244,47 @@ public class NotesApp {
     }
     
     /**
-     * Main method - entry point of the application
+     * Run headless, serving the notes over HTTP until the JVM is stopped.
+     * The notes are saved on the way out as they are when leaving the menu.
+     */
+    private static void serve(int port) throws IOException {
+        NotesStore store = new NotesStore();
+        NotesServer server = new NotesServer(store, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            store.close();
+        }, "notes-http-stop"));
+        server.start();
+    }
+    
+    /**
+     * Import a directory or file without the menu, resuming an interrupted
+     * import of the same source, and exit with status 1 if it fails
+     */
+    private static void importFrom(String source) {
+        NotesManager manager = new NotesManager();
+        boolean imported = manager.importFrom(source, true);
+        manager.close();
+        if (!imported) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Main method - entry point of the application.
+     * With --serve [port], runs the HTTP server instead of the menu;
+     * with --import <directory or file>, imports it and exits.
      */
     public static void main(String[] args) {
         try {
+            if (args.length > 0 && args[0].equals("--serve")) {
+                serve(args.length > 1 ? Integer.parseInt(args[1]) : NotesServer.DEFAULT_PORT);
+                return;
+            }
+            if (args.length > 1 && args[0].equals("--import")) {
+                importFrom(args[1]);
+                return;
+            }
             NotesApp app = new NotesApp();
             app.start();
         } catch (Exception e) {
@@ -0,0 +1,528 @@
+package notes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * A directory of backup generations of the notes files. Each file is cut
+ * into segments at content-defined boundaries (a rolling hash over the
+ * bytes), so an edit only changes the segments around it even when it
+ * shifts everything after. Segments are stored once under their SHA-256
+ * hash and shared by every generation that contains them; a generation
+ * itself is just a small manifest listing the files and their segments.
+ * A generation holds notes.dat, or every file of a sharded layout; the
+ * files are cut on the fork/join pool in parallel.
+ *
+ * Layout:
+ *   gen-000001.nbk          manifest: header, then per file its name and
+ *                           (length, hash) per segment
+ *   segments/ab/abcdef...   segment contents, named by hash
+ */
+public class NotesBackupSet {
+    private static final int MAGIC = 0x4E42414B; // "NBAK"
+    private static final int VERSION = 2;
+    // Version 1 manifests hold a single file with no name stored
+    private static final String VERSION_1_FILE = "notes.dat";
+    private static final String SEGMENT_DIR = "segments";
+    private static final String MANIFEST_PREFIX = "gen-";
+    private static final String MANIFEST_SUFFIX = ".nbk";
+    
+    // Segments are cut where the low bits of the rolling hash are all zero,
+    // about every MASK + 1 bytes, but never outside these bounds
+    private static final int MIN_SEGMENT = 256 * 1024;
+    private static final int MAX_SEGMENT = 4 * 1024 * 1024;
+    private static final long MASK = (1L << 20) - 1;
+    // The rolling hash only depends on the last 64 bytes
+    private static final int WINDOW = 64;
+    private static final long[] GEAR = new long[256];
+    
+    static {
+        Random random = new Random(0x4E4F544553L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+    
+    /**
+     * One backup generation as described by its manifest
+     */
+    public static class Generation {
+        public final int number;
+        public final long createdAt;
+        public final long length;
+        // Segments this generation added to the set, and their size
+        public final int newSegments;
+        public final long newBytes;
+        final List<BackedUpFile> files;
+        
+        Generation(int number, long createdAt, int newSegments, long newBytes, List<BackedUpFile> files) {
+            this.number = number;
+            this.createdAt = createdAt;
+            this.newSegments = newSegments;
+            this.newBytes = newBytes;
+            this.files = files;
+            long length = 0;
+            for (BackedUpFile file : files) {
+                length += totalLength(file.segments);
+            }
+            this.length = length;
+        }
+        
+        public int getSegmentCount() {
+            int count = 0;
+            for (BackedUpFile file : files) {
+                count += file.segments.size();
+            }
+            return count;
+        }
+        
+        /**
+         * Names of the files in this generation, in the order they were given
+         */
+        public List<String> getFileNames() {
+            List<String> names = new ArrayList<>(files.size());
+            for (BackedUpFile file : files) {
+                names.add(file.name);
+            }
+            return names;
+        }
+    }
+    
+    static class BackedUpFile {
+        final String name;
+        final List<Segment> segments;
+        // Segments of this file that were new to the set, and their size
+        int newSegments;
+        long newBytes;
+        // Where those new segments were stored, not kept in the manifest
+        final List<Path> stored = new ArrayList<>();
+        
+        BackedUpFile(String name, List<Segment> segments) {
+            this.name = name;
+            this.segments = segments;
+        }
+    }
+    
+    static class Segment {
+        final long length;
+        final byte[] hash;
+        
+        Segment(long length, byte[] hash) {
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+    
+    private final Path directory;
+    
+    public NotesBackupSet(Path directory) {
+        this.directory = directory;
+    }
+    
+    /**
+     * All generations, oldest first
+     */
+    public List<Generation> list() throws IOException {
+        List<Generation> generations = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return generations;
+        }
+        try (DirectoryStream<Path> manifests = Files.newDirectoryStream(directory,
+                MANIFEST_PREFIX + "*" + MANIFEST_SUFFIX)) {
+            for (Path manifest : manifests) {
+                generations.add(readManifest(manifest));
+            }
+        }
+        generations.sort(Comparator.comparingInt(g -> g.number));
+        return generations;
+    }
+    
+    /**
+     * Add a generation holding the current contents of source
+     */
+    public Generation create(Path source) throws IOException {
+        return create(Collections.singletonList(source));
+    }
+    
+    /**
+     * Add a generation holding the current contents of every source, each
+     * stored under its file name. Only segments not already in the set are
+     * copied, with transferTo.
+     */
+    public Generation create(List<Path> sources) throws IOException {
+        Files.createDirectories(directory.resolve(SEGMENT_DIR));
+        List<Generation> existing = list();
+        int number = existing.isEmpty() ? 1 : existing.get(existing.size() - 1).number + 1;
+        
+        List<ForkJoinTask<BackedUpFile>> tasks = new ArrayList<>(sources.size());
+        for (Path source : sources) {
+            tasks.add(ForkJoinPool.commonPool().submit(() -> backUp(source)));
+        }
+        List<BackedUpFile> files = new ArrayList<>(sources.size());
+        int newSegments = 0;
+        long newBytes = 0;
+        for (ForkJoinTask<BackedUpFile> task : tasks) {
+            BackedUpFile file = await(task);
+            files.add(file);
+            newSegments += file.newSegments;
+            newBytes += file.newBytes;
+        }
+        
+        syncSegmentDirectories(files);
+        Generation generation = new Generation(number, System.currentTimeMillis(), newSegments, newBytes, files);
+        writeManifest(generation);
+        return generation;
+    }
+    
+    /**
+     * Force the renames of new segments to disk before a manifest refers to
+     * them, and segments/ too, which may have gained a directory
+     */
+    private static void syncSegmentDirectories(List<BackedUpFile> files) throws IOException {
+        Set<Path> synced = new HashSet<>();
+        for (BackedUpFile file : files) {
+            for (Path path : file.stored) {
+                if (synced.add(path.getParent())) {
+                    NotesFileManager.syncDirectory(path);
+                }
+            }
+        }
+        if (!synced.isEmpty()) {
+            NotesFileManager.syncDirectory(synced.iterator().next());
+        }
+    }
+    
+    private static <T> T await(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        } catch (ExecutionException e) {
+            // The pool wraps the task's exception, and may wrap it again for this thread
+            Throwable cause = e.getCause();
+            while (!(cause instanceof IOException) && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        }
+    }
+    
+    /**
+     * Cut one file into segments and store the new ones
+     */
+    private BackedUpFile backUp(Path source) throws IOException {
+        BackedUpFile file = new BackedUpFile(source.getFileName().toString(), new ArrayList<>());
+        List<Segment> segments = file.segments;
+        
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = in.size();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(8 << 20);
+            MessageDigest digest = sha256();
+            long segmentStart = 0;
+            long position = 0;
+            long hash = 0;
+            
+            while (position < size) {
+                buffer.clear();
+                int read = in.read(buffer, position);
+                if (read <= 0) {
+                    throw new IOException(source.getFileName() + " changed while it was being backed up");
+                }
+                int sliceStart = 0;
+                for (int i = 0; i < read; i++) {
+                    long length = position + i + 1 - segmentStart;
+                    if (length <= MIN_SEGMENT - WINDOW) {
+                        continue;
+                    }
+                    hash = (hash << 1) + GEAR[buffer.get(i) & 0xFF];
+                    if ((length >= MIN_SEGMENT && (hash & MASK) == 0) || length >= MAX_SEGMENT) {
+                        buffer.limit(i + 1).position(sliceStart);
+                        digest.update(buffer);
+                        buffer.limit(read);
+                        
+                        Segment segment = new Segment(length, digest.digest());
+                        if (store(in, segmentStart, segment)) {
+                            file.newSegments++;
+                            file.newBytes += length;
+                            file.stored.add(segmentPath(segment.hash));
+                        }
+                        segments.add(segment);
+                        segmentStart = position + i + 1;
+                        sliceStart = i + 1;
+                        hash = 0;
+                    }
+                }
+                buffer.limit(read).position(sliceStart);
+                digest.update(buffer);
+                position += read;
+            }
+            
+            if (segmentStart < position) {
+                Segment segment = new Segment(position - segmentStart, digest.digest());
+                if (store(in, segmentStart, segment)) {
+                    file.newSegments++;
+                    file.newBytes += segment.length;
+                    file.stored.add(segmentPath(segment.hash));
+                }
+                segments.add(segment);
+            }
+        }
+        return file;
+    }
+    
+    /**
+     * Copy a segment of source into the set unless it is already there.
+     * Returns true if it was new.
+     */
+    private boolean store(FileChannel source, long offset, Segment segment) throws IOException {
+        Path path = segmentPath(segment.hash);
+        if (Files.exists(path) && Files.size(path) == segment.length) {
+            return false;
+        }
+        Files.createDirectories(path.getParent());
+        // Files are backed up in parallel and may share a segment
+        Path temp = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long copied = 0;
+            while (copied < segment.length) {
+                long n = source.transferTo(offset + copied, segment.length - copied, out);
+                if (n <= 0) {
+                    throw new EOFException("Backup source ended early");
+                }
+                copied += n;
+            }
+            out.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+    
+    /**
+     * Write the only file of a generation to target
+     */
+    public void restore(Generation generation, Path target) throws IOException {
+        if (generation.files.size() != 1) {
+            throw new IOException("Backup generation " + generation.number + " holds "
+                    + generation.files.size() + " files");
+        }
+        restore(generation, generation.files.get(0), target);
+    }
+    
+    /**
+     * Write every file of a generation into directory under its own name,
+     * in parallel
+     */
+    public void restoreAll(Generation generation, Path directory) throws IOException {
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>(generation.files.size());
+        for (BackedUpFile file : generation.files) {
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                restore(generation, file, directory.resolve(file.name));
+                return null;
+            }));
+        }
+        for (ForkJoinTask<Void> task : tasks) {
+            await(task);
+        }
+    }
+    
+    /**
+     * Write one file of a generation to target, checking every segment
+     * against its hash as it is copied, so each byte is read only once.
+     * Throws if a segment is missing or damaged; a damaged segment is
+     * deleted so the next backup stores a good copy instead of reusing it.
+     */
+    private void restore(Generation generation, BackedUpFile file, Path target) throws IOException {
+        MessageDigest digest = sha256();
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Segment segment : file.segments) {
+                Path path = segmentPath(segment.hash);
+                if (!Files.exists(path)) {
+                    throw new IOException("Backup generation " + generation.number
+                            + " is missing segment " + hex(segment.hash));
+                }
+                boolean intact;
+                try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                    intact = in.size() == segment.length;
+                    if (intact) {
+                        MappedByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, segment.length);
+                        digest.update(data.duplicate());
+                        intact = Arrays.equals(digest.digest(), segment.hash);
+                        while (intact && data.hasRemaining()) {
+                            out.write(data);
+                        }
+                    }
+                }
+                if (!intact) {
+                    Files.deleteIfExists(path);
+                    throw new IOException("Backup segment " + hex(segment.hash) + " is damaged");
+                }
+            }
+            out.force(true);
+        }
+    }
+    
+    /**
+     * Delete all but the newest keep generations, then any segment no
+     * remaining generation uses. Returns the number of generations deleted.
+     */
+    public int prune(int keep) throws IOException {
+        List<Generation> generations = list();
+        int deleted = 0;
+        for (int i = 0; i < generations.size() - keep; i++) {
+            Files.deleteIfExists(manifestPath(generations.get(i).number));
+            deleted++;
+        }
+        if (deleted == 0) {
+            return 0;
+        }
+        
+        Set<String> referenced = new HashSet<>();
+        for (Generation generation : generations.subList(deleted, generations.size())) {
+            for (BackedUpFile file : generation.files) {
+                for (Segment segment : file.segments) {
+                    referenced.add(hex(segment.hash));
+                }
+            }
+        }
+        try (Stream<Path> files = Files.walk(directory.resolve(SEGMENT_DIR))) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file) && !referenced.contains(file.getFileName().toString())) {
+                    Files.delete(file);
+                }
+            }
+        }
+        return deleted;
+    }
+    
+    /**
+     * Bytes taken by all stored segments
+     */
+    public long storedBytes() throws IOException {
+        Path segments = directory.resolve(SEGMENT_DIR);
+        if (!Files.isDirectory(segments)) {
+            return 0;
+        }
+        long total = 0;
+        try (Stream<Path> files = Files.walk(segments)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file)) {
+                    total += Files.size(file);
+                }
+            }
+        }
+        return total;
+    }
+    
+    private void writeManifest(Generation generation) throws IOException {
+        Path path = manifestPath(generation.number);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(generation.number);
+            out.writeLong(generation.createdAt);
+            out.writeInt(generation.newSegments);
+            out.writeLong(generation.newBytes);
+            out.writeInt(generation.files.size());
+            for (BackedUpFile backedUp : generation.files) {
+                out.writeUTF(backedUp.name);
+                out.writeInt(backedUp.segments.size());
+                for (Segment segment : backedUp.segments) {
+                    out.writeLong(segment.length);
+                    out.write(segment.hash);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        NotesFileManager.syncDirectory(path);
+    }
+    
+    private Generation readManifest(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path.getFileName() + " is not a backup manifest");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException(path.getFileName() + " has unsupported version " + version);
+            }
+            int number = in.readInt();
+            long createdAt = in.readLong();
+            int newSegments = in.readInt();
+            long newBytes = in.readLong();
+            List<BackedUpFile> files = new ArrayList<>();
+            if (version == 1) {
+                files.add(new BackedUpFile(VERSION_1_FILE, readSegments(in)));
+            } else {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    files.add(new BackedUpFile(name, readSegments(in)));
+                }
+            }
+            return new Generation(number, createdAt, newSegments, newBytes, files);
+        }
+    }
+    
+    private static List<Segment> readSegments(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Segment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long length = in.readLong();
+            byte[] hash = new byte[32];
+            in.readFully(hash);
+            segments.add(new Segment(length, hash));
+        }
+        return segments;
+    }
+    
+    private Path manifestPath(int number) {
+        return directory.resolve(String.format("%s%06d%s", MANIFEST_PREFIX, number, MANIFEST_SUFFIX));
+    }
+    
+    private Path segmentPath(byte[] hash) {
+        String name = hex(hash);
+        return directory.resolve(SEGMENT_DIR).resolve(name.substring(0, 2)).resolve(name);
+    }
+    
+    private static long totalLength(List<Segment> segments) {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.length;
+        }
+        return total;
+    }
+    
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package notes;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index from category to the ids of the notes in it. It is kept
+ * up to date on add, edit and delete, so listing a category or counting
+ * notes per category never has to look at the other notes.
+ *
+ * Any number of threads may read the index while it changes, without
+ * locking; changes must come from one thread at a time.
+ *
+ * Category names also go through a shared dictionary, so every note in
+ * "General" points at the same String.
+ */
+public class NotesCategoryIndex {
+    // Canonical instance of every category name seen; notes are decoded on
+    // several threads while loading, hence the concurrent map
+    private static final Map<String, String> NAMES = new ConcurrentHashMap<>();
+    
+    private final ConcurrentSkipListMap<String, Category> categories = new ConcurrentSkipListMap<>();
+    
+    /**
+     * Ids in one category; the size of a concurrent set takes a full walk,
+     * so the count is kept alongside
+     */
+    private static class Category {
+        final NavigableSet<Long> ids = new ConcurrentSkipListSet<>();
+        volatile int count;
+        
+        void add(long id) {
+            if (ids.add(id)) {
+                count++;
+            }
+        }
+    }
+    
+    /**
+     * The shared instance of a category name
+     */
+    public static String canonical(String category) {
+        if (category == null) {
+            return null;
+        }
+        String existing = NAMES.putIfAbsent(category, category);
+        return existing != null ? existing : category;
+    }
+    
+    /**
+     * Build an index over the given notes
+     */
+    public static NotesCategoryIndex build(Collection<Note> notes) {
+        NotesCategoryIndex index = new NotesCategoryIndex();
+        for (Note note : notes) {
+            index.add(note);
+        }
+        return index;
+    }
+    
+    public void add(Note note) {
+        categories.computeIfAbsent(note.getCategory(), c -> new Category()).add(note.getId());
+    }
+    
+    public void remove(Note note) {
+        remove(note.getId(), note.getCategory());
+    }
+    
+    /**
+     * Move a note to another category after setCategory
+     */
+    public void move(long id, String from, String to) {
+        if (!from.equals(to)) {
+            remove(id, from);
+            categories.computeIfAbsent(to, c -> new Category()).add(id);
+        }
+    }
+    
+    private void remove(long id, String category) {
+        Category entry = categories.get(category);
+        if (entry != null && entry.ids.remove(id) && --entry.count == 0) {
+            categories.remove(category);
+        }
+    }
+    
+    /**
+     * Categories that currently have notes, in alphabetical order
+     */
+    public Set<String> categories() {
+        return Collections.unmodifiableSet(categories.keySet());
+    }
+    
+    /**
+     * Ids of the notes in a category, in the order they were added (ids
+     * only ever grow, so this is id order)
+     */
+    public NavigableSet<Long> idsIn(String category) {
+        Category entry = categories.get(category);
+        return entry == null ? Collections.emptyNavigableSet() : Collections.unmodifiableNavigableSet(entry.ids);
+    }
+    
+    public int count(String category) {
+        Category entry = categories.get(category);
+        return entry == null ? 0 : entry.count;
+    }
+    
+    /**
+     * Number of categories that currently have notes
+     */
+    public int size() {
+        return categories.size();
+    }
+}
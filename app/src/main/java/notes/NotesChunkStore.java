@@ -0,0 +1,422 @@
+package notes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Content-addressed store of note bodies, so notes with the same content
+ * (pasted templates, log snippets) share one copy of it. A content is
+ * found by a 64-bit hash of its UTF-8 bytes, checked against the stored
+ * one before it is shared, and kept with a count of the notes using it:
+ * NotesStore acquires a note's content when it publishes the note and
+ * releases it when the note is edited or deleted. An acquired note holds
+ * the shared String or NotesContentCache.Body, not its own copy.
+ *
+ * A content nothing refers to any more stays until the next snapshot is
+ * written, when sweep() drops it (or until its stripe grows); until then
+ * a note given the same content again picks it back up. Removing entries only in a sweep keeps
+ * the table a plain open-addressing one: each of its stripes is a few
+ * arrays probed linearly, with no tombstones, rebuilt by the sweep.
+ *
+ * Snapshots share contents as well, storing each one twice per file; see
+ * NoteCodec. Notes still in a memory-mapped snapshot are left out: the file
+ * already holds their shared contents.
+ */
+public class NotesChunkStore {
+    // Contents shorter than this are not worth a table entry (-1 = share none)
+    private static final int MIN_BYTES = Integer.getInteger("notes.dedup.minBytes", 64);
+    private static final int STRIPES = 64;
+    
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+    
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+    
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+    
+    /**
+     * Part of the table, picked by the top bits of a hash and locked on
+     * its own. Slots are picked by the low bits and probed linearly; two
+     * contents with the same hash just take two slots.
+     */
+    private static final class Stripe {
+        // 0 = empty slot; no content hashes to 0
+        long[] hashes = new long[16];
+        // A String or a NotesContentCache.Body
+        Object[] contents = new Object[16];
+        int[] refs = new int[16];
+        int size;
+        
+        Object acquire(long hash, Object content) {
+            int mask = hashes.length - 1;
+            int slot = (int) hash & mask;
+            while (hashes[slot] != 0) {
+                if (hashes[slot] == hash && sameContent(contents[slot], content)) {
+                    refs[slot]++;
+                    return contents[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            contents[slot] = content;
+            refs[slot] = 1;
+            if (++size * 3 > hashes.length * 2) {
+                rebuild(hashes.length * 2);
+            }
+            return content;
+        }
+        
+        void release(long hash, Object content) {
+            int mask = hashes.length - 1;
+            for (int slot = (int) hash & mask; hashes[slot] != 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && contents[slot] == content) {
+                    refs[slot]--;
+                    return;
+                }
+            }
+        }
+        
+        int refs(long hash, Object content) {
+            int mask = hashes.length - 1;
+            for (int slot = (int) hash & mask; hashes[slot] != 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && contents[slot] == content) {
+                    return refs[slot];
+                }
+            }
+            return 0;
+        }
+        
+        /**
+         * Rehash into capacity slots, leaving out contents no note uses
+         */
+        void rebuild(int capacity) {
+            long[] oldHashes = hashes;
+            Object[] oldContents = contents;
+            int[] oldRefs = refs;
+            hashes = new long[capacity];
+            contents = new Object[capacity];
+            refs = new int[capacity];
+            size = 0;
+            int mask = capacity - 1;
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldHashes[i] == 0 || oldRefs[i] == 0) {
+                    continue;
+                }
+                int slot = (int) oldHashes[i] & mask;
+                while (hashes[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                contents[slot] = oldContents[i];
+                refs[slot] = oldRefs[i];
+                size++;
+            }
+        }
+    }
+    
+    /**
+     * Share the note's content with other notes that have the same one, and
+     * count the note as using it. Only for notes no other thread can see yet.
+     */
+    static void acquire(Note note) {
+        if (note.isMapped()) {
+            return;
+        }
+        Object content = note.contentRef();
+        if (!isCandidate(size(content))) {
+            return;
+        }
+        long hash = note.getContentHash();
+        Stripe stripe = stripe(hash);
+        Object shared;
+        synchronized (stripe) {
+            shared = stripe.acquire(hash, content);
+        }
+        note.shareContent(shared);
+        note.setCounted(true);
+    }
+    
+    /**
+     * Stop counting a note that was removed or replaced as using its content
+     */
+    static void release(Note note) {
+        if (!note.isCounted()) {
+            return;
+        }
+        note.setCounted(false);
+        long hash = note.getContentHash();
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            stripe.release(hash, note.contentRef());
+        }
+    }
+    
+    /**
+     * Whether other notes are known to have the same content as note: it
+     * shares a content in this store, or a shared one in its mapped file
+     */
+    static boolean isShared(Note note) {
+        if (note.isMapped()) {
+            return note.isStoredShared();
+        }
+        if (!note.isCounted()) {
+            return false;
+        }
+        long hash = note.getContentHash();
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            return stripe.refs(hash, note.contentRef()) > 1;
+        }
+    }
+    
+    /**
+     * Drop the contents no note uses any more, returning how many went.
+     * Called whenever a snapshot is written.
+     */
+    static int sweep() {
+        int dropped = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                int before = stripe.size;
+                int capacity = stripe.hashes.length;
+                // Shrink a stripe left mostly empty
+                while (capacity > 16 && stripe.size * 6 < capacity) {
+                    capacity /= 2;
+                }
+                stripe.rebuild(capacity);
+                dropped += before - stripe.size;
+            }
+        }
+        return dropped;
+    }
+    
+    /**
+     * Whether a content of this many UTF-8 bytes is worth sharing
+     */
+    static boolean isCandidate(int bytes) {
+        return MIN_BYTES >= 0 && bytes >= MIN_BYTES;
+    }
+    
+    private static Stripe stripe(long hash) {
+        return stripes[(int) (hash >>> 58)];
+    }
+    
+    /**
+     * Hash of a content as stored in snapshots, so it can be looked up by
+     * either form
+     */
+    static long hash(Object content) {
+        if (content instanceof NotesContentCache.Body) {
+            ByteBuffer stored = ((NotesContentCache.Body) content).stored();
+            return hash(stored, stored.position() + 4, stored.getInt(stored.position()));
+        }
+        byte[] utf8 = ((String) content).getBytes(StandardCharsets.UTF_8);
+        return hash(ByteBuffer.wrap(utf8), 0, utf8.length);
+    }
+    
+    /**
+     * 64-bit multiply-rotate hash of length bytes at from, 8 at a time.
+     * Part of the snapshot format; never 0.
+     */
+    static long hash(ByteBuffer bytes, int from, int length) {
+        long h = P5 + length;
+        int end = from + length;
+        int i = from;
+        for (; i + 8 <= end; i += 8) {
+            long k = Long.rotateLeft(bytes.getLong(i) * P2, 31) * P1;
+            h = Long.rotateLeft(h ^ k, 27) * P1 + P4;
+        }
+        for (; i < end; i++) {
+            h = Long.rotateLeft(h ^ (bytes.get(i) & 0xFF) * P5, 11) * P1;
+        }
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h != 0 ? h : 1;
+    }
+    
+    /**
+     * Whether two contents, each a String or a Body, are the same text
+     */
+    static boolean sameContent(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        boolean aBody = a instanceof NotesContentCache.Body;
+        boolean bBody = b instanceof NotesContentCache.Body;
+        if (aBody && bBody) {
+            return ((NotesContentCache.Body) a).stored().equals(((NotesContentCache.Body) b).stored());
+        }
+        String aText = aBody ? ((NotesContentCache.Body) a).get() : (String) a;
+        String bText = bBody ? ((NotesContentCache.Body) b).get() : (String) b;
+        return aText.equals(bText);
+    }
+    
+    // UTF-8 bytes of a content, whether it is a Body or a String, so a
+    // note is shared or not the same way after an edit as after a load
+    private static int size(Object content) {
+        if (content == null) {
+            return 0;
+        }
+        if (content instanceof NotesContentCache.Body) {
+            ByteBuffer stored = ((NotesContentCache.Body) content).stored();
+            return stored.getInt(stored.position());
+        }
+        return NotesDiff.utf8Length((String) content);
+    }
+    
+    /**
+     * Notes with the same content as at least one other, grouped, with
+     * the groups that waste the most space first. Every content is hashed
+     * (each note keeps its hash) and only notes whose hashes collide are
+     * compared, so this is one pass over the notes and a sort of their
+     * hashes rather than a comparison of every pair.
+     */
+    public static List<Duplicates> findDuplicates(Collection<Note> notes) {
+        List<Note> candidates = new ArrayList<>();
+        long[] hashes = new long[16];
+        for (Note note : notes) {
+            // A live view may grow while it is read
+            if (candidates.size() == hashes.length) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            if (size(note.contentRef()) > 0) {
+                hashes[candidates.size()] = note.getContentHash();
+                candidates.add(note);
+            }
+        }
+        
+        long[] sorted = Arrays.copyOf(hashes, candidates.size());
+        Arrays.sort(sorted);
+        Set<Long> repeated = new HashSet<>();
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] == sorted[i - 1]) {
+                repeated.add(sorted[i]);
+            }
+        }
+        
+        Map<Long, List<Note>> byHash = new HashMap<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            if (repeated.contains(hashes[i])) {
+                byHash.computeIfAbsent(hashes[i], hash -> new ArrayList<>()).add(candidates.get(i));
+            }
+        }
+        
+        List<Duplicates> groups = new ArrayList<>();
+        for (List<Note> sameHash : byHash.values()) {
+            // Different contents with the same hash are told apart here
+            while (!sameHash.isEmpty()) {
+                Object content = sameHash.get(0).contentRef();
+                List<Note> same = new ArrayList<>();
+                List<Note> rest = new ArrayList<>();
+                for (Note note : sameHash) {
+                    (sameContent(content, note.contentRef()) ? same : rest).add(note);
+                }
+                if (same.size() > 1) {
+                    groups.add(new Duplicates(same, size(content)));
+                }
+                sameHash = rest;
+            }
+        }
+        groups.sort(Comparator.comparingLong(Duplicates::getWastedBytes).reversed()
+                .thenComparingLong(group -> group.notes.get(0).getId()));
+        return groups;
+    }
+    
+    /**
+     * Notes that all have one content, in id order
+     */
+    public static class Duplicates {
+        public final List<Note> notes;
+        // UTF-8 bytes of the content
+        public final int bytes;
+        
+        Duplicates(List<Note> notes, int bytes) {
+            notes.sort(Comparator.comparingLong(Note::getId));
+            this.notes = notes;
+            this.bytes = bytes;
+        }
+        
+        /**
+         * Space the copies beyond the first would take if stored apart
+         */
+        public long getWastedBytes() {
+            return (long) bytes * (notes.size() - 1);
+        }
+    }
+    
+    /**
+     * Totals over the table: [contents, references, unused contents,
+     * bytes not stored twice thanks to sharing]
+     */
+    private static long[] totals() {
+        long[] totals = new long[4];
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.hashes.length; i++) {
+                    if (stripe.hashes[i] == 0) {
+                        continue;
+                    }
+                    int refs = stripe.refs[i];
+                    totals[0]++;
+                    totals[1] += refs;
+                    if (refs == 0) {
+                        totals[2]++;
+                    } else {
+                        totals[3] += (long) (refs - 1) * size(stripe.contents[i]);
+                    }
+                }
+            }
+        }
+        return totals;
+    }
+    
+    /**
+     * Contents in the table, including unused ones not yet swept
+     */
+    public static long getContents() {
+        return totals()[0];
+    }
+    
+    /**
+     * Notes counted as using a content in the table
+     */
+    public static long getReferences() {
+        return totals()[1];
+    }
+    
+    /**
+     * Contents no note uses any more, dropped by the next sweep
+     */
+    public static long getUnused() {
+        return totals()[2];
+    }
+    
+    /**
+     * Bytes the notes sharing contents would take again if each had a copy
+     */
+    public static long getSavedBytes() {
+        return totals()[3];
+    }
+    
+    /**
+     * Print how many contents are shared and what that saves
+     */
+    public static void showStats() {
+        long[] totals = totals();
+        System.out.println("\n=== SHARED CONTENTS ===");
+        System.out.println("Contents: " + totals[0] + " used by " + totals[1] + " notes"
+                + (totals[2] > 0 ? " (" + totals[2] + " unused until the next save)" : ""));
+        System.out.println("Saved by sharing: " + totals[3] + " bytes");
+    }
+}
@@ -0,0 +1,282 @@
+package notes;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps large note contents off the Java heap. A Note with a large content
+ * holds a Body instead of a String: the content as a length-prefixed UTF-8
+ * string, in a direct buffer or in the mapping of a snapshot file. Reading
+ * it decodes the String and keeps it in a cache bounded by
+ * -Dnotes.content.cacheBytes, so notes being read stay on the heap and
+ * the rest only cost their id, title and category there.
+ *
+ * Eviction is CLOCK (second chance), an approximation of LRU where a hit
+ * only sets a flag: reads take no lock. Cached bodies wait in a FIFO
+ * queue; the evictor takes the oldest, and a body read since it last got
+ * to the front goes to the back instead of being dropped. A scan through
+ * every note therefore pushes out notes read once before notes read again.
+ */
+public class NotesContentCache {
+    // Decoded contents kept on the heap, in estimated bytes
+    private static final long MAX_BYTES = Long.getLong("notes.content.cacheBytes", 64L << 20);
+    // Contents of at least this many bytes go off the heap (-1 = none do)
+    private static final int OFF_HEAP_BYTES = Integer.getInteger("notes.content.offHeapBytes", 4096);
+    // A content heavier than this would push out much of the cache on its
+    // own; it is decoded on every read instead
+    private static final long MAX_ENTRY_BYTES = MAX_BYTES / 4;
+    
+    private static final ConcurrentLinkedQueue<Body> resident = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger residentCount = new AtomicInteger();
+    private static final AtomicLong residentBytes = new AtomicLong();
+    private static final ReentrantLock evicting = new ReentrantLock();
+    
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    // Bytes in direct buffers of bodies not yet garbage collected
+    private static final AtomicLong offHeapBytes = new AtomicLong();
+    private static final Cleaner cleaner = Cleaner.create();
+    
+    private static final AtomicReferenceFieldUpdater<Body, String> DECODED =
+            AtomicReferenceFieldUpdater.newUpdater(Body.class, String.class, "decoded");
+    
+    /**
+     * A note's content stored outside the heap. Never changes; an edited
+     * note gets a new one, so bodies can be shared by copies of a note.
+     */
+    static final class Body {
+        // Length-prefixed UTF-8, as a string is stored in a record
+        private final ByteBuffer stored;
+        // Non-null while cached
+        private volatile String decoded;
+        // Read since the evictor last passed it
+        private volatile boolean referenced;
+        
+        private Body(ByteBuffer stored) {
+            this.stored = stored;
+        }
+        
+        String get() {
+            String content = decoded;
+            if (content != null) {
+                hits.increment();
+                if (!referenced) {
+                    referenced = true;
+                }
+                return content;
+            }
+            misses.increment();
+            content = NoteCodec.getString(stored.duplicate());
+            admit(this, content);
+            return content;
+        }
+        
+        /**
+         * First characters of the content, decoded without the rest: at most
+         * maxLength + 1 of them, so the caller can tell it was cut
+         */
+        String start(int maxLength) {
+            String content = decoded;
+            if (content != null) {
+                return content.length() > maxLength ? content.substring(0, maxLength + 1) : content;
+            }
+            ByteBuffer bytes = stored.duplicate();
+            int length = bytes.getInt();
+            // A char takes at most 3 bytes, a pair of them 4; a sequence cut
+            // at the end decodes past maxLength + 1
+            int prefix = (int) Math.min(length, 3L * maxLength + 6);
+            byte[] utf8 = new byte[prefix];
+            bytes.get(utf8);
+            String start = new String(utf8, StandardCharsets.UTF_8);
+            return start.length() > maxLength ? start.substring(0, maxLength + 1) : start;
+        }
+        
+        /**
+         * The content as length-prefixed UTF-8, positioned at its start
+         */
+        ByteBuffer stored() {
+            return stored.duplicate();
+        }
+    }
+    
+    /**
+     * Whether a content of this many UTF-8 bytes belongs off the heap
+     */
+    static boolean isLarge(int bytes) {
+        return OFF_HEAP_BYTES >= 0 && bytes >= OFF_HEAP_BYTES;
+    }
+    
+    /**
+     * Whether content belongs off the heap, judged by its UTF-8 length like
+     * a decoded content, so a note lands on the same side whether it was
+     * just edited or just loaded. The length is only counted when the char
+     * count (1 to 3 bytes each) leaves it open.
+     */
+    static boolean isLarge(String content) {
+        if (OFF_HEAP_BYTES < 0 || content.length() >= OFF_HEAP_BYTES) {
+            return isLarge(content.length());
+        }
+        return (long) content.length() * 3 >= OFF_HEAP_BYTES && isLarge(NotesDiff.utf8Length(content));
+    }
+    
+    /**
+     * Copy a length-prefixed UTF-8 string, e.g. from a record being decoded,
+     * into a direct buffer; advances stored past it
+     */
+    static Body copyOf(ByteBuffer stored) {
+        int length = stored.getInt(stored.position());
+        if (length < 0 || length > stored.remaining() - 4) {
+            throw new IllegalArgumentException("Invalid field length " + length);
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(4 + length);
+        ByteBuffer source = stored.duplicate();
+        source.limit(source.position() + 4 + length);
+        copy.put(source).flip();
+        stored.position(stored.position() + 4 + length);
+        return offHeap(copy);
+    }
+    
+    /**
+     * Encode content into a direct buffer
+     */
+    static Body copyOf(String content) {
+        byte[] utf8 = content.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer copy = ByteBuffer.allocateDirect(4 + utf8.length);
+        copy.putInt(utf8.length).put(utf8).flip();
+        return offHeap(copy);
+    }
+    
+    private static Body offHeap(ByteBuffer copy) {
+        int capacity = copy.capacity();
+        Body body = new Body(copy.asReadOnlyBuffer());
+        offHeapBytes.addAndGet(capacity);
+        cleaner.register(body, () -> offHeapBytes.addAndGet(-capacity));
+        return body;
+    }
+    
+    /**
+     * Use a length-prefixed UTF-8 string in a mapped file where it is; the
+     * file's pages are its off-heap copy
+     */
+    static Body mapped(ByteBuffer stored) {
+        return new Body(stored.slice());
+    }
+    
+    private static void admit(Body body, String content) {
+        long weight = weight(body, content);
+        // Only the reader that cached it queues it, so it is queued once
+        if (weight > MAX_ENTRY_BYTES || !DECODED.compareAndSet(body, null, content)) {
+            return;
+        }
+        residentCount.incrementAndGet();
+        resident.offer(body);
+        if (residentBytes.addAndGet(weight) > MAX_BYTES && evicting.tryLock()) {
+            // One evictor at a time; readers that find it busy go on
+            try {
+                evict();
+            } finally {
+                evicting.unlock();
+            }
+        }
+    }
+    
+    private static void evict() {
+        // Each body gets at most one second chance per call
+        int limit = 2 * residentCount.get() + 1;
+        while (residentBytes.get() > MAX_BYTES && limit-- > 0) {
+            Body body = resident.poll();
+            if (body == null) {
+                return;
+            }
+            if (body.referenced) {
+                body.referenced = false;
+                resident.offer(body);
+                continue;
+            }
+            String content = body.decoded;
+            body.decoded = null;
+            residentCount.decrementAndGet();
+            residentBytes.addAndGet(-weight(body, content));
+            evictions.increment();
+        }
+    }
+    
+    // Heap taken by the decoded String: one byte per char if it is all
+    // ASCII (its UTF-8 is as long as it is), two otherwise
+    private static long weight(Body body, String content) {
+        int utf8Length = body.stored.getInt(0);
+        return 40 + (utf8Length == content.length() ? content.length() : 2L * content.length());
+    }
+    
+    public static long getHits() {
+        return hits.sum();
+    }
+    
+    public static long getMisses() {
+        return misses.sum();
+    }
+    
+    /**
+     * Fraction of reads of off-heap contents served from the cache
+     */
+    public static double getHitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+    
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+    
+    /**
+     * Estimated heap bytes of the contents in the cache
+     */
+    public static long getResidentBytes() {
+        return residentBytes.get();
+    }
+    
+    public static int getResidentCount() {
+        return residentCount.get();
+    }
+    
+    public static long getMaxBytes() {
+        return MAX_BYTES;
+    }
+    
+    /**
+     * Bytes of contents in direct buffers, including those of changed or
+     * deleted notes that the garbage collector has yet to free
+     */
+    public static long getOffHeapBytes() {
+        return offHeapBytes.get();
+    }
+    
+    /**
+     * Print the cache statistics and the JVM's direct and mapped memory
+     */
+    public static void showStats() {
+        System.out.println("\n=== CONTENT CACHE ===");
+        System.out.printf("Cached: %d contents, %d of %d bytes%n",
+                getResidentCount(), getResidentBytes(), getMaxBytes());
+        System.out.printf("Hit rate: %.1f%% (%d hits, %d misses), %d evictions%n",
+                100 * getHitRate(), getHits(), getMisses(), getEvictions());
+        System.out.println("Contents in direct buffers: " + getOffHeapBytes() + " bytes");
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct") || pool.getName().equals("mapped")) {
+                System.out.println("Off-heap " + pool.getName() + ": " + pool.getMemoryUsed()
+                        + " bytes in " + pool.getCount() + " buffers");
+            }
+        }
+    }
+}
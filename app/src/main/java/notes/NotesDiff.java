@@ -0,0 +1,365 @@
+package notes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Differences between two versions of a note's content: line diffs to
+ * show, and the deltas NotesHistory stores revisions as.
+ *
+ * The start and end the two versions have in common are cut off first,
+ * character by character. What is left is compared line by line with
+ * Myers' O(ND) algorithm, D being the number of lines that differ, so a
+ * small edit to a large note costs time and space in proportion to the
+ * edit. Past MAX_EDITS differing lines the rest counts as replaced.
+ */
+public class NotesDiff {
+    private static final int MAX_EDITS = Integer.getInteger("notes.diff.maxEdits", 1000);
+    
+    /**
+     * One step of a delta: copy length chars of the previous version from
+     * start, or insert text
+     */
+    static final class Op {
+        final int start;
+        final int length;
+        // Non-null for an insert
+        final String text;
+        
+        private Op(int start, int length, String text) {
+            this.start = start;
+            this.length = length;
+            this.text = text;
+        }
+        
+        static Op copy(int start, int length) {
+            return new Op(start, length, null);
+        }
+        
+        static Op insert(String text) {
+            return new Op(0, text.length(), text);
+        }
+        
+        boolean isCopy() {
+            return text == null;
+        }
+    }
+    
+    /**
+     * Steps that turn from into to, copying from it all but what changed
+     */
+    static List<Op> delta(String from, String to) {
+        int prefix = commonPrefix(from, to);
+        int suffix = commonSuffix(from, to, prefix);
+        int fromEnd = from.length() - suffix;
+        int toEnd = to.length() - suffix;
+        
+        List<Op> ops = new ArrayList<>();
+        copy(ops, 0, prefix);
+        if (prefix < fromEnd && prefix < toEnd) {
+            Lines a = new Lines(from, prefix, fromEnd);
+            Lines b = new Lines(to, prefix, toEnd);
+            int[][] ids = lineIds(a, b);
+            List<int[]> runs = commonRuns(ids[0], ids[1]);
+            if (runs == null) {
+                insert(ops, to.substring(prefix, toEnd));
+            } else {
+                int next = 0;
+                for (int[] run : runs) {
+                    insert(ops, b.text(next, run[1]));
+                    copy(ops, a.start(run[0]), a.start(run[0] + run[2]) - a.start(run[0]));
+                    next = run[1] + run[2];
+                }
+                insert(ops, b.text(next, b.count()));
+            }
+        } else {
+            insert(ops, to.substring(prefix, toEnd));
+        }
+        copy(ops, fromEnd, suffix);
+        return ops;
+    }
+    
+    /**
+     * The version a delta from from describes
+     * @throws IllegalArgumentException if a copy reaches past the end of from
+     */
+    static String apply(String from, List<Op> ops) {
+        StringBuilder out = new StringBuilder(from.length() + 64);
+        for (Op op : ops) {
+            if (op.isCopy()) {
+                if (op.start < 0 || op.length < 0 || op.start > from.length() - op.length) {
+                    throw new IllegalArgumentException("Delta does not fit the revision before it");
+                }
+                out.append(from, op.start, op.start + op.length);
+            } else {
+                out.append(op.text);
+            }
+        }
+        return out.toString();
+    }
+    
+    /**
+     * Line diff of two contents in the unified format: hunks headed by
+     * "@@ -line,count +line,count @@", with lines from only from marked
+     * "-", lines from only to marked "+", and up to context unchanged lines
+     * around them marked " ". Empty if the contents are the same.
+     */
+    public static List<String> unified(String from, String to, int context) {
+        List<String> out = new ArrayList<>();
+        if (from.equals(to)) {
+            return out;
+        }
+        Lines a = new Lines(from, 0, from.length());
+        Lines b = new Lines(to, 0, to.length());
+        int[][] ids = lineIds(a, b);
+        List<int[]> runs = commonRuns(ids[0], ids[1]);
+        if (runs == null) {
+            runs = new ArrayList<>();
+        }
+        // A run that ends both, so the last change is followed like the others
+        runs.add(new int[] {a.count(), b.count(), 0});
+        
+        int aNext = 0;
+        int bNext = 0;
+        boolean open = false;
+        List<String> hunk = new ArrayList<>();
+        int aHunk = 0;
+        int bHunk = 0;
+        int aCount = 0;
+        int bCount = 0;
+        for (int[] run : runs) {
+            if (run[0] > aNext || run[1] > bNext) {
+                if (!open) {
+                    // Start a hunk with the unchanged lines before the change
+                    int lead = Math.min(context, aNext);
+                    open = true;
+                    aHunk = aNext - lead;
+                    bHunk = bNext - lead;
+                    aCount = lead;
+                    bCount = lead;
+                    for (int i = aNext - lead; i < aNext; i++) {
+                        hunk.add(" " + a.line(i));
+                    }
+                }
+                for (int i = aNext; i < run[0]; i++) {
+                    hunk.add("-" + a.line(i));
+                }
+                for (int i = bNext; i < run[1]; i++) {
+                    hunk.add("+" + b.line(i));
+                }
+                aCount += run[0] - aNext;
+                bCount += run[1] - bNext;
+            }
+            if (open) {
+                // Keep the run in the hunk if the next change is close enough
+                boolean last = run[2] == 0 || run[0] + run[2] == a.count() && run[1] + run[2] == b.count();
+                int keep = !last && run[2] <= 2 * context ? run[2] : Math.min(context, run[2]);
+                for (int i = 0; i < keep; i++) {
+                    hunk.add(" " + a.line(run[0] + i));
+                }
+                aCount += keep;
+                bCount += keep;
+                if (keep < run[2] || last) {
+                    out.add("@@ -" + (aHunk + 1) + "," + aCount + " +" + (bHunk + 1) + "," + bCount + " @@");
+                    out.addAll(hunk);
+                    hunk.clear();
+                    open = false;
+                }
+            }
+            aNext = run[0] + run[2];
+            bNext = run[1] + run[2];
+        }
+        return out;
+    }
+    
+    /**
+     * Bytes the UTF-8 encoding of text takes
+     */
+    static int utf8Length(String text) {
+        int bytes = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                // A surrogate pair takes 4 bytes for its two chars
+                bytes += Character.isHighSurrogate(c) ? 2 : Character.isLowSurrogate(c) ? 0 : 2;
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+    
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        // Never end between the two chars of a surrogate pair
+        return i > 0 && Character.isHighSurrogate(a.charAt(i - 1)) ? i - 1 : i;
+    }
+    
+    private static int commonSuffix(String a, String b, int prefix) {
+        int max = Math.min(a.length(), b.length()) - prefix;
+        int i = 0;
+        while (i < max && a.charAt(a.length() - 1 - i) == b.charAt(b.length() - 1 - i)) {
+            i++;
+        }
+        return i > 0 && Character.isLowSurrogate(a.charAt(a.length() - i)) ? i - 1 : i;
+    }
+    
+    private static void copy(List<Op> ops, int start, int length) {
+        if (length == 0) {
+            return;
+        }
+        Op last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+        if (last != null && last.isCopy() && last.start + last.length == start) {
+            ops.set(ops.size() - 1, Op.copy(last.start, last.length + length));
+        } else {
+            ops.add(Op.copy(start, length));
+        }
+    }
+    
+    private static void insert(List<Op> ops, String text) {
+        if (!text.isEmpty()) {
+            ops.add(Op.insert(text));
+        }
+    }
+    
+    /**
+     * Lines of part of a string, each with the '\n' that ends it
+     */
+    private static final class Lines {
+        private final String text;
+        // Where each line starts, then where the last one ends
+        private final int[] starts;
+        private final int count;
+        
+        Lines(String text, int from, int to) {
+            this.text = text;
+            int[] starts = new int[16];
+            int count = 0;
+            int start = from;
+            while (start < to) {
+                if (count + 1 >= starts.length) {
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                }
+                starts[count++] = start;
+                int newline = text.indexOf('\n', start);
+                start = newline < 0 || newline >= to ? to : newline + 1;
+            }
+            starts[count] = to;
+            this.starts = starts;
+            this.count = count;
+        }
+        
+        int count() {
+            return count;
+        }
+        
+        int start(int line) {
+            return starts[line];
+        }
+        
+        // Lines from up to to, with their line breaks
+        String text(int from, int to) {
+            return text.substring(starts[from], starts[to]);
+        }
+        
+        // One line without its line break
+        String line(int line) {
+            int end = starts[line + 1];
+            if (end > starts[line] && text.charAt(end - 1) == '\n') {
+                end--;
+            }
+            return text.substring(starts[line], end);
+        }
+    }
+    
+    /**
+     * The lines of a and b as numbers, equal for equal lines, so the diff
+     * compares ints
+     */
+    private static int[][] lineIds(Lines a, Lines b) {
+        Map<String, Integer> ids = new HashMap<>();
+        int[][] result = {new int[a.count()], new int[b.count()]};
+        Lines[] both = {a, b};
+        for (int side = 0; side < 2; side++) {
+            for (int i = 0; i < both[side].count(); i++) {
+                Integer next = ids.size();
+                Integer id = ids.putIfAbsent(both[side].text(i, i + 1), next);
+                result[side][i] = id != null ? id : next;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Runs of equal lines in a longest common subsequence of a and b, in
+     * order, as {index in a, index in b, length}; null if more than
+     * MAX_EDITS lines differ
+     */
+    private static List<int[]> commonRuns(int[] a, int[] b) {
+        int n = a.length;
+        int m = b.length;
+        int limit = Math.min(n + m, MAX_EDITS);
+        // Furthest x reached on each diagonal k = x - y, at offset + k
+        int offset = limit + 1;
+        int[] v = new int[2 * limit + 3];
+        // v as it was before each step d, for k in -(d - 1)..d - 1
+        List<int[]> trace = new ArrayList<>();
+        
+        for (int d = 0; d <= limit; d++) {
+            trace.add(d == 0 ? new int[0] : Arrays.copyOfRange(v, offset - d + 1, offset + d));
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (d == 0) {
+                    x = 0;
+                } else if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[x] == b[y]) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    return backtrack(trace, n, m, d);
+                }
+            }
+        }
+        return null;
+    }
+    
+    private static List<int[]> backtrack(List<int[]> trace, int n, int m, int edits) {
+        List<int[]> runs = new ArrayList<>();
+        int x = n;
+        int y = m;
+        for (int d = edits; d > 0; d--) {
+            int[] v = trace.get(d);
+            int k = x - y;
+            boolean down = k == -d || (k != d && v[k - 1 + d - 1] < v[k + 1 + d - 1]);
+            int previousK = down ? k + 1 : k - 1;
+            int previousX = v[previousK + d - 1];
+            // Where the edit of step d left off and its run of equal lines began
+            int startX = down ? previousX : previousX + 1;
+            if (x > startX) {
+                runs.add(new int[] {startX, startX - k, x - startX});
+            }
+            x = previousX;
+            y = previousX - previousK;
+        }
+        if (x > 0) {
+            runs.add(new int[] {0, 0, x});
+        }
+        Collections.reverse(runs);
+        return runs;
+    }
+}
@@ -0,0 +1,376 @@
+package notes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Streams notes to an export file. Notes are taken from an iterator in
+ * batches; each batch is rendered and encoded to UTF-8 on the fork/join
+ * pool, into a chunk whose buffers are reused for later batches, and the
+ * chunks are written to one file channel in the order the notes came in.
+ * At most a few batches are in flight, so memory use does not grow with
+ * the number of notes.
+ */
+public class NotesExporter {
+    private static final int NOTES_PER_BATCH = 256;
+    // Batches rendered ahead of the one being written
+    private static final int IN_FLIGHT = ForkJoinPool.getCommonPoolParallelism() * 2 + 1;
+    
+    private static final String SEPARATOR = "=".repeat(51);
+    
+    /**
+     * How notes are laid out in an export file. Implementations must be
+     * safe to call from several threads at once.
+     */
+    public interface Format {
+        String getName();
+        
+        /**
+         * Append whatever comes before the first note
+         */
+        default void header(StringBuilder out, int count) {
+        }
+        
+        /**
+         * Append one note
+         */
+        void note(StringBuilder out, Note note);
+    }
+    
+    /**
+     * The readable report the export menu has always produced
+     */
+    public static final Format TEXT = new Format() {
+        public String getName() {
+            return "Readable report";
+        }
+        
+        public void header(StringBuilder out, int count) {
+            out.append("=== NOTES EXPORT ===\n");
+            out.append("Export Date: ").append(new Date()).append('\n');
+            out.append("Total Notes: ").append(count).append('\n');
+            out.append(SEPARATOR).append("\n\n");
+        }
+        
+        public void note(StringBuilder out, Note note) {
+            out.append("Note #").append(note.getId()).append('\n');
+            out.append("--------------------\n");
+            out.append("Title: ").append(note.getTitle()).append('\n');
+            out.append("Category: ").append(note.getCategory()).append('\n');
+            out.append("Created: ").append(note.getCreatedAt()).append('\n');
+            out.append("Modified: ").append(note.getLastModified()).append("\n\n");
+            out.append("Content:\n");
+            out.append(note.getContent()).append("\n\n");
+            out.append(SEPARATOR).append("\n\n");
+        }
+    };
+    
+    /**
+     * One note per line in the import format
+     */
+    public static final Format PIPE = new Format() {
+        public String getName() {
+            return "Pipe-delimited text (can be imported again)";
+        }
+        
+        public void note(StringBuilder out, Note note) {
+            note.appendFileString(out).append('\n');
+        }
+    };
+    
+    /**
+     * One JSON object per line
+     */
+    public static final Format JSON_LINES = new Format() {
+        public String getName() {
+            return "JSON Lines";
+        }
+        
+        public void note(StringBuilder out, Note note) {
+            out.append("{\"id\":").append(note.getId());
+            json(out.append(",\"title\":"), note.getTitle());
+            json(out.append(",\"category\":"), note.getCategory());
+            out.append(",\"created\":\"");
+            NoteTimestamps.appendIso(note.getCreatedMillis(), out);
+            out.append("\",\"modified\":\"");
+            NoteTimestamps.appendIso(note.getModifiedMillis(), out);
+            out.append('"');
+            json(out.append(",\"content\":"), note.getContent());
+            out.append("}\n");
+        }
+    };
+    
+    /**
+     * RFC 4180 CSV with a header row
+     */
+    public static final Format CSV = new Format() {
+        public String getName() {
+            return "CSV";
+        }
+        
+        public void header(StringBuilder out, int count) {
+            out.append("id,title,category,created,modified,content\r\n");
+        }
+        
+        public void note(StringBuilder out, Note note) {
+            out.append(note.getId()).append(',');
+            csv(out, note.getTitle()).append(',');
+            csv(out, note.getCategory()).append(',');
+            NoteTimestamps.appendIso(note.getCreatedMillis(), out);
+            out.append(',');
+            NoteTimestamps.appendIso(note.getModifiedMillis(), out);
+            out.append(',');
+            csv(out, note.getContent()).append("\r\n");
+        }
+    };
+    
+    /**
+     * A Markdown document with a section per note
+     */
+    public static final Format MARKDOWN = new Format() {
+        public String getName() {
+            return "Markdown";
+        }
+        
+        public void header(StringBuilder out, int count) {
+            out.append("# Notes export\n\n");
+            out.append(count).append(" notes, exported ");
+            NoteTimestamps.appendIso(NoteTimestamps.now() / 1000 * 1000, out);
+            out.append("\n\n");
+        }
+        
+        public void note(StringBuilder out, Note note) {
+            out.append("## ");
+            markdown(out, note.getTitle()).append("\n\n");
+            out.append("- ID: ").append(note.getId()).append('\n');
+            markdown(out.append("- Category: "), note.getCategory()).append('\n');
+            out.append("- Created: ");
+            NoteTimestamps.appendIso(note.getCreatedMillis(), out);
+            out.append("\n- Modified: ");
+            NoteTimestamps.appendIso(note.getModifiedMillis(), out);
+            out.append("\n\n");
+            out.append(note.getContent()).append("\n\n---\n\n");
+        }
+    };
+    
+    private static final List<Format> FORMATS = List.of(TEXT, PIPE, JSON_LINES, CSV, MARKDOWN);
+    
+    /**
+     * The built-in formats, in menu order
+     */
+    public static List<Format> formats() {
+        return FORMATS;
+    }
+    
+    /**
+     * Outcome of an export
+     */
+    public static class Result {
+        public final long notes;
+        public final long bytes;
+        public final long nanos;
+        
+        Result(long notes, long bytes, long nanos) {
+            this.notes = notes;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+        
+        public double getMegabytesPerSecond() {
+            return nanos == 0 ? 0 : bytes / 1e6 / (nanos / 1e9);
+        }
+    }
+    
+    /**
+     * A batch of notes and the buffers it is rendered into; chunks go back
+     * to the pool once written, so their buffers are reused
+     */
+    private static class Chunk {
+        final Note[] notes = new Note[NOTES_PER_BATCH];
+        int size;
+        final StringBuilder text = new StringBuilder(64 * 1024);
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
+        
+        Chunk render(Format format) {
+            text.setLength(0);
+            for (int i = 0; i < size; i++) {
+                format.note(text, notes[i]);
+                notes[i] = null;
+            }
+            encode();
+            return this;
+        }
+        
+        void encode() {
+            CharBuffer chars = CharBuffer.wrap(text);
+            encoder.reset();
+            bytes.clear();
+            while (true) {
+                CoderResult result = encoder.encode(chars, bytes, true);
+                if (result.isUnderflow()) {
+                    result = encoder.flush(bytes);
+                }
+                if (result.isUnderflow()) {
+                    break;
+                }
+                if (result.isOverflow()) {
+                    ByteBuffer larger = ByteBuffer.allocate(bytes.capacity() * 2);
+                    bytes.flip();
+                    bytes = larger.put(bytes);
+                } else {
+                    // Unpaired surrogate: same replacement String.getBytes would use
+                    chars.position(chars.position() + result.length());
+                    bytes = ensure(bytes, 1).put((byte) '?');
+                }
+            }
+            bytes.flip();
+        }
+    }
+    
+    private static ByteBuffer ensure(ByteBuffer buffer, int extra) {
+        if (buffer.remaining() >= extra) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+        buffer.flip();
+        return larger.put(buffer);
+    }
+    
+    /**
+     * Write count notes from the iterator to file in the given format. The
+     * iterator is only used on the calling thread, and the notes must not
+     * change until this returns.
+     */
+    public static Result export(Iterator<Note> notes, int count, Format format, Path file) throws IOException {
+        long start = System.nanoTime();
+        long exported = 0;
+        long written = 0;
+        
+        ArrayDeque<Chunk> free = new ArrayDeque<>();
+        ArrayDeque<Future<Chunk>> rendering = new ArrayDeque<>();
+        
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Chunk first = new Chunk();
+            format.header(first.text, count);
+            first.encode();
+            written += write(out, first);
+            free.add(first);
+            
+            while (notes.hasNext() || !rendering.isEmpty()) {
+                // Keep the pool busy while the oldest batch is written
+                while (notes.hasNext() && rendering.size() < IN_FLIGHT) {
+                    Chunk chunk = free.isEmpty() ? new Chunk() : free.poll();
+                    chunk.size = 0;
+                    while (chunk.size < NOTES_PER_BATCH && notes.hasNext()) {
+                        chunk.notes[chunk.size++] = notes.next();
+                    }
+                    exported += chunk.size;
+                    rendering.add(ForkJoinPool.commonPool().submit(() -> chunk.render(format)));
+                }
+                
+                Chunk done = await(rendering.poll());
+                written += write(out, done);
+                free.add(done);
+            }
+        } finally {
+            // Don't return while a failed export still has workers reading notes
+            for (Future<Chunk> pending : rendering) {
+                try {
+                    pending.get();
+                } catch (InterruptedException | ExecutionException ignored) {
+                }
+            }
+        }
+        return new Result(exported, written, System.nanoTime() - start);
+    }
+    
+    private static Chunk await(Future<Chunk> rendering) throws IOException {
+        try {
+            return rendering.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new IOException("could not render note: " + cause.getMessage(), cause);
+        }
+    }
+    
+    private static int write(FileChannel out, Chunk chunk) throws IOException {
+        int length = chunk.bytes.remaining();
+        while (chunk.bytes.hasRemaining()) {
+            out.write(chunk.bytes);
+        }
+        return length;
+    }
+    
+    /**
+     * Append text as a quoted JSON string
+     */
+    static void json(StringBuilder out, String text) {
+        out.append('"');
+        // Copy runs that need no escaping in one go
+        int run = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            out.append(text, run, i);
+            run = i + 1;
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default: out.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        out.append(text, run, text.length()).append('"');
+    }
+    
+    private static StringBuilder csv(StringBuilder out, String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            return out.append(value);
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        return out.append('"');
+    }
+    
+    /**
+     * Escape characters Markdown would treat as formatting in a one-line field
+     */
+    private static StringBuilder markdown(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ("\\`*_[]#<>|".indexOf(c) >= 0) {
+                out.append('\\');
+            }
+            out.append(c == '\n' || c == '\r' ? ' ' : c);
+        }
+        return out;
+    }
+}
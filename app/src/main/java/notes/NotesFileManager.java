@@ -0,0 +1,1273 @@
+package notes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handles file I/O operations for notes
+ */
+public class NotesFileManager {
+    // Directory holding the notes files (default: the working directory)
+    private static final String DATA_DIR = System.getProperty("notes.dir", "");
+    
+    private static final String NOTES_FILE = dataFile("notes.dat");
+    private static final String BACKUP_DIR = dataFile("notes_backups");
+    // Text backup written by the version that kept notes in notes.txt;
+    // still restorable, converted like notes.txt is
+    private static final String LEGACY_BACKUP_FILE = dataFile("notes_backup.txt");
+    private static final int BACKUP_GENERATIONS = Integer.getInteger("notes.backup.keep", 10);
+    private static final String JOURNAL_FILE = dataFile("notes.journal");
+    private static final String INDEX_FILE = dataFile("notes.idx");
+    private static final String STATS_FILE = dataFile("notes.stats");
+    private static final String HISTORY_FILE = dataFile("notes.history");
+    
+    // Pipe-delimited file used before the binary format; migrated on first load
+    private static final String LEGACY_NOTES_FILE = dataFile("notes.txt");
+    private static final String LEGACY_SEQ_HEADER = "@seq ";
+    
+    // Snapshot header magic; the header also records the last journal
+    // sequence number folded into the snapshot and the next note id
+    private static final int SNAPSHOT_MAGIC = 0x4E4F5445; // "NOTE"
+    
+    // Journal settings, overridable with -Dnotes.journal=false etc.
+    private static final boolean JOURNAL_MODE =
+            !"false".equalsIgnoreCase(System.getProperty("notes.journal"));
+    private static final int JOURNAL_SYNC_EVERY = Integer.getInteger("notes.journal.syncEvery", 0);
+    private static final int COMPACT_THRESHOLD = Integer.getInteger("notes.journal.compactEvery", 1000);
+    // Journal records are written by a background thread at most this long
+    // after the change (0 = write on the calling thread)
+    private static final long WRITE_BEHIND_MILLIS = Long.getLong("notes.journal.writeBehindMillis", 100);
+    
+    // Open notes.dat as a memory-mapped store and decode notes lazily
+    private static final boolean MMAP_MODE = Boolean.getBoolean("notes.mmap");
+    private static final boolean MMAP_VERIFY =
+            !"false".equalsIgnoreCase(System.getProperty("notes.mmap.verify"));
+    
+    // Write notes.dat as deflated blocks; either kind of file is read back
+    private static final boolean COMPRESS_MODE = Boolean.getBoolean("notes.compress");
+    private static final int COMPRESS_LEVEL = Integer.getInteger("notes.compress.level", 1);
+    
+    // Files at least this large are decoded on the fork/join pool (-1 = never)
+    private static final long PARALLEL_LOAD_BYTES = Long.getLong("notes.parallelLoadBytes", 8L << 20);
+    
+    // Split notes by id across this many files in SHARD_DIR; 1 keeps them
+    // all in NOTES_FILE, 0 (the default) keeps whatever layout is on disk
+    private static final int SHARD_COUNT = Integer.getInteger("notes.shards", 0);
+    private static final String SHARD_DIR = dataFile("shards");
+    
+    // Next note id to hand out; ids are never reused
+    private static long nextId = 1;
+    
+    // Reused by every snapshot write; those all hold the class lock
+    private static final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1 << 20);
+    // Shards are written on the fork/join pool, each thread with its own buffer
+    private static final ThreadLocal<ByteBuffer> shardBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1 << 20));
+    
+    // Sharded layout in use, or null when every note is in NOTES_FILE
+    private static ShardedNotesStore shards;
+    // Journal sequence number of the newest snapshot written, so a
+    // compaction that was queued before it cannot overwrite it
+    private static long savedSeq;
+    // Ids of notes changed since they were last written to a snapshot, or
+    // every note if allChanged. Ids rather than shard numbers, so a change
+    // made while the layout is being replaced still finds its shard.
+    private static final Set<Long> changedIds = ConcurrentHashMap.newKeySet();
+    private static volatile boolean allChanged;
+    
+    // Changes are recorded by many threads at once without the class lock
+    private static volatile NotesJournal journal;
+    private static volatile NotesWriteBehind writeBehind;
+    private static final AtomicBoolean compacting = new AtomicBoolean();
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "notes-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    static {
+        // Write out queued journal records even if the JVM is stopped without close()
+        Runtime.getRuntime().addShutdownHook(new Thread(NotesFileManager::closeJournal, "notes-flush-on-exit"));
+    }
+    
+    static String dataFile(String name) {
+        return DATA_DIR.isEmpty() ? name : new File(DATA_DIR, name).getPath();
+    }
+    
+    /**
+     * Revision history of the notes, read when it is first used
+     */
+    static NotesHistory openHistory() {
+        return new NotesHistory(new File(HISTORY_FILE));
+    }
+    
+    /**
+     * Save all notes to file as a full snapshot and fold the journal into it
+     */
+    public static boolean saveNotes(Collection<Note> notes) {
+        return saveNotes(notes, false);
+    }
+    
+    /**
+     * Like saveNotes, but a sharded layout only rewrites the shards that
+     * changed since they were last written
+     */
+    public static boolean saveChanges(Collection<Note> notes) {
+        return saveNotes(notes, true);
+    }
+    
+    /**
+     * Save notes as a snapshot and fold the journal into it. With onlyChanged,
+     * a sharded layout only rewrites the shards changed since the last save.
+     * notes may be a live view that other threads keep changing.
+     */
+    private static synchronized boolean saveNotes(Collection<Note> notes, boolean onlyChanged) {
+        // Queued records are part of notes; let them reach the journal first
+        // so truncating it afterwards removes them too
+        flushChanges(false);
+        long seq = journal != null ? journal.getLastSeq() : 0;
+        Set<Long> changed = takeChanged();
+        
+        if (!writeNotes(notes, seq, onlyChanged ? changed : null)) {
+            return false;
+        }
+        System.out.println("✓ Notes saved successfully to " + getNotesLocation());
+        
+        if (journal != null) {
+            try {
+                journal.truncateThrough(seq);
+            } catch (IOException e) {
+                // Records already in the snapshot are skipped on replay, so this is safe
+                System.err.println("✗ Error truncating journal: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Write notes as the current snapshot: NOTES_FILE, or the shards holding
+     * the changed ids (null = every shard) and then the shard manifest. If
+     * that fails the ids count as changed again. The caller must hold the
+     * class lock, and must have read seq before taking the ids and before
+     * notes is read, so every change up to seq is in what gets written.
+     */
+    private static boolean writeNotes(Collection<Note> notes, long seq, Set<Long> changed) {
+        long start = NotesMetrics.start();
+        ShardedNotesStore store = shards;
+        boolean written;
+        if (store == null) {
+            written = writeSnapshot(Paths.get(NOTES_FILE), notes, seq, writeBuffer);
+        } else {
+            BitSet which = store.all();
+            if (changed != null) {
+                which.clear();
+                for (long id : changed) {
+                    which.set(store.shardOf(id));
+                }
+            }
+            written = writeShards(store, notes, which, seq);
+        }
+        if (written) {
+            savedSeq = Math.max(savedSeq, seq);
+            // Contents the notes no longer use are not in the new snapshot
+            // either; drop them from memory too
+            NotesChunkStore.sweep();
+            NotesMetrics.SAVE.record(start);
+        } else if (changed == null) {
+            allChanged = true;
+        } else {
+            changedIds.addAll(changed);
+        }
+        return written;
+    }
+    
+    /**
+     * Ids changed since the last call, or null if every note has to be
+     * written. The caller must hold the class lock. Ids are removed one at
+     * a time, so one marked meanwhile is either taken or left for next time.
+     */
+    private static Set<Long> takeChanged() {
+        Set<Long> taken = new HashSet<>();
+        for (Iterator<Long> ids = changedIds.iterator(); ids.hasNext(); ) {
+            taken.add(ids.next());
+            ids.remove();
+        }
+        if (allChanged) {
+            allChanged = false;
+            return null;
+        }
+        return taken;
+    }
+    
+    /**
+     * Write the shards in which on the fork/join pool, then the manifest
+     * saying all shards are now up to date with seq
+     */
+    private static boolean writeShards(ShardedNotesStore store, Collection<Note> notes, BitSet which, long seq) {
+        List<List<Note>> parts = store.partition(notes, which);
+        List<ForkJoinTask<Boolean>> tasks = new ArrayList<>(which.cardinality());
+        for (int i = which.nextSetBit(0); i >= 0; i = which.nextSetBit(i + 1)) {
+            Path file = store.shardFile(i);
+            List<Note> part = parts.get(i);
+            tasks.add(ForkJoinPool.commonPool().submit(() -> writeSnapshot(file, part, seq, shardBuffers.get())));
+        }
+        boolean written = true;
+        for (ForkJoinTask<Boolean> task : tasks) {
+            written &= task.join();
+        }
+        if (!written) {
+            return false;
+        }
+        
+        try {
+            store.writeManifest(seq, nextId);
+            return true;
+        } catch (IOException e) {
+            System.err.println("✗ Error saving notes: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Write notes to a temp file, force it to disk and move it over the
+     * snapshot at target, so readers never see a half-written file and a
+     * crash leaves either the old snapshot or the new one. buffer must not
+     * be in use by another thread.
+     */
+    private static boolean writeSnapshot(Path target, Collection<Note> notes, long seq, ByteBuffer buffer) {
+        Path temp = Paths.get(target + ".tmp");
+        
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (COMPRESS_MODE) {
+                CompressedNotesStore.write(channel, buffer, notes, seq, nextId, COMPRESS_LEVEL);
+            } else {
+                buffer.clear();
+                NoteCodec.writeHeader(buffer, SNAPSHOT_MAGIC, seq, nextId);
+                NoteCodec codec = new NoteCodec().shareContents();
+                for (Note note : notes) {
+                    codec.begin().putNote(note).writeTo(channel, buffer);
+                }
+                NoteCodec.drain(channel, buffer);
+            }
+            NotesMetrics.NOTES_WRITTEN.add(channel.size());
+            channel.force(true);
+        } catch (IOException e) {
+            System.err.println("✗ Error saving notes: " + e.getMessage());
+            temp.toFile().delete();
+            return false;
+        }
+        
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(target);
+            return true;
+        } catch (IOException e) {
+            System.err.println("✗ Error saving notes: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Force a rename in the directory containing file to disk
+     */
+    static void syncDirectory(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // Windows cannot open directories; its renames are already durable
+        }
+    }
+    
+    /**
+     * Give a note the next free id if it has none yet, and make sure later
+     * notes get higher ids than it
+     */
+    public static synchronized long assignId(Note note) {
+        if (note.getId() == 0) {
+            note.assignId(nextId++);
+        } else if (note.getId() >= nextId) {
+            nextId = note.getId() + 1;
+        }
+        return note.getId();
+    }
+    
+    /**
+     * Give notes consecutive ids after every id in use, and return the
+     * first
+     */
+    public static synchronized long assignIds(List<Note> notes) {
+        long first = nextId;
+        for (Note note : notes) {
+            note.assignId(nextId++);
+        }
+        return first;
+    }
+    
+    /**
+     * Record a note that was just added to notes. Like recordEdit and
+     * recordDelete, this may be called by several threads at once, as long
+     * as changes to any one note are recorded in the order they were made
+     * and notes is a map safe to read while they run. A recorded note must
+     * not be changed afterwards; an edit records a new copy.
+     */
+    public static boolean recordAdd(Map<Long, Note> notes, Note note) {
+        return recordChange(notes, NotesJournal.ADD, note);
+    }
+    
+    /**
+     * Record an edit of a note
+     */
+    public static boolean recordEdit(Map<Long, Note> notes, Note note) {
+        return recordChange(notes, NotesJournal.EDIT, note);
+    }
+    
+    /**
+     * Record removal of a note (notes no longer contains it)
+     */
+    public static boolean recordDelete(Map<Long, Note> notes, Note note) {
+        return recordChange(notes, NotesJournal.DELETE, note);
+    }
+    
+    /**
+     * Record many changes of one kind, as a bulk import makes, with a
+     * single journal write forced to disk before this returns. No
+     * compaction is started; the caller saves a snapshot when done.
+     */
+    public static boolean recordAll(Map<Long, Note> notes, char op, Collection<Note> batch) {
+        // A batch touches most shards anyway
+        allChanged = true;
+        NotesJournal current = journal;
+        if (!JOURNAL_MODE || current == null) {
+            return saveNotes(notes.values(), true);
+        }
+        
+        // Changes queued before the batch go first, keeping their order
+        if (!flushChanges(false)) {
+            return false;
+        }
+        List<NotesJournal.Change> changes = new ArrayList<>(batch.size());
+        for (Note note : batch) {
+            changes.add(new NotesJournal.Change(op, note));
+        }
+        try {
+            current.appendAll(changes);
+            current.sync();
+            return true;
+        } catch (IOException e) {
+            System.err.println("✗ Error writing journal: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    private static boolean recordChange(Map<Long, Note> notes, char op, Note note) {
+        // Marked before the record gets its sequence number, so a snapshot
+        // taken through that number also rewrites the note's shard
+        changedIds.add(note.getId());
+        NotesJournal current = journal;
+        NotesWriteBehind queue = writeBehind;
+        if (!JOURNAL_MODE || current == null) {
+            return saveNotes(notes.values(), true);
+        }
+        
+        // No confirmation printed here: this runs for every request the
+        // server handles, and the console front end prints its own
+        if (queue != null) {
+            queue.enqueue(op, note);
+        } else {
+            try {
+                current.append(op, note);
+            } catch (IOException e) {
+                System.err.println("✗ Error writing journal: " + e.getMessage());
+                return false;
+            }
+        }
+        
+        if (current.getPendingRecords() >= COMPACT_THRESHOLD && compacting.compareAndSet(false, true)) {
+            compactInBackground(notes, current);
+        }
+        return true;
+    }
+    
+    /**
+     * What happens to a change when it is recorded, for a front end to
+     * confirm one with; null when each change saves the notes file, which
+     * reports itself
+     */
+    public static String describeRecording() {
+        if (!JOURNAL_MODE || journal == null) {
+            return null;
+        }
+        return (writeBehind != null ? "✓ Change queued for " : "✓ Change saved to ") + JOURNAL_FILE;
+    }
+    
+    /**
+     * Wait until every change recorded so far has been written to the
+     * journal, and forced to disk if durable is set. Returns false if that
+     * failed. Without write-behind, changes are already written when
+     * recorded, so this only syncs.
+     */
+    public static boolean flushChanges(boolean durable) {
+        NotesWriteBehind queue = writeBehind;
+        NotesJournal current = journal;
+        if (queue != null) {
+            return queue.flush(durable);
+        }
+        if (durable && current != null) {
+            try {
+                current.sync();
+            } catch (IOException e) {
+                System.err.println("✗ Error syncing journal: " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Fold the journal into a fresh snapshot on the compactor thread, which
+     * reads notes while other threads keep changing it. Changes made after
+     * the snapshot's sequence number may or may not be in it; their journal
+     * records are kept and re-applied on replay either way.
+     */
+    private static void compactInBackground(Map<Long, Note> notes, NotesJournal current) {
+        long requested = current.getLastSeq();
+        compactor.execute(() -> {
+            try {
+                synchronized (NotesFileManager.class) {
+                    // Skip if the journal was replaced, or a newer snapshot
+                    // saved or restored, in the meantime
+                    if (journal == current && requested > savedSeq) {
+                        long seq = current.getLastSeq();
+                        // Only shards with changes are rewritten
+                        if (writeNotes(notes.values(), seq, takeChanged())) {
+                            current.truncateThrough(seq);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("✗ Error compacting journal: " + e.getMessage());
+            } finally {
+                compacting.set(false);
+            }
+        });
+    }
+    
+    /**
+     * Load all notes from file, then replay the journal on top of them.
+     * The map is keyed by note id and iterates in the order notes were added.
+     * If -Dnotes.shards asks for a different layout, the notes are moved
+     * to it right away.
+     */
+    public static synchronized NavigableMap<Long, Note> loadNotes() {
+        long start = NotesMetrics.start();
+        NavigableMap<Long, Note> notes = readNotes();
+        NotesMetrics.LOAD.record(start);
+        if (SHARD_COUNT > 0 && SHARD_COUNT != getShardCount()) {
+            reshard(notes.values(), SHARD_COUNT);
+        }
+        return notes;
+    }
+    
+    private static NavigableMap<Long, Note> readNotes() {
+        List<Note> loaded = new ArrayList<>();
+        File file = new File(NOTES_FILE);
+        long snapshotSeq = 0;
+        nextId = 1;
+        savedSeq = 0;
+        changedIds.clear();
+        allChanged = false;
+        
+        ShardedNotesStore store = null;
+        try {
+            store = ShardedNotesStore.open(Paths.get(SHARD_DIR));
+        } catch (IOException e) {
+            System.err.println("✗ Error opening " + SHARD_DIR + ": " + e.getMessage());
+        }
+        shards = store;
+        
+        if (store != null) {
+            loaded = readShards(store);
+            snapshotSeq = store.getSeq();
+            nextId = Math.max(nextId, store.getNextId());
+            // Left over from a crash while resharding; the shards replace it
+            file.delete();
+        } else if (!file.exists()) {
+            if (new File(LEGACY_NOTES_FILE).exists()) {
+                return migrateLegacyNotes();
+            }
+            System.out.println("No existing notes file found. Starting fresh.");
+        } else {
+            try {
+                Snapshot snapshot = readSnapshot(file, true);
+                loaded = snapshot.notes;
+                snapshotSeq = snapshot.seq;
+                nextId = Math.max(nextId, snapshot.nextId);
+            } catch (IOException e) {
+                System.err.println("✗ Error loading notes: " + e.getMessage());
+            }
+        }
+        savedSeq = snapshotSeq;
+        
+        // Notes from a version 1 snapshot have no id yet
+        boolean upgrade = false;
+        for (Note note : loaded) {
+            upgrade |= note.getId() == 0;
+            assignId(note);
+        }
+        NavigableMap<Long, Note> notes = byId(loaded);
+        openJournal(notes, snapshotSeq, upgrade);
+        return notes;
+    }
+    
+    // Ids are allocated in increasing order, so id order is the order the
+    // notes were added, and the console can page from any id
+    private static NavigableMap<Long, Note> byId(List<Note> loaded) {
+        NavigableMap<Long, Note> notes = new TreeMap<>();
+        for (Note note : loaded) {
+            notes.put(note.getId(), note);
+        }
+        return notes;
+    }
+    
+    /**
+     * Notes read from one snapshot file, with the header values
+     */
+    private static class Snapshot {
+        List<Note> notes = new ArrayList<>();
+        long seq;
+        long nextId = 1;
+    }
+    
+    /**
+     * Read a snapshot file in whichever format it has
+     * @param report print what was loaded
+     */
+    private static Snapshot readSnapshot(File file, boolean report) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        String name = file.getPath();
+        // A mapped file's pages are only read as its notes are
+        long bytesRead = file.length();
+        
+        if (CompressedNotesStore.isCompressed(file)) {
+            CompressedNotesStore store = CompressedNotesStore.open(file);
+            long start = System.nanoTime();
+            snapshot.notes = store.loadAll();
+            snapshot.seq = store.getSeq();
+            snapshot.nextId = store.getNextId();
+            if (report) {
+                System.out.printf("✓ Loaded %d notes from %s (%d compressed blocks inflated in %d ms)%n",
+                        snapshot.notes.size(), name, store.getBlocks().size(),
+                        (System.nanoTime() - start) / 1_000_000);
+            }
+        } else if (MMAP_MODE) {
+            MappedNotesStore store = MappedNotesStore.open(file, SNAPSHOT_MAGIC, MMAP_VERIFY);
+            snapshot.notes = store.notes();
+            snapshot.seq = store.getSeq();
+            snapshot.nextId = store.getNextId();
+            bytesRead = 0;
+            if (report) {
+                System.out.println("✓ Opened " + snapshot.notes.size() + " notes from " + name + " (memory-mapped)");
+            }
+        } else if (loadInParallel(file)) {
+            ParallelNotesLoader.LoadResult result = ParallelNotesLoader.loadSnapshot(file, SNAPSHOT_MAGIC);
+            snapshot.notes = result.notes;
+            snapshot.seq = result.seq;
+            snapshot.nextId = result.nextId;
+            if (report) {
+                System.out.println("✓ Loaded " + snapshot.notes.size() + " notes from " + name);
+            }
+        } else {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 1 << 16))) {
+                NoteCodec.Header header = NoteCodec.readHeader(in, SNAPSHOT_MAGIC, name);
+                snapshot.seq = header.seq;
+                snapshot.nextId = header.nextId;
+                NoteCodec.RecordReader reader = new NoteCodec.RecordReader(in, header.size());
+                Map<Long, Object> shared = new HashMap<>();
+                
+                while (true) {
+                    try {
+                        ByteBuffer payload = reader.next();
+                        if (payload == null) {
+                            break;
+                        }
+                        snapshot.notes.add(NoteCodec.getNote(payload, header.version, shared));
+                    } catch (EOFException e) {
+                        System.err.println("✗ " + name + " ends with an incomplete record");
+                        break;
+                    } catch (NoteCodec.MissingContentException e) {
+                        snapshot.notes.add(e.note);
+                        System.err.println("✗ Error parsing record " + reader.getRecordNumber()
+                                + (report ? "" : " of " + name) + ": " + e.getMessage());
+                    } catch (Exception e) {
+                        System.err.println("✗ Error parsing record " + reader.getRecordNumber()
+                                + (report ? "" : " of " + name) + ": " + e.getMessage());
+                    }
+                }
+            }
+            if (report) {
+                System.out.println("✓ Loaded " + snapshot.notes.size() + " notes from " + name);
+            }
+        }
+        NotesMetrics.NOTES_READ.add(bytesRead);
+        return snapshot;
+    }
+    
+    /**
+     * Read every shard on the fork/join pool. A shard that cannot be read
+     * is reported and left out; the notes in the others still load, and
+     * the damaged file stays as it is until a change to one of its notes
+     * rewrites it.
+     */
+    private static List<Note> readShards(ShardedNotesStore store) {
+        long start = System.nanoTime();
+        List<ForkJoinTask<Snapshot>> tasks = new ArrayList<>(store.getShards());
+        for (int i = 0; i < store.getShards(); i++) {
+            File file = store.shardFile(i).toFile();
+            tasks.add(ForkJoinPool.commonPool().submit(() -> readSnapshot(file, false)));
+        }
+        
+        List<Note> loaded = new ArrayList<>();
+        int failed = 0;
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                Snapshot snapshot = tasks.get(i).get();
+                loaded.addAll(snapshot.notes);
+                nextId = Math.max(nextId, snapshot.nextId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("✗ Loading interrupted");
+                break;
+            } catch (ExecutionException e) {
+                // The pool wraps the task's exception, and may wrap it again for this thread
+                Throwable cause = e.getCause();
+                while (!(cause instanceof IOException) && cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                System.err.println("✗ Error loading " + store.shardFile(i) + ": " + cause.getMessage());
+                failed++;
+            }
+        }
+        System.out.printf("✓ Loaded %d notes from %d shards in %s (%d ms)%s%n",
+                loaded.size(), store.getShards() - failed, SHARD_DIR,
+                (System.nanoTime() - start) / 1_000_000,
+                failed > 0 ? ", " + failed + " shard(s) unreadable" : "");
+        return loaded;
+    }
+    
+    private static boolean loadInParallel(File file) {
+        return PARALLEL_LOAD_BYTES >= 0 && file.length() >= PARALLEL_LOAD_BYTES
+                && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+    
+    /**
+     * One-time conversion of notes.txt (and a text journal, if any) to the
+     * binary format. notes.txt is kept as notes.txt.migrated.
+     */
+    private static NavigableMap<Long, Note> migrateLegacyNotes() {
+        System.out.println("Migrating " + LEGACY_NOTES_FILE + " to " + NOTES_FILE + "...");
+        List<Note> loaded = new ArrayList<>();
+        long seq = readTextNotes(LEGACY_NOTES_FILE, loaded);
+        for (Note note : loaded) {
+            assignId(note);
+        }
+        NavigableMap<Long, Note> notes = byId(loaded);
+        if (seq < 0) {
+            // Unreadable; leave everything in place and start with what we have
+            openJournal(notes, 0, false);
+            return notes;
+        }
+        
+        File journalFile = new File(JOURNAL_FILE);
+        try {
+            if (journalFile.exists() && !NotesJournal.isBinary(journalFile)) {
+                int applied = NotesJournal.replayText(journalFile, notes, seq, () -> nextId++);
+                if (applied > 0) {
+                    System.out.println("✓ Replayed " + applied + " changes from " + JOURNAL_FILE);
+                }
+                seq = 0;
+                if (!journalFile.delete()) {
+                    throw new IOException("cannot remove old " + JOURNAL_FILE);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("✗ Error migrating journal: " + e.getMessage());
+        }
+        
+        if (writeNotes(notes.values(), seq, null)) {
+            new File(LEGACY_NOTES_FILE).renameTo(new File(LEGACY_NOTES_FILE + ".migrated"));
+            System.out.println("✓ Migrated " + notes.size() + " notes; old file kept as "
+                    + LEGACY_NOTES_FILE + ".migrated");
+        }
+        
+        openJournal(notes, seq, false);
+        return notes;
+    }
+    
+    /**
+     * Read pipe-delimited notes into notes. Returns the journal sequence
+     * number from an "@seq" header line (0 if absent), or -1 if the file
+     * could not be read.
+     */
+    private static long readTextNotes(String filename, List<Note> notes) {
+        long seq = 0;
+        NotesMetrics.NOTES_READ.add(new File(filename).length());
+        
+        if (loadInParallel(new File(filename))) {
+            try {
+                ParallelNotesLoader.LoadResult result =
+                        ParallelNotesLoader.loadText(new File(filename), LEGACY_SEQ_HEADER);
+                notes.addAll(result.notes);
+                System.out.println("✓ Loaded " + notes.size() + " notes from " + filename);
+                return result.seq;
+            } catch (IOException e) {
+                System.err.println("✗ Error loading notes: " + e.getMessage());
+                return -1;
+            }
+        }
+        
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(filename), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                try {
+                    if (lineNumber == 1 && line.startsWith(LEGACY_SEQ_HEADER)) {
+                        seq = Long.parseLong(line.substring(LEGACY_SEQ_HEADER.length()).trim());
+                    } else if (!line.trim().isEmpty()) {
+                        Note note = Note.fromLegacyFileString(line);
+                        notes.add(note);
+                    }
+                } catch (Exception e) {
+                    System.err.println("✗ Error parsing line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+            
+            System.out.println("✓ Loaded " + notes.size() + " notes from " + filename);
+            return seq;
+        } catch (IOException e) {
+            System.err.println("✗ Error loading notes: " + e.getMessage());
+            return -1;
+        }
+    }
+    
+    /**
+     * Replay the journal onto notes and open it for appending
+     * @param upgrade notes came from an older snapshot format and must be rewritten
+     */
+    private static void openJournal(Map<Long, Note> notes, long snapshotSeq, boolean upgrade) {
+        try {
+            closeJournal();
+            
+            File journalFile = new File(JOURNAL_FILE);
+            NotesJournal.ReplayResult replay = NotesJournal.replay(journalFile, notes, snapshotSeq, () -> nextId++);
+            NotesMetrics.JOURNAL_READ.add(replay.validBytes);
+            if (replay.applied > 0) {
+                System.out.println("✓ Replayed " + replay.applied + " changes from " + JOURNAL_FILE);
+                // Written out in full by the next save
+                allChanged = true;
+            }
+            for (Note note : notes.values()) {
+                assignId(note);
+            }
+            
+            long validBytes = replay.validBytes;
+            int pending = replay.applied;
+            if (upgrade || replay.version < NoteCodec.VERSION) {
+                // Fold everything into a current-format snapshot and start a
+                // new journal, so no file mixes old and new records
+                if (!writeNotes(notes.values(), replay.lastSeq, null)) {
+                    return;
+                }
+                journalFile.delete();
+                validBytes = 0;
+                pending = 0;
+                System.out.println("✓ Upgraded " + NOTES_FILE + " to format version " + NoteCodec.VERSION);
+            }
+            
+            if (JOURNAL_MODE) {
+                journal = new NotesJournal(journalFile, validBytes, replay.lastSeq,
+                        pending, JOURNAL_SYNC_EVERY);
+                if (WRITE_BEHIND_MILLIS > 0) {
+                    writeBehind = new NotesWriteBehind(journal, WRITE_BEHIND_MILLIS);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("✗ Error opening journal: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Number of files the notes are split across (1 = all in notes.dat)
+     */
+    public static synchronized int getShardCount() {
+        return shards != null ? shards.getShards() : 1;
+    }
+    
+    /**
+     * Where the notes are stored, for messages
+     */
+    public static synchronized String getNotesLocation() {
+        return shards != null ? shards.getShards() + " shards in " + SHARD_DIR : NOTES_FILE;
+    }
+    
+    /**
+     * Move every note into a layout of count files (1 = a single notes.dat)
+     * while the application keeps running. The new layout is written in
+     * full and forced to disk before it replaces the old one, so a crash
+     * leaves one layout or the other.
+     */
+    public static synchronized boolean reshard(Collection<Note> notes, int count) {
+        int current = getShardCount();
+        if (count < 1 || count > ShardedNotesStore.MAX_SHARDS) {
+            System.out.println("✗ Number of files must be between 1 and " + ShardedNotesStore.MAX_SHARDS + "!");
+            return false;
+        }
+        if (count == current) {
+            System.out.println("Notes are already stored in " + getNotesLocation());
+            return true;
+        }
+        
+        flushChanges(false);
+        long seq = journal != null ? journal.getLastSeq() : 0;
+        long start = System.nanoTime();
+        Path directory = Paths.get(SHARD_DIR);
+        try {
+            if (count == 1) {
+                if (!writeSnapshot(Paths.get(NOTES_FILE), notes, seq, writeBuffer)) {
+                    return false;
+                }
+                ShardedNotesStore.delete(directory);
+                shards = null;
+            } else {
+                Path staging = ShardedNotesStore.stagingDirectory(directory);
+                ShardedNotesStore.deleteTree(staging);
+                Files.createDirectories(staging);
+                ShardedNotesStore layout = ShardedNotesStore.create(staging, count);
+                if (!writeShards(layout, notes, layout.all(), seq)) {
+                    return false;
+                }
+                ShardedNotesStore.swapIn(staging, directory);
+                shards = ShardedNotesStore.open(directory);
+                Files.deleteIfExists(Paths.get(NOTES_FILE));
+            }
+        } catch (IOException e) {
+            System.err.println("✗ Error resharding notes: " + e.getMessage());
+            return false;
+        }
+        savedSeq = Math.max(savedSeq, seq);
+        
+        if (journal != null) {
+            try {
+                journal.truncateThrough(seq);
+            } catch (IOException e) {
+                System.err.println("✗ Error truncating journal: " + e.getMessage());
+            }
+        }
+        System.out.printf("✓ Moved %d notes from %d to %d file(s) in %d ms%n",
+                notes.size(), current, count, (System.nanoTime() - start) / 1_000_000);
+        return true;
+    }
+    
+    /**
+     * Write out queued changes, flush the journal to disk and close it
+     */
+    public static synchronized void closeJournal() {
+        if (writeBehind != null) {
+            writeBehind.close();
+            writeBehind = null;
+        }
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("✗ Error closing journal: " + e.getMessage());
+        }
+        journal = null;
+    }
+    
+    /**
+     * Load the search index saved next to the notes file, rebuilding it if it is
+     * missing or was written for a different version of the notes files
+     */
+    public static synchronized NotesSearchIndex loadSearchIndex(Collection<Note> notes) {
+        File file = new File(INDEX_FILE);
+        
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 1 << 16))) {
+                NotesMetrics.INDEX_READ.add(file.length());
+                NotesSearchIndex index = NotesSearchIndex.readFrom(in, notes, filesFingerprint());
+                if (index != null) {
+                    return index;
+                }
+            } catch (IOException e) {
+                System.err.println("✗ Error loading search index: " + e.getMessage());
+            }
+        }
+        
+        return NotesSearchIndex.build(notes);
+    }
+    
+    /**
+     * Save the search index next to the notes file so the next start can skip
+     * tokenizing every note. Call once the notes files are no longer changing.
+     */
+    public static synchronized boolean saveSearchIndex(NotesSearchIndex index, Collection<Note> notes) {
+        File temp = new File(INDEX_FILE + ".tmp");
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp), 1 << 16))) {
+            index.writeTo(out, notes, filesFingerprint());
+            NotesMetrics.INDEX_WRITTEN.add(out.size());
+        } catch (IOException e) {
+            System.err.println("✗ Error saving search index: " + e.getMessage());
+            return false;
+        }
+        
+        try {
+            Files.move(temp.toPath(), Paths.get(INDEX_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.err.println("✗ Error saving search index: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Load the statistics saved next to the notes file, or return null if
+     * they are missing or out of date. Recomputing them is left to the
+     * caller, which may not need them.
+     */
+    public static synchronized NotesStatistics loadStatistics(int noteCount) {
+        File file = new File(STATS_FILE);
+        
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                NotesMetrics.INDEX_READ.add(file.length());
+                NotesStatistics statistics = NotesStatistics.readFrom(in, noteCount, filesFingerprint());
+                if (statistics != null) {
+                    return statistics;
+                }
+            } catch (IOException e) {
+                System.err.println("✗ Error loading statistics: " + e.getMessage());
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Save the statistics next to the notes file. Like saveSearchIndex, call
+     * once the notes files are no longer changing.
+     */
+    public static synchronized boolean saveStatistics(NotesStatistics statistics) {
+        File temp = new File(STATS_FILE + ".tmp");
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            statistics.writeTo(out, filesFingerprint());
+            NotesMetrics.INDEX_WRITTEN.add(out.size());
+        } catch (IOException e) {
+            System.err.println("✗ Error saving statistics: " + e.getMessage());
+            return false;
+        }
+        
+        try {
+            Files.move(temp.toPath(), Paths.get(STATS_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.err.println("✗ Error saving statistics: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Identifies the current contents of the notes file and the journal
+     */
+    private static long filesFingerprint() {
+        long hash = 17;
+        // The shard manifest is rewritten by every save of a sharded layout
+        String snapshot = shards != null ? new File(SHARD_DIR, ShardedNotesStore.MANIFEST).getPath() : NOTES_FILE;
+        for (String name : new String[] {snapshot, JOURNAL_FILE}) {
+            File file = new File(name);
+            hash = hash * 31 + file.length();
+            hash = hash * 31 + file.lastModified();
+        }
+        return hash;
+    }
+    
+    /**
+     * Add a backup generation holding the current notes file, or every
+     * shard and the shard manifest. Only the parts that changed since
+     * earlier generations are copied.
+     */
+    public static synchronized boolean createBackup() {
+        File notesFile = new File(NOTES_FILE);
+        List<Path> sources;
+        
+        if (shards != null) {
+            sources = shards.files();
+        } else if (notesFile.exists()) {
+            sources = Collections.singletonList(notesFile.toPath());
+        } else {
+            System.out.println("No notes file to backup.");
+            return false;
+        }
+        
+        try {
+            long start = NotesMetrics.start();
+            NotesBackupSet backups = new NotesBackupSet(Paths.get(BACKUP_DIR));
+            NotesBackupSet.Generation generation = backups.create(sources);
+            NotesMetrics.BACKUP.record(start);
+            NotesMetrics.BACKUP_WRITTEN.add(generation.newBytes);
+            System.out.println("✓ Backup generation " + generation.number + " created in " + BACKUP_DIR
+                    + " (" + sources.size() + " file(s), " + generation.newSegments + " of "
+                    + generation.getSegmentCount() + " segments new, " + generation.newBytes + " bytes copied)");
+            
+            int pruned = backups.prune(BACKUP_GENERATIONS);
+            if (pruned > 0) {
+                System.out.println("✓ Removed " + pruned + " old backup generation(s)");
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("✗ Error creating backup: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Backup generations, oldest first
+     */
+    public static List<NotesBackupSet.Generation> listBackups() {
+        try {
+            return new NotesBackupSet(Paths.get(BACKUP_DIR)).list();
+        } catch (IOException e) {
+            System.err.println("✗ Error reading backups: " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+    
+    /**
+     * Restore notes from the newest backup generation, or from the old
+     * text backup if there are no generations
+     */
+    public static synchronized boolean restoreFromBackup() {
+        List<NotesBackupSet.Generation> generations = listBackups();
+        if (!generations.isEmpty()) {
+            return restoreFromBackup(generations.get(generations.size() - 1));
+        }
+        
+        if (!new File(LEGACY_BACKUP_FILE).exists()) {
+            System.out.println("No backup file found.");
+            return false;
+        }
+        
+        // Read with the old escaping, like notes.txt in migrateLegacyNotes,
+        // and written out as a snapshot. The notes get ids after every id
+        // in use, so none is reused.
+        List<Note> notes = new ArrayList<>();
+        if (readTextNotes(LEGACY_BACKUP_FILE, notes) < 0) {
+            return false;
+        }
+        assignIds(notes);
+        Path restored = Paths.get(NOTES_FILE + ".restored");
+        if (!writeSnapshot(restored, notes, 0, writeBuffer)) {
+            return false;
+        }
+        return replaceNotesFile(restored.toFile());
+    }
+    
+    /**
+     * Restore notes from a backup generation, in the layout it was taken
+     * in. Every segment is checked against its hash while it is copied; a
+     * damaged backup leaves the current notes untouched.
+     */
+    public static synchronized boolean restoreFromBackup(NotesBackupSet.Generation generation) {
+        NotesBackupSet backups = new NotesBackupSet(Paths.get(BACKUP_DIR));
+        if (generation.getFileNames().contains(ShardedNotesStore.MANIFEST)) {
+            Path directory = Paths.get(SHARD_DIR);
+            Path staging = ShardedNotesStore.stagingDirectory(directory);
+            try {
+                ShardedNotesStore.deleteTree(staging);
+                Files.createDirectories(staging);
+                backups.restoreAll(generation, staging);
+                ShardedNotesStore.swapIn(staging, directory);
+                Files.deleteIfExists(Paths.get(NOTES_FILE));
+                return dropJournal();
+            } catch (IOException e) {
+                System.err.println("✗ Error restoring from backup: " + e.getMessage());
+                return false;
+            }
+        }
+        
+        File temp = new File(NOTES_FILE + ".tmp");
+        try {
+            backups.restore(generation, temp.toPath());
+        } catch (IOException e) {
+            temp.delete();
+            System.err.println("✗ Error restoring from backup: " + e.getMessage());
+            return false;
+        }
+        return replaceNotesFile(temp);
+    }
+    
+    /**
+     * Move a restored copy (already forced to disk) over the notes file,
+     * replacing a sharded layout if there is one
+     */
+    private static boolean replaceNotesFile(File restored) {
+        try {
+            Files.move(restored.toPath(), Paths.get(NOTES_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(Paths.get(NOTES_FILE));
+            ShardedNotesStore.delete(Paths.get(SHARD_DIR));
+            return dropJournal();
+        } catch (IOException e) {
+            System.err.println("✗ Error restoring from backup: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Drop the journal, which belongs to the snapshot a restore replaced
+     */
+    private static boolean dropJournal() throws IOException {
+        flushChanges(false);
+        if (journal != null) {
+            // A compaction still queued must not overwrite the restored notes
+            savedSeq = Math.max(savedSeq, journal.getLastSeq());
+            journal.reset();
+        } else {
+            new File(JOURNAL_FILE).delete();
+        }
+        
+        System.out.println("✓ Notes restored from backup");
+        return true;
+    }
+    
+    /**
+     * Export notes to a specified file in the given format
+     */
+    public static boolean exportNotes(Collection<Note> notes, String filename, NotesExporter.Format format) {
+        try {
+            NotesExporter.Result result = NotesExporter.export(notes.iterator(), notes.size(), format, Paths.get(filename));
+            NotesMetrics.EXPORT.recordNanos(result.nanos);
+            NotesMetrics.EXPORT_WRITTEN.add(result.bytes);
+            System.out.printf("✓ %d notes exported to %s (%.1f MB in %d ms, %.1f MB/s)%n",
+                    result.notes, filename, result.bytes / 1e6, result.nanos / 1_000_000,
+                    result.getMegabytesPerSecond());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("✗ Error exporting notes: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Write the metrics to a file in the Prometheus text format
+     */
+    public static boolean exportMetrics(String filename) {
+        try {
+            NotesMetrics.writePrometheus(Paths.get(filename));
+            System.out.println("✓ Metrics written to " + filename);
+            return true;
+        } catch (IOException | InvalidPathException e) {
+            System.err.println("✗ Error writing metrics: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Print how well a compressed notes file compresses and how long one
+     * block takes to inflate, timed by reading a note from the middle block
+     */
+    private static void showCompressionStats(File notesFile) {
+        try {
+            CompressedNotesStore store = CompressedNotesStore.open(notesFile);
+            List<CompressedNotesStore.Block> blocks = store.getBlocks();
+            long raw = store.getRawBytes();
+            long compressed = store.getCompressedBytes();
+            System.out.printf("Compression: %d bytes of records in %d bytes (%.2fx), %d blocks%n",
+                    raw, compressed, compressed == 0 ? 1.0 : (double) raw / compressed, blocks.size());
+            if (!blocks.isEmpty()) {
+                CompressedNotesStore.Block block = blocks.get(blocks.size() / 2);
+                long start = System.nanoTime();
+                store.readNote(block.minId);
+                System.out.printf("Block decode: %.2f ms to read one note (%.1f KB block)%n",
+                        (System.nanoTime() - start) / 1e6, block.length / 1024.0);
+            }
+        } catch (IOException e) {
+            System.err.println("✗ Error reading " + NOTES_FILE + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Get file statistics
+     */
+    public static void showFileStats() {
+        File notesFile = new File(NOTES_FILE);
+        ShardedNotesStore store = shards;
+        System.out.println("\n=== FILE STATISTICS ===");
+        
+        if (store != null) {
+            long total = 0;
+            long largest = 0;
+            long smallest = Long.MAX_VALUE;
+            for (int i = 0; i < store.getShards(); i++) {
+                long length = store.shardFile(i).toFile().length();
+                total += length;
+                largest = Math.max(largest, length);
+                smallest = Math.min(smallest, length);
+            }
+            System.out.println("Notes files: " + store.getShards() + " shards in " + SHARD_DIR);
+            System.out.println("Size: " + total + " bytes (shards from " + smallest + " to " + largest + " bytes)");
+            System.out.println("Last modified: " + new Date(new File(SHARD_DIR, ShardedNotesStore.MANIFEST).lastModified()));
+        } else if (notesFile.exists()) {
+            System.out.println("Notes file: " + NOTES_FILE);
+            System.out.println("Size: " + notesFile.length() + " bytes");
+            System.out.println("Last modified: " + new Date(notesFile.lastModified()));
+            if (CompressedNotesStore.isCompressed(notesFile)) {
+                showCompressionStats(notesFile);
+            }
+        } else {
+            System.out.println("Notes file: Not found");
+        }
+        
+        List<NotesBackupSet.Generation> generations = listBackups();
+        if (!generations.isEmpty()) {
+            NotesBackupSet.Generation latest = generations.get(generations.size() - 1);
+            System.out.println("Backups: " + generations.size() + " generations in " + BACKUP_DIR);
+            try {
+                System.out.println("Stored: " + new NotesBackupSet(Paths.get(BACKUP_DIR)).storedBytes() + " bytes");
+            } catch (IOException e) {
+                System.err.println("✗ Error reading backups: " + e.getMessage());
+            }
+            System.out.println("Latest: " + new Date(latest.createdAt));
+        } else {
+            System.out.println("Backups: Not found");
+        }
+        
+        NotesWriteBehind queue = writeBehind;
+        if (queue != null) {
+            System.out.println("Write-behind queue: " + queue.getQueueDepth() + " pending (max "
+                    + queue.getMaxQueueDepth() + "), " + queue.getCoalesced() + " coalesced");
+            System.out.printf("Journal flushes: %d, %d records, %.2f ms average, %.2f ms max%n",
+                    queue.getFlushes(), queue.getRecordsWritten(),
+                    queue.getAverageFlushMillis(), queue.getMaxFlushMillis());
+        }
+    }
+}
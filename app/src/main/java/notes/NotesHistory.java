@@ -0,0 +1,511 @@
+package notes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Past versions of edited notes, kept in notes.history so they can be
+ * listed, compared and restored.
+ *
+ * Every edit appends a revision holding the note as the edit left it.
+ * Most revisions are a delta against the one before: the title or
+ * category if they changed, and the content as stretches copied from the
+ * previous one with the new text between them (see NotesDiff). A small
+ * edit to a large note therefore takes a few bytes. Every FULL_EVERY
+ * revisions the revision is stored in full instead, so rebuilding any
+ * revision reads at most FULL_EVERY records. So is a revision once the
+ * deltas since the last full one add up to its content's size, which
+ * keeps rebuilding a note that was rewritten a few times about as cheap
+ * as reading it.
+ *
+ * Records are NoteCodec records, so each carries a CRC32. The payload is
+ *   note id (long) | revision (int) | modified (long, epoch millis)
+ *   | state hash (long) | fields (byte) | title | category | content
+ * with title, category and content only there if fields says so. A
+ * content is a String in a full revision; in a delta it is
+ *   op count (int) | ops, each COPY (byte) | start (int) | length (int)
+ *   or INSERT (byte) | String
+ *
+ * A note's first edit also stores the note as it was before, as revision
+ * 1. So does an edit of a note that no longer holds its last revision,
+ * e.g. after a restore from backup, which the state hash tells. Notes
+ * never edited take no space.
+ *
+ * The file is read on first use; only where each revision is stays in
+ * memory. Appends take a lock; reads do not.
+ */
+public class NotesHistory {
+    private static final int MAGIC = 0x4E484953; // "NHIS"
+    private static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("notes.history"));
+    // A revision is stored in full at least this often
+    private static final int FULL_EVERY = Math.max(1, Integer.getInteger("notes.history.fullEvery", 16));
+    
+    // Fields present in a record
+    private static final int TITLE = 1;
+    private static final int CATEGORY = 2;
+    private static final int CONTENT = 4;
+    // The content is stored whole, not as a delta
+    private static final int FULL = 8;
+    
+    private static final byte COPY = 'C';
+    private static final byte INSERT = 'I';
+    
+    /**
+     * One past version of a note
+     */
+    public static class Revision {
+        public final long noteId;
+        // 1 for the oldest
+        public final int number;
+        public final long modified;
+        public final String title;
+        public final String category;
+        // Null in listings; see NotesHistory.get
+        public final String content;
+        public final boolean full;
+        // Bytes the record takes in the file
+        public final int storedBytes;
+        
+        Revision(long noteId, int number, long modified, String title, String category,
+                 String content, boolean full, int storedBytes) {
+            this.noteId = noteId;
+            this.number = number;
+            this.modified = modified;
+            this.title = title;
+            this.category = category;
+            this.content = content;
+            this.full = full;
+            this.storedBytes = storedBytes;
+        }
+    }
+    
+    /**
+     * Where one note's revisions are in the file
+     */
+    private static class Revisions {
+        // Offset of each revision's record, -1 if it was damaged
+        long[] offsets = new long[4];
+        final BitSet full = new BitSet();
+        int count;
+        int lastFull;
+        // Bytes of the deltas after lastFull
+        long sinceFull;
+        // State hash of the last revision
+        long lastHash;
+        
+        void set(int number, long offset, boolean isFull, long hash, int bytes) {
+            if (number > offsets.length) {
+                int length = offsets.length;
+                offsets = Arrays.copyOf(offsets, Math.max(number, 2 * length));
+                Arrays.fill(offsets, length, offsets.length, -1);
+            }
+            for (int i = count; i < number - 1; i++) {
+                offsets[i] = -1;
+            }
+            offsets[number - 1] = offset;
+            if (isFull) {
+                full.set(number - 1);
+            }
+            if (number >= count) {
+                count = number;
+                lastHash = hash;
+                if (isFull) {
+                    lastFull = number;
+                    sinceFull = 0;
+                } else {
+                    sinceFull += bytes;
+                }
+            }
+        }
+    }
+    
+    private final File file;
+    // Revisions by note id; null until the file is read
+    private volatile Map<Long, Revisions> index;
+    private FileChannel channel;
+    // Where the next record goes
+    private long end;
+    
+    NotesHistory(File file) {
+        this.file = file;
+    }
+    
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+    
+    /**
+     * Add the revision edited is to the history of its note, first adding
+     * before as it was if the history does not end with it. Does nothing if
+     * no field changed. Edits of one note are numbered in the order they
+     * get here, so call this in the order they were made.
+     */
+    void record(Note before, Note edited) {
+        if (!ENABLED) {
+            return;
+        }
+        boolean titleChanged = !before.getTitle().equals(edited.getTitle());
+        boolean categoryChanged = !before.getCategory().equals(edited.getCategory());
+        boolean contentChanged = !NotesChunkStore.sameContent(before.contentRef(), edited.contentRef());
+        if (!titleChanged && !categoryChanged && !contentChanged) {
+            return;
+        }
+        
+        try {
+            Revisions revisions = revisions(edited.getId());
+            // Numbered, written and indexed under the note's own lock, so
+            // two edits of one note can never take the same number
+            synchronized (revisions) {
+                int count = revisions.count;
+                int lastFull = revisions.lastFull;
+                long sinceFull = revisions.sinceFull;
+                
+                ByteArrayOutputStream records = new ByteArrayOutputStream(256);
+                NoteCodec codec = new NoteCodec();
+                long beforeHash = stateHash(before);
+                int baseBytes = 0;
+                if (count == 0 || revisions.lastHash != beforeHash) {
+                    baseBytes = putFull(codec, before, ++count, beforeHash).writeTo(records);
+                    lastFull = count;
+                    sinceFull = 0;
+                }
+                
+                int number = ++count;
+                long hash = stateHash(edited);
+                boolean full = number - lastFull >= FULL_EVERY;
+                if (!full) {
+                    int fields = (titleChanged ? TITLE : 0) | (categoryChanged ? CATEGORY : 0) | (contentChanged ? CONTENT : 0);
+                    putHeader(codec, edited, number, hash, fields);
+                    if (titleChanged) {
+                        codec.putString(edited.getTitle());
+                    }
+                    if (categoryChanged) {
+                        codec.putString(edited.getCategory());
+                    }
+                    int deltaBytes = contentChanged ? putDelta(codec, before.getContent(), edited.getContent()) : 0;
+                    full = contentChanged && sinceFull + deltaBytes >= NotesDiff.utf8Length(edited.getContent());
+                }
+                if (full) {
+                    putFull(codec, edited, number, hash);
+                }
+                int bytes = codec.writeTo(records);
+                
+                long offset = append(records);
+                if (baseBytes > 0) {
+                    revisions.set(number - 1, offset, true, beforeHash, baseBytes);
+                }
+                revisions.set(number, offset + baseBytes, full, hash, bytes);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("✗ Error recording the history of note #" + edited.getId() + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Revisions of a note, oldest first, without their contents
+     * @throws UncheckedIOException if the history could not be read, so an
+     *         unreadable history is not taken for an empty one
+     */
+    public List<Revision> list(long noteId) {
+        List<Revision> list = new ArrayList<>();
+        if (!ENABLED) {
+            return list;
+        }
+        try {
+            long[] offsets = offsets(noteId);
+            String title = "";
+            String category = "";
+            for (long offset : offsets) {
+                if (offset < 0) {
+                    continue;
+                }
+                ByteBuffer payload = read(offset);
+                long id = payload.getLong();
+                int number = payload.getInt();
+                long modified = payload.getLong();
+                payload.getLong();
+                int fields = payload.get();
+                if ((fields & TITLE) != 0) {
+                    title = NoteCodec.getString(payload);
+                }
+                if ((fields & CATEGORY) != 0) {
+                    category = NoteCodec.getString(payload);
+                }
+                list.add(new Revision(id, number, modified, title, category, null,
+                        (fields & FULL) != 0, payload.limit() + 8));
+            }
+        } catch (IOException | RuntimeException e) {
+            throw unreadable("the history of note #" + noteId, e);
+        }
+        return list;
+    }
+    
+    /**
+     * A revision with its content, rebuilt from the full revision before
+     * it; null if the note has no such revision
+     * @throws UncheckedIOException if the revision could not be read
+     */
+    public Revision get(long noteId, int number) {
+        if (!ENABLED) {
+            return null;
+        }
+        try {
+            long[] offsets = offsets(noteId);
+            BitSet full;
+            Revisions revisions = loadedIndex().get(noteId);
+            if (number < 1 || number > offsets.length || revisions == null) {
+                return null;
+            }
+            synchronized (revisions) {
+                full = (BitSet) revisions.full.clone();
+            }
+            int base = full.previousSetBit(number - 1);
+            if (base < 0) {
+                throw new IllegalStateException("no full revision to rebuild it from");
+            }
+            
+            String title = "";
+            String category = "";
+            String content = "";
+            long modified = 0;
+            int fields = 0;
+            int storedBytes = 0;
+            for (int i = base; i < number; i++) {
+                if (offsets[i] < 0) {
+                    throw new IllegalStateException("revision " + (i + 1) + " is damaged");
+                }
+                ByteBuffer payload = read(offsets[i]);
+                payload.position(12);
+                modified = payload.getLong();
+                payload.getLong();
+                fields = payload.get();
+                if ((fields & TITLE) != 0) {
+                    title = NoteCodec.getString(payload);
+                }
+                if ((fields & CATEGORY) != 0) {
+                    category = NoteCodec.getString(payload);
+                }
+                if ((fields & FULL) != 0) {
+                    content = NoteCodec.getString(payload);
+                } else if ((fields & CONTENT) != 0) {
+                    content = NotesDiff.apply(content, getDelta(payload));
+                }
+                storedBytes = payload.limit() + 8;
+            }
+            return new Revision(noteId, number, modified, title, category, content,
+                    (fields & FULL) != 0, storedBytes);
+        } catch (IOException | RuntimeException e) {
+            throw unreadable("revision " + number + " of note #" + noteId, e);
+        }
+    }
+    
+    // A read failure, or damaged data found while reading, as one exception
+    private UncheckedIOException unreadable(String what, Exception e) {
+        String message = "Cannot read " + what + " from " + file.getName() + ": " + e.getMessage();
+        return new UncheckedIOException(message, e instanceof IOException ? (IOException) e : new IOException(e));
+    }
+    
+    public synchronized void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+                index = null;
+            }
+        } catch (IOException e) {
+            System.err.println("✗ Error closing " + file.getName() + ": " + e.getMessage());
+        }
+    }
+    
+    // Identifies a note's title, category and content
+    private static long stateHash(Note note) {
+        long hash = note.getContentHash() * 0x9E3779B97F4A7C15L + note.getTitle().hashCode();
+        return hash * 0x9E3779B97F4A7C15L + note.getCategory().hashCode();
+    }
+    
+    private static void putHeader(NoteCodec codec, Note note, int number, long hash, int fields) {
+        codec.begin().putLong(note.getId()).putInt(number).putLong(note.getModifiedMillis())
+             .putLong(hash).putByte(fields);
+    }
+    
+    private static NoteCodec putFull(NoteCodec codec, Note note, int number, long hash) {
+        putHeader(codec, note, number, hash, TITLE | CATEGORY | CONTENT | FULL);
+        return codec.putString(note.getTitle()).putString(note.getCategory()).putString(note.getContent());
+    }
+    
+    /**
+     * Put the delta from one content to the other; returns its size in bytes
+     */
+    private static int putDelta(NoteCodec codec, String from, String to) {
+        List<NotesDiff.Op> ops = NotesDiff.delta(from, to);
+        codec.putInt(ops.size());
+        int bytes = 4;
+        for (NotesDiff.Op op : ops) {
+            if (op.isCopy()) {
+                codec.putByte(COPY).putInt(op.start).putInt(op.length);
+                bytes += 9;
+            } else {
+                codec.putByte(INSERT).putString(op.text);
+                bytes += 5 + NotesDiff.utf8Length(op.text);
+            }
+        }
+        return bytes;
+    }
+    
+    private static List<NotesDiff.Op> getDelta(ByteBuffer payload) {
+        int count = payload.getInt();
+        if (count < 0 || count > payload.remaining()) {
+            throw new IllegalArgumentException("Invalid delta length " + count);
+        }
+        List<NotesDiff.Op> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte op = payload.get();
+            if (op == COPY) {
+                ops.add(NotesDiff.Op.copy(payload.getInt(), payload.getInt()));
+            } else if (op == INSERT) {
+                ops.add(NotesDiff.Op.insert(NoteCodec.getString(payload)));
+            } else {
+                throw new IllegalArgumentException("Unknown delta operation " + op);
+            }
+        }
+        return ops;
+    }
+    
+    private Revisions revisions(long noteId) throws IOException {
+        return loadedIndex().computeIfAbsent(noteId, id -> new Revisions());
+    }
+    
+    // Record offsets of a note's revisions, oldest first
+    private long[] offsets(long noteId) throws IOException {
+        Revisions revisions = loadedIndex().get(noteId);
+        if (revisions == null) {
+            return new long[0];
+        }
+        synchronized (revisions) {
+            return Arrays.copyOf(revisions.offsets, revisions.count);
+        }
+    }
+    
+    private Map<Long, Revisions> loadedIndex() throws IOException {
+        Map<Long, Revisions> loaded = index;
+        return loaded != null ? loaded : load();
+    }
+    
+    /**
+     * Open the file, creating it if needed, and note where every revision is
+     */
+    private synchronized Map<Long, Revisions> load() throws IOException {
+        if (index != null) {
+            return index;
+        }
+        Map<Long, Revisions> loaded = new ConcurrentHashMap<>();
+        long validBytes = 0;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 1 << 16))) {
+                NoteCodec.Header header = NoteCodec.readHeader(in, MAGIC, file.getName());
+                NoteCodec.RecordReader reader = new NoteCodec.RecordReader(in, header.size());
+                while (true) {
+                    long offset = reader.getValidBytes();
+                    ByteBuffer payload;
+                    try {
+                        payload = reader.next();
+                    } catch (IllegalStateException e) {
+                        System.err.println("✗ Skipping damaged record " + reader.getRecordNumber() + " of " + file.getName());
+                        continue;
+                    } catch (EOFException e) {
+                        break; // torn tail
+                    }
+                    if (payload == null) {
+                        break;
+                    }
+                    long noteId = payload.getLong(0);
+                    int number = payload.getInt(8);
+                    if (number < 1) {
+                        continue;
+                    }
+                    loaded.computeIfAbsent(noteId, id -> new Revisions())
+                          .set(number, offset, (payload.get(28) & FULL) != 0, payload.getLong(20), payload.limit() + 8);
+                }
+                validBytes = reader.getValidBytes();
+                NotesMetrics.HISTORY_READ.add(validBytes);
+            } catch (EOFException e) {
+                validBytes = 0; // crashed while writing the header
+            }
+        }
+        
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (validBytes < NoteCodec.headerSize(NoteCodec.VERSION)) {
+            ByteBuffer header = ByteBuffer.allocate(NoteCodec.headerSize(NoteCodec.VERSION));
+            NoteCodec.writeHeader(header, MAGIC, 0, 0);
+            header.flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            validBytes = header.limit();
+        } else {
+            // Cut off a record torn by a crash so new records follow intact ones
+            channel.truncate(validBytes);
+        }
+        end = validBytes;
+        index = loaded;
+        return loaded;
+    }
+    
+    /**
+     * Append records in one write and return where they start
+     */
+    private synchronized long append(ByteArrayOutputStream records) throws IOException {
+        if (channel == null) {
+            throw new IOException(file.getName() + " is closed");
+        }
+        long offset = end;
+        ByteBuffer bytes = ByteBuffer.wrap(records.toByteArray());
+        while (bytes.hasRemaining()) {
+            channel.write(bytes, offset + bytes.position());
+        }
+        end += records.size();
+        NotesMetrics.HISTORY_WRITTEN.add(records.size());
+        return offset;
+    }
+    
+    /**
+     * The payload of the record at offset, checked against its CRC
+     */
+    private ByteBuffer read(long offset) throws IOException {
+        FileChannel channel = this.channel;
+        if (channel == null) {
+            throw new IOException(file.getName() + " is closed");
+        }
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, offset);
+        int size = length.getInt(0);
+        if (size < 0 || size > NoteCodec.MAX_RECORD_SIZE) {
+            throw new IOException("Invalid record length " + size + " at offset " + offset);
+        }
+        ByteBuffer record = ByteBuffer.allocate(size + 4);
+        readFully(channel, record, offset + 4);
+        NotesMetrics.HISTORY_READ.add(size + 8);
+        
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, size);
+        if ((int) crc.getValue() != record.getInt(size)) {
+            NotesMetrics.CHECKSUM_ERRORS.increment();
+            throw new IOException("Checksum mismatch at offset " + offset);
+        }
+        return ByteBuffer.wrap(record.array(), 0, size);
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Record at offset " + position + " is cut short");
+            }
+        }
+    }
+}
@@ -0,0 +1,732 @@
+package notes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Bulk import of notes from a directory of text and Markdown files, a CSV
+ * file, a JSON Lines file or a pipe-delimited text file.
+ *
+ * Works like NotesExporter in reverse. The calling thread reads raw
+ * records (a line, a CSV record or a file name) in batches, each batch is
+ * parsed into notes on the fork/join pool, and the parsed batches are taken
+ * back in input order. At most a few batches are in flight, so memory use
+ * does not grow with the size of the input. Notes are added to the store
+ * NOTES_PER_COMMIT at a time, each commit a single journal write forced to
+ * disk, and the import ends with one snapshot.
+ *
+ * Records that cannot be parsed go to a dead-letter file, one JSON object
+ * each with where the record was, why it was rejected and its text. After
+ * every commit a checkpoint file records how many input records are done,
+ * so an interrupted import carries on where it stopped.
+ */
+public class NotesImporter {
+    private static final int RECORDS_PER_BATCH = 256;
+    // Batches parsed ahead of the one being committed
+    private static final int IN_FLIGHT = ForkJoinPool.getCommonPoolParallelism() * 2 + 1;
+    private static final int NOTES_PER_COMMIT = Integer.getInteger("notes.import.batch", 10_000);
+    private static final long PROGRESS_NANOS = 2_000_000_000L;
+    // A CSV record still open after this many characters has a stray quote
+    private static final int MAX_RECORD_CHARS = 1 << 24;
+    private static final String DEFAULT_CATEGORY = "General";
+    
+    private static final String CHECKPOINT_FILE = NotesFileManager.dataFile("notes.import");
+    private static final String REJECTED_FILE = NotesFileManager.dataFile("notes_import_rejected.jsonl");
+    
+    /**
+     * Kinds of input, chosen from the path: a directory, or a file by its
+     * extension
+     */
+    public enum Format {
+        FILES("Directory of .txt and .md files"),
+        CSV("CSV with a header row"),
+        JSON_LINES("JSON Lines"),
+        PIPE("Pipe-delimited text");
+        
+        private final String description;
+        
+        Format(String description) {
+            this.description = description;
+        }
+        
+        public String getDescription() {
+            return description;
+        }
+        
+        public static Format of(Path source) {
+            if (Files.isDirectory(source)) {
+                return FILES;
+            }
+            String name = source.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".csv")) {
+                return CSV;
+            }
+            if (name.endsWith(".jsonl") || name.endsWith(".ndjson")) {
+                return JSON_LINES;
+            }
+            return PIPE;
+        }
+    }
+    
+    /**
+     * Outcome of an import, counting only the records read in this run
+     */
+    public static class Result {
+        public final long records;
+        public final long notes;
+        public final long rejected;
+        public final long bytes;
+        public final long nanos;
+        // Records already imported by an earlier, interrupted run
+        public final long resumedAfter;
+        
+        Result(long records, long notes, long rejected, long bytes, long nanos, long resumedAfter) {
+            this.records = records;
+            this.notes = notes;
+            this.rejected = rejected;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.resumedAfter = resumedAfter;
+        }
+        
+        public double getNotesPerSecond() {
+            return nanos == 0 ? 0 : notes / (nanos / 1e9);
+        }
+        
+        public double getMegabytesPerSecond() {
+            return nanos == 0 ? 0 : bytes / 1e6 / (nanos / 1e9);
+        }
+    }
+    
+    /**
+     * Progress of an import, saved after every commit. While a commit is
+     * being written, pendingFrom..pendingTo are the ids it gives its notes
+     * and pendingRecords and pendingRejectedBytes the counts once it is
+     * done; whether the last id made it to disk tells which counts hold.
+     */
+    public static class Checkpoint {
+        public final String source;
+        long records;
+        long rejectedBytes;
+        long pendingFrom;
+        long pendingTo;
+        long pendingRecords;
+        long pendingRejectedBytes;
+        
+        Checkpoint(String source) {
+            this.source = source;
+        }
+        
+        public long getRecords() {
+            return records;
+        }
+        
+        static Checkpoint load() throws IOException {
+            Path file = Paths.get(CHECKPOINT_FILE);
+            if (!Files.exists(file)) {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(in);
+            }
+            try {
+                Checkpoint checkpoint = new Checkpoint(properties.getProperty("source"));
+                checkpoint.records = Long.parseLong(properties.getProperty("records"));
+                checkpoint.rejectedBytes = Long.parseLong(properties.getProperty("rejectedBytes"));
+                checkpoint.pendingFrom = Long.parseLong(properties.getProperty("pendingFrom", "0"));
+                checkpoint.pendingTo = Long.parseLong(properties.getProperty("pendingTo", "0"));
+                checkpoint.pendingRecords = Long.parseLong(properties.getProperty("pendingRecords", "0"));
+                checkpoint.pendingRejectedBytes = Long.parseLong(properties.getProperty("pendingRejectedBytes", "0"));
+                return checkpoint.source != null ? checkpoint : null;
+            } catch (NumberFormatException e) {
+                throw new IOException("damaged import checkpoint " + file);
+            }
+        }
+        
+        // Replaced in one move, so a crash leaves the old or the new one
+        void save() throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("source", source);
+            properties.setProperty("records", Long.toString(records));
+            properties.setProperty("rejectedBytes", Long.toString(rejectedBytes));
+            if (pendingTo > 0) {
+                properties.setProperty("pendingFrom", Long.toString(pendingFrom));
+                properties.setProperty("pendingTo", Long.toString(pendingTo));
+                properties.setProperty("pendingRecords", Long.toString(pendingRecords));
+                properties.setProperty("pendingRejectedBytes", Long.toString(pendingRejectedBytes));
+            }
+            StringWriter text = new StringWriter();
+            properties.store(text, "Notes import in progress");
+            ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            
+            Path file = Paths.get(CHECKPOINT_FILE);
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+                out.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+    
+    /**
+     * The interrupted import, if there is one
+     */
+    public static Checkpoint interrupted() throws IOException {
+        return Checkpoint.load();
+    }
+    
+    public static String getRejectedFile() {
+        return REJECTED_FILE;
+    }
+    
+    /**
+     * Import everything in source into store. With resume, an interrupted
+     * import of the same source carries on after the records it finished;
+     * otherwise the import starts from the top.
+     */
+    public static Result run(NotesStore store, Path source, boolean resume) throws IOException {
+        long start = System.nanoTime();
+        Format format = Format.of(source);
+        String name = source.toAbsolutePath().normalize().toString();
+        
+        Checkpoint checkpoint = resume ? Checkpoint.load() : null;
+        if (checkpoint == null || !checkpoint.source.equals(name)) {
+            checkpoint = new Checkpoint(name);
+        } else if (checkpoint.pendingTo > 0) {
+            finishPending(store, checkpoint);
+        }
+        long resumedAfter = checkpoint.records;
+        checkpoint.save();
+        
+        long records = 0;
+        long imported = 0;
+        long rejected = 0;
+        long bytes = 0;
+        ArrayDeque<Batch> free = new ArrayDeque<>();
+        ArrayDeque<Future<Batch>> parsing = new ArrayDeque<>();
+        List<Note> pending = new ArrayList<>();
+        
+        try (Source input = open(format, source);
+             FileChannel deadLetters = FileChannel.open(Paths.get(REJECTED_FILE), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE)) {
+            // Anything after the checkpoint is from records about to be read again
+            deadLetters.truncate(checkpoint.rejectedBytes);
+            deadLetters.position(checkpoint.rejectedBytes);
+            for (long i = 0; i < resumedAfter; i++) {
+                if (input.next() == null) {
+                    break;
+                }
+            }
+            
+            long lastReport = System.nanoTime();
+            long doneRecords = resumedAfter;
+            long rejectedBytes = checkpoint.rejectedBytes;
+            boolean more = true;
+            while (more || !parsing.isEmpty()) {
+                // Keep the pool busy while the oldest batch is committed
+                while (more && parsing.size() < IN_FLIGHT) {
+                    Batch batch = free.isEmpty() ? new Batch() : free.poll();
+                    batch.size = 0;
+                    Raw raw = null;
+                    while (batch.size < RECORDS_PER_BATCH && (raw = input.next()) != null) {
+                        batch.records[batch.size++] = raw;
+                    }
+                    more = raw != null;
+                    if (batch.size == 0) {
+                        free.add(batch);
+                        break;
+                    }
+                    parsing.add(ForkJoinPool.commonPool().submit(() -> batch.parse(format, input)));
+                }
+                if (parsing.isEmpty()) {
+                    break;
+                }
+                
+                Batch done = await(parsing.poll());
+                records += done.size;
+                doneRecords += done.size;
+                imported += done.notes.size();
+                rejected += done.rejected;
+                bytes += done.bytes;
+                pending.addAll(done.notes);
+                if (done.rejected > 0) {
+                    ByteBuffer text = ByteBuffer.wrap(done.deadLetters.toString().getBytes(StandardCharsets.UTF_8));
+                    rejectedBytes += text.remaining();
+                    while (text.hasRemaining()) {
+                        deadLetters.write(text);
+                    }
+                }
+                done.clear();
+                free.add(done);
+                
+                if (pending.size() >= NOTES_PER_COMMIT || (!more && parsing.isEmpty())) {
+                    commit(store, checkpoint, deadLetters, pending, doneRecords, rejectedBytes);
+                    pending.clear();
+                }
+                if (System.nanoTime() - lastReport >= PROGRESS_NANOS) {
+                    lastReport = System.nanoTime();
+                    System.out.printf("  … %,d records, %,d notes, %,d rejected (%,.0f notes/s)%n",
+                            records, imported, rejected,
+                            imported / ((lastReport - start) / 1e9));
+                }
+            }
+            bytes += input.bytesRead();
+        } finally {
+            // Don't return while a failed import still has workers parsing
+            for (Future<Batch> rest : parsing) {
+                try {
+                    rest.get();
+                } catch (InterruptedException | ExecutionException ignored) {
+                }
+            }
+        }
+        
+        // Fold the commits into one snapshot; the checkpoint goes once it is written
+        if (store.saveChanges()) {
+            Files.deleteIfExists(Paths.get(CHECKPOINT_FILE));
+        }
+        Path deadLetters = Paths.get(REJECTED_FILE);
+        if (Files.exists(deadLetters) && Files.size(deadLetters) == 0) {
+            Files.delete(deadLetters);
+        }
+        long nanos = System.nanoTime() - start;
+        NotesMetrics.IMPORT.recordNanos(nanos);
+        NotesMetrics.IMPORT_READ.add(bytes);
+        return new Result(records, imported, rejected, bytes, nanos, resumedAfter);
+    }
+    
+    /**
+     * Give the notes ids, note them in the checkpoint as pending, add
+     * them, and only then count their records as done. The dead letters
+     * are forced first, so the file is never shorter than a checkpoint says.
+     */
+    private static void commit(NotesStore store, Checkpoint checkpoint, FileChannel deadLetters,
+                               List<Note> notes, long records, long rejectedBytes) throws IOException {
+        deadLetters.force(false);
+        if (!notes.isEmpty()) {
+            checkpoint.pendingFrom = NotesFileManager.assignIds(notes);
+            checkpoint.pendingTo = checkpoint.pendingFrom + notes.size() - 1;
+            checkpoint.pendingRecords = records;
+            checkpoint.pendingRejectedBytes = rejectedBytes;
+            checkpoint.save();
+            if (!store.addAll(notes)) {
+                throw new IOException("could not save the imported notes");
+            }
+        }
+        checkpoint.records = records;
+        checkpoint.rejectedBytes = rejectedBytes;
+        checkpoint.pendingTo = 0;
+        checkpoint.save();
+    }
+    
+    /**
+     * Settle a commit that was interrupted: if its last note is in the
+     * store it completed, otherwise take out what part of it got in
+     */
+    private static void finishPending(NotesStore store, Checkpoint checkpoint) throws IOException {
+        if (store.get(checkpoint.pendingTo) != null) {
+            checkpoint.records = checkpoint.pendingRecords;
+            checkpoint.rejectedBytes = checkpoint.pendingRejectedBytes;
+        } else {
+            List<Long> partial = new ArrayList<>();
+            for (long id = checkpoint.pendingFrom; id <= checkpoint.pendingTo; id++) {
+                if (store.get(id) != null) {
+                    partial.add(id);
+                }
+            }
+            if (!partial.isEmpty() && !store.removeAll(partial)) {
+                throw new IOException("could not remove the notes of an unfinished commit");
+            }
+        }
+        checkpoint.pendingTo = 0;
+    }
+    
+    private static Batch await(Future<Batch> parsing) throws IOException {
+        try {
+            return parsing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new IOException("could not parse records: " + cause.getMessage(), cause);
+        }
+    }
+    
+    /**
+     * One input record: a line or CSV record and the line it starts on,
+     * or a file to read (line 0)
+     */
+    private static class Raw {
+        final long line;
+        final String text;
+        final Path file;
+        
+        Raw(long line, String text, Path file) {
+            this.line = line;
+            this.text = text;
+            this.file = file;
+        }
+        
+        String location() {
+            return file != null ? file.toString() : "line " + line;
+        }
+    }
+    
+    /**
+     * A batch of records and what they parse to; batches go back to the
+     * pool once committed
+     */
+    private static class Batch {
+        final Raw[] records = new Raw[RECORDS_PER_BATCH];
+        int size;
+        final List<Note> notes = new ArrayList<>(RECORDS_PER_BATCH);
+        final StringBuilder deadLetters = new StringBuilder();
+        int rejected;
+        long bytes;
+        
+        Batch parse(Format format, Source source) {
+            for (int i = 0; i < size; i++) {
+                Raw raw = records[i];
+                try {
+                    switch (format) {
+                        case FILES: {
+                            byte[] bytes = Files.readAllBytes(raw.file);
+                            this.bytes += bytes.length;
+                            notes.add(fromFile(raw.file, bytes, source.category(raw.file)));
+                            break;
+                        }
+                        case CSV: notes.add(fromCsv(raw.text, source.header())); break;
+                        case JSON_LINES: notes.add(fromJson(raw.text)); break;
+                        default: notes.add(Note.fromFileString(raw.text)); break;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    rejected++;
+                    deadLetters.append("{\"location\":");
+                    NotesExporter.json(deadLetters, raw.location());
+                    NotesExporter.json(deadLetters.append(",\"error\":"), String.valueOf(e.getMessage()));
+                    if (raw.text != null) {
+                        NotesExporter.json(deadLetters.append(",\"input\":"), raw.text);
+                    }
+                    deadLetters.append("}\n");
+                }
+                records[i] = null;
+            }
+            return this;
+        }
+        
+        void clear() {
+            notes.clear();
+            deadLetters.setLength(0);
+            rejected = 0;
+            bytes = 0;
+        }
+    }
+    
+    /**
+     * A note from a text or Markdown file: the title from a leading
+     * "# heading" or else the file name, the category from the directory
+     * it is in below the import directory, and the file's times
+     */
+    private static Note fromFile(Path file, byte[] bytes, String category) throws IOException {
+        String text;
+        try {
+            text = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+        } catch (CharacterCodingException e) {
+            throw new IOException("not UTF-8 text");
+        }
+        if (text.startsWith("\uFEFF")) {
+            text = text.substring(1);
+        }
+        
+        String title = null;
+        String content = text.strip();
+        if (content.startsWith("# ")) {
+            int end = content.indexOf('\n');
+            title = (end < 0 ? content.substring(2) : content.substring(2, end)).strip();
+            content = end < 0 ? "" : content.substring(end + 1).strip();
+        }
+        if (title == null || title.isEmpty()) {
+            String name = file.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            title = dot > 0 ? name.substring(0, dot) : name;
+        }
+        
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        long created = Math.min(attributes.creationTime().toMillis(), modified);
+        return new Note(0, title, content, category != null ? category : DEFAULT_CATEGORY, created, modified);
+    }
+    
+    /**
+     * A note from a CSV record, with columns found by their header names;
+     * only title is required
+     */
+    private static Note fromCsv(String record, Map<String, Integer> header) {
+        List<String> fields = new ArrayList<>(header.size());
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int i = 0;
+        while (i <= record.length()) {
+            char c = i < record.length() ? record.charAt(i) : ',';
+            i++;
+            if (quoted) {
+                if (c == '"' && i < record.length() && record.charAt(i) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else if (i > record.length()) {
+                    throw new IllegalArgumentException("unterminated quoted field");
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (fields.size() != header.size()) {
+            throw new IllegalArgumentException("expected " + header.size() + " fields, found " + fields.size());
+        }
+        Map<String, String> values = new HashMap<>();
+        header.forEach((name, column) -> values.put(name, fields.get(column)));
+        return fromFields(values);
+    }
+    
+    private static Note fromJson(String line) {
+        return fromFields(new NotesServer.JsonObjectReader(line).read());
+    }
+    
+    private static Note fromFields(Map<String, String> fields) {
+        String title = fields.getOrDefault("title", "").strip();
+        if (title.isEmpty()) {
+            throw new IllegalArgumentException("missing title");
+        }
+        String category = fields.getOrDefault("category", "").strip();
+        long now = NoteTimestamps.now();
+        String created = fields.getOrDefault("created", "").strip();
+        String modified = fields.getOrDefault("modified", "").strip();
+        long createdAt = created.isEmpty() ? now : NoteTimestamps.parseIso(created);
+        long lastModified = modified.isEmpty() ? createdAt : NoteTimestamps.parseIso(modified);
+        return new Note(0, title, fields.getOrDefault("content", ""),
+                category.isEmpty() ? DEFAULT_CATEGORY : category, createdAt, lastModified);
+    }
+    
+    private static Source open(Format format, Path source) throws IOException {
+        switch (format) {
+            case FILES: return new FileSource(source);
+            case CSV: return new CsvSource(source);
+            default: return new LineSource(source);
+        }
+    }
+    
+    /**
+     * Records in input order, read on the calling thread
+     */
+    private abstract static class Source implements Closeable {
+        /**
+         * The next record, or null at the end
+         */
+        abstract Raw next() throws IOException;
+        
+        /**
+         * Column numbers by lowercase name, for CSV
+         */
+        Map<String, Integer> header() {
+            return Collections.emptyMap();
+        }
+        
+        /**
+         * Category of a file, for directories
+         */
+        String category(Path file) {
+            return null;
+        }
+        
+        /**
+         * Bytes read by the source itself, as opposed to by the parsers
+         */
+        abstract long bytesRead();
+        
+        @Override
+        public void close() throws IOException {
+        }
+    }
+    
+    /**
+     * Non-blank lines of a UTF-8 file; a leading "@seq" header of the
+     * pipe-delimited format is skipped
+     */
+    private static class LineSource extends Source {
+        final BufferedReader reader;
+        final long size;
+        long line;
+        
+        LineSource(Path file) throws IOException {
+            size = Files.size(file);
+            reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        }
+        
+        String readLine() throws IOException {
+            line++;
+            return reader.readLine();
+        }
+        
+        @Override
+        Raw next() throws IOException {
+            String text;
+            while ((text = readLine()) != null) {
+                if (line == 1 && text.startsWith("\uFEFF")) {
+                    text = text.substring(1);
+                }
+                if (!text.isBlank() && !(line == 1 && text.startsWith("@seq "))) {
+                    return new Raw(line, text, null);
+                }
+            }
+            return null;
+        }
+        
+        @Override
+        long bytesRead() {
+            return size;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+    
+    /**
+     * CSV records, which may span lines inside quotes, after the header row
+     */
+    private static class CsvSource extends LineSource {
+        final Map<String, Integer> header = new HashMap<>();
+        
+        CsvSource(Path file) throws IOException {
+            super(file);
+            Raw first = super.next();
+            if (first == null) {
+                throw new IOException("empty CSV file");
+            }
+            String[] names = first.text.split(",", -1);
+            for (int i = 0; i < names.length; i++) {
+                header.put(names[i].strip().replace("\"", "").toLowerCase(Locale.ROOT), i);
+            }
+            if (!header.containsKey("title")) {
+                throw new IOException("the CSV header has no title column");
+            }
+        }
+        
+        @Override
+        Raw next() throws IOException {
+            Raw first = super.next();
+            if (first == null) {
+                return null;
+            }
+            StringBuilder record = new StringBuilder(first.text);
+            int quotes = count(first.text);
+            String text;
+            // An odd number of quotes so far leaves a field open
+            while (quotes % 2 == 1 && record.length() < MAX_RECORD_CHARS && (text = readLine()) != null) {
+                record.append('\n').append(text);
+                quotes += count(text);
+            }
+            return new Raw(first.line, record.toString(), null);
+        }
+        
+        private static int count(String text) {
+            int quotes = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '"') {
+                    quotes++;
+                }
+            }
+            return quotes;
+        }
+        
+        @Override
+        Map<String, Integer> header() {
+            return header;
+        }
+    }
+    
+    /**
+     * The .txt, .md and .markdown files under a directory, each directory
+     * in name order so a resumed import sees them in the same order.
+     * Hidden files and directories are skipped.
+     */
+    private static class FileSource extends Source {
+        final Path root;
+        final Deque<Iterator<Path>> directories = new ArrayDeque<>();
+        
+        FileSource(Path root) throws IOException {
+            this.root = root;
+            directories.push(list(root));
+        }
+        
+        private static Iterator<Path> list(Path directory) throws IOException {
+            try (Stream<Path> entries = Files.list(directory)) {
+                return entries.filter(path -> !path.getFileName().toString().startsWith("."))
+                              .sorted()
+                              .collect(Collectors.toList())
+                              .iterator();
+            }
+        }
+        
+        /**
+         * The first directory below the import directory, if any
+         */
+        @Override
+        String category(Path file) {
+            Path relative = root.relativize(file);
+            return relative.getNameCount() > 1 ? relative.getName(0).toString() : null;
+        }
+        
+        @Override
+        Raw next() throws IOException {
+            while (!directories.isEmpty()) {
+                Iterator<Path> entries = directories.peek();
+                if (!entries.hasNext()) {
+                    directories.pop();
+                    continue;
+                }
+                Path path = entries.next();
+                if (Files.isDirectory(path)) {
+                    directories.push(list(path));
+                    continue;
+                }
+                String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+                if (name.endsWith(".txt") || name.endsWith(".md") || name.endsWith(".markdown")) {
+                    return new Raw(0, null, path);
+                }
+            }
+            return null;
+        }
+        
+        @Override
+        long bytesRead() {
+            // The parsers count the files they read
+            return 0;
+        }
+    }
+}
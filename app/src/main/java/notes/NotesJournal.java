@@ -0,0 +1,383 @@
+package notes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/**
+ * Append-only journal of note changes, replayed on top of the notes snapshot.
+ * Each add, edit or delete is one NoteCodec record whose payload is:
+ *   seq (long) | op (byte) | note id (long) | note (for ADD and EDIT)
+ * ADD and EDIT store the note under its id, DELETE removes it. Replaying
+ * a record onto notes that already contain its change is harmless, so a
+ * snapshot may safely include changes newer than its sequence number.
+ *
+ * Version 1 journals addressed notes by list position (an int index) and
+ * are still replayed that way.
+ */
+public class NotesJournal {
+    public static final char ADD = 'A';
+    public static final char EDIT = 'E';
+    public static final char DELETE = 'D';
+    
+    private static final int MAGIC = 0x4E4A524E; // "NJRN"
+    
+    private final File file;
+    private final int syncEvery;
+    private final NoteCodec codec = new NoteCodec();
+    private FileOutputStream out;
+    private long lastSeq;
+    private int pendingRecords;
+    private int unsyncedRecords;
+    
+    /**
+     * Open the journal for appending
+     * @param validBytes length of the intact part of the file, as found by replay
+     * @param syncEvery fsync after this many records (0 = leave flushing to the OS)
+     */
+    public NotesJournal(File file, long validBytes, long lastSeq, int pendingRecords, int syncEvery) throws IOException {
+        this.file = file;
+        this.lastSeq = lastSeq;
+        this.pendingRecords = pendingRecords;
+        this.syncEvery = syncEvery;
+        
+        if (validBytes < NoteCodec.headerSize(NoteCodec.VERSION)) {
+            startNewFile(file);
+        } else if (file.length() > validBytes) {
+            // Cut off a record torn by a crash so new records follow intact ones
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+            }
+        }
+        this.out = new FileOutputStream(file, true);
+    }
+    
+    private static void startNewFile(File file) throws IOException {
+        try (FileOutputStream header = new FileOutputStream(file)) {
+            NoteCodec.writeHeader(header, MAGIC, 0, 0);
+        }
+    }
+    
+    /**
+     * One change to be appended
+     */
+    public static class Change {
+        public final char op;
+        public final Note note;
+        
+        public Change(char op, Note note) {
+            this.op = op;
+            this.note = note;
+        }
+    }
+    
+    /**
+     * Append one change record and return its sequence number
+     */
+    public long append(char op, Note note) throws IOException {
+        return appendAll(Collections.singletonList(new Change(op, note)));
+    }
+    
+    /**
+     * Append several change records with a single write and return the
+     * sequence number of the last one
+     */
+    public synchronized long appendAll(Collection<Change> changes) throws IOException {
+        // One write per batch, so a crash can only tear the last record
+        ByteArrayOutputStream records = new ByteArrayOutputStream(64 * changes.size());
+        long seq = lastSeq;
+        for (Change change : changes) {
+            codec.begin().putLong(++seq).putByte(change.op).putLong(change.note.getId());
+            if (change.op != DELETE) {
+                codec.putNote(change.note);
+            }
+            codec.writeTo(records);
+        }
+        records.writeTo(out);
+        NotesMetrics.JOURNAL_WRITTEN.add(records.size());
+        lastSeq = seq;
+        pendingRecords += changes.size();
+        unsyncedRecords += changes.size();
+        
+        if (syncEvery > 0 && unsyncedRecords >= syncEvery) {
+            sync();
+        }
+        return seq;
+    }
+    
+    /**
+     * Force appended records to disk
+     */
+    public synchronized void sync() throws IOException {
+        out.getFD().sync();
+        unsyncedRecords = 0;
+    }
+    
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+    
+    /**
+     * Number of records not yet folded into the snapshot
+     */
+    public synchronized int getPendingRecords() {
+        return pendingRecords;
+    }
+    
+    /**
+     * Drop every record with a sequence number up to and including seq,
+     * once those changes are safely part of the snapshot
+     */
+    public synchronized void truncateThrough(long seq) throws IOException {
+        out.close();
+        
+        File temp = new File(file.getPath() + ".tmp");
+        int remaining = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+             FileOutputStream tempOut = new FileOutputStream(temp);
+             OutputStream copy = new BufferedOutputStream(tempOut)) {
+            // The journal is only kept open in the current version
+            NoteCodec.Header header = NoteCodec.readHeader(in, MAGIC, file.getName());
+            NoteCodec.writeHeader(copy, MAGIC, 0, 0);
+            
+            NoteCodec.RecordReader reader = new NoteCodec.RecordReader(in, header.size());
+            while (true) {
+                ByteBuffer payload;
+                try {
+                    payload = reader.next();
+                } catch (IllegalStateException e) {
+                    continue; // corrupt record, can never be replayed
+                } catch (EOFException e) {
+                    break; // torn tail
+                }
+                if (payload == null) {
+                    break;
+                }
+                if (payload.getLong(0) > seq) {
+                    codec.begin().putBytes(payload).writeTo(copy);
+                    remaining++;
+                }
+            }
+            // Records kept here may exist nowhere else
+            copy.flush();
+            tempOut.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        NotesFileManager.syncDirectory(file.toPath());
+        
+        out = new FileOutputStream(file, true);
+        pendingRecords = remaining;
+        unsyncedRecords = 0;
+    }
+    
+    /**
+     * Throw away the whole journal, e.g. after the snapshot was replaced by a backup
+     */
+    public synchronized void reset() throws IOException {
+        out.close();
+        startNewFile(file);
+        out = new FileOutputStream(file, true);
+        pendingRecords = 0;
+        unsyncedRecords = 0;
+    }
+    
+    public synchronized void close() throws IOException {
+        if (syncEvery > 0 && unsyncedRecords > 0) {
+            sync();
+        }
+        out.close();
+    }
+    
+    /**
+     * Result of replaying a journal file
+     */
+    public static class ReplayResult {
+        public final long lastSeq;
+        public final int applied;
+        public final long validBytes;
+        // Format version of the file; older journals must not be appended to
+        public final int version;
+        
+        ReplayResult(long lastSeq, int applied, long validBytes, int version) {
+            this.lastSeq = lastSeq;
+            this.applied = applied;
+            this.validBytes = validBytes;
+            this.version = version;
+        }
+    }
+    
+    /**
+     * Apply every record newer than afterSeq to notes, in journal order
+     * @param newId allocates ids for notes added by a version 1 journal
+     */
+    public static ReplayResult replay(File file, Map<Long, Note> notes, long afterSeq,
+                                      LongSupplier newId) throws IOException {
+        long lastSeq = afterSeq;
+        int applied = 0;
+        
+        if (!file.exists() || file.length() == 0) {
+            return new ReplayResult(lastSeq, applied, 0, NoteCodec.VERSION);
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 1 << 16))) {
+            NoteCodec.Header header;
+            try {
+                header = NoteCodec.readHeader(in, MAGIC, file.getName());
+            } catch (EOFException e) {
+                // Crashed while writing the header; nothing to replay
+                return new ReplayResult(lastSeq, applied, 0, NoteCodec.VERSION);
+            }
+            NoteCodec.RecordReader reader = new NoteCodec.RecordReader(in, header.size());
+            
+            while (true) {
+                try {
+                    ByteBuffer payload = reader.next();
+                    if (payload == null) {
+                        break;
+                    }
+                    long seq = payload.getLong();
+                    if (seq <= afterSeq) {
+                        continue;
+                    }
+                    char op = (char) payload.get();
+                    if (header.version >= 2) {
+                        apply(op, payload.getLong(), payload, notes);
+                    } else {
+                        applyAt(op, payload.getInt(), payload, notes, newId);
+                    }
+                    lastSeq = Math.max(lastSeq, seq);
+                    applied++;
+                } catch (EOFException e) {
+                    System.err.println("✗ Journal ends with an incomplete record; ignoring it");
+                    break;
+                } catch (Exception e) {
+                    System.err.println("✗ Error replaying journal record " + reader.getRecordNumber() + ": " + e.getMessage());
+                }
+            }
+            
+            return new ReplayResult(lastSeq, applied, reader.getValidBytes(), header.version);
+        }
+    }
+    
+    private static void apply(char op, long id, ByteBuffer payload, Map<Long, Note> notes) {
+        switch (op) {
+            case ADD:
+            case EDIT:
+                notes.put(id, NoteCodec.getNote(payload, NoteCodec.VERSION));
+                break;
+                
+            case DELETE:
+                notes.remove(id);
+                break;
+                
+            default:
+                throw new IllegalArgumentException("Unknown journal operation '" + op + "'");
+        }
+    }
+    
+    /**
+     * Apply a version 1 record, which addresses notes by their position
+     */
+    private static void applyAt(char op, int index, ByteBuffer payload,
+                                Map<Long, Note> notes, LongSupplier newId) {
+        if (op == ADD) {
+            Note note = NoteCodec.getNote(payload, 1);
+            note.assignId(newId.getAsLong());
+            notes.put(note.getId(), note);
+        } else if (op == EDIT || op == DELETE) {
+            long id = idAt(index, notes);
+            if (op == EDIT) {
+                Note note = NoteCodec.getNote(payload, 1);
+                note.assignId(id);
+                notes.put(id, note);
+            } else {
+                notes.remove(id);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown journal operation '" + op + "'");
+        }
+    }
+    
+    /**
+     * Id of the note at a list position; positions follow the map's order
+     */
+    private static long idAt(int index, Map<Long, Note> notes) {
+        if (index < 0 || index >= notes.size()) {
+            throw new IllegalArgumentException("Note index " + index + " out of range");
+        }
+        Iterator<Long> ids = notes.keySet().iterator();
+        for (int i = 0; i < index; i++) {
+            ids.next();
+        }
+        return ids.next();
+    }
+    
+    /**
+     * Replay a journal written in the old one-line-per-change text format
+     * (seq|A|note, seq|E|index|note, seq|D|index); used once while migrating
+     * notes.txt to the binary format
+     */
+    public static int replayText(File file, Map<Long, Note> notes, long afterSeq,
+                                 LongSupplier newId) throws IOException {
+        int applied = 0;
+        
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    int seqEnd = line.indexOf('|');
+                    if (Long.parseLong(line.substring(0, seqEnd)) <= afterSeq) {
+                        continue;
+                    }
+                    char op = line.charAt(seqEnd + 1);
+                    String rest = line.substring(seqEnd + 3);
+                    
+                    if (op == ADD) {
+                        Note note = Note.fromLegacyFileString(rest);
+                        note.assignId(newId.getAsLong());
+                        notes.put(note.getId(), note);
+                    } else {
+                        int indexEnd = rest.indexOf('|');
+                        long id = idAt(Integer.parseInt(indexEnd < 0 ? rest : rest.substring(0, indexEnd)), notes);
+                        if (op == EDIT) {
+                            Note note = Note.fromLegacyFileString(rest.substring(indexEnd + 1));
+                            note.assignId(id);
+                            notes.put(id, note);
+                        } else {
+                            notes.remove(id);
+                        }
+                    }
+                    applied++;
+                } catch (Exception e) {
+                    System.err.println("✗ Error replaying journal line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+        
+        return applied;
+    }
+    
+    /**
+     * True if file starts with the binary journal header
+     */
+    public static boolean isBinary(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,745 @@
+package notes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Console front end for managing notes. The notes themselves are in a
+ * NotesStore, which other front ends may be changing at the same time.
+ */
+public class NotesManager {
+    private static final int MAX_SEARCH_RESULTS = 50;
+    private static final int MAX_DUPLICATE_GROUPS = 20;
+    // Unchanged lines shown around each change in a diff
+    private static final int DIFF_CONTEXT = 2;
+    
+    private final NotesStore store;
+    private Scanner scanner;
+    
+    /**
+     * Load notes from file on startup
+     */
+    public NotesManager() {
+        this(new NotesStore());
+    }
+    
+    /**
+     * A console on a store shared with other front ends
+     */
+    public NotesManager(NotesStore store) {
+        this.store = store;
+        this.scanner = new Scanner(System.in);
+    }
+    
+    public NotesStore getStore() {
+        return store;
+    }
+    
+    /**
+     * Add a new note
+     */
+    public void addNote() {
+        System.out.println("\n=== ADD NEW NOTE ===");
+        
+        System.out.print("Enter note title: ");
+        String title = scanner.nextLine().trim();
+        
+        if (title.isEmpty()) {
+            System.out.println("✗ Title cannot be empty!");
+            return;
+        }
+        
+        System.out.print("Enter category: ");
+        String category = scanner.nextLine().trim();
+        
+        if (category.isEmpty()) {
+            category = "General";
+        }
+        
+        System.out.println("Enter note content (type 'END' on a new line to finish):");
+        StringBuilder content = new StringBuilder();
+        String line;
+        
+        while (!(line = scanner.nextLine()).equals("END")) {
+            if (content.length() > 0) {
+                content.append("\n");
+            }
+            content.append(line);
+        }
+        
+        NotesStore.Result result = store.add(title, content.toString(), category);
+        if (result.status == NotesStore.Status.OK) {
+            confirmRecorded(result);
+            System.out.println("✓ Note added successfully!");
+        }
+    }
+    
+    /**
+     * Display all notes, a page at a time
+     */
+    public void displayAllNotes() {
+        if (store.isEmpty()) {
+            System.out.println("\nNo notes found.");
+            return;
+        }
+        
+        System.out.println("\n=== ALL NOTES (" + store.size() + ") ===");
+        allNotesPager().browse(scanner);
+    }
+    
+    private NotesPager allNotesPager() {
+        NavigableMap<Long, Note> notes = store.view();
+        return new NotesPager(NotesPager.byId(notes.navigableKeySet(), notes), false);
+    }
+    
+    /**
+     * Search notes by keyword
+     */
+    public void searchNotes() {
+        System.out.print("\nEnter search keyword: ");
+        String query = scanner.nextLine().trim();
+        
+        if (query.isEmpty()) {
+            System.out.println("✗ Search query cannot be empty!");
+            return;
+        }
+        
+        NotesSearchIndex.SearchResult result = store.search(query, MAX_SEARCH_RESULTS);
+        List<Note> matchingNotes = result.top;
+        
+        if (matchingNotes.isEmpty()) {
+            System.out.println("No notes found matching: " + query);
+            return;
+        }
+        
+        System.out.println("\n=== SEARCH RESULTS (" + result.totalHits + ") ===");
+        if (result.totalHits > matchingNotes.size()) {
+            System.out.println("Showing the best " + matchingNotes.size() + " matches");
+        }
+        new NotesPager(NotesPager.ofList(matchingNotes), false).browse(scanner);
+    }
+    
+    /**
+     * List categories with their note counts, then page through one
+     */
+    public void displayNotesByCategory() {
+        if (store.isEmpty()) {
+            System.out.println("\nNo notes found.");
+            return;
+        }
+        
+        System.out.println("\n=== NOTES BY CATEGORY ===");
+        for (String category : store.categories()) {
+            System.out.println("📁 " + category + " (" + store.count(category) + " notes)");
+        }
+        
+        System.out.print("\nEnter a category to browse (or press Enter to go back): ");
+        String category = scanner.nextLine().trim();
+        if (category.isEmpty()) {
+            return;
+        }
+        if (store.count(category) == 0) {
+            System.out.println("✗ No notes in category '" + category + "'!");
+            return;
+        }
+        
+        System.out.println("\n📁 " + category);
+        System.out.println("=".repeat(30));
+        new NotesPager(NotesPager.byId(store.idsIn(category), store.view()), true).browse(scanner);
+    }
+    
+    /**
+     * Page through the notes created or modified in a range of dates,
+     * newest first, found through the time index
+     */
+    public void displayNotesByDate() {
+        System.out.println("\n=== NOTES BY DATE ===");
+        System.out.print("Created or modified? (c/M): ");
+        NotesTimeIndex.Field field = scanner.nextLine().trim().equalsIgnoreCase("c")
+                ? NotesTimeIndex.Field.CREATED : NotesTimeIndex.Field.MODIFIED;
+        
+        long from;
+        long to;
+        try {
+            System.out.print("From (yyyy-MM-dd, Enter for the first note): ");
+            from = readTime(scanner.nextLine().trim(), false, Long.MIN_VALUE);
+            System.out.print("Until (yyyy-MM-dd, included; Enter for the last note): ");
+            to = readTime(scanner.nextLine().trim(), true, Long.MAX_VALUE);
+        } catch (DateTimeParseException e) {
+            System.out.println("✗ Invalid date! Use yyyy-MM-dd or yyyy-MM-ddTHH:mm.");
+            return;
+        }
+        
+        NavigableSet<NotesTimeIndex.Stamp> range = store.between(field, from, to);
+        if (range.isEmpty()) {
+            System.out.println("No notes " + field.name().toLowerCase() + " in that range.");
+            return;
+        }
+        System.out.println("\n=== NOTES " + field.name() + " (" + range.size() + ") ===");
+        new NotesPager(NotesPager.byTime(range, field, store.view(), true), true).browse(scanner);
+    }
+    
+    // A date covers the whole day: its start as a lower bound, the start
+    // of the next day as an upper one; a date-time is taken as it is
+    private static long readTime(String input, boolean upper, long none) {
+        if (input.isEmpty()) {
+            return none;
+        }
+        if (input.length() == 10) {
+            LocalDate date = LocalDate.parse(input);
+            return NoteTimestamps.toEpochMillis((upper ? date.plusDays(1) : date).atStartOfDay());
+        }
+        return NoteTimestamps.parseIso(input) + (upper ? 1 : 0);
+    }
+    
+    /**
+     * Edit an existing note. The edit only applies if nobody else changed
+     * the note while it was being typed in.
+     */
+    public void editNote() {
+        if (store.isEmpty()) {
+            System.out.println("\nNo notes to edit.");
+            return;
+        }
+        
+        Long chosen = allNotesPager().choose(scanner, "edit");
+        if (chosen == null) {
+            System.out.println("Edit cancelled.");
+            return;
+        }
+        
+        try {
+            long id = chosen;
+            Note note = store.get(id);
+            
+            if (note == null) {
+                System.out.println("✗ No note with ID " + id + "!");
+                return;
+            }
+            
+            Consumer<Note> change;
+            String updated;
+            
+            System.out.println("\nEditing note: " + note.getTitle());
+            System.out.println("1. Edit title");
+            System.out.println("2. Edit content");
+            System.out.println("3. Edit category");
+            System.out.print("Choose option (1-3): ");
+            
+            int choice = Integer.parseInt(scanner.nextLine());
+            
+            switch (choice) {
+                case 1:
+                    System.out.print("Enter new title: ");
+                    String newTitle = scanner.nextLine().trim();
+                    if (newTitle.isEmpty()) {
+                        return;
+                    }
+                    change = n -> n.setTitle(newTitle);
+                    updated = "✓ Title updated!";
+                    break;
+                    
+                case 2:
+                    System.out.println("Enter new content (type 'END' on a new line to finish):");
+                    StringBuilder newContent = new StringBuilder();
+                    String line;
+                    
+                    while (!(line = scanner.nextLine()).equals("END")) {
+                        if (newContent.length() > 0) {
+                            newContent.append("\n");
+                        }
+                        newContent.append(line);
+                    }
+                    
+                    change = n -> n.setContent(newContent.toString());
+                    updated = "✓ Content updated!";
+                    break;
+                    
+                case 3:
+                    System.out.print("Enter new category: ");
+                    String newCategory = scanner.nextLine().trim();
+                    if (newCategory.isEmpty()) {
+                        return;
+                    }
+                    change = n -> n.setCategory(newCategory);
+                    updated = "✓ Category updated!";
+                    break;
+                    
+                default:
+                    System.out.println("✗ Invalid option!");
+                    return;
+            }
+            
+            NotesStore.Result result = store.edit(id, note.getVersion(), change);
+            if (result.status == NotesStore.Status.CONFLICT) {
+                System.out.println("✗ Note was changed by someone else in the meantime; edit not applied.");
+            } else if (result.status == NotesStore.Status.NOT_FOUND) {
+                System.out.println("✗ Note was deleted in the meantime; edit not applied.");
+            } else {
+                confirmRecorded(result);
+                System.out.println(updated);
+            }
+            
+        } catch (NumberFormatException e) {
+            System.out.println("✗ Invalid input! Please enter a number.");
+        }
+    }
+    
+    /**
+     * Delete a note
+     */
+    public void deleteNote() {
+        if (store.isEmpty()) {
+            System.out.println("\nNo notes to delete.");
+            return;
+        }
+        
+        Long chosen = allNotesPager().choose(scanner, "delete");
+        if (chosen == null) {
+            System.out.println("Delete cancelled.");
+            return;
+        }
+        
+        long id = chosen;
+        Note note = store.get(id);
+        
+        if (note == null) {
+            System.out.println("✗ No note with ID " + id + "!");
+            return;
+        }
+        
+        System.out.print("Are you sure you want to delete '" + note.getTitle() + "'? (y/N): ");
+        String confirm = scanner.nextLine().trim().toLowerCase();
+        
+        if (confirm.equals("y") || confirm.equals("yes")) {
+            NotesStore.Result result = store.delete(id, note.getVersion());
+            if (result.status == NotesStore.Status.CONFLICT) {
+                System.out.println("✗ Note was changed by someone else in the meantime; not deleted.");
+            } else if (result.status == NotesStore.Status.NOT_FOUND) {
+                System.out.println("✗ Note was already deleted.");
+            } else {
+                confirmRecorded(result);
+                System.out.println("✓ Note deleted successfully!");
+            }
+        } else {
+            System.out.println("Delete cancelled.");
+        }
+    }
+    
+    /**
+     * Export notes to file
+     */
+    public void exportNotes() {
+        if (store.isEmpty()) {
+            System.out.println("\nNo notes to export.");
+            return;
+        }
+        
+        System.out.print("Enter export filename (e.g., my_notes.txt): ");
+        String filename = scanner.nextLine().trim();
+        
+        if (filename.isEmpty()) {
+            filename = "notes_export.txt";
+        }
+        
+        List<NotesExporter.Format> formats = NotesExporter.formats();
+        for (int i = 0; i < formats.size(); i++) {
+            System.out.println((i + 1) + ". " + formats.get(i).getName());
+        }
+        System.out.print("Choose format (1-" + formats.size() + ", default 1): ");
+        String choice = scanner.nextLine().trim();
+        
+        NotesExporter.Format format = formats.get(0);
+        try {
+            if (!choice.isEmpty()) {
+                format = formats.get(Integer.parseInt(choice) - 1);
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            System.out.println("✗ Invalid choice! Using the readable report.");
+        }
+        NotesFileManager.exportNotes(store.view().values(), filename, format);
+    }
+    
+    /**
+     * Show statistics
+     */
+    public void showStatistics() {
+        System.out.println("\n=== NOTES STATISTICS ===");
+        store.readStatistics(this::printStatistics);
+        NotesFileManager.showFileStats();
+        NotesContentCache.showStats();
+        NotesChunkStore.showStats();
+    }
+    
+    /**
+     * List the notes whose content other notes have too, the groups with
+     * the most space in extra copies first
+     */
+    public void displayDuplicates() {
+        if (store.isEmpty()) {
+            System.out.println("\nNo notes found.");
+            return;
+        }
+        
+        System.out.println("\n=== DUPLICATE NOTES ===");
+        List<NotesChunkStore.Duplicates> groups = store.duplicates();
+        if (groups.isEmpty()) {
+            System.out.println("✓ No two notes have the same content.");
+            return;
+        }
+        long notes = 0;
+        long wasted = 0;
+        for (NotesChunkStore.Duplicates group : groups) {
+            notes += group.notes.size();
+            wasted += group.getWastedBytes();
+        }
+        System.out.println(groups.size() + " contents are in more than one note: " + notes
+                + " notes, " + wasted + " bytes in the extra copies");
+        
+        for (NotesChunkStore.Duplicates group : groups.subList(0, Math.min(groups.size(), MAX_DUPLICATE_GROUPS))) {
+            String preview = group.notes.get(0).getContentPreview(60).replace('\n', ' ');
+            System.out.println("\n" + group.notes.size() + " notes, " + group.bytes + " bytes each: " + preview);
+            for (Note note : group.notes) {
+                System.out.println("   #" + note.getId() + " [" + note.getCategory() + "] " + note.getTitle());
+            }
+        }
+        if (groups.size() > MAX_DUPLICATE_GROUPS) {
+            System.out.println("\n... and " + (groups.size() - MAX_DUPLICATE_GROUPS) + " more");
+        }
+    }
+    
+    /**
+     * List the revisions of a note, then compare, show or restore them
+     */
+    public void showHistory() {
+        if (store.isEmpty()) {
+            System.out.println("\nNo notes found.");
+            return;
+        }
+        if (!NotesHistory.isEnabled()) {
+            System.out.println("\n✗ Note history is turned off (-Dnotes.history=false).");
+            return;
+        }
+        
+        Long chosen = allNotesPager().choose(scanner, "see the history of");
+        if (chosen == null) {
+            return;
+        }
+        long id = chosen;
+        if (store.get(id) == null) {
+            System.out.println("✗ No note with ID " + id + "!");
+            return;
+        }
+        
+        try {
+            browseHistory(id);
+        } catch (UncheckedIOException e) {
+            System.out.println("✗ " + e.getMessage());
+        }
+    }
+    
+    // List a note's revisions and act on them until the user goes back
+    private void browseHistory(long id) {
+        while (true) {
+            List<NotesHistory.Revision> revisions = store.history(id);
+            if (revisions.isEmpty()) {
+                System.out.println("\nNote #" + id + " has not been edited yet.");
+                return;
+            }
+            System.out.println("\n=== HISTORY OF #" + id + " (" + revisions.size() + " revisions) ===");
+            for (NotesHistory.Revision revision : revisions) {
+                StringBuilder line = new StringBuilder(96).append(String.format("%4d. ", revision.number));
+                NoteTimestamps.appendDisplay(revision.modified, line)
+                        .append(String.format("  %-5s %7d bytes  ", revision.full ? "full" : "delta", revision.storedBytes))
+                        .append('[').append(revision.category).append("] ").append(revision.title);
+                System.out.println(line);
+            }
+            
+            System.out.print("\nCompare two revisions (e.g. 1 3), show one (s 2), restore one (r 2), Enter to go back: ");
+            String[] input = scanner.nextLine().trim().split("\\s+");
+            try {
+                if (input[0].isEmpty()) {
+                    return;
+                } else if (input.length == 2 && input[0].equalsIgnoreCase("s")) {
+                    showRevision(id, Integer.parseInt(input[1]));
+                } else if (input.length == 2 && input[0].equalsIgnoreCase("r")) {
+                    restoreRevision(id, Integer.parseInt(input[1]));
+                } else if (input.length == 2) {
+                    compareRevisions(id, Integer.parseInt(input[0]), Integer.parseInt(input[1]));
+                } else {
+                    System.out.println("✗ Invalid input!");
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("✗ Invalid input! Revisions are numbers.");
+            }
+        }
+    }
+    
+    private void showRevision(long id, int number) {
+        NotesHistory.Revision revision = store.revision(id, number);
+        if (revision == null) {
+            System.out.println("✗ No revision " + number + "!");
+            return;
+        }
+        StringBuilder out = new StringBuilder(256).append("\n--- Revision ").append(number).append(" ---\n[")
+                .append(revision.category).append("] ").append(revision.title).append("\nModified: ");
+        NoteTimestamps.appendDisplay(revision.modified, out).append('\n').append(revision.content);
+        System.out.println(out);
+    }
+    
+    private void compareRevisions(long id, int from, int to) {
+        NotesHistory.Revision a = store.revision(id, from);
+        NotesHistory.Revision b = store.revision(id, to);
+        if (a == null || b == null) {
+            System.out.println("✗ No revision " + (a == null ? from : to) + "!");
+            return;
+        }
+        System.out.println("\n--- Revision " + from + "\n+++ Revision " + to);
+        if (!a.title.equals(b.title)) {
+            System.out.println("Title: " + a.title + " -> " + b.title);
+        }
+        if (!a.category.equals(b.category)) {
+            System.out.println("Category: " + a.category + " -> " + b.category);
+        }
+        List<String> diff = NotesDiff.unified(a.content, b.content, DIFF_CONTEXT);
+        if (diff.isEmpty()) {
+            System.out.println("Content is the same.");
+        }
+        for (String line : diff) {
+            System.out.println(line);
+        }
+    }
+    
+    private void restoreRevision(long id, int number) {
+        Note note = store.get(id);
+        if (note == null) {
+            System.out.println("✗ Note was deleted in the meantime.");
+            return;
+        }
+        System.out.print("Restore '" + note.getTitle() + "' to revision " + number + "? (y/N): ");
+        String confirm = scanner.nextLine().trim().toLowerCase();
+        if (!confirm.equals("y") && !confirm.equals("yes")) {
+            System.out.println("Restore cancelled.");
+            return;
+        }
+        
+        NotesStore.Result result = store.restoreRevision(id, number, note.getVersion());
+        if (result.status == NotesStore.Status.CONFLICT) {
+            System.out.println("✗ Note was changed by someone else in the meantime; not restored.");
+        } else if (result.status == NotesStore.Status.NOT_FOUND) {
+            System.out.println("✗ No revision " + number + "!");
+        } else {
+            confirmRecorded(result);
+            System.out.println("✓ Note restored to revision " + number + "!");
+        }
+    }
+    
+    /**
+     * Tell the user whether a change was saved to the journal or queued for it
+     */
+    private void confirmRecorded(NotesStore.Result result) {
+        String recording = NotesFileManager.describeRecording();
+        if (result.status == NotesStore.Status.OK && recording != null) {
+            System.out.println(recording);
+        }
+    }
+    
+    /**
+     * Show the metrics, and write them out for Prometheus if asked
+     */
+    public void showMetrics() {
+        NotesMetrics.showStats();
+        if (!NotesMetrics.isEnabled()) {
+            return;
+        }
+        
+        System.out.print("\nExport as a Prometheus text file (filename, Enter to skip): ");
+        String filename = scanner.nextLine().trim();
+        if (!filename.isEmpty()) {
+            NotesFileManager.exportMetrics(filename);
+        }
+    }
+    
+    private void printStatistics(NotesStatistics statistics) {
+        NotesStatistics.Totals total = statistics.getTotal();
+        System.out.println("Total notes: " + total.notes);
+        
+        if (total.notes > 0) {
+            // Category statistics
+            System.out.println("Categories: " + statistics.getCategories().size());
+            statistics.getCategories().forEach((category, totals) ->
+                System.out.println("  " + category + ": " + totals.notes + " notes, " + totals.words + " words"));
+            
+            // Content statistics
+            System.out.println("Total words: " + total.words);
+            System.out.println("Total characters: " + total.characters);
+            System.out.println("Average words per note: " + (total.words / total.notes));
+            System.out.println("Note length: " + statistics.getMinLength() + " to "
+                    + statistics.getMaxLength() + " characters, "
+                    + (total.characters / total.notes) + " on average");
+        }
+    }
+    
+    /**
+     * Backup and restore operations
+     */
+    public void backupOperations() {
+        System.out.println("\n=== BACKUP OPERATIONS ===");
+        System.out.println("1. Create backup");
+        System.out.println("2. Restore from backup");
+        System.out.println("3. Import notes (directory, CSV, JSON Lines or pipe-delimited text)");
+        System.out.println("4. Change the number of notes files (shards)");
+        System.out.print("Choose option (1-4): ");
+        
+        try {
+            int choice = Integer.parseInt(scanner.nextLine());
+            
+            switch (choice) {
+                case 1:
+                    // Fold pending journal changes in so the backup is complete
+                    store.saveChanges();
+                    NotesFileManager.createBackup();
+                    break;
+                    
+                case 2:
+                    List<NotesBackupSet.Generation> generations = NotesFileManager.listBackups();
+                    NotesBackupSet.Generation generation = null;
+                    if (!generations.isEmpty()) {
+                        System.out.println("Backup generations:");
+                        for (NotesBackupSet.Generation g : generations) {
+                            System.out.println("  " + g.number + ". " + new Date(g.createdAt)
+                                    + " (" + g.length + " bytes)");
+                        }
+                        NotesBackupSet.Generation latest = generations.get(generations.size() - 1);
+                        System.out.print("Generation to restore (default " + latest.number + "): ");
+                        String number = scanner.nextLine().trim();
+                        generation = latest;
+                        if (!number.isEmpty()) {
+                            int wanted = Integer.parseInt(number);
+                            generation = generations.stream()
+                                    .filter(g -> g.number == wanted)
+                                    .findFirst()
+                                    .orElse(null);
+                            if (generation == null) {
+                                System.out.println("✗ No backup generation " + wanted + "!");
+                                break;
+                            }
+                        }
+                    }
+                    
+                    System.out.print("This will overwrite current notes. Continue? (y/N): ");
+                    String confirm = scanner.nextLine().trim().toLowerCase();
+                    
+                    if (confirm.equals("y") || confirm.equals("yes")) {
+                        // Reloads the notes from the restored file
+                        store.restore(generation);
+                    } else {
+                        System.out.println("Restore cancelled.");
+                    }
+                    break;
+                    
+                case 3:
+                    importNotes();
+                    break;
+                    
+                case 4:
+                    System.out.println("Notes are stored in " + NotesFileManager.getNotesLocation());
+                    System.out.print("Number of files to split them across (1 = a single notes.dat): ");
+                    int count = Integer.parseInt(scanner.nextLine().trim());
+                    store.reshard(count);
+                    break;
+                    
+                default:
+                    System.out.println("✗ Invalid option!");
+            }
+            
+        } catch (NumberFormatException e) {
+            System.out.println("✗ Invalid input! Please enter a number.");
+        }
+    }
+    
+    /**
+     * Ask for something to import, offering to finish an interrupted
+     * import first
+     */
+    private void importNotes() {
+        String source = null;
+        boolean resume = false;
+        try {
+            NotesImporter.Checkpoint interrupted = NotesImporter.interrupted();
+            if (interrupted != null) {
+                System.out.print("The import of " + interrupted.source + " stopped after "
+                        + interrupted.getRecords() + " records. Resume it? (Y/n): ");
+                String answer = scanner.nextLine().trim().toLowerCase();
+                if (answer.isEmpty() || answer.equals("y") || answer.equals("yes")) {
+                    source = interrupted.source;
+                    resume = true;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("✗ Error reading the import checkpoint: " + e.getMessage());
+        }
+        
+        if (source == null) {
+            System.out.print("Enter a directory, or a .csv, .jsonl or pipe-delimited file to import: ");
+            source = scanner.nextLine().trim();
+            if (source.isEmpty()) {
+                System.out.println("✗ Filename cannot be empty!");
+                return;
+            }
+        }
+        importFrom(source, resume);
+    }
+    
+    /**
+     * Import everything in source, resuming an interrupted import of it if
+     * resume is set, and report how it went
+     */
+    public boolean importFrom(String source, boolean resume) {
+        try {
+            Path path = Paths.get(source);
+            if (!Files.exists(path)) {
+                System.out.println("✗ " + source + " does not exist!");
+                return false;
+            }
+            System.out.println("Importing " + NotesImporter.Format.of(path).getDescription() + " from " + source);
+            NotesImporter.Result result = NotesImporter.run(store, path, resume);
+            if (result.resumedAfter > 0) {
+                System.out.println("  (resumed after " + result.resumedAfter + " records)");
+            }
+            System.out.printf("✓ Imported %d notes from %d records (%.1f MB in %.1f s, %.0f notes/s, %.1f MB/s)%n",
+                    result.notes, result.records, result.bytes / 1e6, result.nanos / 1e9,
+                    result.getNotesPerSecond(), result.getMegabytesPerSecond());
+            if (result.rejected > 0) {
+                System.out.println("✗ " + result.rejected + " records could not be imported; see "
+                        + NotesImporter.getRejectedFile());
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("✗ Error importing notes: " + e.getMessage());
+            System.err.println("  Import " + source + " again to resume where it stopped.");
+            return false;
+        }
+    }
+    
+    /**
+     * Flush pending changes before the application exits
+     */
+    public void close() {
+        store.close();
+    }
+    
+    /**
+     * Get total number of notes
+     */
+    public int getNotesCount() {
+        return store.size();
+    }
+}
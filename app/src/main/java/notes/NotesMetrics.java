@@ -0,0 +1,348 @@
+package notes;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process counters and latency histograms for the file operations,
+ * search and parsing, shown on the metrics screen and written out in the
+ * Prometheus text format. Recording takes no lock: counters are
+ * LongAdders and a histogram is an array of atomic bucket counts.
+ *
+ * Histograms are log-linear like HdrHistogram's: every power of two is
+ * split into 32 buckets, so a percentile is within about 3% of the true
+ * value, from nanoseconds to hours, in a fixed 15 KB per histogram.
+ *
+ * -Dnotes.metrics=false turns recording off. The check is a static final
+ * flag, so the JIT drops the recording code and the clock reads with it.
+ */
+public class NotesMetrics {
+    private static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("notes.metrics"));
+    
+    // Buckets per power of two, as a number of bits
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    
+    private static final List<Metric> metrics = new ArrayList<>();
+    
+    public static final Timer LOAD = timer("notes_load_seconds", "", "Loading the notes files and replaying the journal");
+    public static final Timer SAVE = timer("notes_save_seconds", "", "Writing a snapshot (saves and journal compactions)");
+    public static final Timer BACKUP = timer("notes_backup_seconds", "", "Creating a backup generation");
+    public static final Timer EXPORT = timer("notes_export_seconds", "", "Exporting notes to a file");
+    public static final Timer SEARCH = timer("notes_search_seconds", "", "Searching the notes");
+    public static final Timer IMPORT = timer("notes_import_seconds", "", "Bulk imports, from start to the final snapshot");
+    public static final Timer PARSE_TEXT = timer("notes_parse_seconds", "format=\"text\"",
+            "Parsing one note from a line or record");
+    public static final Timer PARSE_RECORD = timer("notes_parse_seconds", "format=\"record\"",
+            "Parsing one note from a line or record");
+    
+    public static final Counter TEXT_ERRORS = counter("notes_parse_errors_total", "format=\"text\"",
+            "Lines and records that could not be parsed");
+    public static final Counter RECORD_ERRORS = counter("notes_parse_errors_total", "format=\"record\"",
+            "Lines and records that could not be parsed");
+    public static final Counter CHECKSUM_ERRORS = counter("notes_checksum_errors_total", "",
+            "Records skipped because their checksum did not match");
+    
+    public static final Counter NOTES_READ = counter("notes_read_bytes_total", "file=\"notes\"", "Bytes read");
+    public static final Counter JOURNAL_READ = counter("notes_read_bytes_total", "file=\"journal\"", "Bytes read");
+    public static final Counter INDEX_READ = counter("notes_read_bytes_total", "file=\"index\"", "Bytes read");
+    public static final Counter IMPORT_READ = counter("notes_read_bytes_total", "file=\"import\"", "Bytes read");
+    public static final Counter HISTORY_READ = counter("notes_read_bytes_total", "file=\"history\"", "Bytes read");
+    public static final Counter NOTES_WRITTEN = counter("notes_written_bytes_total", "file=\"notes\"",
+            "Bytes written");
+    public static final Counter JOURNAL_WRITTEN = counter("notes_written_bytes_total", "file=\"journal\"",
+            "Bytes written");
+    public static final Counter INDEX_WRITTEN = counter("notes_written_bytes_total", "file=\"index\"",
+            "Bytes written");
+    public static final Counter HISTORY_WRITTEN = counter("notes_written_bytes_total", "file=\"history\"",
+            "Bytes written");
+    public static final Counter BACKUP_WRITTEN = counter("notes_written_bytes_total", "file=\"backup\"",
+            "Bytes written");
+    public static final Counter EXPORT_WRITTEN = counter("notes_written_bytes_total", "file=\"export\"",
+            "Bytes written");
+    
+    /**
+     * A named series; metrics sharing a name differ in their labels
+     */
+    public abstract static class Metric {
+        public final String name;
+        public final String labels;
+        public final String help;
+        
+        Metric(String name, String labels, String help) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+        }
+        
+        abstract String type();
+        
+        abstract void writeTo(StringBuilder out);
+        
+        /**
+         * Name with labels, plus extra labels if any
+         */
+        String series(String suffix, String extra) {
+            String all = labels.isEmpty() ? extra : extra.isEmpty() ? labels : labels + "," + extra;
+            return all.isEmpty() ? name + suffix : name + suffix + "{" + all + "}";
+        }
+    }
+    
+    public static final class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+        
+        Counter(String name, String labels, String help) {
+            super(name, labels, help);
+        }
+        
+        public void increment() {
+            if (ENABLED) {
+                value.increment();
+            }
+        }
+        
+        public void add(long amount) {
+            if (ENABLED) {
+                value.add(amount);
+            }
+        }
+        
+        public long get() {
+            return value.sum();
+        }
+        
+        @Override
+        String type() {
+            return "counter";
+        }
+        
+        @Override
+        void writeTo(StringBuilder out) {
+            out.append(series("", "")).append(' ').append(get()).append('\n');
+        }
+    }
+    
+    /**
+     * Histogram of durations in nanoseconds, with their count, sum and
+     * maximum
+     */
+    public static final class Timer extends Metric {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        
+        Timer(String name, String labels, String help) {
+            super(name, labels, help);
+        }
+        
+        /**
+         * Record the time since start, a value from NotesMetrics.start()
+         */
+        public void record(long start) {
+            if (ENABLED) {
+                recordNanos(System.nanoTime() - start);
+            }
+        }
+        
+        public void recordNanos(long nanos) {
+            if (!ENABLED) {
+                return;
+            }
+            nanos = Math.max(nanos, 0);
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            if (nanos > maxNanos.get()) {
+                maxNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+        
+        public long getCount() {
+            return count.sum();
+        }
+        
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+        
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+        
+        public double getMeanNanos() {
+            long n = getCount();
+            return n == 0 ? 0 : (double) getTotalNanos() / n;
+        }
+        
+        /**
+         * Duration that a fraction q of the recorded ones did not exceed:
+         * the top of the bucket holding it, or the maximum if lower
+         */
+        public long getPercentileNanos(double q) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i) - 1, getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+        
+        @Override
+        String type() {
+            return "summary";
+        }
+        
+        @Override
+        void writeTo(StringBuilder out) {
+            boolean empty = getCount() == 0;
+            for (double q : QUANTILES) {
+                out.append(series("", "quantile=\"" + q + "\"")).append(' ')
+                   .append(empty ? "NaN" : Double.toString(getPercentileNanos(q) / 1e9)).append('\n');
+            }
+            out.append(series("_sum", "")).append(' ').append(getTotalNanos() / 1e9).append('\n');
+            out.append(series("_count", "")).append(' ').append(getCount()).append('\n');
+        }
+    }
+    
+    private NotesMetrics() {
+    }
+    
+    private static Timer timer(String name, String labels, String help) {
+        Timer timer = new Timer(name, labels, help);
+        metrics.add(timer);
+        return timer;
+    }
+    
+    private static Counter counter(String name, String labels, String help) {
+        Counter counter = new Counter(name, labels, help);
+        metrics.add(counter);
+        return counter;
+    }
+    
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+    
+    /**
+     * Start of a timed operation, to pass to Timer.record (0 when disabled)
+     */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+    
+    public static List<Metric> all() {
+        return Collections.unmodifiableList(metrics);
+    }
+    
+    // Bucket of a value: values below SUB_BUCKETS get one each, larger
+    // ones SUB_BUCKETS per power of two
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    // First value above bucket i
+    static long upperBound(int i) {
+        if (i < SUB_BUCKETS) {
+            return i + 1;
+        }
+        int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+        long lower = (long) (SUB_BUCKETS + i % SUB_BUCKETS) << (exponent - SUB_BITS);
+        long upper = lower + (1L << (exponent - SUB_BITS));
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+    
+    /**
+     * Every metric in the Prometheus text exposition format
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder(8192);
+        String family = null;
+        for (Metric metric : metrics) {
+            if (!metric.name.equals(family)) {
+                family = metric.name;
+                out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            }
+            metric.writeTo(out);
+        }
+        return out.toString();
+    }
+    
+    /**
+     * Write toPrometheus() to a file, e.g. for node_exporter's textfile
+     * collector. The file is replaced in one move, so a scrape never reads
+     * half of it.
+     */
+    public static void writePrometheus(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.write(toPrometheus());
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Print every timer with its percentiles, and every counter
+     */
+    public static void showStats() {
+        System.out.println("\n=== METRICS ===");
+        if (!ENABLED) {
+            System.out.println("Metrics are off (-Dnotes.metrics=false)");
+            return;
+        }
+        System.out.printf("%-38s %8s %10s %10s %10s %10s%n", "Operation", "Count", "Mean", "p50", "p99", "Max");
+        for (Metric metric : metrics) {
+            if (metric instanceof Timer) {
+                Timer timer = (Timer) metric;
+                System.out.printf("%-38s %8d %10s %10s %10s %10s%n", metric.series("", ""), timer.getCount(),
+                        duration(timer.getMeanNanos()), duration(timer.getPercentileNanos(0.5)),
+                        duration(timer.getPercentileNanos(0.99)), duration(timer.getMaxNanos()));
+            }
+        }
+        System.out.println();
+        for (Metric metric : metrics) {
+            if (metric instanceof Counter) {
+                System.out.printf("%-47s %d%n", metric.series("", ""), ((Counter) metric).get());
+            }
+        }
+    }
+    
+    private static String duration(double nanos) {
+        if (nanos < 1e3) {
+            return String.format("%.0f ns", nanos);
+        } else if (nanos < 1e6) {
+            return String.format("%.1f µs", nanos / 1e3);
+        } else if (nanos < 1e9) {
+            return String.format("%.1f ms", nanos / 1e6);
+        }
+        return String.format("%.2f s", nanos / 1e9);
+    }
+}
@@ -0,0 +1,302 @@
+package notes;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Console view of notes one page at a time. Only the notes on the page are
+ * visited: moving to the next or previous page or jumping to an id starts
+ * from the note at the edge of the page, so every step costs the same
+ * however many notes there are. Pages are rendered into one reused buffer
+ * and printed with a single call.
+ */
+public class NotesPager {
+    public static final int PAGE_SIZE = Math.max(1, Integer.getInteger("notes.pageSize", 10));
+    private static final String SEPARATOR = "-".repeat(50);
+    
+    /**
+     * Notes in display order, navigable from any note on
+     */
+    interface Source {
+        int size();
+        
+        /**
+         * Notes after note (or from it, if inclusive); from the start if note is null
+         */
+        Iterator<Note> forward(Note note, boolean inclusive);
+        
+        /**
+         * Notes before note, nearest first
+         */
+        Iterator<Note> backward(Note note);
+        
+        /**
+         * The note with this id, or null if the source doesn't have it
+         */
+        Note find(long id);
+    }
+    
+    /**
+     * Notes looked up by id from an ordered set of ids. Both may be
+     * changed by other threads while paging; an id whose note is gone by
+     * the time it is looked up is skipped.
+     */
+    static Source byId(NavigableSet<Long> ids, Map<Long, Note> notes) {
+        return new Source() {
+            public int size() {
+                return ids.size();
+            }
+            
+            public Iterator<Note> forward(Note note, boolean inclusive) {
+                return lookup(note == null ? ids : ids.tailSet(note.getId(), inclusive));
+            }
+            
+            public Iterator<Note> backward(Note note) {
+                return lookup(ids.headSet(note.getId(), false).descendingSet());
+            }
+            
+            public Note find(long id) {
+                return ids.contains(id) ? notes.get(id) : null;
+            }
+            
+            private Iterator<Note> lookup(Set<Long> range) {
+                return NotesPager.lookup(range.iterator(), notes::get);
+            }
+        };
+    }
+    
+    /**
+     * Notes in the order of their entries in a time index range, oldest or
+     * newest first. A note changed while paging is skipped at its old place
+     * and shows up at its new one if that is in the range.
+     */
+    static Source byTime(NavigableSet<NotesTimeIndex.Stamp> stamps, NotesTimeIndex.Field field,
+                         Map<Long, Note> notes, boolean newestFirst) {
+        NavigableSet<NotesTimeIndex.Stamp> ordered = newestFirst ? stamps.descendingSet() : stamps;
+        return new Source() {
+            public int size() {
+                return ordered.size();
+            }
+            
+            public Iterator<Note> forward(Note note, boolean inclusive) {
+                return lookup(note == null ? ordered : ordered.tailSet(NotesTimeIndex.stamp(field, note), inclusive));
+            }
+            
+            public Iterator<Note> backward(Note note) {
+                return lookup(ordered.headSet(NotesTimeIndex.stamp(field, note), false).descendingSet());
+            }
+            
+            public Note find(long id) {
+                Note note = notes.get(id);
+                return note != null && ordered.contains(NotesTimeIndex.stamp(field, note)) ? note : null;
+            }
+            
+            private Iterator<Note> lookup(Set<NotesTimeIndex.Stamp> range) {
+                return NotesPager.lookup(range.iterator(), stamp -> NotesTimeIndex.find(stamp, field, notes));
+            }
+        };
+    }
+    
+    /**
+     * The notes found for keys, skipping keys that find no note
+     */
+    private static <K> Iterator<Note> lookup(Iterator<K> keys, Function<K, Note> find) {
+        return new Iterator<Note>() {
+            private Note next;
+            
+            public boolean hasNext() {
+                while (next == null && keys.hasNext()) {
+                    next = find.apply(keys.next());
+                }
+                return next != null;
+            }
+            
+            public Note next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Note note = next;
+                next = null;
+                return note;
+            }
+        };
+    }
+    
+    /**
+     * A fixed list of notes, such as search results
+     */
+    static Source ofList(List<Note> list) {
+        return new Source() {
+            public int size() {
+                return list.size();
+            }
+            
+            public Iterator<Note> forward(Note note, boolean inclusive) {
+                int start = note == null ? 0 : list.indexOf(note) + (inclusive ? 0 : 1);
+                return list.subList(start, list.size()).iterator();
+            }
+            
+            public Iterator<Note> backward(Note note) {
+                ListIterator<Note> before = list.listIterator(list.indexOf(note));
+                return new Iterator<Note>() {
+                    public boolean hasNext() {
+                        return before.hasPrevious();
+                    }
+                    
+                    public Note next() {
+                        return before.previous();
+                    }
+                };
+            }
+            
+            public Note find(long id) {
+                for (Note note : list) {
+                    if (note.getId() == id) {
+                        return note;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+    
+    private final Source source;
+    private final boolean compact;
+    private final List<Note> page = new ArrayList<>(PAGE_SIZE);
+    private final StringBuilder out = new StringBuilder(8192);
+    
+    /**
+     * @param compact show title and a preview per note instead of the whole note
+     */
+    NotesPager(Source source, boolean compact) {
+        this.source = source;
+        this.compact = compact;
+    }
+    
+    /**
+     * Show pages until the user quits or pages past the last one
+     */
+    public void browse(Scanner scanner) {
+        show(fill(source.forward(null, false), false));
+        while (true) {
+            System.out.print("\nEnter = next page, p = previous, #ID = jump to note, q = back: ");
+            String input = scanner.nextLine().trim();
+            
+            if (input.equalsIgnoreCase("q")) {
+                return;
+            } else if (input.isEmpty() || input.equalsIgnoreCase("n")) {
+                if (!next()) {
+                    System.out.println("End of list.");
+                    return;
+                }
+            } else if (!navigate(input)) {
+                System.out.println("✗ Invalid input! Use Enter, p, #ID or q.");
+            }
+        }
+    }
+    
+    /**
+     * Show pages and let the user pick a note by id. Returns the id, or
+     * null if the user cancelled.
+     */
+    public Long choose(Scanner scanner, String action) {
+        show(fill(source.forward(null, false), false));
+        while (true) {
+            System.out.print("\nEnter ID of the note to " + action + " (n/p = next/previous page, #ID = jump, q = cancel): ");
+            String input = scanner.nextLine().trim();
+            
+            if (input.equalsIgnoreCase("q")) {
+                return null;
+            } else if (input.equalsIgnoreCase("n")) {
+                if (!next()) {
+                    System.out.println("Already at the last page.");
+                }
+            } else if (input.startsWith("#") || input.equalsIgnoreCase("p")) {
+                navigate(input);
+            } else {
+                try {
+                    return Long.parseLong(input);
+                } catch (NumberFormatException e) {
+                    System.out.println("✗ Invalid input! Please enter a number.");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Handle "p" and "#ID" (or a bare id); returns false for anything else
+     */
+    private boolean navigate(String input) {
+        if (input.equalsIgnoreCase("p")) {
+            if (!previous()) {
+                System.out.println("Already at the first page.");
+            }
+            return true;
+        }
+        try {
+            long id = Long.parseLong(input.startsWith("#") ? input.substring(1) : input);
+            Note note = source.find(id);
+            if (note == null) {
+                System.out.println("✗ No note with ID " + id + " here!");
+            } else {
+                show(fill(source.forward(note, true), false));
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    
+    private boolean next() {
+        if (page.isEmpty()) {
+            return false;
+        }
+        return show(fill(source.forward(page.get(page.size() - 1), false), false));
+    }
+    
+    private boolean previous() {
+        if (page.isEmpty()) {
+            return false;
+        }
+        return show(fill(source.backward(page.get(0)), true));
+    }
+    
+    /**
+     * Take up to a page of notes; returns false (keeping the current page)
+     * if there are none
+     */
+    private boolean fill(Iterator<Note> notes, boolean reversed) {
+        if (!notes.hasNext()) {
+            return false;
+        }
+        page.clear();
+        while (page.size() < PAGE_SIZE && notes.hasNext()) {
+            page.add(notes.next());
+        }
+        if (reversed) {
+            Collections.reverse(page);
+        }
+        return true;
+    }
+    
+    private boolean show(boolean changed) {
+        if (!changed) {
+            return false;
+        }
+        out.setLength(0);
+        out.append("\nShowing #").append(page.get(0).getId()).append(" to #")
+           .append(page.get(page.size() - 1).getId()).append(" (")
+           .append(page.size()).append(" of ").append(source.size()).append(" notes)\n");
+        for (Note note : page) {
+            if (compact) {
+                out.append("#").append(note.getId()).append(' ').append(note.getTitle()).append("\n   ");
+                out.append(note.getContentPreview(100)).append("\n\n");
+            } else {
+                note.appendTo(out.append("\n#").append(note.getId()).append(' '));
+                out.append('\n').append(SEPARATOR).append('\n');
+            }
+        }
+        System.out.print(out);
+        return true;
+    }
+}
@@ -0,0 +1,892 @@
+package notes;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Inverted index from lowercase tokens to the notes that contain them,
+ * ranked with BM25F: a word counts more in the title than in the content,
+ * and less the longer the field it is in. Every note gets an internal
+ * document number; edits retire the old number and index the note again
+ * under a new one, so posting lists only ever grow at the end and stay
+ * sorted.
+ *
+ * Query syntax:
+ *   java streams      - notes containing both words
+ *   java OR kotlin    - notes containing either word
+ *   str*              - any word starting with "str"
+ *   "java streams"    - the words next to each other, in this order
+ *   category:work     - the word in that field (title:, content:, category:);
+ *                       always required, also with OR
+ *
+ * Words of four letters or more also match words one typo away, eight or
+ * more two typos (a letter added, dropped, changed, or two swapped), at a
+ * lower score than the exact word. Quoted words only match exactly.
+ */
+public class NotesSearchIndex {
+    private static final int MAGIC = 0x4E494458; // "NIDX"
+    private static final int VERSION = 2;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    
+    // Fields, in the order of their weights, names and lengths
+    private static final int TITLE = 0;
+    private static final int CONTENT = 1;
+    private static final int CATEGORY = 2;
+    private static final int FIELDS = 3;
+    private static final String[] FIELD_NAMES = {"title", "content", "category"};
+    private static final double[] WEIGHTS = {3.0, 1.0, 2.0};
+    // BM25 saturation and length normalisation
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    
+    // Shortest words matched with one and with two typos
+    private static final int ONE_TYPO_LENGTH = 4;
+    private static final int TWO_TYPOS_LENGTH = 8;
+    // Closest, most common terms a misspelled word is expanded to
+    private static final int MAX_EXPANSIONS = 32;
+    // Slots with more terms than this (short prefixes) score their notes
+    // one term at a time into an array instead of merging cursors
+    private static final int MAX_CURSORS = 16;
+    
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private final List<Note> docs = new ArrayList<>();
+    private final Map<Note, Integer> docIds = new IdentityHashMap<>();
+    private int deletedDocs;
+    // Tokens in each field of each document, FIELDS per document
+    private int[] lengths = new int[FIELDS * 16];
+    // Field lengths summed over live documents
+    private final long[] totalLengths = new long[FIELDS];
+    
+    /**
+     * Sorted, growable list of document numbers, with how often the term
+     * occurs in each field of each (see freq)
+     */
+    private static class Postings {
+        int[] ids;
+        int[] freqs;
+        int size;
+        
+        Postings(int capacity) {
+            ids = new int[Math.max(capacity, 2)];
+            freqs = new int[ids.length];
+        }
+        
+        void add(int id, int freq) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            ids[size] = id;
+            freqs[size++] = freq;
+        }
+    }
+    
+    // Per-field counts packed in an int: content in the low 16 bits, title
+    // and category in a byte each above it, every one capped
+    private static final int[] FREQ_SHIFT = {16, 0, 24};
+    private static final int[] FREQ_MAX = {0xFF, 0xFFFF, 0xFF};
+    
+    private static int freq(int packed, int field) {
+        return (packed >>> FREQ_SHIFT[field]) & FREQ_MAX[field];
+    }
+    
+    private static int increment(int packed, int field) {
+        return freq(packed, field) == FREQ_MAX[field] ? packed : packed + (1 << FREQ_SHIFT[field]);
+    }
+    
+    /**
+     * Matches for a query: the total hit count and the best k notes
+     */
+    public static class SearchResult {
+        public final int totalHits;
+        public final List<Note> top;
+        
+        SearchResult(int totalHits, List<Note> top) {
+            this.totalHits = totalHits;
+            this.top = top;
+        }
+    }
+    
+    /**
+     * Build an index over the given notes
+     */
+    public static NotesSearchIndex build(Collection<Note> notes) {
+        NotesSearchIndex index = new NotesSearchIndex();
+        for (Note note : notes) {
+            index.add(note);
+        }
+        return index;
+    }
+    
+    public void add(Note note) {
+        int docId = docs.size();
+        docs.add(note);
+        docIds.put(note, docId);
+        if (lengths.length < FIELDS * (docId + 1)) {
+            lengths = Arrays.copyOf(lengths, lengths.length * 2);
+        }
+        
+        Map<String, Integer> freqs = new HashMap<>();
+        for (int field = 0; field < FIELDS; field++) {
+            int f = field;
+            int length = forEachToken(text(note, field), token -> freqs.merge(token, 1 << FREQ_SHIFT[f],
+                    (packed, one) -> increment(packed, f)));
+            lengths[FIELDS * docId + field] = length;
+            totalLengths[field] += length;
+        }
+        for (Map.Entry<String, Integer> entry : freqs.entrySet()) {
+            terms.computeIfAbsent(entry.getKey(), t -> new Postings(4)).add(docId, entry.getValue());
+        }
+    }
+    
+    /**
+     * Re-index a note after its title, content or category changed
+     */
+    public void update(Note note) {
+        remove(note);
+        add(note);
+    }
+    
+    public void remove(Note note) {
+        Integer docId = docIds.remove(note);
+        if (docId == null) {
+            return;
+        }
+        docs.set(docId, null);
+        deletedDocs++;
+        for (int field = 0; field < FIELDS; field++) {
+            totalLengths[field] -= lengths[FIELDS * docId + field];
+        }
+        
+        // Retired document numbers are filtered out at query time; once they
+        // outnumber live ones, rebuild so posting lists don't keep growing
+        if (deletedDocs > 1024 && deletedDocs > docIds.size()) {
+            List<Note> live = new ArrayList<>(docIds.size());
+            for (Note doc : docs) {
+                if (doc != null) {
+                    live.add(doc);
+                }
+            }
+            terms.clear();
+            docs.clear();
+            docIds.clear();
+            deletedDocs = 0;
+            Arrays.fill(totalLengths, 0);
+            for (Note doc : live) {
+                add(doc);
+            }
+        }
+    }
+    
+    /**
+     * One term a query word matched, with the share of the score it gets
+     */
+    private static class Term {
+        final Postings postings;
+        final double boost;
+        // Position in postings, moving forward only
+        int cursor;
+        
+        Term(Postings postings, double boost) {
+            this.postings = postings;
+            this.boost = boost;
+        }
+    }
+    
+    /**
+     * One word of a clause and the terms it matches. A note matches the
+     * slot if it has any of the terms (in the clause's field, if it has
+     * one), and scores as its best term does.
+     */
+    private class Slot {
+        final List<Term> terms;
+        // Notes having any of the terms, in any field
+        final Postings candidates;
+        // Score of every note, when there are too many terms for cursors
+        double[] scores;
+        
+        Slot(List<Term> terms) {
+            this.terms = terms;
+            List<Postings> lists = new ArrayList<>(terms.size());
+            for (Term term : terms) {
+                lists.add(term.postings);
+            }
+            this.candidates = union(lists);
+        }
+        
+        /**
+         * Score of doc, or 0 if it does not match; docs must be asked for
+         * in increasing order
+         */
+        double score(int doc, Scorer scorer, int field) {
+            if (terms.size() > MAX_CURSORS) {
+                if (scores == null) {
+                    scores = new double[docs.size()];
+                    for (Term term : terms) {
+                        Postings postings = term.postings;
+                        for (int i = 0; i < postings.size; i++) {
+                            int id = postings.ids[i];
+                            scores[id] = Math.max(scores[id], scorer.score(term, id, postings.freqs[i], field));
+                        }
+                    }
+                }
+                return scores[doc];
+            }
+            double best = 0;
+            for (Term term : terms) {
+                Postings postings = term.postings;
+                int i = advance(postings, term.cursor, doc);
+                term.cursor = i;
+                if (i < postings.size && postings.ids[i] == doc) {
+                    best = Math.max(best, scorer.score(term, doc, postings.freqs[i], field));
+                }
+            }
+            return best;
+        }
+    }
+    
+    /**
+     * A word, prefix or phrase of the query, possibly limited to one field
+     */
+    private static class Clause {
+        final int field;
+        final List<String> words;
+        final List<Slot> slots = new ArrayList<>();
+        
+        Clause(int field, List<String> words) {
+            this.field = field;
+            this.words = words;
+        }
+        
+        boolean isPhrase() {
+            return words.size() > 1;
+        }
+    }
+    
+    /**
+     * BM25F over the fields of the live documents at the time of the query
+     */
+    private class Scorer {
+        final int liveDocs = Math.max(docIds.size(), 1);
+        final double[] averageLengths = new double[FIELDS];
+        
+        Scorer() {
+            for (int field = 0; field < FIELDS; field++) {
+                averageLengths[field] = Math.max(1.0, (double) totalLengths[field] / liveDocs);
+            }
+        }
+        
+        /**
+         * Score of a term in a document, counting only field if it is not -1
+         */
+        double score(Term term, int doc, int packed, int field) {
+            double tf = 0;
+            for (int f = 0; f < FIELDS; f++) {
+                int count = freq(packed, f);
+                if (count > 0 && (field < 0 || field == f)) {
+                    double norm = 1 - B + B * lengths[FIELDS * doc + f] / averageLengths[f];
+                    tf += WEIGHTS[f] * count / norm;
+                }
+            }
+            if (tf == 0) {
+                return 0;
+            }
+            // Retired documents still count in a posting list's size
+            int df = Math.min(term.postings.size, liveDocs);
+            double idf = Math.log(1 + (liveDocs - df + 0.5) / (df + 0.5));
+            return term.boost * idf * tf * (K1 + 1) / (tf + K1);
+        }
+    }
+    
+    /**
+     * Run a query and return the k best matches by score, the most
+     * recently added or edited first among equal scores. Only the k best
+     * are kept while scoring, however many notes match.
+     */
+    public SearchResult search(String query, int k) {
+        List<Clause> required = new ArrayList<>();
+        List<Clause> optional = new ArrayList<>();
+        boolean or = parse(query, required, optional);
+        if (!or) {
+            required.addAll(optional);
+            optional.clear();
+        }
+        if (required.isEmpty() && optional.isEmpty()) {
+            return new SearchResult(0, Collections.emptyList());
+        }
+        
+        // Notes that can match: every required clause and any optional one
+        List<Postings> lists = new ArrayList<>();
+        for (Clause clause : required) {
+            for (Slot slot : clause.slots) {
+                lists.add(slot.candidates);
+            }
+        }
+        if (!optional.isEmpty()) {
+            List<Postings> any = new ArrayList<>();
+            for (Clause clause : optional) {
+                List<Postings> all = new ArrayList<>();
+                for (Slot slot : clause.slots) {
+                    all.add(slot.candidates);
+                }
+                any.add(intersectAll(all));
+            }
+            lists.add(union(any));
+        }
+        Postings candidates = intersectAll(lists);
+        
+        Scorer scorer = new Scorer();
+        PriorityQueue<Hit> best = new PriorityQueue<>(k + 1);
+        int totalHits = 0;
+        for (int i = 0; i < candidates.size; i++) {
+            int doc = candidates.ids[i];
+            if (docs.get(doc) == null) {
+                continue;
+            }
+            double score = 0;
+            boolean matched = true;
+            for (Clause clause : required) {
+                double clauseScore = score(clause, doc, scorer);
+                if (clauseScore <= 0) {
+                    matched = false;
+                    break;
+                }
+                score += clauseScore;
+            }
+            if (!matched) {
+                continue;
+            }
+            boolean anyOptional = optional.isEmpty();
+            for (Clause clause : optional) {
+                double clauseScore = score(clause, doc, scorer);
+                if (clauseScore > 0) {
+                    anyOptional = true;
+                    score += clauseScore;
+                }
+            }
+            if (anyOptional) {
+                totalHits++;
+                offer(best, new Hit(doc, score), k);
+            }
+        }
+        
+        List<Note> top = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            top.add(docs.get(best.poll().doc));
+        }
+        Collections.reverse(top);
+        return new SearchResult(totalHits, top);
+    }
+    
+    // Score of a clause in doc, 0 if it does not match there
+    private double score(Clause clause, int doc, Scorer scorer) {
+        double total = 0;
+        for (Slot slot : clause.slots) {
+            double score = slot.score(doc, scorer, clause.field);
+            if (score <= 0) {
+                return 0;
+            }
+            total += score;
+        }
+        // Checked last, as it reads the note's text
+        if (clause.isPhrase() && !containsPhrase(docs.get(doc), clause.field, clause.words)) {
+            return 0;
+        }
+        return total;
+    }
+    
+    /**
+     * A scored document, ordered worst first so the heap's head is the
+     * one to drop
+     */
+    private static class Hit implements Comparable<Hit> {
+        final int doc;
+        final double score;
+        
+        Hit(int doc, double score) {
+            this.doc = doc;
+            this.score = score;
+        }
+        
+        @Override
+        public int compareTo(Hit other) {
+            int byScore = Double.compare(score, other.score);
+            return byScore != 0 ? byScore : Integer.compare(doc, other.doc);
+        }
+    }
+    
+    private static void offer(PriorityQueue<Hit> heap, Hit hit, int k) {
+        if (heap.size() < k) {
+            heap.add(hit);
+        } else if (k > 0 && hit.compareTo(heap.peek()) > 0) {
+            heap.poll();
+            heap.add(hit);
+        }
+    }
+    
+    /**
+     * Split a query into clauses, field clauses into required and the
+     * rest into optional, and return whether it used OR
+     */
+    private boolean parse(String query, List<Clause> required, List<Clause> optional) {
+        boolean or = false;
+        int i = 0;
+        while (i < query.length()) {
+            if (Character.isWhitespace(query.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < query.length() && !Character.isWhitespace(query.charAt(i)) && query.charAt(i) != '"') {
+                i++;
+            }
+            String word = query.substring(start, i);
+            int field = -1;
+            int colon = word.indexOf(':');
+            if (colon > 0) {
+                field = Arrays.asList(FIELD_NAMES).indexOf(word.substring(0, colon).toLowerCase(Locale.ROOT));
+                if (field >= 0) {
+                    word = word.substring(colon + 1);
+                }
+            }
+            
+            boolean quoted = word.isEmpty() && i < query.length() && query.charAt(i) == '"';
+            if (quoted) {
+                int end = query.indexOf('"', i + 1);
+                end = end < 0 ? query.length() : end;
+                word = query.substring(i + 1, end);
+                i = Math.min(end + 1, query.length());
+            } else if (word.isEmpty()) {
+                // A quote inside a word; skip it
+                i++;
+                continue;
+            } else if (field < 0 && word.equals("OR")) {
+                or = true;
+                continue;
+            }
+            
+            Clause clause = clause(field, word, quoted);
+            if (clause != null) {
+                (field >= 0 ? required : optional).add(clause);
+            }
+        }
+        return or;
+    }
+    
+    /**
+     * A clause for one query word or quoted phrase, or null if it has no
+     * tokens. A word the tokenizer splits further (e.g. "e-mail") is a
+     * phrase of its parts; a trailing * makes the last word a prefix.
+     */
+    private Clause clause(int field, String text, boolean quoted) {
+        boolean prefix = !quoted && text.endsWith("*");
+        List<String> words = new ArrayList<>();
+        forEachToken(prefix ? text.substring(0, text.length() - 1) : text, words::add);
+        if (words.isEmpty()) {
+            return null;
+        }
+        
+        Clause clause = new Clause(field, prefix ? words.subList(0, words.size() - 1) : words);
+        for (int w = 0; w < words.size(); w++) {
+            String word = words.get(w);
+            List<Term> matches = new ArrayList<>();
+            if (prefix && w == words.size() - 1) {
+                for (Postings postings : terms.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+                    matches.add(new Term(postings, 1.0));
+                }
+            } else if (!quoted && words.size() == 1 && word.length() >= ONE_TYPO_LENGTH) {
+                int maxTypos = word.length() >= TWO_TYPOS_LENGTH ? 2 : 1;
+                for (Map.Entry<String, Integer> near : similarTerms(word, maxTypos)) {
+                    // As Lucene's fuzzy queries do, a typo costs its share of the word
+                    double boost = 1.0 - (double) near.getValue() / word.length();
+                    matches.add(new Term(terms.get(near.getKey()), boost));
+                }
+            } else {
+                Postings postings = terms.get(word);
+                if (postings != null) {
+                    matches.add(new Term(postings, 1.0));
+                }
+            }
+            clause.slots.add(new Slot(matches));
+        }
+        return clause;
+    }
+    
+    /**
+     * Terms within maxTypos edits of word (insertions, deletions,
+     * substitutions and swaps of adjacent letters) with their distance,
+     * closest and then most common first, at most MAX_EXPANSIONS of them.
+     *
+     * Walks the sorted terms keeping one row of the edit distance table per
+     * letter, so terms sharing a prefix share its rows. The rows act as a
+     * Levenshtein automaton: the walk seeks in the term map straight to the
+     * next letter that can still come close (see nextLetter), and past
+     * every term under a prefix that cannot, so it visits the terms whose
+     * prefixes can still match rather than the whole vocabulary. Only the
+     * band of each row near the diagonal is computed.
+     */
+    private List<Map.Entry<String, Integer>> similarTerms(String word, int maxTypos) {
+        int n = word.length();
+        int maxLength = n + maxTypos;
+        int[][] rows = new int[maxLength + 1][n + 1];
+        int[] rowMin = new int[maxLength + 1];
+        for (int j = 0; j <= n; j++) {
+            rows[0][j] = j;
+        }
+        
+        List<Map.Entry<String, Integer>> found = new ArrayList<>();
+        String previous = "";
+        // Rows are valid for this many letters of previous
+        int valid = 0;
+        String term = terms.isEmpty() ? null : terms.firstKey();
+        while (term != null) {
+            int common = commonPrefix(previous, term);
+            int depth = Math.min(valid, common);
+            if (depth < term.length() && depth < maxLength) {
+                int next = nextLetter(word, maxTypos, rows, rowMin, depth, term);
+                if (next != term.charAt(depth)) {
+                    String prefix = term.substring(0, depth);
+                    term = next < 0 ? terms.higherKey(prefix + Character.MAX_VALUE)
+                            : terms.ceilingKey(prefix + (char) next);
+                    continue;
+                }
+            }
+            int limit = Math.min(term.length(), maxLength);
+            boolean pruned = false;
+            while (depth < limit) {
+                depth++;
+                int[] row = rows[depth];
+                char c = term.charAt(depth - 1);
+                row[0] = depth;
+                int min = depth;
+                // Cells more than maxTypos off the diagonal never come back
+                // within reach; those next to the band read as out of reach
+                int from = Math.max(1, depth - maxTypos);
+                int to = Math.min(n, depth + maxTypos);
+                if (from > 1) {
+                    row[from - 1] = maxTypos + 1;
+                }
+                if (to < n) {
+                    row[to + 1] = maxTypos + 1;
+                }
+                for (int j = from; j <= to; j++) {
+                    int cost = c == word.charAt(j - 1) ? 0 : 1;
+                    int value = Math.min(Math.min(rows[depth - 1][j] + 1, row[j - 1] + 1), rows[depth - 1][j - 1] + cost);
+                    if (depth > 1 && j > 1 && c == word.charAt(j - 2) && term.charAt(depth - 2) == word.charAt(j - 1)) {
+                        value = Math.min(value, rows[depth - 2][j - 2] + 1);
+                    }
+                    row[j] = value;
+                    min = Math.min(min, value);
+                }
+                rowMin[depth] = min;
+                // A swap reaches back two rows, so both must be out of reach
+                if (min > maxTypos && (depth < 2 || rowMin[depth - 1] >= maxTypos)) {
+                    pruned = true;
+                    break;
+                }
+            }
+            previous = term;
+            valid = depth;
+            
+            if (pruned || term.length() > maxLength) {
+                // Nothing under this prefix can come close enough; every
+                // term starting with it sorts before prefix + MAX_VALUE
+                term = terms.higherKey(term.substring(0, depth) + Character.MAX_VALUE);
+                continue;
+            }
+            // Terms too short to match are still walked for the rows they
+            // share, but their last cell is outside the band
+            if (term.length() >= n - maxTypos && rows[depth][n] <= maxTypos) {
+                found.add(new AbstractMap.SimpleImmutableEntry<>(term, rows[depth][n]));
+            }
+            term = terms.higherKey(term);
+        }
+        
+        found.sort(Comparator.<Map.Entry<String, Integer>>comparingInt(Map.Entry::getValue)
+                .thenComparing(entry -> -terms.get(entry.getKey()).size));
+        return found.size() > MAX_EXPANSIONS ? found.subList(0, MAX_EXPANSIONS) : found;
+    }
+    
+    /**
+     * The first letter from term's letter at depth on that can follow its
+     * first depth letters and still come within maxTypos of word, or -1 if
+     * none can. While a cell of the row is below maxTypos any letter can;
+     * at maxTypos only one matching word where the row is at maxTypos, or
+     * one completing a swap of adjacent letters, keeps the next row alive.
+     */
+    private static int nextLetter(String word, int maxTypos, int[][] rows, int[] rowMin,
+                                  int depth, String term) {
+        char from = term.charAt(depth);
+        if (depth == 0 || rowMin[depth] < maxTypos) {
+            return from;
+        }
+        int n = word.length();
+        int best = -1;
+        // Cells of the next row within its band
+        for (int j = Math.max(1, depth + 1 - maxTypos); j <= Math.min(n, depth + 1 + maxTypos); j++) {
+            char match = word.charAt(j - 1);
+            if (match >= from && (best < 0 || match < best) && rows[depth][j - 1] <= maxTypos) {
+                best = match;
+            }
+            if (j > 1 && term.charAt(depth - 1) == word.charAt(j - 1)) {
+                char swap = word.charAt(j - 2);
+                if (swap >= from && (best < 0 || swap < best) && rows[depth - 1][j - 2] < maxTypos) {
+                    best = swap;
+                }
+            }
+        }
+        return best;
+    }
+    
+    private static int commonPrefix(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return i;
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Whether the words occur one after the other in a field of note
+     * (any field if field is -1)
+     */
+    private static boolean containsPhrase(Note note, int field, List<String> words) {
+        for (int f = 0; f < FIELDS; f++) {
+            if (field >= 0 && field != f) {
+                continue;
+            }
+            List<String> tokens = new ArrayList<>();
+            forEachToken(text(note, f), tokens::add);
+            for (int start = 0; start + words.size() <= tokens.size(); start++) {
+                if (tokens.subList(start, start + words.size()).equals(words)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private static String text(Note note, int field) {
+        switch (field) {
+            case TITLE: return note.getTitle();
+            case CONTENT: return note.getContent();
+            default: return note.getCategory();
+        }
+    }
+    
+    /**
+     * First position at or after from whose document number is at least
+     * doc: doubling steps, then a binary search within the last one
+     */
+    private static int advance(Postings postings, int from, int doc) {
+        int[] ids = postings.ids;
+        int size = postings.size;
+        if (from >= size || ids[from] >= doc) {
+            return from;
+        }
+        int step = 1;
+        int low = from;
+        int high = from + 1;
+        while (high < size && ids[high] < doc) {
+            low = high;
+            step <<= 1;
+            high = Math.min(from + step, size);
+        }
+        int found = Arrays.binarySearch(ids, low + 1, high, doc);
+        return found >= 0 ? found : -found - 1;
+    }
+    
+    /**
+     * Merge posting lists, document numbers only. A bitmap over document
+     * numbers avoids sorting when a short prefix covers many terms.
+     */
+    private Postings union(Collection<Postings> all) {
+        Iterator<Postings> it = all.iterator();
+        if (!it.hasNext()) {
+            return new Postings(0);
+        }
+        Postings first = it.next();
+        if (!it.hasNext()) {
+            return first;
+        }
+        
+        BitSet bits = new BitSet(docs.size());
+        int total = 0;
+        for (Postings postings : all) {
+            total += postings.size;
+            for (int i = 0; i < postings.size; i++) {
+                bits.set(postings.ids[i]);
+            }
+        }
+        
+        Postings result = new Postings(Math.min(total, bits.cardinality()));
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+            result.ids[result.size++] = id;
+        }
+        return result;
+    }
+    
+    // Intersection of the lists, shortest first
+    private static Postings intersectAll(List<Postings> lists) {
+        if (lists.isEmpty()) {
+            return new Postings(0);
+        }
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        Postings matches = lists.get(0);
+        for (int i = 1; i < lists.size() && matches.size > 0; i++) {
+            matches = intersect(matches, lists.get(i));
+        }
+        return matches;
+    }
+    
+    private static Postings intersect(Postings a, Postings b) {
+        Postings out = new Postings(Math.min(a.size, b.size));
+        int j = 0;
+        for (int i = 0; i < a.size && j < b.size; i++) {
+            j = advance(b, j, a.ids[i]);
+            if (j < b.size && b.ids[j] == a.ids[i]) {
+                out.ids[out.size++] = a.ids[i];
+            }
+        }
+        return out;
+    }
+    
+    /**
+     * Split text into lowercase runs of letters and digits, pass each to
+     * action in order and return how many there were. Runs longer than
+     * MAX_TOKEN_LENGTH (base64 blobs, hashes in pasted logs) are not indexed.
+     */
+    private static int forEachToken(String text, Consumer<String> action) {
+        StringBuilder token = new StringBuilder();
+        int count = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (token.length() > 0) {
+                if (token.length() <= MAX_TOKEN_LENGTH) {
+                    action.accept(token.toString());
+                    count++;
+                }
+                token.setLength(0);
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Write the index with document numbers renumbered to positions in
+     * notes' iteration order, tagged with a fingerprint of the files it was
+     * built from
+     */
+    public void writeTo(DataOutputStream out, Collection<Note> notes, long fingerprint) throws IOException {
+        Map<Note, Integer> positions = new IdentityHashMap<>();
+        for (Note note : notes) {
+            positions.put(note, positions.size());
+        }
+        
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(fingerprint);
+        out.writeInt(notes.size());
+        for (Note note : notes) {
+            Integer docId = docIds.get(note);
+            for (int field = 0; field < FIELDS; field++) {
+                writeVarInt(out, docId == null ? 0 : lengths[FIELDS * docId + field]);
+            }
+        }
+        out.writeInt(terms.size());
+        
+        // Position in the high half, frequencies in the low, so sorting
+        // orders them by position
+        long[] buffer = new long[16];
+        for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+            Postings postings = entry.getValue();
+            if (buffer.length < postings.size) {
+                buffer = new long[postings.size];
+            }
+            int n = 0;
+            for (int i = 0; i < postings.size; i++) {
+                Note doc = docs.get(postings.ids[i]);
+                Integer position = doc == null ? null : positions.get(doc);
+                if (position != null) {
+                    buffer[n++] = (long) position << 32 | (postings.freqs[i] & 0xFFFFFFFFL);
+                }
+            }
+            Arrays.sort(buffer, 0, n);
+            
+            out.writeUTF(entry.getKey());
+            writeVarInt(out, n);
+            int previous = 0;
+            for (int i = 0; i < n; i++) {
+                int position = (int) (buffer[i] >>> 32);
+                writeVarInt(out, position - previous);
+                writeVarInt(out, (int) buffer[i]);
+                previous = position;
+            }
+        }
+    }
+    
+    /**
+     * Read an index written by writeTo, or return null if it does not belong
+     * to this exact set of notes or was written by an older version
+     */
+    public static NotesSearchIndex readFrom(DataInputStream in, Collection<Note> notes, long fingerprint) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION
+                || in.readLong() != fingerprint || in.readInt() != notes.size()) {
+            return null;
+        }
+        
+        NotesSearchIndex index = new NotesSearchIndex();
+        index.lengths = new int[FIELDS * Math.max(notes.size(), 16)];
+        for (Note note : notes) {
+            int docId = index.docs.size();
+            index.docIds.put(note, docId);
+            index.docs.add(note);
+            for (int field = 0; field < FIELDS; field++) {
+                int length = readVarInt(in);
+                index.lengths[FIELDS * docId + field] = length;
+                index.totalLengths[field] += length;
+            }
+        }
+        
+        int termCount = in.readInt();
+        for (int t = 0; t < termCount; t++) {
+            String term = in.readUTF();
+            int n = readVarInt(in);
+            Postings postings = new Postings(n);
+            int previous = 0;
+            for (int i = 0; i < n; i++) {
+                previous += readVarInt(in);
+                postings.ids[i] = previous;
+                postings.freqs[i] = readVarInt(in);
+            }
+            postings.size = n;
+            index.terms.put(term, postings);
+        }
+        return index;
+    }
+    
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
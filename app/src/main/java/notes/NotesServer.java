@@ -0,0 +1,811 @@
+package notes;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Headless HTTP front end on a NotesStore, using the JDK's built-in server.
+ *
+ *   GET    /notes                  every note in id order, streamed as a JSON array;
+ *                                  ?category=C, ?after=ID and ?limit=N narrow it
+ *   GET    /notes?modifiedSince=T  notes in order of modification time, from T on;
+ *                                  also modifiedBefore, and createdSince/createdBefore
+ *   POST   /notes                  add {"title": .., "content": .., "category": ..}
+ *   GET    /notes/{id}             one note
+ *   PUT    /notes/{id}             change the fields given in the body
+ *   DELETE /notes/{id}             remove a note
+ *   GET    /notes/{id}/history     the note's revisions, oldest first
+ *   GET    /notes/{id}/history/{n} revision n with its content
+ *   POST   /notes/{id}/history/{n} restore revision n (If-Match applies as for PUT)
+ *   GET    /notes/{id}/diff?from=A&to=B  line diff of two revisions
+ *   GET    /search?q=QUERY         best matches first (?limit=N, default 50)
+ *   GET    /categories             category names with their note counts
+ *   GET    /duplicates             groups of notes with the same content, the most
+ *                                  wasteful first (?limit=N groups, default 50)
+ *   GET    /stats                  note count, content cache and shared content statistics
+ *   GET    /metrics                timings and byte counts in the Prometheus text format
+ *
+ * A note's ETag is its version. GET answers 304 Not Modified when
+ * If-None-Match names the current version, and PUT or DELETE with If-Match
+ * fails with 412 if someone changed the note since. Listings are tagged
+ * with the store's change count, so polling an unchanged store is cheap.
+ *
+ * Each request runs on a virtual thread on Java 21 and later; older JDKs
+ * get a fixed pool of platform threads (-Dnotes.http.threads).
+ */
+public class NotesServer {
+    private static final String HOST = System.getProperty("notes.http.host", "127.0.0.1");
+    public static final int DEFAULT_PORT = Integer.getInteger("notes.http.port", 8080);
+    private static final int THREADS = Integer.getInteger("notes.http.threads",
+            Math.max(8, 4 * Runtime.getRuntime().availableProcessors()));
+    private static final int BACKLOG = Integer.getInteger("notes.http.backlog", 1024);
+    
+    private static final int MAX_BODY_BYTES = 1 << 20;
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+    private static final int MAX_SEARCH_LIMIT = 1000;
+    // Listings are written out whenever this much JSON has been rendered
+    private static final int STREAM_CHUNK = 32 * 1024;
+    
+    static {
+        // Headers and body go out in separate writes; without this, small
+        // responses on a kept-alive connection wait for a delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+    
+    private final NotesStore store;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    /**
+     * A server for store on port (0 = any free port); call start() to serve
+     */
+    public NotesServer(NotesStore store, int port) throws IOException {
+        this.store = store;
+        this.executor = newExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(HOST, port), BACKLOG);
+        server.setExecutor(executor);
+        server.createContext("/notes", exchange -> handle(exchange, this::notes));
+        server.createContext("/search", exchange -> handle(exchange, this::search));
+        server.createContext("/categories", exchange -> handle(exchange, this::categories));
+        server.createContext("/duplicates", exchange -> handle(exchange, this::duplicates));
+        server.createContext("/stats", exchange -> handle(exchange, this::stats));
+        server.createContext("/metrics", exchange -> handle(exchange, this::metrics));
+    }
+    
+    /**
+     * A virtual thread per request where the JDK has them, looked up by
+     * reflection so the app still builds and runs on Java 17
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "notes-http");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    public void start() {
+        server.start();
+        System.out.println("✓ Serving notes on http://" + HOST + ":" + getPort() + "/notes");
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    /**
+     * Stop accepting requests, giving those in progress a second to finish
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+    
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+    
+    /**
+     * Bad input from the client, answered with status and message
+     */
+    private static class RequestException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        final int status;
+        
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+    
+    private void handle(HttpExchange exchange, Handler handler) {
+        try (exchange) {
+            try {
+                handler.handle(exchange);
+            } catch (RequestException e) {
+                error(exchange, e.status, e.getMessage());
+            } catch (RuntimeException e) {
+                System.err.println("✗ Error serving " + exchange.getRequestURI() + ": " + e);
+                error(exchange, 500, "Internal error");
+            }
+        } catch (IOException e) {
+            // The client went away; nothing left to answer
+        }
+    }
+    
+    private void notes(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        
+        if (path.equals("/notes") || path.equals("/notes/")) {
+            switch (method) {
+                case "GET": list(exchange); break;
+                case "POST": create(exchange); break;
+                default: notAllowed(exchange, "GET, POST");
+            }
+            return;
+        }
+        
+        // id, then optionally "history" and a revision, or "diff"
+        String[] parts = path.startsWith("/notes/") ? path.substring("/notes/".length()).split("/") : new String[0];
+        long id;
+        int revision = 0;
+        try {
+            id = parts.length > 0 ? Long.parseLong(parts[0]) : -1;
+            if (parts.length == 3 && parts[1].equals("history")) {
+                revision = Integer.parseInt(parts[2]);
+            }
+        } catch (NumberFormatException e) {
+            id = -1;
+        }
+        if (id < 0 || revision < 0 || parts.length > 3) {
+            throw new RequestException(404, "No such resource");
+        }
+        if (parts.length > 1) {
+            if (parts[1].equals("history") && parts.length == 2) {
+                requireGet(exchange);
+                history(exchange, id);
+            } else if (parts[1].equals("history") && revision > 0) {
+                switch (method) {
+                    case "GET": revision(exchange, id, revision); break;
+                    case "POST": restore(exchange, id, revision); break;
+                    default: notAllowed(exchange, "GET, POST");
+                }
+            } else if (parts[1].equals("diff") && parts.length == 2) {
+                requireGet(exchange);
+                diff(exchange, id);
+            } else {
+                throw new RequestException(404, "No such resource");
+            }
+            return;
+        }
+        switch (method) {
+            case "GET": get(exchange, id); break;
+            case "PUT": update(exchange, id); break;
+            case "DELETE": delete(exchange, id); break;
+            default: notAllowed(exchange, "GET, PUT, DELETE");
+        }
+    }
+    
+    private void get(HttpExchange exchange, long id) throws IOException {
+        Note note = store.get(id);
+        if (note == null) {
+            throw new RequestException(404, "No note with ID " + id);
+        }
+        String etag = etag(note);
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            send(exchange, 304, etag, null);
+        } else {
+            send(exchange, 200, etag, appendNote(new StringBuilder(512), note));
+        }
+    }
+    
+    private void create(HttpExchange exchange) throws IOException {
+        Map<String, String> fields = readObject(exchange);
+        String title = fields.getOrDefault("title", "").trim();
+        if (title.isEmpty()) {
+            throw new RequestException(400, "Title cannot be empty");
+        }
+        String category = fields.getOrDefault("category", "").trim();
+        
+        NotesStore.Result result = store.add(title, fields.getOrDefault("content", ""),
+                category.isEmpty() ? "General" : category);
+        checkSaved(result);
+        exchange.getResponseHeaders().set("Location", "/notes/" + result.note.getId());
+        send(exchange, 201, etag(result.note), appendNote(new StringBuilder(512), result.note));
+    }
+    
+    private void update(HttpExchange exchange, long id) throws IOException {
+        long expected = expectedVersion(exchange);
+        Map<String, String> fields = readObject(exchange);
+        String title = fields.containsKey("title") ? fields.get("title").trim() : null;
+        String category = fields.containsKey("category") ? fields.get("category").trim() : null;
+        String content = fields.get("content");
+        if ((title != null && title.isEmpty()) || (category != null && category.isEmpty())) {
+            throw new RequestException(400, "Title and category cannot be empty");
+        }
+        
+        Consumer<Note> change = note -> {
+            if (title != null) {
+                note.setTitle(title);
+            }
+            if (content != null) {
+                note.setContent(content);
+            }
+            if (category != null) {
+                note.setCategory(category);
+            }
+        };
+        NotesStore.Result result = store.edit(id, expected, change);
+        checkFound(result, id);
+        checkSaved(result);
+        send(exchange, 200, etag(result.note), appendNote(new StringBuilder(512), result.note));
+    }
+    
+    private void delete(HttpExchange exchange, long id) throws IOException {
+        NotesStore.Result result = store.delete(id, expectedVersion(exchange));
+        checkFound(result, id);
+        checkSaved(result);
+        send(exchange, 204, null, null);
+    }
+    
+    private void history(HttpExchange exchange, long id) throws IOException {
+        List<NotesHistory.Revision> revisions = store.history(id);
+        if (revisions.isEmpty() && store.get(id) == null) {
+            throw new RequestException(404, "No note with ID " + id);
+        }
+        StringBuilder json = new StringBuilder(128 + 128 * revisions.size());
+        json.append("{\"id\":").append(id).append(",\"revisions\":[");
+        for (int i = 0; i < revisions.size(); i++) {
+            NotesHistory.Revision revision = revisions.get(i);
+            appendRevision(json.append(i > 0 ? "," : ""), revision)
+                .append(",\"full\":").append(revision.full)
+                .append(",\"bytes\":").append(revision.storedBytes).append('}');
+        }
+        send(exchange, 200, null, json.append("]}"));
+    }
+    
+    private void revision(HttpExchange exchange, long id, int number) throws IOException {
+        NotesHistory.Revision revision = findRevision(id, number);
+        StringBuilder json = appendRevision(new StringBuilder(512), revision);
+        NotesExporter.json(json.append(",\"content\":"), revision.content);
+        send(exchange, 200, null, json.append('}'));
+    }
+    
+    private void restore(HttpExchange exchange, long id, int number) throws IOException {
+        long expected = expectedVersion(exchange);
+        findRevision(id, number);
+        NotesStore.Result result = store.restoreRevision(id, number, expected);
+        checkFound(result, id);
+        checkSaved(result);
+        send(exchange, 200, etag(result.note), appendNote(new StringBuilder(512), result.note));
+    }
+    
+    private void diff(HttpExchange exchange, long id) throws IOException {
+        Map<String, String> query = query(exchange);
+        if (!query.containsKey("from") || !query.containsKey("to")) {
+            throw new RequestException(400, "from and to revisions are required");
+        }
+        NotesHistory.Revision from = findRevision(id, (int) Math.min(longParam(query, "from", 0), Integer.MAX_VALUE));
+        NotesHistory.Revision to = findRevision(id, (int) Math.min(longParam(query, "to", 0), Integer.MAX_VALUE));
+        StringBuilder json = new StringBuilder(1024);
+        appendRevision(json.append("{\"from\":"), from).append('}');
+        appendRevision(json.append(",\"to\":"), to).append("},\"diff\":[");
+        List<String> lines = NotesDiff.unified(from.content, to.content, 3);
+        for (int i = 0; i < lines.size(); i++) {
+            NotesExporter.json(json.append(i > 0 ? "," : ""), lines.get(i));
+        }
+        send(exchange, 200, null, json.append("]}"));
+    }
+    
+    private NotesHistory.Revision findRevision(long id, int number) {
+        NotesHistory.Revision revision = store.revision(id, number);
+        if (revision == null) {
+            throw new RequestException(404, "No revision " + number + " of note " + id);
+        }
+        return revision;
+    }
+    
+    // A revision's number, time, title and category, leaving the object open
+    private static StringBuilder appendRevision(StringBuilder out, NotesHistory.Revision revision) {
+        out.append("{\"revision\":").append(revision.number).append(",\"modified\":\"");
+        NoteTimestamps.appendIso(revision.modified, out).append('"');
+        NotesExporter.json(out.append(",\"title\":"), revision.title);
+        NotesExporter.json(out.append(",\"category\":"), revision.category);
+        return out;
+    }
+    
+    /**
+     * Notes in id order, or in time order for a time range, written out a
+     * chunk at a time as they are rendered
+     */
+    private void list(HttpExchange exchange) throws IOException {
+        Map<String, String> query = query(exchange);
+        long after = longParam(query, "after", 0);
+        long limit = longParam(query, "limit", Long.MAX_VALUE);
+        String category = query.get("category");
+        NotesTimeIndex.Field field = null;
+        for (NotesTimeIndex.Field candidate : NotesTimeIndex.Field.values()) {
+            String name = candidate.name().toLowerCase();
+            if (query.containsKey(name + "Since") || query.containsKey(name + "Before")) {
+                if (field != null) {
+                    throw new RequestException(400, "Filter by created or modified time, not both");
+                }
+                field = candidate;
+            }
+        }
+        if (field != null && query.containsKey("after")) {
+            throw new RequestException(400, "after cannot be combined with a time range");
+        }
+        
+        String etag = changeTag();
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            send(exchange, 304, etag, null);
+            return;
+        }
+        
+        NavigableMap<Long, Note> notes = store.view();
+        Iterator<Note> source;
+        if (field != null) {
+            String name = field.name().toLowerCase();
+            long since = timeParam(query, name + "Since", Long.MIN_VALUE);
+            long before = timeParam(query, name + "Before", Long.MAX_VALUE);
+            source = NotesPager.byTime(store.between(field, since, before), field, notes, false).forward(null, false);
+        } else {
+            source = category == null
+                    ? notes.tailMap(after, false).values().iterator()
+                    : NotesPager.byId(store.idsIn(category).tailSet(after, false), notes).forward(null, false);
+            category = null;
+        }
+        
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/json; charset=utf-8");
+        headers.set("ETag", etag);
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            StringBuilder json = new StringBuilder(STREAM_CHUNK + 4096).append('[');
+            long count = 0;
+            while (count < limit && source.hasNext()) {
+                Note note = source.next();
+                if (category != null && !category.equals(note.getCategory())) {
+                    // A time range is not narrowed by the category index
+                    continue;
+                }
+                if (count++ > 0) {
+                    json.append(',');
+                }
+                appendNote(json, note);
+                if (json.length() >= STREAM_CHUNK) {
+                    out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                    json.setLength(0);
+                }
+            }
+            out.write(json.append(']').toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    private void search(HttpExchange exchange) throws IOException {
+        requireGet(exchange);
+        Map<String, String> query = query(exchange);
+        String q = query.getOrDefault("q", "").trim();
+        if (q.isEmpty()) {
+            throw new RequestException(400, "Search query cannot be empty");
+        }
+        int limit = (int) Math.min(longParam(query, "limit", DEFAULT_SEARCH_LIMIT), MAX_SEARCH_LIMIT);
+        
+        String etag = changeTag();
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            send(exchange, 304, etag, null);
+            return;
+        }
+        NotesSearchIndex.SearchResult result = store.search(q, limit);
+        StringBuilder json = new StringBuilder(512 * (result.top.size() + 1));
+        json.append("{\"totalHits\":").append(result.totalHits).append(",\"notes\":[");
+        for (int i = 0; i < result.top.size(); i++) {
+            appendNote(i > 0 ? json.append(',') : json, result.top.get(i));
+        }
+        send(exchange, 200, etag, json.append("]}"));
+    }
+    
+    private void categories(HttpExchange exchange) throws IOException {
+        requireGet(exchange);
+        String etag = changeTag();
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            send(exchange, 304, etag, null);
+            return;
+        }
+        StringBuilder json = new StringBuilder(1024).append('[');
+        for (String category : store.categories()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            NotesExporter.json(json.append("{\"name\":"), category);
+            json.append(",\"count\":").append(store.count(category)).append('}');
+        }
+        send(exchange, 200, etag, json.append(']'));
+    }
+    
+    private void duplicates(HttpExchange exchange) throws IOException {
+        requireGet(exchange);
+        int limit = (int) Math.min(longParam(query(exchange), "limit", DEFAULT_SEARCH_LIMIT), MAX_SEARCH_LIMIT);
+        String etag = changeTag();
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            send(exchange, 304, etag, null);
+            return;
+        }
+        List<NotesChunkStore.Duplicates> groups = store.duplicates();
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"groups\":").append(groups.size()).append(",\"duplicates\":[");
+        for (int i = 0; i < Math.min(limit, groups.size()); i++) {
+            NotesChunkStore.Duplicates group = groups.get(i);
+            json.append(i > 0 ? "," : "").append("{\"bytes\":").append(group.bytes).append(",\"notes\":[");
+            for (int j = 0; j < group.notes.size(); j++) {
+                Note note = group.notes.get(j);
+                json.append(j > 0 ? "," : "").append("{\"id\":").append(note.getId());
+                NotesExporter.json(json.append(",\"title\":"), note.getTitle());
+                json.append('}');
+            }
+            json.append("]}");
+        }
+        send(exchange, 200, etag, json.append("]}"));
+    }
+    
+    private void stats(HttpExchange exchange) throws IOException {
+        requireGet(exchange);
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"notes\":").append(store.size())
+            .append(",\"contentCache\":{\"entries\":").append(NotesContentCache.getResidentCount())
+            .append(",\"residentBytes\":").append(NotesContentCache.getResidentBytes())
+            .append(",\"maxBytes\":").append(NotesContentCache.getMaxBytes())
+            .append(",\"hits\":").append(NotesContentCache.getHits())
+            .append(",\"misses\":").append(NotesContentCache.getMisses())
+            .append(",\"hitRate\":").append(NotesContentCache.getHitRate())
+            .append(",\"evictions\":").append(NotesContentCache.getEvictions())
+            .append(",\"offHeapBytes\":").append(NotesContentCache.getOffHeapBytes())
+            .append("},\"sharedContents\":{\"contents\":").append(NotesChunkStore.getContents())
+            .append(",\"references\":").append(NotesChunkStore.getReferences())
+            .append(",\"unused\":").append(NotesChunkStore.getUnused())
+            .append(",\"savedBytes\":").append(NotesChunkStore.getSavedBytes())
+            .append("}}");
+        send(exchange, 200, null, json);
+    }
+    
+    private void metrics(HttpExchange exchange) throws IOException {
+        requireGet(exchange);
+        byte[] bytes = NotesMetrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+    
+    static StringBuilder appendNote(StringBuilder out, Note note) {
+        out.append("{\"id\":").append(note.getId()).append(",\"version\":").append(note.getVersion());
+        NotesExporter.json(out.append(",\"title\":"), note.getTitle());
+        NotesExporter.json(out.append(",\"category\":"), note.getCategory());
+        out.append(",\"created\":\"");
+        NoteTimestamps.appendIso(note.getCreatedMillis(), out);
+        out.append("\",\"modified\":\"");
+        NoteTimestamps.appendIso(note.getModifiedMillis(), out);
+        out.append('"');
+        NotesExporter.json(out.append(",\"content\":"), note.getContent());
+        return out.append('}');
+    }
+    
+    private static String etag(Note note) {
+        return "\"" + note.getVersion() + "\"";
+    }
+    
+    // Read before the notes, so the tag never claims changes it didn't see
+    private String changeTag() {
+        return "\"c" + store.getChangeCount() + "\"";
+    }
+    
+    /**
+     * Whether an If-None-Match header names etag (or is "*")
+     */
+    private static boolean matches(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Version an If-Match header asks for; ANY_VERSION without one. A tag
+     * that is not a note version can never match.
+     */
+    private static long expectedVersion(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("If-Match");
+        if (header == null || header.trim().equals("*")) {
+            return NotesStore.ANY_VERSION;
+        }
+        String tag = header.trim();
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        try {
+            long version = Long.parseLong(tag.replace("\"", ""));
+            if (version > 0) {
+                return version;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the failed precondition
+        }
+        throw new RequestException(412, "If-Match does not name a note version");
+    }
+    
+    private static void checkFound(NotesStore.Result result, long id) {
+        if (result.status == NotesStore.Status.NOT_FOUND) {
+            throw new RequestException(404, "No note with ID " + id);
+        }
+        if (result.status == NotesStore.Status.CONFLICT) {
+            throw new RequestException(412, "Note was changed by someone else (now version "
+                    + result.note.getVersion() + ")");
+        }
+    }
+    
+    private static void checkSaved(NotesStore.Result result) {
+        if (result.status == NotesStore.Status.UNSAVED) {
+            throw new RequestException(500, "Change applied but could not be saved");
+        }
+    }
+    
+    private static void requireGet(HttpExchange exchange) {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.getResponseHeaders().set("Allow", "GET");
+            throw new RequestException(405, "Method not allowed");
+        }
+    }
+    
+    private static void notAllowed(HttpExchange exchange, String allowed) {
+        exchange.getResponseHeaders().set("Allow", allowed);
+        throw new RequestException(405, "Method not allowed");
+    }
+    
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return params;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            try {
+                params.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                        URLDecoder.decode(value, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                throw new RequestException(400, "Malformed query string");
+            }
+        }
+        return params;
+    }
+    
+    private static long longParam(Map<String, String> query, String name, long defaultValue) {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new RequestException(400, name + " must be a non-negative number");
+    }
+    
+    /**
+     * An ISO local date-time or date (meaning its start) in the server's
+     * time zone, as epoch millis
+     */
+    private static long timeParam(Map<String, String> query, String name, long defaultValue) {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return NoteTimestamps.parseIso(value.length() == 10 ? value + "T00:00" : value);
+        } catch (DateTimeParseException e) {
+            throw new RequestException(400, name + " must be an ISO date or date-time");
+        }
+    }
+    
+    private static Map<String, String> readObject(HttpExchange exchange) throws IOException {
+        byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+        if (body.length > MAX_BODY_BYTES) {
+            throw new RequestException(413, "Request body is larger than " + MAX_BODY_BYTES + " bytes");
+        }
+        try {
+            return new JsonObjectReader(new String(body, StandardCharsets.UTF_8)).read();
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(400, "Invalid JSON: " + e.getMessage());
+        }
+    }
+    
+    private static void error(HttpExchange exchange, int status, String message) throws IOException {
+        StringBuilder json = new StringBuilder(64 + message.length());
+        NotesExporter.json(json.append("{\"error\":"), message);
+        send(exchange, status, null, json.append('}'));
+    }
+    
+    /**
+     * Send a response; a null body sends none (for 204 and 304)
+     */
+    private static void send(HttpExchange exchange, int status, String etag, StringBuilder body) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        if (etag != null) {
+            headers.set("ETag", etag);
+        }
+        if (body == null) {
+            // Closing the response body normally drains the request; with
+            // no body to send, the JDK server drops the kept-alive
+            // connection unless the request was drained already
+            exchange.getRequestBody().close();
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        headers.set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+    
+    /**
+     * Reader for the one kind of JSON requests and imported lines carry:
+     * an object whose values are strings, or numbers and booleans (kept as
+     * their text), or null, which counts as absent
+     */
+    static class JsonObjectReader {
+        private final String text;
+        private int pos;
+        
+        JsonObjectReader(String text) {
+            this.text = text;
+        }
+        
+        Map<String, String> read() {
+            Map<String, String> fields = new HashMap<>();
+            expect('{');
+            if (peek() == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    String name = string();
+                    expect(':');
+                    if (text.startsWith("null", skipSpace())) {
+                        pos += 4;
+                    } else if (peek() == '"') {
+                        fields.put(name, string());
+                    } else {
+                        fields.put(name, literal());
+                    }
+                    char next = next();
+                    if (next == '}') {
+                        break;
+                    }
+                    if (next != ',') {
+                        throw new IllegalArgumentException("expected ',' or '}' at offset " + (pos - 1));
+                    }
+                }
+            }
+            if (skipSpace() != text.length()) {
+                throw new IllegalArgumentException("unexpected text after the object");
+            }
+            return fields;
+        }
+        
+        private String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (pos >= text.length()) {
+                    throw new IllegalArgumentException("unterminated string");
+                }
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (pos >= text.length()) {
+                    throw new IllegalArgumentException("unterminated string");
+                }
+                char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case '"': case '\\': case '/': value.append(escaped); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw new IllegalArgumentException("bad \\u escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("bad \\u escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("bad escape \\" + escaped);
+                }
+            }
+        }
+        
+        // A number, true or false
+        private String literal() {
+            int start = skipSpace();
+            while (pos < text.length() && "+-.0123456789eEtrufals".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String value = text.substring(start, pos);
+            if (!value.equals("true") && !value.equals("false") && !value.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+                throw new IllegalArgumentException("expected a string, number or boolean at offset " + start);
+            }
+            return value;
+        }
+        
+        private void expect(char c) {
+            if (next() != c) {
+                throw new IllegalArgumentException("expected '" + c + "' at offset " + (pos - 1));
+            }
+        }
+        
+        private char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+        
+        private char peek() {
+            skipSpace();
+            if (pos >= text.length()) {
+                throw new IllegalArgumentException("unexpected end of input");
+            }
+            return text.charAt(pos);
+        }
+        
+        private int skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            return pos;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package notes;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Running totals over all notes: counts of notes, words and characters,
+ * overall and per category, plus the distribution of note lengths. Every
+ * add, edit and delete applies only its own difference, so reading the
+ * statistics never touches the notes themselves.
+ */
+public class NotesStatistics {
+    private static final int MAGIC = 0x4E535441; // "NSTA"
+    private static final int VERSION = 1;
+    
+    /**
+     * Totals for one category (or for all notes)
+     */
+    public static class Totals {
+        public long notes;
+        public long words;
+        public long characters;
+        
+        void add(long words, long characters, int sign) {
+            this.notes += sign;
+            this.words += sign * words;
+            this.characters += sign * characters;
+        }
+    }
+    
+    private final Totals total = new Totals();
+    private final TreeMap<String, Totals> categories = new TreeMap<>();
+    // Note length in characters -> number of notes that long, for min and max
+    private final TreeMap<Integer, Long> lengths = new TreeMap<>();
+    
+    /**
+     * Compute statistics for the given notes
+     */
+    public static NotesStatistics build(Collection<Note> notes) {
+        NotesStatistics statistics = new NotesStatistics();
+        for (Note note : notes) {
+            statistics.add(note);
+        }
+        return statistics;
+    }
+    
+    public void add(Note note) {
+        apply(note.getCategory(), note.getContent(), 1);
+    }
+    
+    public void remove(Note note) {
+        apply(note.getCategory(), note.getContent(), -1);
+    }
+    
+    /**
+     * Take back a note as it was before an edit; add(note) then counts the new version
+     */
+    public void remove(String category, String content) {
+        apply(category, content, -1);
+    }
+    
+    private void apply(String category, String content, int sign) {
+        long words = countWords(content);
+        int length = content.length();
+        
+        total.add(words, length, sign);
+        Totals totals = categories.computeIfAbsent(category, c -> new Totals());
+        totals.add(words, length, sign);
+        if (totals.notes <= 0) {
+            categories.remove(category);
+        }
+        
+        long count = lengths.getOrDefault(length, 0L) + sign;
+        if (count > 0) {
+            lengths.put(length, count);
+        } else {
+            lengths.remove(length);
+        }
+    }
+    
+    /**
+     * Number of whitespace-separated words, counted without allocating
+     */
+    public static long countWords(CharSequence text) {
+        long words = 0;
+        boolean inWord = false;
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                inWord = false;
+            } else if (!inWord) {
+                inWord = true;
+                words++;
+            }
+        }
+        return words;
+    }
+    
+    public Totals getTotal() {
+        return total;
+    }
+    
+    /**
+     * Totals per category, in alphabetical order
+     */
+    public Map<String, Totals> getCategories() {
+        return Collections.unmodifiableMap(categories);
+    }
+    
+    /**
+     * Length of the shortest note in characters (0 if there are none)
+     */
+    public int getMinLength() {
+        return lengths.isEmpty() ? 0 : lengths.firstKey();
+    }
+    
+    /**
+     * Length of the longest note in characters (0 if there are none)
+     */
+    public int getMaxLength() {
+        return lengths.isEmpty() ? 0 : lengths.lastKey();
+    }
+    
+    /**
+     * Write the statistics, tagged with a fingerprint of the files they describe
+     */
+    public void writeTo(DataOutputStream out, long fingerprint) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(fingerprint);
+        writeTotals(out, total);
+        
+        out.writeInt(categories.size());
+        for (Map.Entry<String, Totals> entry : categories.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeTotals(out, entry.getValue());
+        }
+        
+        out.writeInt(lengths.size());
+        for (Map.Entry<Integer, Long> entry : lengths.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+    
+    /**
+     * Read statistics written by writeTo, or return null if they were
+     * written for different files or a different number of notes
+     */
+    public static NotesStatistics readFrom(DataInputStream in, int noteCount, long fingerprint) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != fingerprint) {
+            return null;
+        }
+        
+        NotesStatistics statistics = new NotesStatistics();
+        readTotals(in, statistics.total);
+        if (statistics.total.notes != noteCount) {
+            return null;
+        }
+        
+        int categoryCount = in.readInt();
+        for (int i = 0; i < categoryCount; i++) {
+            String category = NotesCategoryIndex.canonical(in.readUTF());
+            readTotals(in, statistics.categories.computeIfAbsent(category, c -> new Totals()));
+        }
+        
+        int lengthCount = in.readInt();
+        for (int i = 0; i < lengthCount; i++) {
+            statistics.lengths.put(in.readInt(), in.readLong());
+        }
+        return statistics;
+    }
+    
+    private static void writeTotals(DataOutputStream out, Totals totals) throws IOException {
+        out.writeLong(totals.notes);
+        out.writeLong(totals.words);
+        out.writeLong(totals.characters);
+    }
+    
+    private static void readTotals(DataInputStream in, Totals totals) throws IOException {
+        totals.notes = in.readLong();
+        totals.words = in.readLong();
+        totals.characters = in.readLong();
+    }
+}
@@ -0,0 +1,566 @@
+package notes;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe core of the application: the notes and their indexes, shared
+ * by every front end. NotesManager is the console on top of it.
+ *
+ * Reads take no locks. Notes live in a concurrent map keyed by id, and a
+ * note in the map is never changed: an edit changes a copy and puts it in
+ * the original's place, so a reader sees a note either before or after an
+ * edit, never half way. Writes to one note are serialized by one of a fixed
+ * set of striped locks, so writers to different notes rarely wait for each
+ * other. The search index and statistics are not thread-safe themselves and
+ * are updated under a short write lock; searches share its read lock.
+ * The category and time indexes are built on first use, and so are the
+ * statistics unless a saved copy is still valid; see MappedNotesStore.
+ *
+ * Contents too large to keep on the heap are moved off it before a note
+ * is published; see NotesContentCache. A note with the same content as
+ * others is then given their shared copy, and counted as using it until
+ * it is edited or deleted; see NotesChunkStore.
+ *
+ * Every note in the store has a version, and every change gives it a new
+ * one. An edit or delete given the version it was based on fails with
+ * CONFLICT if someone else changed the note in the meantime. Edits are
+ * also kept as revisions of the note, which can be restored; see
+ * NotesHistory.
+ */
+public class NotesStore {
+    /**
+     * Expected version that skips the conflict check
+     */
+    public static final long ANY_VERSION = 0;
+    private static final int STRIPES = 64;
+    
+    public enum Status {
+        OK,
+        NOT_FOUND,
+        // The note's version is not the expected one; nothing was changed
+        CONFLICT,
+        // Changed in memory, but it could not be written to disk
+        UNSAVED
+    }
+    
+    /**
+     * Outcome of a change, with the note as it is now: the new version after
+     * an add or edit, the current one after a conflict, the removed one after
+     * a delete
+     */
+    public static class Result {
+        public final Status status;
+        public final Note note;
+        
+        Result(Status status, Note note) {
+            this.status = status;
+            this.note = note;
+        }
+    }
+    
+    private volatile ConcurrentSkipListMap<Long, Note> notes;
+    // Null until first used; see categoryIndex()
+    private volatile NotesCategoryIndex categoryIndex;
+    private volatile NotesTimeIndex timeIndex;
+    private volatile NotesStatistics statistics;
+    private NotesSearchIndex searchIndex;
+    private final NotesHistory history = NotesFileManager.openHistory();
+    
+    // Held by writers of the notes whose ids hash to it
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    // Write lock for changing the indexes and statistics, read lock for using them
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+    private final AtomicLong versions = new AtomicLong();
+    // Bumped once a change is complete, so a reader that saw the same
+    // count before and after reading saw no change in between
+    private final AtomicLong changes = new AtomicLong();
+    
+    /**
+     * Load the notes from disk
+     */
+    public NotesStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        load();
+    }
+    
+    /**
+     * Replace everything with the notes on disk, for example after a
+     * restore. Waits for writers in progress and holds off new ones.
+     */
+    public void load() {
+        lockAll();
+        try {
+            NavigableMap<Long, Note> loaded = NotesFileManager.loadNotes();
+            if (notes != null) {
+                for (Note note : notes.values()) {
+                    NotesChunkStore.release(note);
+                }
+            }
+            // A new version for everything, so edits based on notes from
+            // before the reload conflict
+            long version = versions.incrementAndGet();
+            for (Note note : loaded.values()) {
+                note.setVersion(version);
+                note.moveContentOffHeap();
+                NotesChunkStore.acquire(note);
+            }
+            ConcurrentSkipListMap<Long, Note> map = new ConcurrentSkipListMap<>(loaded);
+            searchIndex = NotesFileManager.loadSearchIndex(map.values());
+            categoryIndex = null;
+            timeIndex = null;
+            statistics = NotesFileManager.loadStatistics(map.size());
+            notes = map;
+            changes.incrementAndGet();
+        } finally {
+            unlockAll();
+        }
+    }
+    
+    /**
+     * Add a new note with the next free id
+     */
+    public Result add(String title, String content, String category) {
+        Note note = new Note(title, content, category);
+        note.moveContentOffHeap();
+        NotesChunkStore.acquire(note);
+        long id = NotesFileManager.assignId(note);
+        note.setVersion(versions.incrementAndGet());
+        
+        ReentrantLock lock = stripe(id);
+        lock.lock();
+        try {
+            ConcurrentSkipListMap<Long, Note> map = notes;
+            map.put(id, note);
+            indexLock.writeLock().lock();
+            try {
+                searchIndex.add(note);
+                addToIndexes(note);
+            } finally {
+                indexLock.writeLock().unlock();
+                changes.incrementAndGet();
+            }
+            return new Result(NotesFileManager.recordAdd(map, note) ? Status.OK : Status.UNSAVED, note);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Apply change to a copy of the note and put the copy in its place.
+     * change runs under the note's lock, so it should only set fields.
+     * @param expectedVersion version the change was based on, or ANY_VERSION
+     */
+    public Result edit(long id, long expectedVersion, Consumer<Note> change) {
+        ReentrantLock lock = stripe(id);
+        lock.lock();
+        try {
+            ConcurrentSkipListMap<Long, Note> map = notes;
+            Note current = map.get(id);
+            if (current == null) {
+                return new Result(Status.NOT_FOUND, null);
+            }
+            if (expectedVersion != ANY_VERSION && current.getVersion() != expectedVersion) {
+                return new Result(Status.CONFLICT, current);
+            }
+            
+            Note edited = current.copy();
+            change.accept(edited);
+            edited.moveContentOffHeap();
+            NotesChunkStore.acquire(edited);
+            edited.setVersion(versions.incrementAndGet());
+            map.put(id, edited);
+            NotesChunkStore.release(current);
+            indexLock.writeLock().lock();
+            try {
+                searchIndex.remove(current);
+                searchIndex.add(edited);
+                if (categoryIndex != null) {
+                    categoryIndex.move(id, current.getCategory(), edited.getCategory());
+                }
+                if (timeIndex != null) {
+                    timeIndex.update(current, edited);
+                }
+                if (statistics != null) {
+                    statistics.remove(current);
+                    statistics.add(edited);
+                }
+            } finally {
+                indexLock.writeLock().unlock();
+                changes.incrementAndGet();
+            }
+            history.record(current, edited);
+            return new Result(NotesFileManager.recordEdit(map, edited) ? Status.OK : Status.UNSAVED, edited);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Put a note back as it was in one of its revisions. This is an edit
+     * like any other, so it becomes the newest revision.
+     * @param expectedVersion version the restore was based on, or ANY_VERSION
+     * @throws java.io.UncheckedIOException if the revision could not be read
+     */
+    public Result restoreRevision(long id, int number, long expectedVersion) {
+        NotesHistory.Revision revision = history.get(id, number);
+        if (revision == null) {
+            return new Result(Status.NOT_FOUND, null);
+        }
+        return edit(id, expectedVersion, note -> {
+            note.setTitle(revision.title);
+            note.setCategory(revision.category);
+            note.setContent(revision.content);
+        });
+    }
+    
+    /**
+     * Remove a note
+     * @param expectedVersion version the delete was based on, or ANY_VERSION
+     */
+    public Result delete(long id, long expectedVersion) {
+        ReentrantLock lock = stripe(id);
+        lock.lock();
+        try {
+            ConcurrentSkipListMap<Long, Note> map = notes;
+            Note current = map.get(id);
+            if (current == null) {
+                return new Result(Status.NOT_FOUND, null);
+            }
+            if (expectedVersion != ANY_VERSION && current.getVersion() != expectedVersion) {
+                return new Result(Status.CONFLICT, current);
+            }
+            
+            map.remove(id);
+            NotesChunkStore.release(current);
+            indexLock.writeLock().lock();
+            try {
+                searchIndex.remove(current);
+                removeFromIndexes(current);
+            } finally {
+                indexLock.writeLock().unlock();
+                changes.incrementAndGet();
+            }
+            return new Result(NotesFileManager.recordDelete(map, current) ? Status.OK : Status.UNSAVED, current);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Add notes that already have ids (see NotesFileManager.assignIds), as
+     * one change written to the journal and forced to disk before this
+     * returns
+     */
+    public boolean addAll(List<Note> imported) {
+        for (Note note : imported) {
+            note.moveContentOffHeap();
+            NotesChunkStore.acquire(note);
+        }
+        lockAll();
+        try {
+            long version = versions.incrementAndGet();
+            for (Note note : imported) {
+                note.setVersion(version);
+                notes.put(note.getId(), note);
+                searchIndex.add(note);
+                addToIndexes(note);
+            }
+            changes.incrementAndGet();
+            return NotesFileManager.recordAll(notes, NotesJournal.ADD, imported);
+        } finally {
+            unlockAll();
+        }
+    }
+    
+    /**
+     * Remove notes by id, as one change like addAll
+     */
+    public boolean removeAll(Collection<Long> ids) {
+        lockAll();
+        try {
+            List<Note> removed = new ArrayList<>();
+            for (long id : ids) {
+                Note note = notes.remove(id);
+                if (note != null) {
+                    NotesChunkStore.release(note);
+                    searchIndex.remove(note);
+                    removeFromIndexes(note);
+                    removed.add(note);
+                }
+            }
+            changes.incrementAndGet();
+            return NotesFileManager.recordAll(notes, NotesJournal.DELETE, removed);
+        } finally {
+            unlockAll();
+        }
+    }
+    
+    /**
+     * Restore a backup generation (null = the newest backup) and load the
+     * restored notes, with writers held off throughout
+     */
+    public boolean restore(NotesBackupSet.Generation generation) {
+        lockAll();
+        try {
+            boolean restored = generation != null
+                    ? NotesFileManager.restoreFromBackup(generation)
+                    : NotesFileManager.restoreFromBackup();
+            if (restored) {
+                load();
+            }
+            return restored;
+        } finally {
+            unlockAll();
+        }
+    }
+    
+    /**
+     * Number of changes made so far. Read it before reading the notes to
+     * tag what was read: if it is unchanged later, so are the notes.
+     */
+    public long getChangeCount() {
+        return changes.get();
+    }
+    
+    public Note get(long id) {
+        return notes.get(id);
+    }
+    
+    public int size() {
+        return notes.size();
+    }
+    
+    public boolean isEmpty() {
+        return notes.isEmpty();
+    }
+    
+    /**
+     * Read-only live view of the notes by id. It reflects changes made while
+     * it is used, and iterating it never throws because of them.
+     */
+    public NavigableMap<Long, Note> view() {
+        return Collections.unmodifiableNavigableMap(notes);
+    }
+    
+    public NotesSearchIndex.SearchResult search(String query, int k) {
+        long start = NotesMetrics.start();
+        indexLock.readLock().lock();
+        try {
+            return searchIndex.search(query, k);
+        } finally {
+            indexLock.readLock().unlock();
+            NotesMetrics.SEARCH.record(start);
+        }
+    }
+    
+    /**
+     * Categories that currently have notes, in alphabetical order
+     */
+    public Set<String> categories() {
+        return categoryIndex().categories();
+    }
+    
+    public int count(String category) {
+        return categoryIndex().count(category);
+    }
+    
+    /**
+     * Live view of the ids in a category, in id order
+     */
+    public NavigableSet<Long> idsIn(String category) {
+        return categoryIndex().idsIn(category);
+    }
+    
+    /**
+     * Live view of where notes are by creation or modification time, for
+     * from <= time < to, oldest first. Look each note up with
+     * NotesTimeIndex.find(stamp, field, view()).
+     */
+    public NavigableSet<NotesTimeIndex.Stamp> between(NotesTimeIndex.Field field, long from, long to) {
+        return timeIndex().between(field, from, to);
+    }
+    
+    /**
+     * Groups of notes with the same content, the most wasteful first
+     */
+    public List<NotesChunkStore.Duplicates> duplicates() {
+        return NotesChunkStore.findDuplicates(notes.values());
+    }
+    
+    /**
+     * Revisions of a note, oldest first, without their contents; empty if
+     * it was never edited
+     * @throws java.io.UncheckedIOException if the history could not be read
+     */
+    public List<NotesHistory.Revision> history(long id) {
+        return history.list(id);
+    }
+    
+    /**
+     * One revision of a note with its content, or null if there is none
+     * @throws java.io.UncheckedIOException if the revision could not be read
+     */
+    public NotesHistory.Revision revision(long id, int number) {
+        return history.get(id, number);
+    }
+    
+    /**
+     * Run reader against the statistics while no writer can change them
+     */
+    public void readStatistics(Consumer<NotesStatistics> reader) {
+        // Built before taking the read lock, which cannot be upgraded
+        NotesStatistics statistics = statistics();
+        indexLock.readLock().lock();
+        try {
+            reader.accept(statistics);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Fold pending changes into the snapshot, rewriting only changed shards
+     */
+    public boolean saveChanges() {
+        return NotesFileManager.saveChanges(notes.values());
+    }
+    
+    /**
+     * Move the notes into a layout of count files while writers go on
+     */
+    public boolean reshard(int count) {
+        return NotesFileManager.reshard(notes.values(), count);
+    }
+    
+    /**
+     * Flush pending changes and save the index and statistics with the notes
+     * they describe. Writers are held off while that happens.
+     */
+    public void close() {
+        lockAll();
+        try {
+            NotesFileManager.closeJournal();
+            NotesFileManager.saveSearchIndex(searchIndex, notes.values());
+            // Statistics never built are out of date on disk and rebuilt when next needed
+            if (statistics != null) {
+                NotesFileManager.saveStatistics(statistics);
+            }
+            history.close();
+        } finally {
+            unlockAll();
+        }
+    }
+    
+    // Under the index write lock
+    private void addToIndexes(Note note) {
+        if (categoryIndex != null) {
+            categoryIndex.add(note);
+        }
+        if (timeIndex != null) {
+            timeIndex.add(note);
+        }
+        if (statistics != null) {
+            statistics.add(note);
+        }
+    }
+    
+    private void removeFromIndexes(Note note) {
+        if (categoryIndex != null) {
+            categoryIndex.remove(note);
+        }
+        if (timeIndex != null) {
+            timeIndex.remove(note);
+        }
+        if (statistics != null) {
+            statistics.remove(note);
+        }
+    }
+    
+    /**
+     * The category index, built from the notes the first time it is asked
+     * for. Building it reads every note's category, which for a mapped
+     * snapshot means decoding them all, so a start that never lists a
+     * category doesn't pay for it. Writers are held off while it is built,
+     * so no change is counted twice or missed; until then they skip it.
+     */
+    private NotesCategoryIndex categoryIndex() {
+        NotesCategoryIndex index = categoryIndex;
+        if (index == null) {
+            lockAll();
+            try {
+                if (categoryIndex == null) {
+                    categoryIndex = NotesCategoryIndex.build(notes.values());
+                }
+                index = categoryIndex;
+            } finally {
+                unlockAll();
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * The time index, built on first use like the category index
+     */
+    private NotesTimeIndex timeIndex() {
+        NotesTimeIndex index = timeIndex;
+        if (index == null) {
+            lockAll();
+            try {
+                if (timeIndex == null) {
+                    timeIndex = NotesTimeIndex.build(notes.values());
+                }
+                index = timeIndex;
+            } finally {
+                unlockAll();
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * The statistics, computed on first use if the saved ones were missing
+     * or out of date
+     */
+    private NotesStatistics statistics() {
+        NotesStatistics current = statistics;
+        if (current == null) {
+            lockAll();
+            try {
+                if (statistics == null) {
+                    statistics = NotesStatistics.build(notes.values());
+                }
+                current = statistics;
+            } finally {
+                unlockAll();
+            }
+        }
+        return current;
+    }
+    
+    private ReentrantLock stripe(long id) {
+        return stripes[Long.hashCode(id) & (STRIPES - 1)];
+    }
+    
+    // Every stripe in order, then the index lock, so nothing else can change
+    private void lockAll() {
+        for (ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        indexLock.writeLock().lock();
+    }
+    
+    private void unlockAll() {
+        indexLock.writeLock().unlock();
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package notes;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index of the notes by creation and by modification time, so
+ * "modified since" and "created between" queries only visit the notes in
+ * the range. Kept up to date on add, edit and delete like
+ * NotesCategoryIndex, with the same rules: any number of threads may read
+ * it while it changes, changes must come from one thread at a time.
+ */
+public class NotesTimeIndex {
+    public enum Field {
+        CREATED,
+        MODIFIED;
+        
+        public long of(Note note) {
+            return this == CREATED ? note.getCreatedMillis() : note.getModifiedMillis();
+        }
+    }
+    
+    /**
+     * One note's time, ordered by time and then id
+     */
+    public static final class Stamp implements Comparable<Stamp> {
+        public final long time;
+        public final long id;
+        
+        Stamp(long time, long id) {
+            this.time = time;
+            this.id = id;
+        }
+        
+        @Override
+        public int compareTo(Stamp other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(id, other.id);
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Stamp && compareTo((Stamp) other) == 0;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Long.hashCode(time) * 31 + Long.hashCode(id);
+        }
+    }
+    
+    private final ConcurrentSkipListSet<Stamp> created = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<Stamp> modified = new ConcurrentSkipListSet<>();
+    
+    /**
+     * Build an index over the given notes
+     */
+    public static NotesTimeIndex build(Collection<Note> notes) {
+        NotesTimeIndex index = new NotesTimeIndex();
+        for (Note note : notes) {
+            index.add(note);
+        }
+        return index;
+    }
+    
+    public void add(Note note) {
+        created.add(stamp(Field.CREATED, note));
+        modified.add(stamp(Field.MODIFIED, note));
+    }
+    
+    public void remove(Note note) {
+        created.remove(stamp(Field.CREATED, note));
+        modified.remove(stamp(Field.MODIFIED, note));
+    }
+    
+    /**
+     * Replace a note's entries with those of its edited version
+     */
+    public void update(Note before, Note after) {
+        if (before.getCreatedMillis() != after.getCreatedMillis()) {
+            created.remove(stamp(Field.CREATED, before));
+            created.add(stamp(Field.CREATED, after));
+        }
+        if (before.getModifiedMillis() != after.getModifiedMillis()) {
+            modified.remove(stamp(Field.MODIFIED, before));
+            modified.add(stamp(Field.MODIFIED, after));
+        }
+    }
+    
+    /**
+     * Live view of the entries with from <= time < to, oldest first. An
+     * entry only says where a note was when it was read: look notes up
+     * with find, which skips those changed since.
+     */
+    public NavigableSet<Stamp> between(Field field, long from, long to) {
+        if (from >= to) {
+            return Collections.emptyNavigableSet();
+        }
+        ConcurrentSkipListSet<Stamp> stamps = field == Field.CREATED ? created : modified;
+        return Collections.unmodifiableNavigableSet(
+                stamps.subSet(new Stamp(from, Long.MIN_VALUE), true, new Stamp(to, Long.MIN_VALUE), false));
+    }
+    
+    public static Stamp stamp(Field field, Note note) {
+        return new Stamp(field.of(note), note.getId());
+    }
+    
+    /**
+     * The note an entry is for, or null if it was deleted or its time has
+     * changed, in which case it has another entry
+     */
+    public static Note find(Stamp stamp, Field field, Map<Long, Note> notes) {
+        Note note = notes.get(stamp.id);
+        return note != null && field.of(note) == stamp.time ? note : null;
+    }
+}
@@ -0,0 +1,249 @@
+package notes;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background writer for journal records. Changes are queued by note id, so
+ * a burst of edits to one note becomes a single record, and the writer
+ * thread appends everything queued within maxDelay with one write and at
+ * most one fsync. The console thread never waits for the disk unless it
+ * asks to with flush().
+ */
+public class NotesWriteBehind {
+    // Flush at once when this many notes have queued changes, whatever the delay
+    private static final int MAX_QUEUED = 4096;
+    // Pause before retrying after a failed write, so a full disk doesn't spin
+    private static final long RETRY_MILLIS = 1000;
+    
+    private final NotesJournal journal;
+    private final long maxDelayNanos;
+    private final Thread writer;
+    
+    // Guarded by this
+    private LinkedHashMap<Long, NotesJournal.Change> pending = new LinkedHashMap<>();
+    private long oldestQueuedAt;
+    private long accepted;
+    private long written;
+    private long synced;
+    private long failures;
+    private boolean syncRequested;
+    private boolean closed;
+    
+    // Metrics, guarded by this
+    private int maxQueueDepth;
+    private long coalesced;
+    private long flushes;
+    private long recordsWritten;
+    private long totalFlushNanos;
+    private long maxFlushNanos;
+    
+    public NotesWriteBehind(NotesJournal journal, long maxDelayMillis) {
+        this.journal = journal;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.writer = new Thread(this::run, "notes-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Queue a change. note must not be modified afterwards (pass a copy).
+     */
+    public synchronized void enqueue(char op, Note note) {
+        if (closed) {
+            throw new IllegalStateException("Write-behind queue is closed");
+        }
+        accepted++;
+        if (pending.isEmpty()) {
+            oldestQueuedAt = System.nanoTime();
+        }
+        if (coalesce(pending, new NotesJournal.Change(op, note))) {
+            coalesced++;
+        }
+        maxQueueDepth = Math.max(maxQueueDepth, pending.size());
+        if (pending.size() >= MAX_QUEUED || pending.size() == 1) {
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Merge a change into the queue; returns true if it replaced a change
+     * already queued for the same note
+     */
+    private static boolean coalesce(Map<Long, NotesJournal.Change> queue, NotesJournal.Change change) {
+        long id = change.note.getId();
+        NotesJournal.Change previous = queue.get(id);
+        if (previous == null) {
+            queue.put(id, change);
+            return false;
+        }
+        if (change.op == NotesJournal.DELETE) {
+            // Kept even if the add never reached the journal: a compaction
+            // reads the live notes and may have put it in the snapshot
+            queue.put(id, change);
+        } else {
+            // An edit keeps the op of what it follows: ADD stays ADD
+            queue.put(id, new NotesJournal.Change(previous.op, change.note));
+        }
+        return true;
+    }
+    
+    /**
+     * Block until every change queued before this call is in the journal,
+     * and forced to disk too if durable is set. Returns false if writing
+     * failed; the changes stay queued and are retried.
+     */
+    public synchronized boolean flush(boolean durable) {
+        long target = accepted;
+        long failuresBefore = failures;
+        boolean interrupted = false;
+        
+        while (durable ? synced < target : written < target) {
+            if (failures != failuresBefore || !writer.isAlive()) {
+                break;
+            }
+            syncRequested |= durable;
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return durable ? synced >= target : written >= target;
+    }
+    
+    /**
+     * Write and sync everything queued, then stop the writer thread
+     */
+    public boolean close() {
+        boolean flushed = flush(true);
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return flushed;
+    }
+    
+    private void run() {
+        while (true) {
+            LinkedHashMap<Long, NotesJournal.Change> batch;
+            long upTo;
+            boolean sync;
+            
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty() && !syncRequested && !closed) {
+                        wait();
+                    }
+                    // Give the burst time to finish, unless someone is waiting
+                    while (!pending.isEmpty() && !syncRequested && !closed && pending.size() < MAX_QUEUED) {
+                        long remaining = oldestQueuedAt + maxDelayNanos - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending.isEmpty() && !syncRequested) {
+                    return; // closed with nothing left to write
+                }
+                batch = pending;
+                pending = new LinkedHashMap<>();
+                upTo = accepted;
+                sync = syncRequested;
+                syncRequested = false;
+            }
+            
+            long start = System.nanoTime();
+            try {
+                if (!batch.isEmpty()) {
+                    journal.appendAll(batch.values());
+                }
+                if (sync) {
+                    journal.sync();
+                }
+            } catch (IOException e) {
+                System.err.println("✗ Error writing journal: " + e.getMessage());
+                synchronized (this) {
+                    // Put the batch back in front of anything queued since
+                    LinkedHashMap<Long, NotesJournal.Change> retry = batch;
+                    for (NotesJournal.Change change : pending.values()) {
+                        coalesce(retry, change);
+                    }
+                    pending = retry;
+                    oldestQueuedAt = System.nanoTime();
+                    failures++;
+                    notifyAll();
+                    if (closed) {
+                        return; // already reported; don't keep close() waiting
+                    }
+                    try {
+                        wait(RETRY_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            long elapsed = System.nanoTime() - start;
+            
+            synchronized (this) {
+                written = upTo;
+                if (sync) {
+                    synced = upTo;
+                }
+                flushes++;
+                recordsWritten += batch.size();
+                totalFlushNanos += elapsed;
+                maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+                notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Notes with changes waiting to be written
+     */
+    public synchronized int getQueueDepth() {
+        return pending.size();
+    }
+    
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+    
+    /**
+     * Changes that were merged into one already queued instead of adding a record
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+    
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+    
+    public synchronized long getRecordsWritten() {
+        return recordsWritten;
+    }
+    
+    public synchronized double getAverageFlushMillis() {
+        return flushes == 0 ? 0 : totalFlushNanos / 1e6 / flushes;
+    }
+    
+    public synchronized double getMaxFlushMillis() {
+        return maxFlushNanos / 1e6;
+    }
+}
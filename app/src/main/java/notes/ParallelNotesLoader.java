@@ -0,0 +1,257 @@
+package notes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Loads large notes files on the fork/join pool. The file is split into
+ * byte ranges that start and end on record (or line) boundaries; ranges are
+ * decoded in parallel and the results joined back in file order. Errors
+ * are reported afterwards, in order, with the same record or line numbers
+ * a sequential load would give.
+ */
+public class ParallelNotesLoader {
+    // Smallest amount of work worth handing to another thread
+    private static final int MIN_RECORDS_PER_TASK = 2048;
+    private static final long MIN_BYTES_PER_CHUNK = 4L << 20;
+    private static final long MAX_BYTES_PER_CHUNK = 1L << 30;
+    
+    /**
+     * Notes decoded from a file, plus the journal sequence number and next
+     * note id it carries
+     */
+    public static class LoadResult {
+        public final List<Note> notes;
+        public final long seq;
+        public final long nextId;
+        
+        LoadResult(List<Note> notes, long seq, long nextId) {
+            this.notes = notes;
+            this.seq = seq;
+            this.nextId = nextId;
+        }
+    }
+    
+    /**
+     * Load a binary snapshot: index record offsets through a mapping, then
+     * check and decode ranges of records in parallel. Shared contents are
+     * decoded first, so a record can refer to one in any range.
+     */
+    public static LoadResult loadSnapshot(File file, int magic) throws IOException {
+        MappedNotesStore store = MappedNotesStore.open(file, magic, false);
+        Note[] decoded = new Note[store.size()];
+        ConcurrentSkipListMap<Integer, String> errors = new ConcurrentSkipListMap<>();
+        
+        Map<Long, Object> shared = new ConcurrentHashMap<>();
+        store.sharedRecords().forEach((hash, record) -> {
+            // The store picked an intact copy; one that still fails to
+            // decode is reported with its record
+            try {
+                shared.put(hash, NoteCodec.getContent(store.sharedContent(record)));
+            } catch (RuntimeException e) {
+                // Records referring to it are kept with an empty content
+            }
+        });
+        ForkJoinPool.commonPool().invoke(new DecodeRecords(store, shared, decoded, errors, 0, decoded.length));
+        
+        report(errors, "record");
+        List<Note> notes = new ArrayList<>(decoded.length);
+        for (Note note : decoded) {
+            if (note != null) {
+                notes.add(note);
+            }
+        }
+        return new LoadResult(notes, store.getSeq(), store.getNextId());
+    }
+    
+    private static class DecodeRecords extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final MappedNotesStore store;
+        private final Map<Long, Object> shared;
+        private final Note[] decoded;
+        private final Map<Integer, String> errors;
+        private final int from;
+        private final int to;
+        
+        DecodeRecords(MappedNotesStore store, Map<Long, Object> shared, Note[] decoded,
+                      Map<Integer, String> errors, int from, int to) {
+            this.store = store;
+            this.shared = shared;
+            this.decoded = decoded;
+            this.errors = errors;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > MIN_RECORDS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DecodeRecords(store, shared, decoded, errors, from, middle),
+                          new DecodeRecords(store, shared, decoded, errors, middle, to));
+                return;
+            }
+            
+            CRC32 crc = new CRC32();
+            for (int i = from; i < to; i++) {
+                try {
+                    if (!store.isIntact(i, crc)) {
+                        NotesMetrics.CHECKSUM_ERRORS.increment();
+                        throw new IllegalStateException("Checksum mismatch");
+                    }
+                    decoded[i] = NoteCodec.getNote(store.payload(i), store.getVersion(), shared);
+                } catch (NoteCodec.MissingContentException e) {
+                    decoded[i] = e.note;
+                    errors.put(i + 1, e.getMessage());
+                } catch (Exception e) {
+                    // The store was opened without skipping anything, so
+                    // record numbers are simply positions
+                    errors.put(i + 1, e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Load a pipe-delimited text file. Returns the "@seq" header value as
+     * the sequence number (0 if absent).
+     */
+    public static LoadResult loadText(File file, String seqHeader) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int parallelism = ForkJoinPool.getCommonPoolParallelism();
+            long chunkSize = Math.max(MIN_BYTES_PER_CHUNK, size / (parallelism * 4L) + 1);
+            chunkSize = Math.min(chunkSize, MAX_BYTES_PER_CHUNK);
+            
+            // Cut the file just after a newline near every chunkSize bytes
+            List<Long> bounds = new ArrayList<>();
+            bounds.add(0L);
+            long position = chunkSize;
+            while (position < size) {
+                long lineEnd = nextLineStart(channel, position, size);
+                if (lineEnd >= size) {
+                    break;
+                }
+                bounds.add(lineEnd);
+                position = lineEnd + chunkSize;
+            }
+            bounds.add(size);
+            
+            List<ForkJoinTask<TextChunk>> tasks = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                long start = bounds.get(i);
+                long end = bounds.get(i + 1);
+                boolean first = i == 0;
+                tasks.add(ForkJoinPool.commonPool().submit(() -> parseText(channel, start, end, first, seqHeader)));
+            }
+            
+            List<Note> notes = new ArrayList<>();
+            Map<Integer, String> errors = new TreeMap<>();
+            long seq = 0;
+            int linesBefore = 0;
+            for (ForkJoinTask<TextChunk> task : tasks) {
+                TextChunk chunk;
+                try {
+                    chunk = task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Loading interrupted");
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause().getMessage(), e.getCause());
+                }
+                notes.addAll(chunk.notes);
+                for (Map.Entry<Integer, String> error : chunk.errors.entrySet()) {
+                    errors.put(linesBefore + error.getKey(), error.getValue());
+                }
+                if (chunk.seq > 0) {
+                    seq = chunk.seq;
+                }
+                linesBefore += chunk.lines;
+            }
+            
+            report(errors, "line");
+            return new LoadResult(notes, seq, 0);
+        }
+    }
+    
+    private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+    
+    /**
+     * Notes parsed from one byte range; error keys are line numbers within the range
+     */
+    private static class TextChunk {
+        final List<Note> notes = new ArrayList<>();
+        final Map<Integer, String> errors = new TreeMap<>();
+        int lines;
+        long seq;
+    }
+    
+    private static TextChunk parseText(FileChannel channel, long start, long end,
+                                       boolean first, String seqHeader) throws IOException {
+        TextChunk chunk = new TextChunk();
+        MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        byte[] line = new byte[256];
+        int limit = bytes.limit();
+        int lineStart = 0;
+        
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && bytes.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int length = lineEnd - lineStart;
+            if (length > 0 && bytes.get(lineEnd - 1) == '\r') {
+                length--;
+            }
+            if (line.length < length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            bytes.get(lineStart, line, 0, length);
+            chunk.lines++;
+            
+            String text = new String(line, 0, length, StandardCharsets.UTF_8);
+            try {
+                if (first && chunk.lines == 1 && text.startsWith(seqHeader)) {
+                    chunk.seq = Long.parseLong(text.substring(seqHeader.length()).trim());
+                } else if (!text.trim().isEmpty()) {
+                    chunk.notes.add(Note.fromLegacyFileString(text));
+                }
+            } catch (Exception e) {
+                chunk.errors.put(chunk.lines, e.getMessage());
+            }
+            lineStart = lineEnd + 1;
+        }
+        return chunk;
+    }
+    
+    private static void report(Map<Integer, String> errors, String unit) {
+        for (Map.Entry<Integer, String> error : errors.entrySet()) {
+            System.err.println("✗ Error parsing " + unit + " " + error.getKey() + ": " + error.getValue());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package notes;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Layout of notes split by id across several snapshot files in one
+ * directory. Each shard is an ordinary notes snapshot, so it is written,
+ * read and backed up on its own; a change only rewrites its own shard,
+ * and a damaged shard only loses the notes in it.
+ *
+ * Layout:
+ *   manifest        shard count, journal sequence and next id
+ *   notes-000.dat   notes whose id maps to shard 0
+ *   notes-001.dat   ...
+ *
+ * The manifest is rewritten after every save and is the commit point:
+ * every shard holds at least the changes up to the manifest's sequence
+ * number, so replaying the journal from there brings them all up to date
+ * even if a crash left some shards newer than others. A whole new layout
+ * (resharding, restoring a backup) is written to a staging directory and
+ * swapped in with renames.
+ */
+public class ShardedNotesStore {
+    private static final int MAGIC = 0x4E534844; // "NSHD"
+    private static final int VERSION = 1;
+    public static final String MANIFEST = "manifest";
+    public static final int MAX_SHARDS = 1024;
+    
+    private final Path directory;
+    private final int shards;
+    private final long seq;
+    private final long nextId;
+    
+    private ShardedNotesStore(Path directory, int shards, long seq, long nextId) {
+        this.directory = directory;
+        this.shards = shards;
+        this.seq = seq;
+        this.nextId = nextId;
+    }
+    
+    /**
+     * A new, empty layout of shards files in directory; nothing is written yet
+     */
+    public static ShardedNotesStore create(Path directory, int shards) {
+        if (shards < 2 || shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be between 2 and " + MAX_SHARDS);
+        }
+        return new ShardedNotesStore(directory, shards, 0, 1);
+    }
+    
+    /**
+     * Open the layout in directory, finishing an interrupted swap first.
+     * Returns null if there is no sharded layout.
+     */
+    public static ShardedNotesStore open(Path directory) throws IOException {
+        recover(directory);
+        Path manifest = directory.resolve(MANIFEST);
+        if (!Files.exists(manifest)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(manifest + " is not a shard manifest");
+            }
+            int shards = in.readInt();
+            long seq = in.readLong();
+            long nextId = in.readLong();
+            if (shards < 2 || shards > MAX_SHARDS) {
+                throw new IOException(manifest + " has an invalid shard count " + shards);
+            }
+            return new ShardedNotesStore(directory, shards, seq, nextId);
+        }
+    }
+    
+    /**
+     * Shard a note id belongs to. Ids are mixed first so that notes added
+     * one after another don't land in shards in a fixed rotation.
+     */
+    public static int shardOf(long id, int shards) {
+        long mixed = id * 0x9E3779B97F4A7C15L;
+        return (int) Long.remainderUnsigned(mixed ^ (mixed >>> 32), shards);
+    }
+    
+    public int shardOf(long id) {
+        return shardOf(id, shards);
+    }
+    
+    public Path getDirectory() {
+        return directory;
+    }
+    
+    public int getShards() {
+        return shards;
+    }
+    
+    /**
+     * Journal sequence number every shard is up to date with
+     */
+    public long getSeq() {
+        return seq;
+    }
+    
+    public long getNextId() {
+        return nextId;
+    }
+    
+    public Path shardFile(int shard) {
+        return directory.resolve(String.format("notes-%03d.dat", shard));
+    }
+    
+    /**
+     * Every file making up the layout, manifest first
+     */
+    public List<Path> files() {
+        List<Path> files = new ArrayList<>(shards + 1);
+        files.add(directory.resolve(MANIFEST));
+        for (int i = 0; i < shards; i++) {
+            files.add(shardFile(i));
+        }
+        return files;
+    }
+    
+    /**
+     * Every shard, for writing the whole layout
+     */
+    public BitSet all() {
+        BitSet all = new BitSet(shards);
+        all.set(0, shards);
+        return all;
+    }
+    
+    /**
+     * Split notes by shard, keeping only the shards in which. Notes keep
+     * their relative order within a shard.
+     */
+    public List<List<Note>> partition(Collection<Note> notes, BitSet which) {
+        List<List<Note>> parts = new ArrayList<>(shards);
+        int expected = notes.size() / shards + 16;
+        for (int i = 0; i < shards; i++) {
+            parts.add(which.get(i) ? new ArrayList<>(expected) : null);
+        }
+        for (Note note : notes) {
+            List<Note> part = parts.get(shardOf(note.getId()));
+            if (part != null) {
+                part.add(note);
+            }
+        }
+        return parts;
+    }
+    
+    /**
+     * Record that every shard now holds the changes up to seq. Written to
+     * a temp file, forced to disk and renamed over the old manifest.
+     */
+    public void writeManifest(long seq, long nextId) throws IOException {
+        Path manifest = directory.resolve(MANIFEST);
+        Path temp = directory.resolve(MANIFEST + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(shards);
+            out.writeLong(seq);
+            out.writeLong(nextId);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        NotesFileManager.syncDirectory(manifest);
+    }
+    
+    /**
+     * Directory a new layout for directory is written to before it is swapped in
+     */
+    public static Path stagingDirectory(Path directory) {
+        return directory.resolveSibling(directory.getFileName() + ".tmp");
+    }
+    
+    /**
+     * Replace the layout in directory with the complete one in staging.
+     * A crash between the two renames is finished by recover().
+     */
+    public static void swapIn(Path staging, Path directory) throws IOException {
+        Path old = directory.resolveSibling(directory.getFileName() + ".old");
+        deleteTree(old);
+        if (Files.exists(directory)) {
+            Files.move(directory, old, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(staging, directory, StandardCopyOption.ATOMIC_MOVE);
+        NotesFileManager.syncDirectory(directory);
+        deleteTree(old);
+    }
+    
+    /**
+     * Remove the layout in directory, manifest first so a crash part way
+     * never leaves a manifest pointing at missing shards
+     */
+    public static void delete(Path directory) throws IOException {
+        Files.deleteIfExists(directory.resolve(MANIFEST));
+        deleteTree(directory);
+        deleteTree(stagingDirectory(directory));
+    }
+    
+    /**
+     * Finish or undo a swap that a crash interrupted. Staging is only
+     * renamed once it is complete, so if the old layout was already moved
+     * aside the staged one is used.
+     */
+    private static void recover(Path directory) throws IOException {
+        Path staging = stagingDirectory(directory);
+        Path old = directory.resolveSibling(directory.getFileName() + ".old");
+        if (!Files.exists(directory) && Files.exists(old)) {
+            Files.move(Files.exists(staging) ? staging : old, directory, StandardCopyOption.ATOMIC_MOVE);
+        }
+        deleteTree(old);
+        deleteTree(staging);
+    }
+    
+    static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            List<Path> all = new ArrayList<>();
+            paths.forEach(all::add);
+            Collections.reverse(all);
+            for (Path path : all) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package notes;
+
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * notes.txt and the text journal were written by the first version of the
+ * app, which escaped only pipes and line feeds; migrating them must keep
+ * every other backslash as it is.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class LegacyMigrationTest {
+    private static final Path DIR;
+    
+    static {
+        try {
+            DIR = Files.createTempDirectory("notes-migration");
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        // Read once, when NotesFileManager is first used
+        System.setProperty("notes.dir", DIR.toString());
+        System.setProperty("notes.journal.writeBehindMillis", "0");
+    }
+    
+    private static final String PATHS = "C:\\Users\\bob\\docs and regex a\\d+";
+    
+    // A line as the old Note.toFileString wrote it
+    private static String oldLine(String title, String content, String category) {
+        return title.replace("|", "\\|") + "|" + content.replace("|", "\\|").replace("\n", "\\n") + "|"
+                + category.replace("|", "\\|") + "|2024-01-02T03:04:05|2024-01-03T04:05:06";
+    }
+    
+    @Test
+    @Order(1)
+    void migratesBackslashesPipesAndLineBreaks() throws IOException {
+        Files.write(DIR.resolve("notes.txt"), List.of(
+                oldLine("Paths", PATHS, "Work"),
+                oldLine("a|b", "first\nsecond | th\\ird", "Misc")), StandardCharsets.UTF_8);
+        Files.write(DIR.resolve("notes.journal"), List.of(
+                "1|A|" + oldLine("Journal", "tab\\t and \\\\server\\share", "Work")), StandardCharsets.UTF_8);
+        
+        NavigableMap<Long, Note> notes = NotesFileManager.loadNotes();
+        
+        assertEquals(3, notes.size());
+        List<Note> list = new ArrayList<>(notes.values());
+        assertEquals("Paths", list.get(0).getTitle());
+        assertEquals(PATHS, list.get(0).getContent());
+        assertEquals("a|b", list.get(1).getTitle());
+        assertEquals("first\nsecond | th\\ird", list.get(1).getContent());
+        assertEquals("tab\\t and \\\\server\\share", list.get(2).getContent());
+        assertTrue(new File(DIR.toFile(), "notes.txt.migrated").exists());
+        
+        // And the binary snapshot written by the migration reads back the same
+        NotesFileManager.closeJournal();
+        Map<Long, Note> reloaded = NotesFileManager.loadNotes();
+        assertEquals(PATHS, reloaded.get(list.get(0).getId()).getContent());
+    }
+    
+    // Once the migration has made a notes.dat for the backup to replace
+    @Test
+    @Order(2)
+    void restoresTheOldTextBackup() throws IOException {
+        Files.write(DIR.resolve("notes_backup.txt"), List.of(
+                oldLine("Backup", PATHS, "Work"),
+                oldLine("Two", "a | b\nc", "Misc")), StandardCharsets.UTF_8);
+        NotesFileManager.closeJournal();
+        long before = NotesFileManager.loadNotes().lastKey();
+        
+        assertTrue(NotesFileManager.restoreFromBackup());
+        NotesFileManager.closeJournal();
+        NavigableMap<Long, Note> notes = NotesFileManager.loadNotes();
+        
+        assertEquals(2, notes.size());
+        List<Note> list = new ArrayList<>(notes.values());
+        assertEquals("Backup", list.get(0).getTitle());
+        assertEquals(PATHS, list.get(0).getContent());
+        assertEquals("a | b\nc", list.get(1).getContent());
+        // New ids, never reusing one
+        assertTrue(notes.firstKey() > before);
+    }
+    
+    @Test
+    void parallelLoaderDecodesTheSameWay() throws IOException {
+        File file = DIR.resolve("parallel.txt").toFile();
+        Files.write(file.toPath(), List.of("@seq 7", oldLine("Paths", PATHS, "Work")), StandardCharsets.UTF_8);
+        
+        ParallelNotesLoader.LoadResult result = ParallelNotesLoader.loadText(file, "@seq ");
+        
+        assertEquals(7, result.seq);
+        assertEquals(PATHS, result.notes.get(0).getContent());
+    }
+    
+    @Test
+    void exportFormatStillEscapesBackslashes() {
+        Note note = new Note("T\\|", PATHS + "\r\n|", "C");
+        Note back = Note.fromFileString(note.toFileString());
+        assertEquals("T\\|", back.getTitle());
+        assertEquals(PATHS + "\r\n|", back.getContent());
+    }
+}
@@ -0,0 +1,116 @@
+package notes;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NotesBackupSetTest {
+    private static final Path DIR;
+    
+    static {
+        try {
+            DIR = Files.createTempDirectory("notes-backup");
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        System.setProperty("notes.dir", DIR.toString());
+        System.setProperty("notes.journal.writeBehindMillis", "0");
+    }
+    
+    @Test
+    void insertStoresFewSegmentsAndBothGenerationsRestore() throws IOException {
+        Path source = DIR.resolve("notes.bin");
+        NotesBackupSet backups = new NotesBackupSet(DIR.resolve("set"));
+        
+        // Segments average about 1 MB, so this is a dozen or so of them
+        byte[] before = new byte[12 << 20];
+        new Random(1).nextBytes(before);
+        Files.write(source, before);
+        NotesBackupSet.Generation first = backups.create(source);
+        assertEquals(first.getSegmentCount(), first.newSegments);
+        assertTrue(first.getSegmentCount() >= 6, "only " + first.getSegmentCount() + " segments");
+        
+        byte[] inserted = new byte[1000];
+        new Random(2).nextBytes(inserted);
+        byte[] after = new byte[before.length + inserted.length];
+        int middle = before.length / 2;
+        System.arraycopy(before, 0, after, 0, middle);
+        System.arraycopy(inserted, 0, after, middle, inserted.length);
+        System.arraycopy(before, middle, after, middle + inserted.length, before.length - middle);
+        Files.write(source, after);
+        NotesBackupSet.Generation second = backups.create(source);
+        
+        // Only the segment holding the insert changes, and the next one if
+        // that was cut at the maximum length; the cuts after it move with
+        // the bytes
+        assertTrue(second.newSegments >= 1 && second.newSegments <= 2, second.newSegments + " new segments");
+        assertEquals(first.getSegmentCount(), second.getSegmentCount());
+        assertEquals(2, backups.list().size());
+        
+        Path restored = DIR.resolve("restored.bin");
+        backups.restore(backups.list().get(0), restored);
+        assertArrayEquals(before, Files.readAllBytes(restored));
+        backups.restore(backups.list().get(1), restored);
+        assertArrayEquals(after, Files.readAllBytes(restored));
+        
+        // The first generation's old middle segments are all that goes
+        assertEquals(1, backups.prune(1));
+        assertEquals(1, backups.list().size());
+        assertEquals(after.length, backups.storedBytes());
+        backups.restore(backups.list().get(0), restored);
+        assertArrayEquals(after, Files.readAllBytes(restored));
+    }
+    
+    @Test
+    void damagedSegmentFailsRestoreAndLeavesNotesAlone() throws IOException {
+        NavigableMap<Long, Note> notes = NotesFileManager.loadNotes();
+        for (int i = 0; i < 3; i++) {
+            Note note = new Note("Backed up " + i, "content " + i, "General");
+            NotesFileManager.assignId(note);
+            notes.put(note.getId(), note);
+        }
+        assertTrue(NotesFileManager.saveNotes(notes.values()));
+        assertTrue(NotesFileManager.createBackup());
+        NotesBackupSet.Generation generation = NotesFileManager.listBackups().get(0);
+        
+        Note later = new Note("Written after the backup", "keep me", "General");
+        NotesFileManager.assignId(later);
+        notes.put(later.getId(), later);
+        assertTrue(NotesFileManager.saveNotes(notes.values()));
+        Path notesFile = DIR.resolve("notes.dat");
+        byte[] current = Files.readAllBytes(notesFile);
+        
+        List<Path> segments = segments(DIR.resolve("notes_backups"));
+        assertEquals(1, segments.size());
+        Path segment = segments.get(0);
+        byte[] damaged = Files.readAllBytes(segment);
+        damaged[damaged.length / 2] ^= 1;
+        Files.write(segment, damaged);
+        
+        assertFalse(NotesFileManager.restoreFromBackup(generation));
+        assertArrayEquals(current, Files.readAllBytes(notesFile));
+        assertFalse(Files.exists(segment), "damaged segment kept for reuse");
+        
+        NotesFileManager.closeJournal();
+        NavigableMap<Long, Note> reloaded = NotesFileManager.loadNotes();
+        assertEquals(4, reloaded.size());
+        assertEquals("keep me", reloaded.get(later.getId()).getContent());
+        NotesFileManager.closeJournal();
+    }
+    
+    private static List<Path> segments(Path backupDir) throws IOException {
+        try (Stream<Path> files = Files.walk(backupDir.resolve("segments"))) {
+            return files.filter(Files::isRegularFile).collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+}
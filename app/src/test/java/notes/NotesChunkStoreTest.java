@@ -0,0 +1,165 @@
+package notes;
+
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Notes with the same content share one copy of it, counted while notes
+ * use it; snapshots store it twice, so a damaged record costs no other note.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class NotesChunkStoreTest {
+    private static final Path DIR;
+    // NotesFileManager's snapshot magic, "NOTE"
+    private static final int SNAPSHOT_MAGIC = 0x4E4F5445;
+    private static final String TEMPLATE = "Meeting notes\nAttendees:\nDecisions:\nAction items:\n".repeat(4);
+    
+    static {
+        try {
+            DIR = Files.createTempDirectory("notes-chunks");
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        System.setProperty("notes.dir", DIR.toString());
+        System.setProperty("notes.journal.writeBehindMillis", "0");
+    }
+    
+    @Test
+    @Order(1)
+    void contentsAreCountedAndSweptWhenUnused() {
+        NotesStore store = new NotesStore();
+        try {
+            long a = store.add("A", TEMPLATE, "Work").note.getId();
+            long b = store.add("B", new String(TEMPLATE.toCharArray()), "Work").note.getId();
+            long c = store.add("C", TEMPLATE, "Work").note.getId();
+            long small = store.add("Short", "too short to share", "Work").note.getId();
+            
+            assertSame(store.get(a).contentRef(), store.get(b).contentRef());
+            assertSame(store.get(a).contentRef(), store.get(c).contentRef());
+            assertEquals(1, NotesChunkStore.getContents());
+            assertEquals(3, NotesChunkStore.getReferences());
+            assertEquals(2L * TEMPLATE.length(), NotesChunkStore.getSavedBytes());
+            
+            assertEquals(NotesStore.Status.OK, store.delete(b, store.get(b).getVersion()).status);
+            assertEquals(NotesStore.Status.OK, store.edit(c, store.get(c).getVersion(),
+                    note -> note.setContent("done")).status);
+            assertEquals(1, NotesChunkStore.getReferences());
+            assertEquals(0, NotesChunkStore.getUnused());
+            
+            // Unused, but kept until a sweep; the same content picks it up again
+            assertEquals(NotesStore.Status.OK, store.delete(a, store.get(a).getVersion()).status);
+            assertEquals(1, NotesChunkStore.getUnused());
+            long d = store.add("D", TEMPLATE, "Work").note.getId();
+            assertEquals(1, NotesChunkStore.getContents());
+            assertEquals(1, NotesChunkStore.getReferences());
+            
+            assertEquals(NotesStore.Status.OK, store.delete(d, store.get(d).getVersion()).status);
+            assertEquals(1, NotesChunkStore.sweep());
+            assertEquals(0, NotesChunkStore.getContents());
+            assertEquals(0, NotesChunkStore.sweep());
+            
+            assertTrue(store.removeAll(List.of(c, small)));
+        } finally {
+            store.close();
+        }
+    }
+    
+    @Test
+    @Order(2)
+    void snapshotsStoreSharedContentsTwiceAndSurviveDamage() throws IOException {
+        NotesStore store = new NotesStore();
+        List<Long> shared = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            shared.add(store.add("Shared " + i, TEMPLATE, "Meetings").note.getId());
+        }
+        long unique = store.add("Unique", "A content no other note has, long enough to be shared".repeat(2),
+                "Misc").note.getId();
+        assertTrue(store.saveChanges());
+        store.close();
+        
+        Path file = DIR.resolve("notes.dat");
+        byte[] saved = Files.readAllBytes(file);
+        byte[] template = TEMPLATE.getBytes(StandardCharsets.UTF_8);
+        List<Integer> copies = find(saved, template);
+        assertEquals(2, copies.size(), "copies of the shared content in notes.dat");
+        
+        store = new NotesStore();
+        try {
+            assertEquals(6, store.size());
+            for (long id : shared) {
+                assertEquals(TEMPLATE, store.get(id).getContent());
+                assertSame(store.get(shared.get(0)).contentRef(), store.get(id).contentRef());
+            }
+        } finally {
+            store.close();
+        }
+        
+        // One damaged copy: only the note in that record is lost
+        byte[] damaged = saved.clone();
+        damaged[copies.get(0) + 10] ^= 1;
+        Files.write(file, damaged);
+        assertContents(loadNotes(), shared.subList(1, 5), TEMPLATE, unique);
+        assertContents(ParallelNotesLoader.loadSnapshot(file.toFile(), SNAPSHOT_MAGIC).notes,
+                shared.subList(1, 5), TEMPLATE, unique);
+        // A mapped store still lists the damaged record; its content comes from the other copy
+        assertContents(MappedNotesStore.open(file.toFile(), SNAPSHOT_MAGIC, false).notes(),
+                shared, TEMPLATE, unique);
+        
+        // Both damaged: the notes referring to them are kept, with no content
+        damaged[copies.get(1) + 10] ^= 1;
+        Files.write(file, damaged);
+        assertContents(loadNotes(), shared.subList(2, 5), "", unique);
+        assertContents(ParallelNotesLoader.loadSnapshot(file.toFile(), SNAPSHOT_MAGIC).notes,
+                shared.subList(2, 5), "", unique);
+        assertContents(MappedNotesStore.open(file.toFile(), SNAPSHOT_MAGIC, true).notes(),
+                shared.subList(2, 5), "", unique);
+        assertContents(MappedNotesStore.open(file.toFile(), SNAPSHOT_MAGIC, false).notes(),
+                shared, "", unique);
+    }
+    
+    private static List<Note> loadNotes() {
+        NavigableMap<Long, Note> notes = NotesFileManager.loadNotes();
+        NotesFileManager.closeJournal();
+        return new ArrayList<>(notes.values());
+    }
+    
+    private static void assertContents(List<Note> notes, List<Long> shared, String content, long unique) {
+        List<Long> ids = new ArrayList<>();
+        for (Note note : notes) {
+            ids.add(note.getId());
+            if (note.getId() != unique) {
+                assertEquals(content, note.getContent(), "content of note " + note.getId());
+            }
+        }
+        List<Long> expected = new ArrayList<>(shared);
+        expected.add(unique);
+        assertEquals(expected, ids);
+    }
+    
+    private static List<Integer> find(byte[] data, byte[] pattern) {
+        List<Integer> found = new ArrayList<>();
+        outer:
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            found.add(i);
+        }
+        return found;
+    }
+}
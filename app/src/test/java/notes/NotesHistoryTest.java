@@ -0,0 +1,122 @@
+package notes;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NotesHistoryTest {
+    private static final Path DIR;
+    
+    static {
+        try {
+            DIR = Files.createTempDirectory("notes-history");
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        System.setProperty("notes.dir", DIR.toString());
+    }
+    
+    @Test
+    void concurrentRecordsOfOneNoteGetDistinctNumbers() throws Exception {
+        NotesHistory history = new NotesHistory(DIR.resolve("concurrent.history").toFile());
+        Note base = new Note(7, "Title", "line 1\nline 2\n", "General", 0L, 0L);
+        int threads = 16;
+        int edits = 50;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int writer = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // Nothing holds the note's stripe lock here
+                for (int i = 0; i < edits; i++) {
+                    Note edited = base.copy();
+                    edited.setContent(base.getContent() + "writer " + writer + " edit " + i + "\n");
+                    history.record(base, edited);
+                }
+            });
+            thread.start();
+            writers.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        
+        List<NotesHistory.Revision> revisions = history.list(7);
+        for (int i = 0; i < revisions.size(); i++) {
+            assertEquals(i + 1, revisions.get(i).number);
+        }
+        // Every edit exactly once, between copies of the note as it was
+        // wherever the revision before was another edit
+        Set<String> edited = new HashSet<>();
+        for (NotesHistory.Revision revision : revisions) {
+            String content = history.get(7, revision.number).content;
+            if (!content.equals(base.getContent())) {
+                assertTrue(content.startsWith(base.getContent() + "writer "), content);
+                assertTrue(edited.add(content), "recorded twice: " + content);
+            }
+        }
+        assertEquals(threads * edits, edited.size());
+        history.close();
+    }
+    
+    @Test
+    void unreadableHistoryIsAnErrorNotAnEmptyOne() throws Exception {
+        NotesStore store = new NotesStore();
+        long id = store.add("Title", "first", "General").note.getId();
+        store.edit(id, NotesStore.ANY_VERSION, note -> note.setContent("second"));
+        assertEquals(2, store.history(id).size());
+        
+        // Damage the records after the history was opened
+        File file = DIR.resolve("notes.history").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long position = raf.length() - 6;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        }
+        assertThrows(UncheckedIOException.class, () -> store.history(id));
+        assertThrows(UncheckedIOException.class, () -> store.revision(id, 2));
+        
+        NotesServer server = new NotesServer(store, 0);
+        server.start();
+        try {
+            assertEquals(500, status(server, "/notes/" + id + "/history"));
+            assertEquals(500, status(server, "/notes/" + id + "/history/2"));
+            assertEquals(404, status(server, "/notes/" + (id + 100) + "/history"));
+        } finally {
+            server.stop();
+            store.close();
+        }
+    }
+    
+    private static int status(NotesServer server, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://localhost:" + server.getPort() + path).openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
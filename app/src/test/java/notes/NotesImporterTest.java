@@ -0,0 +1,122 @@
+package notes;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * An import interrupted between adding a commit's notes and recording it,
+ * and again before adding them, must carry on without duplicating or
+ * losing a note or a dead letter.
+ */
+class NotesImporterTest {
+    private static final Path DIR;
+    private static final int LINES = 2000;
+    
+    static {
+        try {
+            DIR = Files.createTempDirectory("notes-import");
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        System.setProperty("notes.dir", DIR.toString());
+        System.setProperty("notes.journal.writeBehindMillis", "0");
+        // A commit after every batch of records
+        System.setProperty("notes.import.batch", "1");
+    }
+    
+    /**
+     * A store that fails one addAll, before or after adding the notes, as
+     * a crash at that point would
+     */
+    private static class CrashingStore extends NotesStore {
+        private final int crashAt;
+        private final boolean afterAdding;
+        private int calls;
+        
+        CrashingStore(int crashAt, boolean afterAdding) {
+            this.crashAt = crashAt;
+            this.afterAdding = afterAdding;
+        }
+        
+        @Override
+        public boolean addAll(List<Note> imported) {
+            if (++calls == crashAt && !afterAdding) {
+                throw new IllegalStateException("crash before adding");
+            }
+            boolean added = super.addAll(imported);
+            if (calls == crashAt) {
+                throw new IllegalStateException("crash after adding");
+            }
+            return added;
+        }
+    }
+    
+    private static boolean rejected(int line) {
+        return line % 10 == 3;
+    }
+    
+    @Test
+    void resumedImportDuplicatesAndLosesNothing() throws IOException {
+        Path source = DIR.resolve("import.jsonl");
+        List<String> lines = new ArrayList<>();
+        for (int i = 1; i <= LINES; i++) {
+            lines.add(rejected(i) ? "not json " + i
+                    : "{\"title\":\"Note " + i + "\",\"content\":\"line " + i + "\",\"category\":\"Imported\"}");
+        }
+        Files.write(source, lines, StandardCharsets.UTF_8);
+        
+        NotesStore store = new CrashingStore(3, true);
+        assertThrows(IllegalStateException.class, () -> NotesImporter.run(store, source, true));
+        store.close();
+        assertNotNull(NotesImporter.interrupted());
+        
+        NotesStore resumed = new CrashingStore(2, false);
+        assertThrows(IllegalStateException.class, () -> NotesImporter.run(resumed, source, true));
+        resumed.close();
+        
+        NotesStore last = new NotesStore();
+        NotesImporter.Result result = NotesImporter.run(last, source, true);
+        assertTrue(result.resumedAfter > 0);
+        assertEquals(LINES, result.resumedAfter + result.records);
+        assertNull(NotesImporter.interrupted());
+        
+        Map<String, Note> byTitle = new HashMap<>();
+        for (Note note : last.view().values()) {
+            assertNull(byTitle.put(note.getTitle(), note), "imported twice: " + note.getTitle());
+        }
+        List<String> deadLetters = Files.readAllLines(Path.of(NotesImporter.getRejectedFile()), StandardCharsets.UTF_8);
+        List<String> rejectedInputs = new ArrayList<>();
+        for (String line : deadLetters) {
+            assertFalse(line.indexOf('\0') >= 0, "NUL bytes in the dead letters");
+            rejectedInputs.add(new NotesServer.JsonObjectReader(line).read().get("input"));
+        }
+        
+        List<String> expectedRejected = new ArrayList<>();
+        for (int i = 1; i <= LINES; i++) {
+            if (rejected(i)) {
+                expectedRejected.add("not json " + i);
+            } else {
+                Note note = byTitle.remove("Note " + i);
+                assertNotNull(note, "lost: Note " + i);
+                assertEquals("line " + i, note.getContent());
+            }
+        }
+        assertEquals(Map.of(), byTitle);
+        assertEquals(expectedRejected, rejectedInputs);
+        last.close();
+        
+        NotesStore reopened = new NotesStore();
+        assertEquals(LINES - expectedRejected.size(), reopened.size());
+        reopened.close();
+    }
+}
@@ -0,0 +1,136 @@
+package notes;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NotesSearchIndexTest {
+    private static long nextId = 1;
+    
+    private static Note note(String title, String content, String category) {
+        return new Note(nextId++, title, content, category, 0L, 0L);
+    }
+    
+    private static List<String> titles(NotesSearchIndex.SearchResult result) {
+        List<String> titles = new ArrayList<>();
+        for (Note note : result.top) {
+            titles.add(note.getTitle());
+        }
+        return titles;
+    }
+    
+    private static List<String> search(NotesSearchIndex index, String query) {
+        return titles(index.search(query, 10));
+    }
+    
+    @Test
+    void ranksByFieldWeightFrequencyAndLength() {
+        List<Note> notes = List.of(
+                note("Java streams", "Collecting and mapping", "Work"),
+                note("Groceries", "Milk, eggs and bread", "Java"),
+                note("Coffee", "java beans, java roast, java every morning", "Home"),
+                note("Long read", "This note mentions java once, somewhere in a long content about"
+                        + " many other things that have nothing to do with it at all", "Work"),
+                note("Kotlin", "Nothing about the other language", "Work"),
+                note("Java streams", "Collecting and mapping", "Work"));
+        NotesSearchIndex index = NotesSearchIndex.build(notes);
+        
+        NotesSearchIndex.SearchResult result = index.search("java", 10);
+        assertEquals(5, result.totalHits);
+        // Three times in a short content, then the title (weighted 3), the
+        // category (2), and once in a long content last
+        assertEquals(List.of("Coffee", "Java streams", "Java streams", "Groceries", "Long read"), titles(result));
+        // Equal scores: the note added last first
+        assertSame(notes.get(5), result.top.get(1));
+        assertSame(notes.get(0), result.top.get(2));
+        
+        assertEquals(2, index.search("java", 2).top.size());
+        assertEquals(List.of("Coffee", "Long read"), search(index, "content:java"));
+        // roast is in fewer notes, so it counts for more
+        assertEquals(List.of("Coffee", "Java streams", "Java streams"), search(index, "streams OR roast"));
+        assertEquals(List.of("Java streams", "Java streams"), search(index, "java streams"));
+        assertEquals(List.of(), search(index, "\"streams java\""));
+    }
+    
+    @Test
+    void matchesWordsOneAndTwoTyposAway() {
+        List<Note> notes = List.of(
+                note("Parcel", "We receive parcels", "Post"),
+                note("Separate", "Keep the separate folders", "Files"),
+                note("Java", "A language", "Code"),
+                note("Cat", "A pet", "Home"),
+                note("Misspelled", "Please recieve this", "Post"));
+        NotesSearchIndex index = NotesSearchIndex.build(notes);
+        
+        // One typo: a letter swapped with the next, dropped, added, changed
+        assertEquals(List.of("Parcel", "Misspelled"), search(index, "receive"));
+        assertEquals(List.of("Misspelled", "Parcel"), search(index, "recieve"));
+        // As close to both, in contents as long: the note added last first
+        assertEquals(List.of("Misspelled", "Parcel"), search(index, "receve"));
+        assertEquals(List.of("Parcel", "Misspelled"), search(index, "receivve"));
+        assertEquals(List.of("Separate"), search(index, "seperate"));
+        assertEquals(List.of("Separate"), search(index, "spearate"));
+        assertEquals(List.of("Java"), search(index, "jvaa"));
+        
+        // Two typos only for words of eight letters or more
+        assertEquals(List.of("Separate"), search(index, "seperete"));
+        assertEquals(List.of("Separate"), search(index, "spearete"));
+        assertEquals(List.of("Separate"), search(index, "sepaaret"));
+        assertEquals(List.of(), search(index, "sxperetx"));
+        // Seven letters allow one
+        assertEquals(List.of(), search(index, "sepraet"));
+        assertEquals(List.of(), search(index, "raceiva"));
+        
+        // Short and quoted words match exactly
+        assertEquals(List.of(), search(index, "cta"));
+        assertEquals(List.of("Cat"), search(index, "cat"));
+        assertEquals(List.of("Misspelled"), search(index, "\"recieve\""));
+    }
+    
+    @Test
+    void readsBackWhatItWrote() throws IOException {
+        List<Note> notes = new ArrayList<>(List.of(
+                note("Java streams", "Collecting and mapping", "Work"),
+                note("Coffee", "java beans, java roast", "Home"),
+                note("Separate", "Keep the separate folders", "Files"),
+                note("Removed", "java and separate", "Work"),
+                note("Kotlin", "Nothing about java", "Work")));
+        NotesSearchIndex index = NotesSearchIndex.build(notes);
+        // Retired document numbers are left out and the rest renumbered
+        index.remove(notes.remove(3));
+        Note edited = notes.get(0);
+        edited.setContent("Collecting, mapping and separating");
+        index.update(edited);
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes), notes, 42);
+        NotesSearchIndex read = NotesSearchIndex.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), notes, 42);
+        assertNotNull(read);
+        // The same as an index built from the notes, where the order of
+        // equal scores is the order of the notes too
+        NotesSearchIndex built = NotesSearchIndex.build(notes);
+        for (String query : List.of("java", "separate", "seperate", "java OR separating", "jav*",
+                "category:work", "\"java beans\"", "removed")) {
+            NotesSearchIndex.SearchResult expected = built.search(query, 10);
+            NotesSearchIndex.SearchResult actual = read.search(query, 10);
+            assertEquals(expected.totalHits, actual.totalHits, query);
+            assertEquals(expected.top, actual.top, query);
+        }
+        assertEquals(titles(index.search("separate OR separating", 10)), search(read, "separate OR separating"));
+        assertEquals(List.of(), search(read, "removed"));
+        
+        assertNull(NotesSearchIndex.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), notes, 43));
+        assertNull(NotesSearchIndex.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), notes.subList(0, 3), 42));
+    }
+}
@@ -0,0 +1,239 @@
+package notes;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 64 writers change the same store at once: optimistic increments of shared
+ * counters, retried on conflict, plus adds and deletes of their own notes.
+ * Nothing may be lost, and the indexes, statistics and the files on disk
+ * must all agree with the notes afterwards. Of writers editing the same
+ * version of a note, exactly one may succeed.
+ */
+class NotesStoreStressTest {
+    private static final int WRITERS = 64;
+    private static final int ROUNDS = 150;
+    private static final int COUNTERS = 16;
+    
+    static {
+        try {
+            System.setProperty("notes.dir", Files.createTempDirectory("notes-stress").toString());
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    @Test
+    void concurrentWritersLoseNothing() throws Exception {
+        NotesStore store = new NotesStore();
+        long[] counters = new long[COUNTERS];
+        for (int i = 0; i < COUNTERS; i++) {
+            counters[i] = store.add("Counter " + i, "0", "Counter").note.getId();
+        }
+        // Build the lazy indexes now, so the writers keep them up to date;
+        // after reopening they are built from the notes instead
+        store.categories();
+        store.between(NotesTimeIndex.Field.CREATED, 0, 1);
+        store.readStatistics(statistics -> { });
+        
+        AtomicLongArray increments = new AtomicLongArray(COUNTERS);
+        // Id -> the note each writer last saw published for it
+        Map<Long, Note> expected = new ConcurrentHashMap<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    write(store, writer, counters, increments, expected);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(List.of(), failures);
+        
+        for (int i = 0; i < COUNTERS; i++) {
+            assertEquals(String.valueOf(increments.get(i)), store.get(counters[i]).getContent());
+        }
+        checkNotes(store, counters, expected, true);
+        
+        store.close();
+        NotesStore reopened = new NotesStore();
+        try {
+            for (int i = 0; i < COUNTERS; i++) {
+                assertEquals(String.valueOf(increments.get(i)), reopened.get(counters[i]).getContent());
+            }
+            // Reloading gives every note a new version
+            checkNotes(reopened, counters, expected, false);
+        } finally {
+            reopened.close();
+        }
+    }
+    
+    @Test
+    void oneOfConflictingEditsWins() throws Exception {
+        NotesStore store = new NotesStore();
+        try {
+            long id = store.add("Contested", "start", "Contested").note.getId();
+            for (int round = 0; round < 20; round++) {
+                Note seen = store.get(id);
+                CountDownLatch start = new CountDownLatch(1);
+                NotesStore.Status[] statuses = new NotesStore.Status[WRITERS];
+                List<Thread> threads = new ArrayList<>();
+                for (int w = 0; w < WRITERS; w++) {
+                    int writer = w;
+                    Thread thread = new Thread(() -> {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        // Every writer edits the same version
+                        statuses[writer] = store.edit(id, seen.getVersion(),
+                                note -> note.setContent("writer " + writer)).status;
+                    });
+                    thread.start();
+                    threads.add(thread);
+                }
+                start.countDown();
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                
+                int winner = -1;
+                for (int w = 0; w < WRITERS; w++) {
+                    if (statuses[w] == NotesStore.Status.OK) {
+                        assertEquals(-1, winner, "writers " + winner + " and " + w + " both saved");
+                        winner = w;
+                    } else {
+                        assertEquals(NotesStore.Status.CONFLICT, statuses[w]);
+                    }
+                }
+                assertNotEquals(-1, winner, "no writer saved");
+                assertEquals("writer " + winner, store.get(id).getContent());
+                assertNotEquals(seen.getVersion(), store.get(id).getVersion());
+            }
+            // Leave the store as the other test expects it
+            assertEquals(NotesStore.Status.OK, store.delete(id, store.get(id).getVersion()).status);
+        } finally {
+            store.close();
+        }
+    }
+    
+    private static void write(NotesStore store, int writer, long[] counters, AtomicLongArray increments,
+                              Map<Long, Note> expected) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String category = "Writer " + writer % 8;
+        List<Long> own = new ArrayList<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            int counter = random.nextInt(COUNTERS);
+            while (true) {
+                Note seen = store.get(counters[counter]);
+                long next = Long.parseLong(seen.getContent()) + 1;
+                NotesStore.Result result = store.edit(seen.getId(), seen.getVersion(),
+                        note -> note.setContent(String.valueOf(next)));
+                if (result.status == NotesStore.Status.OK) {
+                    increments.incrementAndGet(counter);
+                    break;
+                }
+                assertEquals(NotesStore.Status.CONFLICT, result.status);
+            }
+            
+            if (round % 3 == 0) {
+                NotesStore.Result added = store.add("Note " + writer + "-" + round,
+                        "stress note from writer " + writer + " round " + round, category);
+                assertEquals(NotesStore.Status.OK, added.status);
+                expected.put(added.note.getId(), added.note);
+                own.add(added.note.getId());
+            } else if (round % 3 == 1 && !own.isEmpty()) {
+                long id = own.remove(random.nextInt(own.size()));
+                NotesStore.Result edited = store.edit(id, expected.get(id).getVersion(),
+                        note -> note.setContent(note.getContent() + " edited"));
+                assertEquals(NotesStore.Status.OK, edited.status);
+                expected.put(id, edited.note);
+                own.add(id);
+            } else if (round % 9 == 8 && !own.isEmpty()) {
+                long id = own.remove(random.nextInt(own.size()));
+                assertEquals(NotesStore.Status.OK, store.delete(id, expected.get(id).getVersion()).status);
+                expected.remove(id);
+            }
+        }
+    }
+    
+    private static void checkNotes(NotesStore store, long[] counters, Map<Long, Note> expected,
+                                   boolean sameVersions) {
+        assertEquals(COUNTERS + expected.size(), store.size());
+        Map<String, Integer> perCategory = new TreeMap<>();
+        perCategory.put("Counter", COUNTERS);
+        for (Note note : expected.values()) {
+            Note actual = store.get(note.getId());
+            assertNotNull(actual, "note " + note.getId());
+            assertEquals(note.getTitle(), actual.getTitle());
+            assertEquals(note.getContent(), actual.getContent());
+            assertEquals(note.getCategory(), actual.getCategory());
+            if (sameVersions) {
+                assertEquals(note.getVersion(), actual.getVersion());
+            }
+            perCategory.merge(note.getCategory(), 1, Integer::sum);
+        }
+        
+        assertEquals(perCategory.keySet(), store.categories());
+        for (Map.Entry<String, Integer> entry : perCategory.entrySet()) {
+            assertEquals(entry.getValue().intValue(), store.count(entry.getKey()), entry.getKey());
+            assertEquals(entry.getValue().intValue(), store.idsIn(entry.getKey()).size(), entry.getKey());
+        }
+        
+        for (NotesTimeIndex.Field field : NotesTimeIndex.Field.values()) {
+            Set<Long> timed = new HashSet<>();
+            for (NotesTimeIndex.Stamp stamp : store.between(field, Long.MIN_VALUE, Long.MAX_VALUE)) {
+                assertEquals(field.of(store.get(stamp.id)), stamp.time);
+                timed.add(stamp.id);
+            }
+            assertEquals(store.view().keySet(), timed);
+        }
+        
+        // Running totals must match totals computed from scratch
+        NotesStatistics fresh = NotesStatistics.build(store.view().values());
+        store.readStatistics(statistics -> {
+            assertTotals(fresh.getTotal(), statistics.getTotal());
+            assertEquals(fresh.getCategories().keySet(), statistics.getCategories().keySet());
+            for (String category : fresh.getCategories().keySet()) {
+                assertTotals(fresh.getCategories().get(category), statistics.getCategories().get(category));
+            }
+            assertEquals(fresh.getMinLength(), statistics.getMinLength());
+            assertEquals(fresh.getMaxLength(), statistics.getMaxLength());
+        });
+        
+        NotesSearchIndex.SearchResult hits = store.search("stress", store.size());
+        assertEquals(expected.size(), hits.totalHits);
+        Set<Long> found = new HashSet<>();
+        for (Note note : hits.top) {
+            found.add(note.getId());
+        }
+        assertEquals(expected.keySet(), found);
+    }
+    
+    private static void assertTotals(NotesStatistics.Totals expected, NotesStatistics.Totals actual) {
+        assertEquals(expected.notes, actual.notes);
+        assertEquals(expected.words, actual.words);
+        assertEquals(expected.characters, actual.characters);
+    }
+}
@@ -0,0 +1,168 @@
+package notes;
+
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Moving notes between layouts, recovering from a crash while a new layout
+ * is swapped in, and backing up and restoring a sharded layout must keep
+ * every note, its id and the next id to hand out.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class ShardedNotesStoreTest {
+    private static final Path DIR;
+    
+    static {
+        try {
+            DIR = Files.createTempDirectory("notes-shards");
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        System.setProperty("notes.dir", DIR.toString());
+        System.setProperty("notes.journal.writeBehindMillis", "0");
+    }
+    
+    // Id -> "title|content|category" of every note there should be
+    private static final Map<Long, String> expected = new TreeMap<>();
+    private static long nextId;
+    
+    private static String describe(Note note) {
+        return note.getTitle() + "|" + note.getContent() + "|" + note.getCategory();
+    }
+    
+    /**
+     * Reopen the store as a restart would and check it holds exactly the
+     * expected notes in count files
+     */
+    private static NotesStore reopen(NotesStore store, int count) {
+        store.close();
+        NotesStore reopened = new NotesStore();
+        assertEquals(count, NotesFileManager.getShardCount());
+        Map<Long, String> actual = new TreeMap<>();
+        for (Note note : reopened.view().values()) {
+            actual.put(note.getId(), describe(note));
+        }
+        assertEquals(expected, actual);
+        return reopened;
+    }
+    
+    /**
+     * Add a note and check it got the next id, so none was handed out twice
+     */
+    private static void addNext(NotesStore store, String title) {
+        Note note = store.add(title, "added after " + NotesFileManager.getShardCount() + " file(s)", "Shards").note;
+        assertEquals(nextId, note.getId());
+        expected.put(note.getId(), describe(note));
+        nextId++;
+    }
+    
+    @Test
+    @Order(1)
+    void reshardingKeepsIdsContentsAndNextId() {
+        NotesStore store = new NotesStore();
+        for (int i = 0; i < 300; i++) {
+            Note note = store.add("Note " + i, "content " + i + "\nline two", "Category " + i % 7).note;
+            expected.put(note.getId(), describe(note));
+            nextId = note.getId() + 1;
+        }
+        // The highest ids go, so the next id is above every id left
+        for (long id = nextId - 5; id < nextId; id++) {
+            assertEquals(NotesStore.Status.OK, store.delete(id, store.get(id).getVersion()).status);
+            expected.remove(id);
+        }
+        
+        for (int count : new int[] {4, 7, 2, 1, 5}) {
+            assertTrue(store.reshard(count));
+            store = reopen(store, count);
+            addNext(store, "After resharding to " + count);
+            store = reopen(store, count);
+        }
+        store.close();
+    }
+    
+    @Test
+    @Order(2)
+    void crashWhileSwappingInKeepsOneLayout() throws IOException {
+        Path shards = DIR.resolve("shards");
+        Path staging = ShardedNotesStore.stagingDirectory(shards);
+        Path old = shards.resolveSibling("shards.old");
+        
+        // Staging not complete yet: it is dropped and the layout stays
+        Files.createDirectories(staging);
+        Files.write(staging.resolve("notes-000.dat"), new byte[] {1, 2, 3});
+        NotesStore store = reopen(new NotesStore(), 5);
+        assertFalse(Files.exists(staging));
+        
+        // Old layout moved aside, complete staging not moved in yet: the
+        // staged one is used and the old one, damaged here, is dropped
+        addNext(store, "Before the crash");
+        assertTrue(store.saveChanges());
+        store.close();
+        copyTree(shards, staging);
+        Files.move(shards, old);
+        Files.write(old.resolve(ShardedNotesStore.MANIFEST), new byte[] {0});
+        store = reopen(new NotesStore(), 5);
+        assertFalse(Files.exists(staging));
+        assertFalse(Files.exists(old));
+        
+        // Old layout moved aside and nothing staged: it is moved back
+        store.close();
+        Files.move(shards, old);
+        store = reopen(new NotesStore(), 5);
+        assertFalse(Files.exists(old));
+        addNext(store, "After recovering");
+        reopen(store, 5).close();
+    }
+    
+    @Test
+    @Order(3)
+    void backupOfShardsRestoresThem() {
+        NotesStore store = new NotesStore();
+        // As the console does, so the journal is in the shards backed up
+        assertTrue(store.saveChanges());
+        assertTrue(NotesFileManager.createBackup());
+        List<NotesBackupSet.Generation> generations = NotesFileManager.listBackups();
+        NotesBackupSet.Generation generation = generations.get(generations.size() - 1);
+        assertTrue(generation.getFileNames().contains(ShardedNotesStore.MANIFEST));
+        assertEquals(6, generation.getFileNames().size());
+        Map<Long, String> backedUp = new TreeMap<>(expected);
+        long backedUpNextId = nextId;
+        
+        addNext(store, "After the backup");
+        long first = expected.keySet().iterator().next();
+        assertEquals(NotesStore.Status.OK, store.delete(first, store.get(first).getVersion()).status);
+        expected.remove(first);
+        assertTrue(store.reshard(3));
+        
+        assertTrue(store.restore(generation));
+        expected.clear();
+        expected.putAll(backedUp);
+        store = reopen(store, 5);
+        // The next id is the one saved in the backup's manifest
+        nextId = backedUpNextId;
+        addNext(store, "After restoring");
+        reopen(store, 5).close();
+    }
+    
+    private static void copyTree(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, to.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
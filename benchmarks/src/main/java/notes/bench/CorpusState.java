@@ -0,0 +1,64 @@
+package notes.bench;
+
+import notes.Note;
+import notes.NotesFileManager;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.List;
+
+/**
+ * A generated corpus shared by every thread of a benchmark. Notes get
+ * their ids through NotesFileManager so saved files are consistent.
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+    @Param({"10000", "1000000", "10000000"})
+    public int notes;
+    
+    @Param({"lognormal:400,0.8"})
+    public String contentSize;
+    
+    @Param({"50"})
+    public int categories;
+    
+    @Param({"42"})
+    public long seed;
+    
+    public List<Note> corpus;
+    
+    private static PrintStream console;
+    
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        // Benchmarks run with -Dnotes.dir; keep the notes files there
+        String dir = System.getProperty("notes.dir");
+        if (dir != null) {
+            Files.createDirectories(Paths.get(dir));
+        }
+        corpus = new NotesCorpus(contentSize, categories, seed).generate(notes);
+        for (Note note : corpus) {
+            NotesFileManager.assignId(note);
+        }
+    }
+    
+    /**
+     * Discard console output until restoreConsole(), for benchmarks of
+     * methods that report to System.out
+     */
+    static synchronized void silenceConsole() {
+        if (console == null) {
+            console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+    }
+    
+    static synchronized void restoreConsole() {
+        if (console != null) {
+            System.setOut(console);
+            console = null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package notes.bench;
+
+import notes.Note;
+import notes.NotesSearchIndex;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searching the corpus for a frequent and a rare word: Note.matches over
+ * every note, the scan a search without the index performs, against a
+ * ranked top-20 from NotesSearchIndex, exact and with a typo
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dnotes.dir=target/bench-data", "-Dnotes.journal=false"})
+@State(Scope.Benchmark)
+public class NoteSearchBenchmark {
+    @Param({"common", "rare"})
+    public String word;
+    
+    private Note[] notes;
+    private NotesSearchIndex index;
+    private String query;
+    private String misspelled;
+    
+    @Setup(Level.Trial)
+    public void prepare(CorpusState state) {
+        notes = state.corpus.toArray(new Note[0]);
+        index = NotesSearchIndex.build(Arrays.asList(notes));
+        NotesCorpus corpus = new NotesCorpus(state.contentSize, state.categories, state.seed);
+        int rank = word.equals("common") ? 0 : 8000;
+        query = corpus.word(rank);
+        
+        // Frequent words are short; typos are only forgiven from four letters
+        String longWord = query;
+        while (longWord.length() < 4) {
+            longWord = corpus.word(++rank);
+        }
+        char[] letters = longWord.toCharArray();
+        char swapped = letters[1];
+        letters[1] = letters[2];
+        letters[2] = swapped;
+        misspelled = new String(letters);
+    }
+    
+    @Benchmark
+    public int matches() {
+        int hits = 0;
+        for (Note note : notes) {
+            if (note.matches(query)) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+    
+    @Benchmark
+    public NotesSearchIndex.SearchResult indexed() {
+        return index.search(query, 20);
+    }
+    
+    @Benchmark
+    public NotesSearchIndex.SearchResult typo() {
+        return index.search(misspelled, 20);
+    }
+}
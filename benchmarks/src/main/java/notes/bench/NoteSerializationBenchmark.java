@@ -0,0 +1,51 @@
+package notes.bench;
+
+import notes.Note;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Note.toFileString and Note.fromFileString, one note per operation. The
+ * notes are visited in order, so larger corpora also measure the cost of
+ * notes that are no longer in the CPU caches.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dnotes.dir=target/bench-data", "-Dnotes.journal=false"})
+@State(Scope.Thread)
+public class NoteSerializationBenchmark {
+    // Lines parsed by fromFileString; rendering all of them would double the heap
+    private static final int MAX_LINES = 100_000;
+    
+    private Note[] notes;
+    private String[] lines;
+    private int nextNote;
+    private int nextLine;
+    
+    @Setup(Level.Trial)
+    public void prepare(CorpusState state) {
+        notes = state.corpus.toArray(new Note[0]);
+        lines = new String[Math.min(notes.length, MAX_LINES)];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = notes[i].toFileString();
+        }
+    }
+    
+    @Benchmark
+    public String toFileString() {
+        Note note = notes[nextNote];
+        nextNote = nextNote + 1 == notes.length ? 0 : nextNote + 1;
+        return note.toFileString();
+    }
+    
+    @Benchmark
+    public Note fromFileString() {
+        String line = lines[nextLine];
+        nextLine = nextLine + 1 == lines.length ? 0 : nextLine + 1;
+        return Note.fromFileString(line);
+    }
+}
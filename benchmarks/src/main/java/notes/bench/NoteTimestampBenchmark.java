@@ -0,0 +1,78 @@
+package notes.bench;
+
+import notes.NoteTimestamps;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting and parsing note timestamps with NoteTimestamps, against the
+ * java.time calls Note used to make for the same forms. Run with the gc
+ * profiler to see the difference in allocation as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NoteTimestampBenchmark {
+    private static final DateTimeFormatter ISO = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private final long[] millis = new long[1024];
+    private final String[] iso = new String[1024];
+    private final StringBuilder out = new StringBuilder(64);
+    private int next;
+
+    @Setup
+    public void prepare() {
+        // A few years of timestamps around now, some on whole seconds
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < millis.length; i++) {
+            long time = now - (long) (random.nextDouble() * 3 * 365 * 86_400_000L);
+            millis[i] = i % 2 == 0 ? time / 1000 * 1000 : time;
+            iso[i] = NoteTimestamps.toIso(millis[i]);
+        }
+    }
+
+    private int next() {
+        return next = (next + 1) & (millis.length - 1);
+    }
+
+    @Benchmark
+    public StringBuilder formatIso() {
+        out.setLength(0);
+        return NoteTimestamps.appendIso(millis[next()], out);
+    }
+
+    @Benchmark
+    public StringBuilder formatIsoJavaTime() {
+        out.setLength(0);
+        ISO.formatTo(LocalDateTime.ofInstant(Instant.ofEpochMilli(millis[next()]), ZONE), out);
+        return out;
+    }
+
+    @Benchmark
+    public long parseIso() {
+        return NoteTimestamps.parseIso(iso[next()]);
+    }
+
+    @Benchmark
+    public long parseIsoJavaTime() {
+        return LocalDateTime.parse(iso[next()]).atZone(ZONE).toInstant().toEpochMilli();
+    }
+
+    @Benchmark
+    public StringBuilder formatDisplay() {
+        out.setLength(0);
+        return NoteTimestamps.appendDisplay(millis[next()], out);
+    }
+}
@@ -0,0 +1,81 @@
+package notes.bench;
+
+import notes.Note;
+import notes.NotesContentCache;
+import notes.NotesFileManager;
+import notes.NotesStore;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading large note contents kept off the heap: a skewed workload where
+ * nine reads in ten go to a tenth of the notes, which the content cache
+ * should mostly serve, and uniform reads over notes that do not all fit.
+ * The hit rate seen is printed after each trial. Add
+ * -jvmArgsAppend -Dnotes.mmap=true to read contents from the mapped file
+ * instead of direct buffers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = {"-Dnotes.dir=target/bench-data", "-Dnotes.content.cacheBytes=67108864"})
+@State(Scope.Benchmark)
+public class NotesContentCacheBenchmark {
+    @Param({"20000"})
+    public int notes;
+    
+    // About 300 MB of content in all, several times the cache
+    @Param({"lognormal:12000,0.8"})
+    public String contentSize;
+    
+    private NotesStore store;
+    private long firstId;
+    
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        CorpusState.silenceConsole();
+        Files.createDirectories(Paths.get("target/bench-data"));
+        List<Note> corpus = new NotesCorpus(contentSize, 50, 42).generate(notes);
+        for (Note note : corpus) {
+            NotesFileManager.assignId(note);
+        }
+        NotesFileManager.saveNotes(corpus);
+        store = new NotesStore();
+        firstId = store.view().firstKey();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        CorpusState.restoreConsole();
+        System.out.printf("%nContent cache: %.1f%% hits, %d evictions, %d bytes resident%n",
+                100 * NotesContentCache.getHitRate(), NotesContentCache.getEvictions(),
+                NotesContentCache.getResidentBytes());
+    }
+    
+    @Benchmark
+    public String skewed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int hot = notes / 10;
+        int offset = random.nextInt(10) < 9 ? random.nextInt(hot) : hot + random.nextInt(notes - hot);
+        return store.get(firstId + offset).getContent();
+    }
+    
+    @Benchmark
+    public String uniform() {
+        return store.get(firstId + ThreadLocalRandom.current().nextInt(notes)).getContent();
+    }
+    
+    @Benchmark
+    public String preview() {
+        return store.get(firstId + ThreadLocalRandom.current().nextInt(notes)).getContentPreview(100);
+    }
+}
@@ -0,0 +1,187 @@
+package notes.bench;
+
+import notes.Note;
+import notes.NotesFileManager;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Generates synthetic notes for benchmarks. Words come from a fixed
+ * pseudo-random vocabulary with a skewed (roughly Zipfian) frequency, so
+ * content compresses and searches like prose rather than random bytes.
+ * The same settings and seed always give the same notes.
+ *
+ * Content size is given as one of:
+ *   fixed:400            every note 400 characters
+ *   uniform:100-2000     evenly spread between the bounds
+ *   lognormal:400,0.8    median 400, sigma 0.8 (a few very long notes)
+ *
+ * Run with main() to write a corpus to notes.dat in the working directory
+ * (or -Dnotes.dir):
+ *   java -cp benchmarks.jar notes.bench.NotesCorpus --notes 1000000 --content-size lognormal:400,0.8 --categories 50
+ */
+public final class NotesCorpus {
+    private static final int VOCABULARY_SIZE = 8192;
+    private static final LocalDateTime EPOCH = LocalDateTime.of(2024, 1, 1, 0, 0);
+    
+    private final ContentSize contentSize;
+    private final int categories;
+    private final long seed;
+    private final String[] vocabulary;
+    
+    public NotesCorpus(String contentSize, int categories, long seed) {
+        if (categories < 1) {
+            throw new IllegalArgumentException("Need at least one category");
+        }
+        this.contentSize = ContentSize.parse(contentSize);
+        this.categories = categories;
+        this.seed = seed;
+        this.vocabulary = vocabulary(seed);
+    }
+    
+    /**
+     * Generate count notes with ids 1..count
+     */
+    public List<Note> generate(int count) {
+        Random random = new Random(seed);
+        List<Note> notes = new ArrayList<>(count);
+        StringBuilder text = new StringBuilder(1024);
+        for (int i = 0; i < count; i++) {
+            notes.add(note(i + 1, random, text));
+        }
+        return notes;
+    }
+    
+    /**
+     * The word of the given frequency rank (0 is the most common)
+     */
+    public String word(int rank) {
+        return vocabulary[rank];
+    }
+    
+    private Note note(long id, Random random, StringBuilder text) {
+        text.setLength(0);
+        int titleWords = 2 + random.nextInt(5);
+        for (int i = 0; i < titleWords; i++) {
+            appendWord(text, random, i == 0);
+        }
+        String title = text.toString();
+        
+        text.setLength(0);
+        int length = contentSize.next(random);
+        boolean sentenceStart = true;
+        while (text.length() < length) {
+            appendWord(text, random, sentenceStart);
+            sentenceStart = random.nextInt(12) == 0;
+            if (sentenceStart) {
+                text.append(random.nextInt(6) == 0 ? ".\n" : ". ");
+            }
+        }
+        text.setLength(length);
+        String content = text.toString();
+        
+        // Category popularity is skewed too: a few categories hold most notes
+        String category = "category-" + skewed(random, categories);
+        LocalDateTime createdAt = EPOCH.plusSeconds(id * 37 + random.nextInt(3600));
+        LocalDateTime lastModified = createdAt.plusSeconds(random.nextInt(30 * 24 * 3600));
+        return new Note(id, title, content, category, createdAt, lastModified);
+    }
+    
+    private void appendWord(StringBuilder text, Random random, boolean capitalize) {
+        if (text.length() > 0 && text.charAt(text.length() - 1) != ' ' && text.charAt(text.length() - 1) != '\n') {
+            text.append(' ');
+        }
+        String word = vocabulary[skewed(random, vocabulary.length)];
+        if (capitalize) {
+            text.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+        } else {
+            text.append(word);
+        }
+    }
+    
+    /**
+     * A value in [0, bound) where small values are much more likely
+     */
+    private static int skewed(Random random, int bound) {
+        double r = random.nextDouble();
+        return (int) (bound * r * r * r);
+    }
+    
+    private static String[] vocabulary(long seed) {
+        Random random = new Random(seed ^ 0x5DEECE66DL);
+        String[] words = new String[VOCABULARY_SIZE];
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < words.length; i++) {
+            word.setLength(0);
+            // Frequent words are short, as in real text
+            int length = 2 + Math.min(10, i / 512 + random.nextInt(4));
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        return words;
+    }
+    
+    /**
+     * Distribution of content lengths in characters
+     */
+    interface ContentSize {
+        int next(Random random);
+        
+        static ContentSize parse(String spec) {
+            String[] parts = spec.split(":", 2);
+            try {
+                switch (parts[0]) {
+                    case "fixed": {
+                        int length = Integer.parseInt(parts[1]);
+                        return random -> length;
+                    }
+                    case "uniform": {
+                        String[] bounds = parts[1].split("-");
+                        int min = Integer.parseInt(bounds[0]);
+                        int max = Integer.parseInt(bounds[1]);
+                        return random -> min + random.nextInt(max - min + 1);
+                    }
+                    case "lognormal": {
+                        String[] values = parts[1].split(",");
+                        double median = Double.parseDouble(values[0]);
+                        double sigma = Double.parseDouble(values[1]);
+                        return random -> (int) Math.max(1, Math.min(1 << 20,
+                                median * Math.exp(sigma * random.nextGaussian())));
+                    }
+                    default:
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("Invalid content size '" + spec
+                    + "' (use fixed:N, uniform:MIN-MAX or lognormal:MEDIAN,SIGMA)");
+        }
+    }
+    
+    public static void main(String[] args) {
+        int count = 10_000;
+        String contentSize = "lognormal:400,0.8";
+        int categories = 50;
+        long seed = 42;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--notes": count = Integer.parseInt(args[i + 1]); break;
+                case "--content-size": contentSize = args[i + 1]; break;
+                case "--categories": categories = Integer.parseInt(args[i + 1]); break;
+                case "--seed": seed = Long.parseLong(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        
+        List<Note> notes = new NotesCorpus(contentSize, categories, seed).generate(count);
+        for (Note note : notes) {
+            NotesFileManager.assignId(note);
+        }
+        NotesFileManager.saveNotes(notes);
+        NotesFileManager.closeJournal();
+    }
+}
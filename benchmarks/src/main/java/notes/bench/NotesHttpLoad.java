@@ -0,0 +1,238 @@
+package notes.bench;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator for the HTTP server (NotesApp --serve). Each connection
+ * is a kept-alive socket on its own thread sending requests back to back,
+ * so the client adds little overhead of its own. Reports requests per
+ * second, the status codes seen and latency percentiles.
+ *
+ *   java -cp benchmarks.jar notes.bench.NotesHttpLoad --port 8080 --connections 64 --seconds 10 --mix get
+ *
+ * Mixes:
+ *   get         GET /notes/{random id}
+ *   revalidate  the same with If-None-Match, answered 304 while unchanged
+ *   search      GET /search for a random word of the corpus vocabulary
+ *   edit        PUT /notes/{random id} with If-Match, retried on 412
+ */
+public final class NotesHttpLoad {
+    private static final int SAMPLES_PER_CONNECTION = 1 << 16;
+    
+    private final String host;
+    private final int port;
+    private final String mix;
+    private final int notes;
+    private final long deadline;
+    private final NotesCorpus words = new NotesCorpus("fixed:10", 1, 42);
+    
+    private final LongAdder requests = new LongAdder();
+    private final Map<Integer, LongAdder> statuses = new ConcurrentSkipListMap<>();
+    
+    private NotesHttpLoad(String host, int port, String mix, int notes, long deadline) {
+        this.host = host;
+        this.port = port;
+        this.mix = mix;
+        this.notes = notes;
+        this.deadline = deadline;
+    }
+    
+    /**
+     * One kept-alive connection; returns sampled latencies in nanoseconds
+     */
+    private long[] run(int connection) throws IOException {
+        Random random = new Random(connection);
+        long[] samples = new long[SAMPLES_PER_CONNECTION];
+        int sampled = 0;
+        long seen = 0;
+        Map<Integer, String> etags = new HashMap<>();
+        
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            
+            while (System.nanoTime() < deadline) {
+                int id = 1 + random.nextInt(notes);
+                StringBuilder request = new StringBuilder(256);
+                String body = null;
+                switch (mix) {
+                    case "get":
+                        request.append("GET /notes/").append(id).append(" HTTP/1.1\r\n");
+                        break;
+                    case "revalidate":
+                        request.append("GET /notes/").append(id).append(" HTTP/1.1\r\n");
+                        String etag = etags.get(id);
+                        if (etag != null) {
+                            request.append("If-None-Match: ").append(etag).append("\r\n");
+                        }
+                        break;
+                    case "search":
+                        request.append("GET /search?q=").append(words.word(random.nextInt(2000)))
+                               .append("&limit=10 HTTP/1.1\r\n");
+                        break;
+                    case "edit":
+                        body = "{\"title\":\"load " + random.nextInt(1000) + "\"}";
+                        request.append("PUT /notes/").append(id).append(" HTTP/1.1\r\n")
+                               .append("If-Match: ").append(etags.getOrDefault(id, "*")).append("\r\n")
+                               .append("Content-Length: ").append(body.length()).append("\r\n");
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown mix " + mix);
+                }
+                request.append("Host: ").append(host).append("\r\n\r\n");
+                if (body != null) {
+                    request.append(body);
+                }
+                
+                long start = System.nanoTime();
+                out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                Response response = Response.read(in);
+                long elapsed = System.nanoTime() - start;
+                
+                if (response.etag != null) {
+                    etags.put(id, response.etag);
+                } else if (response.status == 412) {
+                    etags.remove(id);
+                }
+                requests.increment();
+                statuses.computeIfAbsent(response.status, s -> new LongAdder()).increment();
+                // Reservoir sample so long runs keep a fair spread
+                seen++;
+                if (sampled < samples.length) {
+                    samples[sampled++] = elapsed;
+                } else {
+                    long slot = (long) (random.nextDouble() * seen);
+                    if (slot < samples.length) {
+                        samples[(int) slot] = elapsed;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(samples, sampled);
+    }
+    
+    /**
+     * Status line, ETag and body of one HTTP/1.1 response
+     */
+    private static class Response {
+        int status;
+        String etag;
+        
+        static Response read(InputStream in) throws IOException {
+            Response response = new Response();
+            String statusLine = line(in);
+            response.status = Integer.parseInt(statusLine.substring(9, 12));
+            long length = 0;
+            boolean chunked = false;
+            String header;
+            while (!(header = line(in)).isEmpty()) {
+                int colon = header.indexOf(':');
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("ETag")) {
+                    response.etag = value;
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                }
+            }
+            if (chunked) {
+                long size;
+                while ((size = Long.parseLong(line(in).trim(), 16)) > 0) {
+                    skip(in, size);
+                    line(in);
+                }
+                line(in);
+            } else {
+                skip(in, length);
+            }
+            return response;
+        }
+        
+        private static String line(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder(64);
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new EOFException("Connection closed by the server");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+        
+        private static void skip(InputStream in, long bytes) throws IOException {
+            while (bytes > 0) {
+                long skipped = in.skip(bytes);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("Connection closed by the server");
+                    }
+                    skipped = 1;
+                }
+                bytes -= skipped;
+            }
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 8080;
+        int connections = 64;
+        int seconds = 10;
+        String mix = "get";
+        int notes = 10_000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--host": host = args[i + 1]; break;
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--connections": connections = Integer.parseInt(args[i + 1]); break;
+                case "--seconds": seconds = Integer.parseInt(args[i + 1]); break;
+                case "--mix": mix = args[i + 1]; break;
+                case "--notes": notes = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        
+        long start = System.nanoTime();
+        NotesHttpLoad load = new NotesHttpLoad(host, port, mix, notes, start + seconds * 1_000_000_000L);
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        List<Future<long[]>> runs = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            int connection = i;
+            runs.add(pool.submit(() -> load.run(connection)));
+        }
+        List<Long> latencies = new ArrayList<>();
+        for (Future<long[]> run : runs) {
+            for (long sample : run.get()) {
+                latencies.add(sample);
+            }
+        }
+        pool.shutdown();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        
+        Collections.sort(latencies);
+        System.out.printf("%s: %d requests in %.1f s = %.0f requests/s over %d connections%n",
+                mix, load.requests.sum(), elapsed, load.requests.sum() / elapsed, connections);
+        System.out.println("Status codes: " + load.statuses);
+        if (!latencies.isEmpty()) {
+            System.out.printf("Latency: p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n",
+                    percentile(latencies, 0.50), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999), latencies.get(latencies.size() - 1) / 1e6);
+        }
+    }
+    
+    private static double percentile(List<Long> sorted, double fraction) {
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.round(fraction * (sorted.size() - 1)))) / 1e6;
+    }
+}
@@ -0,0 +1,48 @@
+package notes.bench;
+
+import notes.NotesFileManager;
+import notes.NotesManager;
+import notes.NotesStatistics;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NotesManager.showStatistics, which reads the running totals and the file
+ * statistics, and NotesStatistics.build, the full recount done when
+ * notes.stats is missing or stale
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dnotes.dir=target/bench-data", "-Dnotes.journal=false"})
+@State(Scope.Benchmark)
+public class NotesStatisticsBenchmark {
+    private NotesManager manager;
+    
+    @Setup(Level.Trial)
+    public void prepare(CorpusState state) {
+        CorpusState.silenceConsole();
+        NotesFileManager.saveNotes(state.corpus);
+        manager = new NotesManager();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        NotesFileManager.closeJournal();
+        CorpusState.restoreConsole();
+    }
+    
+    @Benchmark
+    public void showStatistics() {
+        manager.showStatistics();
+    }
+    
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public NotesStatistics buildStatistics(CorpusState state) {
+        return NotesStatistics.build(state.corpus);
+    }
+}
@@ -0,0 +1,46 @@
+package notes.bench;
+
+import notes.Note;
+import notes.NotesFileManager;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full snapshot writes and loads through NotesFileManager, in the
+ * directory given by -Dnotes.dir. The journal is off, so each save
+ * rewrites notes.dat and each load reads only the snapshot.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Dnotes.dir=target/bench-data", "-Dnotes.journal=false"})
+@State(Scope.Benchmark)
+public class NotesStorageBenchmark {
+    @Setup(Level.Trial)
+    public void writeSnapshot(CorpusState state) {
+        CorpusState.silenceConsole();
+        if (!NotesFileManager.saveNotes(state.corpus)) {
+            throw new IllegalStateException("Could not write the benchmark snapshot");
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        NotesFileManager.closeJournal();
+        CorpusState.restoreConsole();
+    }
+    
+    @Benchmark
+    public boolean saveNotes(CorpusState state) {
+        return NotesFileManager.saveNotes(state.corpus);
+    }
+    
+    @Benchmark
+    public Map<Long, Note> loadNotes() {
+        return NotesFileManager.loadNotes();
+    }
+}
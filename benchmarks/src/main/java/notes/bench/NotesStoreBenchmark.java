@@ -0,0 +1,61 @@
+package notes.bench;
+
+import notes.Note;
+import notes.NotesFileManager;
+import notes.NotesStore;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NotesStore shared by 64 threads: optimistic edits of random notes,
+ * retried on a version conflict, and lock-free reads. Edits go through
+ * the journal with write-behind, as in the app.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(value = 1, jvmArgsAppend = {"-Dnotes.dir=target/bench-data"})
+@State(Scope.Benchmark)
+public class NotesStoreBenchmark {
+    private NotesStore store;
+    private long firstId;
+    private int size;
+    
+    @Setup(Level.Trial)
+    public void prepare(CorpusState state) {
+        CorpusState.silenceConsole();
+        NotesFileManager.saveNotes(state.corpus);
+        store = new NotesStore();
+        firstId = store.view().firstKey();
+        size = store.size();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        CorpusState.restoreConsole();
+    }
+    
+    @Benchmark
+    public NotesStore.Result edit() {
+        long id = firstId + ThreadLocalRandom.current().nextInt(size);
+        while (true) {
+            Note note = store.get(id);
+            String title = note.getTitle();
+            NotesStore.Result result = store.edit(id, note.getVersion(), n -> n.setTitle(title));
+            if (result.status != NotesStore.Status.CONFLICT) {
+                return result;
+            }
+        }
+    }
+    
+    @Benchmark
+    public Note get() {
+        return store.get(firstId + ThreadLocalRandom.current().nextInt(size));
+    }
+}